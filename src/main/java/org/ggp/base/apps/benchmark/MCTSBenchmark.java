@@ -0,0 +1,76 @@
+package org.ggp.base.apps.benchmark;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.player.gamer.statemachine.mcts.MCTSTree;
+import org.ggp.base.util.files.FileUtils;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+
+/**
+ * MCTSBenchmark compares the ways an {@link MCTSTree} can search on several
+ * threads. For each game, and each {@link MCTSTree.Mode}, it searches from
+ * the initial state for the first role for a fixed amount of time, on the
+ * same state machine the MCTS gamer uses, and reports how many iterations and
+ * playouts per second it managed, how they were spread over the threads, and
+ * which move it chose.
+ *
+ * Usage: MCTSBenchmark [seconds per mode and game] [threads] [game ...]
+ */
+public class MCTSBenchmark {
+	private static final List<String> DEFAULT_GAMES = Arrays.asList("connectFour", "ticTacToe");
+
+	/**
+	 * Searches the given game in the given mode for the given time, and
+	 * returns a line describing the results.
+	 */
+	public static String benchmark(List<Gdl> rules, MCTSTree.Mode mode, int numThreads, long millis) {
+		MCTSTree tree = null;
+		try {
+			StateMachine machine = new CachedStateMachine(new ProverStateMachine());
+			machine.initialize(rules);
+			tree = new MCTSTree(machine, machine.getRoles().get(0), numThreads, mode);
+
+			long startTime = System.currentTimeMillis();
+			Move move = tree.search(machine.getInitialState(), startTime + millis);
+			long elapsed = System.currentTimeMillis() - startTime;
+
+			StringBuilder rates = new StringBuilder();
+			for (double rate : tree.getLastIterationsPerSecond()) {
+				rates.append(rates.length() == 0 ? "" : ", ").append(Math.round(rate));
+			}
+			return String.format("%-5s %10.1f iterations/s, %10.1f playouts/s, root visits %8d, by thread [%s], move %s",
+					mode, 1000.0 * tree.getNumIterations() / elapsed, 1000.0 * tree.getNumPlayouts() / elapsed,
+					tree.getRootVisits(), rates, move);
+		} catch (Exception e) {
+			return String.format("%-5s failed: %s", mode, e);
+		} finally {
+			if (tree != null) {
+				tree.shutdown();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long millis = (args.length > 0) ? (long) (Double.parseDouble(args[0]) * 1000) : 10000;
+		int numThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		List<String> gameKeys = (args.length > 2) ? Arrays.asList(args).subList(2, args.length) : DEFAULT_GAMES;
+		for (String gameKey : gameKeys) {
+			File rulesheet = new File("games/games/" + gameKey + "/" + gameKey + ".kif");
+			if (!rulesheet.exists()) {
+				continue;
+			}
+			List<Gdl> rules = Game.createEphemeralGame(Game.preprocessRulesheet(FileUtils.readFileAsString(rulesheet))).getRules();
+			System.out.println(gameKey + ", " + numThreads + " threads:");
+			for (MCTSTree.Mode mode : MCTSTree.Mode.values()) {
+				System.out.println("  " + benchmark(rules, mode, numThreads, millis));
+			}
+		}
+	}
+}
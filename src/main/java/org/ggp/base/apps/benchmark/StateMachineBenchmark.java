@@ -0,0 +1,119 @@
+package org.ggp.base.apps.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.files.FileUtils;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.forwardchaining.ForwardChainingStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+
+/**
+ * StateMachineBenchmark compares the speed of the state machines that work
+ * directly on the rules, without grounding them: the top-down prover and the
+ * forward-chaining reasoner. For every game in the local games/games
+ * directory, and the larger games among the test games, it initializes each
+ * machine and then runs depth charges from the initial state for a fixed
+ * amount of time, and reports how long the initialization took and how many
+ * depth charges per second each machine managed.
+ *
+ * The forward chainer pays for deriving the whole model of every state.
+ * With 10 seconds per machine and game, on one core, the two measured:
+ * <pre>
+ *   game           prover  forward chaining  (depth charges per second)
+ *   maze           2349    1146
+ *   mastermind2x3  3563     819
+ *   mastermind     7072    3504
+ *   connectFour      72      91
+ *   ticTacToe       799     969
+ *   breakthrough     29      31
+ * </pre>
+ * Runs vary by as much as these gaps on the closer games.
+ *
+ * Usage: StateMachineBenchmark [seconds per machine and game] [game ...]
+ */
+public class StateMachineBenchmark {
+	public interface MachineFactory {
+		String getName();
+		StateMachine create();
+	}
+
+	/** The test games, from games/test, that are large enough to be worth benchmarking. */
+	private static final List<String> LARGE_TEST_GAMES = Arrays.asList("breakthrough");
+
+	private static final List<MachineFactory> MACHINES = Arrays.<MachineFactory>asList(
+		new MachineFactory() {
+			@Override
+			public String getName() { return "Prover"; }
+			@Override
+			public StateMachine create() { return new ProverStateMachine(); }
+		},
+		new MachineFactory() {
+			@Override
+			public String getName() { return "ForwardChaining"; }
+			@Override
+			public StateMachine create() { return new ForwardChainingStateMachine(); }
+		});
+
+	/**
+	 * Initializes a machine for the given game, runs depth charges for the
+	 * given time, and returns a line describing the results.
+	 */
+	public static String benchmark(MachineFactory factory, List<Gdl> rules, long millis) {
+		try {
+			long startTime = System.currentTimeMillis();
+			StateMachine machine = factory.create();
+			machine.initialize(rules);
+			long initTime = System.currentTimeMillis() - startTime;
+
+			MachineState initialState = machine.getInitialState();
+			int[] depth = new int[1];
+			long totalDepth = 0;
+			int charges = 0;
+			startTime = System.currentTimeMillis();
+			long elapsed;
+			while ((elapsed = System.currentTimeMillis() - startTime) < millis) {
+				machine.performDepthCharge(initialState, depth);
+				totalDepth += depth[0];
+				charges++;
+			}
+			return String.format("%-16s init %6d ms, %10.1f charges/s, average depth %.1f",
+					factory.getName(), initTime, 1000.0 * charges / elapsed,
+					(charges > 0) ? (double) totalDepth / charges : 0.0);
+		} catch (Exception e) {
+			return String.format("%-16s failed: %s", factory.getName(), e);
+		} catch (StackOverflowError e) {
+			return String.format("%-16s failed: %s", factory.getName(), e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long millis = (args.length > 0) ? (long) (Double.parseDouble(args[0]) * 1000) : 10000;
+		List<String> gameKeys = new ArrayList<String>();
+		if (args.length > 1) {
+			gameKeys.addAll(Arrays.asList(args).subList(1, args.length));
+		} else {
+			gameKeys.addAll(Arrays.asList(new File("games", "games").list()));
+			gameKeys.addAll(LARGE_TEST_GAMES);
+		}
+		for (String gameKey : gameKeys) {
+			File rulesheet = new File("games/games/" + gameKey + "/" + gameKey + ".kif");
+			if (!rulesheet.exists()) {
+				rulesheet = new File("games/test/" + gameKey + ".kif");
+			}
+			if (!rulesheet.exists()) {
+				continue;
+			}
+			List<Gdl> rules = Game.createEphemeralGame(Game.preprocessRulesheet(FileUtils.readFileAsString(rulesheet))).getRules();
+			System.out.println(gameKey + ":");
+			for (MachineFactory factory : MACHINES) {
+				System.out.println("  " + benchmark(factory, rules, millis));
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package org.ggp.base.apps.player.config;
+
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+
+import org.ggp.base.player.gamer.statemachine.mcts.MCTSTree;
+import org.ggp.base.player.gamer.statemachine.random.MCTS;
+
+/**
+ * Lets the user choose how the MCTS gamer spreads its search over several
+ * threads. The choice takes effect from the next match.
+ */
+@SuppressWarnings("serial")
+public final class MCTSConfigPanel extends ConfigPanel
+{
+
+	public MCTSConfigPanel(final MCTS gamer)
+	{
+		super(new GridBagLayout());
+
+		final JComboBox<MCTSTree.Mode> modeBox = new JComboBox<MCTSTree.Mode>(MCTSTree.Mode.values());
+		modeBox.setSelectedItem(gamer.getParallelMode());
+		modeBox.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				gamer.setParallelMode((MCTSTree.Mode) modeBox.getSelectedItem());
+			}
+		});
+
+		this.add(new JLabel("Parallel search:"), new GridBagConstraints(0, 0, 1, 1, 0.0, 0.0, GridBagConstraints.EAST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 5, 5));
+		this.add(modeBox, new GridBagConstraints(1, 0, 1, 1, 1.0, 0.0, GridBagConstraints.WEST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 5, 5));
+	}
+
+}
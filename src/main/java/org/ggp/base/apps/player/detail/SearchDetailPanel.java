@@ -0,0 +1,86 @@
+package org.ggp.base.apps.player.detail;
+
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+
+import javax.swing.JScrollPane;
+import javax.swing.ScrollPaneConstants;
+import javax.swing.table.DefaultTableModel;
+
+import org.ggp.base.player.gamer.event.GamerNewMatchEvent;
+import org.ggp.base.player.gamer.event.GamerSearchRateEvent;
+import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.observer.Event;
+import org.ggp.base.util.ui.table.JZebraTable;
+
+/**
+ * This is a tabular detail panel for gamers that search with several
+ * threads. Along with what the SimpleDetailPanel shows, it lists how many
+ * iterations the search ran for each move, and how many iterations per
+ * second each of its threads managed.
+ */
+@SuppressWarnings("serial")
+public class SearchDetailPanel extends DetailPanel {
+	private final JZebraTable moveTable;
+	private GamerSearchRateEvent lastRate;
+
+	public SearchDetailPanel() {
+		super(new GridBagLayout());
+
+		DefaultTableModel model = new DefaultTableModel();
+		model.addColumn("Available Moves");
+		model.addColumn("Computation Time");
+		model.addColumn("Selected Move");
+		model.addColumn("Iterations");
+		model.addColumn("Iterations/s by Thread");
+
+		moveTable = new JZebraTable(model) {
+			@Override
+			public boolean isCellEditable(int rowIndex, int colIndex) {
+				return false;
+			}
+		};
+		moveTable.setShowHorizontalLines(true);
+		moveTable.setShowVerticalLines(true);
+
+		this.add(new JScrollPane(moveTable, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED), new GridBagConstraints(0, 0, 1, 1, 1.0, 1.0, GridBagConstraints.CENTER, GridBagConstraints.BOTH, new Insets(5, 5, 5, 5), 5, 5));
+	}
+
+	@Override
+	public void observe(Event event) {
+		if (event instanceof GamerNewMatchEvent) {
+			observe((GamerNewMatchEvent) event);
+		} else if (event instanceof GamerSearchRateEvent) {
+			lastRate = (GamerSearchRateEvent) event;
+		} else if (event instanceof GamerSelectedMoveEvent) {
+			observe((GamerSelectedMoveEvent) event);
+		}
+	}
+
+	private void observe(GamerNewMatchEvent event) {
+		DefaultTableModel model = (DefaultTableModel) moveTable.getModel();
+		model.setRowCount(0);
+		lastRate = null;
+	}
+
+	// The search rate, if any, comes just before the move it was for.
+	private void observe(GamerSelectedMoveEvent event) {
+		String availableMoves = Integer.toString(event.getMoves().size());
+		String computationTime = Long.toString(event.getTime()) + " ms";
+		String move = event.getSelection().toString();
+		String iterations = "-";
+		StringBuilder rates = new StringBuilder("-");
+		if (lastRate != null) {
+			iterations = Long.toString(lastRate.getIterations());
+			rates.setLength(0);
+			for (double rate : lastRate.getIterationsPerSecond()) {
+				rates.append(rates.length() == 0 ? "" : ", ").append(Math.round(rate));
+			}
+			lastRate = null;
+		}
+
+		DefaultTableModel model = (DefaultTableModel) moveTable.getModel();
+		model.addRow(new String[] { availableMoves, computationTime, move, iterations, rates.toString() });
+	}
+}
@@ -0,0 +1,316 @@
+package org.ggp.base.player.gamer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.SeesState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.iistatemachine.IIStateMachine;
+import org.ggp.base.util.statemachine.iistatemachine.ParticleFilter;
+
+/**
+ * Plays by information-set Monte Carlo tree search. A {@link ParticleFilter}
+ * keeps concrete states that are consistent with what this role has done and
+ * seen, and every iteration of the search picks one of them at random and
+ * plays on from it as if it were the real state.
+ *
+ * The tree is over what this role knows: a node is reached by the role's own
+ * moves and the sees that followed each of them, so all the sampled states
+ * that agree on that history share the node's statistics. At a node every
+ * role picks its move by UCB from its own statistics, among the moves legal
+ * in the sampled state, with the number of times a move was available in
+ * place of the number of visits to the node.
+ *
+ * The search runs until the play clock is up on one thread per processor,
+ * each with its own tree and forks of the state machines, and the visits at
+ * the roots are added up to choose the move.
+ */
+public class IISampleISMCTSGamer extends IISampleGamer {
+
+	private static final int NUM_PARTICLES = 100;
+	// exploration constant, for scores scaled to [0, 1]
+	private static final double EXPLORATION = 1.4;
+
+	private static final AtomicInteger gamerCounter = new AtomicInteger();
+
+	private final Random random = new Random();
+	private ParticleFilter filter;
+	private StateMachine[] machines;
+	private IIStateMachine[] iiMachines;
+	private ExecutorService executor;
+
+	@Override
+	protected void runMetaGame() {
+		shutdown();
+		filter = new ParticleFilter(getNormalStateMachine(), getIIStateMachine(), getRole(), NUM_PARTICLES);
+
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		machines = new StateMachine[numThreads];
+		iiMachines = new IIStateMachine[numThreads];
+		try {
+			for (int i = 0; i < numThreads; i++) {
+				machines[i] = getNormalStateMachine().fork();
+				iiMachines[i] = getIIStateMachine().fork();
+			}
+		} catch (UnsupportedOperationException e) {
+			GamerLogger.log("IIGamePlayer", "Cannot fork the state machines, so the search will run on a single thread.");
+			machines = new StateMachine[] { getNormalStateMachine() };
+			iiMachines = new IIStateMachine[] { getIIStateMachine() };
+		}
+
+		final String prefix = getName() + "-" + gamerCounter.incrementAndGet() + "-";
+		executor = Executors.newFixedThreadPool(machines.length, new ThreadFactory() {
+			private final AtomicInteger threadCounter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	protected Move getBestMove(int turnNumber) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+		List<Move> moves;
+		if (turnNumber == 1) {
+			moves = getMoves(getIIStateMachine().getInitialState());
+		} else {
+			moves = getMoves();
+			filter.update(getMostRecentMove(), getIIMatch().getMostRecentSees());
+		}
+		if (moves.size() == 1) {
+			return moves.get(0);
+		}
+		if (filter.getParticles().isEmpty()) {
+			GamerLogger.log("IIGamePlayer", "No state is consistent with what was seen, so playing a random move.");
+			return moves.get(random.nextInt(moves.size()));
+		}
+
+		Map<Move, Integer> visits = search(System.currentTimeMillis() + IISampleGamer.timeLeft());
+		Move bestMove = moves.get(random.nextInt(moves.size()));
+		int bestVisits = -1;
+		for (Move move : moves) {
+			Integer moveVisits = visits.get(move);
+			if (moveVisits != null && moveVisits > bestVisits) {
+				bestMove = move;
+				bestVisits = moveVisits;
+			}
+		}
+		return bestMove;
+	}
+
+	/**
+	 * Searches on every worker until the deadline, and returns how often each
+	 * of this role's moves was tried at the root, over all the workers.
+	 */
+	private Map<Move, Integer> search(final long deadline) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+		final ParticleFilter filter = this.filter;
+		List<Future<Node>> futures = new ArrayList<Future<Node>>(machines.length);
+		for (int w = 0; w < machines.length; w++) {
+			final StateMachine machine = machines[w];
+			final IIStateMachine iiMachine = iiMachines[w];
+			final Random workerRandom = new Random(random.nextLong());
+			futures.add(executor.submit(new Callable<Node>() {
+				@Override
+				public Node call() throws Exception {
+					return searchWorker(filter, machine, iiMachine, workerRandom, deadline);
+				}
+			}));
+		}
+
+		int roleIndex = getRoleIndex();
+		Map<Move, Integer> visits = new HashMap<Move, Integer>();
+		int iterations = 0;
+		try {
+			for (Future<Node> future : futures) {
+				Node root = future.get();
+				iterations += root.visits;
+				for (Map.Entry<Move, MoveStats> entry : root.stats.get(roleIndex).entrySet()) {
+					Integer moveVisits = visits.get(entry.getKey());
+					visits.put(entry.getKey(), (moveVisits == null ? 0 : moveVisits) + entry.getValue().visits);
+				}
+			}
+		} catch (InterruptedException e) {
+			for (Future<Node> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof MoveDefinitionException) {
+				throw (MoveDefinitionException) cause;
+			} else if (cause instanceof TransitionDefinitionException) {
+				throw (TransitionDefinitionException) cause;
+			} else if (cause instanceof GoalDefinitionException) {
+				throw (GoalDefinitionException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		GamerLogger.log("IIGamePlayer", "Ran " + iterations + " iterations on " + machines.length + " threads.");
+		return visits;
+	}
+
+	private Node searchWorker(ParticleFilter filter, StateMachine machine, IIStateMachine iiMachine, Random random, long deadline) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+		Role role = getRole();
+		List<Role> roles = machine.getRoles();
+		int roleIndex = roles.indexOf(role);
+		Node root = new Node(roles.size());
+
+		List<Node> path = new ArrayList<Node>();
+		List<List<Move>> jointMoves = new ArrayList<List<Move>>();
+		while (System.currentTimeMillis() < deadline && !Thread.currentThread().isInterrupted()) {
+			MachineState state = filter.sample(random);
+			path.clear();
+			jointMoves.clear();
+
+			Node node = root;
+			while (node != null && !machine.isTerminal(state)) {
+				List<Move> jointMove = node.select(machine, state, roles, random);
+				path.add(node);
+				jointMoves.add(jointMove);
+				state = machine.getNextState(state, jointMove);
+
+				// The child a move leads to depends on what this role sees
+				// after it, and the first new child ends the descent.
+				Move ownMove = jointMove.get(roleIndex);
+				SeesState sees = iiMachine.getSeesState(state, role);
+				Node child = node.getChild(ownMove, sees);
+				if (child == null) {
+					node.addChild(ownMove, sees, new Node(roles.size()));
+				}
+				node = child;
+			}
+
+			List<Integer> goals = machine.getGoals(machine.performDepthCharge(state, null));
+			for (int i = 0; i < path.size(); i++) {
+				path.get(i).update(jointMoves.get(i), goals);
+			}
+		}
+		return root;
+	}
+
+	@Override
+	public void iistop() {
+		super.iistop();
+		shutdown();
+	}
+
+	@Override
+	public void iiabort() {
+		super.iiabort();
+		shutdown();
+	}
+
+	private void shutdown() {
+		if (filter != null) {
+			filter.shutdown();
+			filter = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private static final class MoveStats {
+		int available;
+		int visits;
+		long totalScore;
+	}
+
+	/**
+	 * A set of histories that this role can't tell apart, with statistics for
+	 * the moves of every role.
+	 */
+	private static final class Node {
+		private final List<Map<Move, MoveStats>> stats;
+		private final Map<Move, Map<SeesState, Node>> children = new HashMap<Move, Map<SeesState, Node>>();
+		private int visits;
+
+		Node(int numRoles) {
+			stats = new ArrayList<Map<Move, MoveStats>>(numRoles);
+			for (int r = 0; r < numRoles; r++) {
+				stats.add(new HashMap<Move, MoveStats>());
+			}
+		}
+
+		List<Move> select(StateMachine machine, MachineState state, List<Role> roles, Random random) throws MoveDefinitionException {
+			List<Move> jointMove = new ArrayList<Move>(roles.size());
+			for (int r = 0; r < roles.size(); r++) {
+				Map<Move, MoveStats> roleStats = stats.get(r);
+				Move bestMove = null;
+				double bestValue = Double.NEGATIVE_INFINITY;
+				for (Move move : machine.getLegalMoves(state, roles.get(r))) {
+					MoveStats moveStats = roleStats.get(move);
+					if (moveStats == null) {
+						moveStats = new MoveStats();
+						roleStats.put(move, moveStats);
+					}
+					moveStats.available++;
+
+					double value;
+					if (moveStats.visits == 0) {
+						// Untried moves come first, in random order; a UCB
+						// value never gets anywhere near this.
+						value = 1000 + random.nextDouble();
+					} else {
+						value = moveStats.totalScore / (100.0 * moveStats.visits)
+								+ EXPLORATION * Math.sqrt(Math.log(moveStats.available) / moveStats.visits);
+					}
+					if (value > bestValue) {
+						bestMove = move;
+						bestValue = value;
+					}
+				}
+				jointMove.add(bestMove);
+			}
+			return jointMove;
+		}
+
+		Node getChild(Move ownMove, SeesState sees) {
+			Map<SeesState, Node> bySees = children.get(ownMove);
+			return (bySees == null) ? null : bySees.get(sees);
+		}
+
+		void addChild(Move ownMove, SeesState sees, Node child) {
+			Map<SeesState, Node> bySees = children.get(ownMove);
+			if (bySees == null) {
+				bySees = new HashMap<SeesState, Node>();
+				children.put(ownMove, bySees);
+			}
+			bySees.put(sees, child);
+		}
+
+		void update(List<Move> jointMove, List<Integer> goals) {
+			visits++;
+			for (int r = 0; r < jointMove.size(); r++) {
+				MoveStats moveStats = stats.get(r).get(jointMove.get(r));
+				moveStats.visits++;
+				moveStats.totalScore += goals.get(r);
+			}
+		}
+	}
+}
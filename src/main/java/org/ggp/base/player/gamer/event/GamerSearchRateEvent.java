@@ -0,0 +1,32 @@
+package org.ggp.base.player.gamer.event;
+
+import org.ggp.base.util.observer.Event;
+
+/**
+ * Sent by searching gamers after each move, with how fast each of their
+ * search threads went.
+ */
+public final class GamerSearchRateEvent extends Event
+{
+	private final long iterations;
+	private final double[] iterationsPerSecond;
+
+	public GamerSearchRateEvent(long iterations, double[] iterationsPerSecond) {
+		this.iterations = iterations;
+		this.iterationsPerSecond = iterationsPerSecond;
+	}
+
+	/**
+	 * @return the number of iterations the search ran for this move
+	 */
+	public long getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return the iterations per second of each search thread
+	 */
+	public double[] getIterationsPerSecond() {
+		return iterationsPerSecond;
+	}
+}
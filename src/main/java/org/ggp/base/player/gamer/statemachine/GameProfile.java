@@ -0,0 +1,82 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import org.ggp.base.util.statemachine.playout.PlayoutResult;
+
+/**
+ * A GameProfile is what a gamer measured about a game at the start of a
+ * match, by playing random games out from the initial state with its state
+ * machine: how fast the machine plays them, and how long they are. Gamers use
+ * it to pick their search parameters.
+ *
+ * @see StateMachineGamer#switchToFastestStateMachine(long)
+ */
+public final class GameProfile
+{
+	private final String machineName;
+	private final int numThreads;
+	private final long numPlayouts;
+	private final long elapsedNanos;
+	private final double averageDepth;
+
+	public GameProfile(String machineName, int numThreads, PlayoutResult result)
+	{
+		this.machineName = machineName;
+		this.numThreads = numThreads;
+		this.numPlayouts = result.getNumPlayouts();
+		this.elapsedNanos = result.getElapsedNanos();
+		this.averageDepth = result.getAverageDepth();
+	}
+
+	public String getMachineName()
+	{
+		return machineName;
+	}
+
+	/**
+	 * Returns the number of threads the playouts ran on.
+	 */
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	public long getNumPlayouts()
+	{
+		return numPlayouts;
+	}
+
+	/**
+	 * Returns the number of playouts per second, over all the threads.
+	 */
+	public double getPlayoutsPerSecond()
+	{
+		return (elapsedNanos == 0) ? 0 : numPlayouts * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * Returns how long one playout takes on one thread, in milliseconds. If
+	 * not even one playout finished, this is the time that was spent trying.
+	 */
+	public double getMillisPerPlayout()
+	{
+		if (numPlayouts == 0) {
+			return elapsedNanos / 1e6;
+		}
+		return elapsedNanos * numThreads / (numPlayouts * 1e6);
+	}
+
+	/**
+	 * Returns the average number of moves in a random game.
+	 */
+	public double getAverageDepth()
+	{
+		return averageDepth;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "GameProfile[" + machineName + ", " + String.format("%.1f", getPlayoutsPerSecond()) + " playouts/s on " + numThreads
+				+ " threads, " + String.format("%.2f", getMillisPerPlayout()) + " ms per playout, average depth " + String.format("%.2f", averageDepth) + "]";
+	}
+}
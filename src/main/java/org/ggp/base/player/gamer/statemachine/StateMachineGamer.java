@@ -10,6 +10,7 @@ import org.ggp.base.player.gamer.exception.MoveSelectionException;
 import org.ggp.base.player.gamer.exception.StoppingException;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.factory.PropNetBudget;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -18,7 +19,12 @@ import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.DifferentialPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FlatPropNetStateMachine;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.playout.PlayoutPool;
+import org.ggp.base.util.statemachine.playout.PlayoutResult;
 
 
 /**
@@ -151,6 +157,82 @@ public abstract class StateMachineGamer extends Gamer
         }
     }
 
+    /**
+     * Times random playouts from the initial state with the state machine,
+     * then builds each of the propnet-based state machines for the game in
+     * turn, times them the same way, and switches to the one that plays
+     * fastest if it beats the gamer's state machine. The propnet machines
+     * share half of the time left until the timeout, and a limit on the size
+     * of the propnet; once the propnet has been built, the others read it
+     * from the {@link org.ggp.base.util.propnet.cache.PropNetCache}. Machines
+     * that can't be built in the time that is left are skipped. This is meant
+     * to be called at the start of stateMachineMetaGame, which can then spend
+     * the rest of the start clock searching.
+     *
+     * @param timeout time in milliseconds since the era when metagaming must be done
+     * @return the profile of the state machine the gamer ends up with
+     */
+    protected final GameProfile switchToFastestStateMachine(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        long profileTime = Math.max(MIN_PROFILE_MILLIS, Math.min(MAX_PROFILE_MILLIS, (timeout - System.currentTimeMillis()) / 20));
+        GameProfile profile = profileStateMachine(getStateMachine(), profileTime);
+
+        long candidateDeadline = System.currentTimeMillis() + (timeout - System.currentTimeMillis()) / 2 - profileTime;
+        StateMachine fastestMachine = null;
+        GameProfile fastestProfile = profile;
+        for(int i = 0; i < NUM_PROPNET_MACHINES; i++) {
+            long buildTime = candidateDeadline - System.currentTimeMillis();
+            if(buildTime <= 0) {
+                break;
+            }
+            StateMachine candidate = createPropNetMachine(i, new PropNetBudget(buildTime, MAX_PROPOSITIONS));
+            try {
+                candidate.initialize(getMatch().getGame().getRules());
+            } catch (RuntimeException e) {
+                GamerLogger.log("GamePlayer", "Skipping " + candidate.getName() + ", since the propnet could not be built: " + e.getMessage());
+                continue;
+            }
+            GameProfile candidateProfile = profileStateMachine(candidate, profileTime);
+            GamerLogger.log("GamePlayer", "Timed " + candidateProfile);
+            if(candidateProfile.getPlayoutsPerSecond() > fastestProfile.getPlayoutsPerSecond()) {
+                fastestMachine = candidate;
+                fastestProfile = candidateProfile;
+            }
+        }
+        if(fastestMachine != null) {
+            switchStateMachine(fastestMachine);
+            if(getStateMachine() == fastestMachine) {
+                profile = fastestProfile;
+            }
+        }
+        GamerLogger.log("GamePlayer", "Playing with " + profile);
+        return profile;
+    }
+
+    /**
+     * Creates the given one of the propnet-based state machines that
+     * switchToFastestStateMachine tries, cheapest to build first.
+     */
+    private static StateMachine createPropNetMachine(int index, PropNetBudget budget) {
+        switch(index) {
+        case 0:
+            return new FlatPropNetStateMachine(budget);
+        case 1:
+            return new DifferentialPropNetStateMachine(budget);
+        default:
+            return new CompiledPropNetStateMachine(budget);
+        }
+    }
+
+    private GameProfile profileStateMachine(StateMachine machine, long profileTime) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        PlayoutPool pool = new PlayoutPool(machine);
+        try {
+            PlayoutResult result = pool.runPlayoutsFor(machine.getInitialState(), profileTime);
+            return new GameProfile(machine.getName(), pool.getNumThreads(), result);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     /**
      * A function that can be used when deserializing gamers, to bring a
      * state machine gamer back to the internal state that it has when it
@@ -271,6 +353,14 @@ public abstract class StateMachineGamer extends Gamer
 		}
 	}
 
+    // How long switchToFastestStateMachine times playouts on each machine,
+    // how many propositions the propnet it builds may have, and how many
+    // propnet machines it tries.
+    private static final long MIN_PROFILE_MILLIS = 50;
+    private static final long MAX_PROFILE_MILLIS = 1000;
+    private static final long MAX_PROPOSITIONS = 1000000;
+    private static final int NUM_PROPNET_MACHINES = 3;
+
     // Internal state about the current state of the state machine.
     private Role role;
     private MachineState currentState;
@@ -0,0 +1,242 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * MCTSNode is one state in an {@link MCTSTree}. The first time the search
+ * reaches a node it works out, once, whether the state is terminal and what
+ * every role can do there. From then on the node only holds primitive
+ * counts: for each role and each of its legal moves, how often the move was
+ * chosen here and the sum of the goal values it led to.
+ *
+ * Every role picks its own move from its own counts, so turn-taking and
+ * simultaneous games are handled the same way. Children are cached by the
+ * index of the joint move that leads to them, which is the roles' move
+ * indices read as a mixed-radix number with the first role lowest. Only the
+ * joint moves the search actually tries get an entry, since in simultaneous
+ * games with many roles or moves most of them never are.
+ *
+ * Several threads can search through a node at once. The counts are atomic,
+ * and a visit is counted as soon as a move is selected, with its score only
+ * added once the playout is done. Until then the visit counts as a loss for
+ * every role (a virtual loss), which steers the other threads elsewhere.
+ * Expansion takes the node's lock, once; nothing else locks.
+ *
+ * Nodes do not point back to their parents, so once a tree is re-rooted at a
+ * child, everything outside that child's subtree can be garbage collected.
+ */
+final class MCTSNode
+{
+    final MachineState state;
+
+    private volatile boolean expanded;
+    private boolean terminal;
+    private int[] goals;
+    private Move[][] legalMoves;
+    /** Where each role's moves start in the flat count arrays. */
+    private int[] offsets;
+    private AtomicIntegerArray moveVisits;
+    private AtomicLongArray moveScores;
+    private ConcurrentMap<Long, MCTSNode> children;
+    private final AtomicInteger visits = new AtomicInteger();
+
+    MCTSNode(MachineState state)
+    {
+        this.state = state;
+    }
+
+    /**
+     * Works out the legal moves, or the goals if the state is terminal. Does
+     * nothing if the node was already expanded.
+     */
+    void expand(StateMachine machine) throws MoveDefinitionException, GoalDefinitionException
+    {
+        if (expanded) {
+            return;
+        }
+        synchronized (this) {
+            if (expanded) {
+                return;
+            }
+            List<Role> roles = machine.getRoles();
+            if (machine.isTerminal(state)) {
+                goals = new int[roles.size()];
+                for (int r = 0; r < goals.length; r++) {
+                    goals[r] = machine.getGoal(state, roles.get(r));
+                }
+                terminal = true;
+            } else {
+                int numMoves = 0;
+                legalMoves = new Move[roles.size()][];
+                offsets = new int[roles.size()];
+                for (int r = 0; r < legalMoves.length; r++) {
+                    legalMoves[r] = machine.getLegalMoves(state, roles.get(r)).toArray(new Move[0]);
+                    offsets[r] = numMoves;
+                    numMoves += legalMoves[r].length;
+                }
+                moveVisits = new AtomicIntegerArray(numMoves);
+                moveScores = new AtomicLongArray(numMoves);
+                children = new ConcurrentHashMap<Long, MCTSNode>(4);
+            }
+            expanded = true;
+        }
+    }
+
+    boolean isTerminal()
+    {
+        return terminal;
+    }
+
+    /**
+     * Returns the goal values of a terminal node, by role index.
+     */
+    int[] getGoals()
+    {
+        return goals;
+    }
+
+    int getVisits()
+    {
+        return visits.get();
+    }
+
+    Move[] getLegalMoves(int roleIndex)
+    {
+        return legalMoves[roleIndex];
+    }
+
+    int getMoveVisits(int roleIndex, int moveIndex)
+    {
+        return moveVisits.get(offsets[roleIndex] + moveIndex);
+    }
+
+    long getMoveScore(int roleIndex, int moveIndex)
+    {
+        return moveScores.get(offsets[roleIndex] + moveIndex);
+    }
+
+    /**
+     * Picks a move for every role by UCB, with goal values scaled to [0, 1],
+     * and writes the move indices into choice. Moves that were never tried
+     * come first, in random order. The visit is counted right away, as a
+     * virtual loss, until {@link #update} adds the score. Returns the joint
+     * move index.
+     */
+    long select(int[] choice, Random random, double exploration)
+    {
+        double logVisits = Math.log(Math.max(visits.get(), 1));
+        long jointIndex = 0;
+        long radix = 1;
+        for (int r = 0; r < legalMoves.length; r++) {
+            int offset = offsets[r];
+            int numMoves = legalMoves[r].length;
+            int best = 0;
+            if (numMoves > 1) {
+                double bestValue = Double.NEGATIVE_INFINITY;
+                int numUntried = 0;
+                for (int i = 0; i < numMoves; i++) {
+                    int n = moveVisits.get(offset + i);
+                    if (n == 0) {
+                        // Reservoir sampling over the untried moves.
+                        if (random.nextInt(++numUntried) == 0) {
+                            best = i;
+                        }
+                    } else if (numUntried == 0) {
+                        double value = moveScores.get(offset + i) / (100.0 * n) + exploration * Math.sqrt(logVisits / n);
+                        if (value > bestValue) {
+                            bestValue = value;
+                            best = i;
+                        }
+                    }
+                }
+            }
+            choice[r] = best;
+            moveVisits.incrementAndGet(offset + best);
+            jointIndex += best * radix;
+            radix *= numMoves;
+        }
+        visits.incrementAndGet();
+        return jointIndex;
+    }
+
+    MCTSNode getChild(long jointIndex)
+    {
+        return children.get(jointIndex);
+    }
+
+    /**
+     * Returns the child with the given state, or null if the search never
+     * went there.
+     */
+    MCTSNode findChild(MachineState state)
+    {
+        if (!expanded || terminal) {
+            return null;
+        }
+        for (MCTSNode child : children.values()) {
+            if (child.state.equals(state)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the children the search has made so far to the given list.
+     */
+    void addChildrenTo(List<MCTSNode> list)
+    {
+        if (expanded && !terminal) {
+            list.addAll(children.values());
+        }
+    }
+
+    /**
+     * Makes and caches the child that the given joint move leads to. If
+     * another thread got there first, returns its child instead.
+     */
+    MCTSNode addChild(long jointIndex, int[] choice, StateMachine machine) throws TransitionDefinitionException
+    {
+        List<Move> jointMove = new ArrayList<Move>(choice.length);
+        for (int r = 0; r < choice.length; r++) {
+            jointMove.add(legalMoves[r][choice[r]]);
+        }
+        MCTSNode child = new MCTSNode(machine.getNextState(state, jointMove));
+        MCTSNode existing = children.putIfAbsent(jointIndex, child);
+        return (existing != null) ? existing : child;
+    }
+
+    /**
+     * Adds the sums of the goal values of the playouts that the moves chosen
+     * here by {@link #select} led to. {@link #select} counted one visit, so
+     * any other playouts of a batch are counted here.
+     */
+    void update(int[] choice, long[] scoreSums, int numPlayouts)
+    {
+        int extraVisits = numPlayouts - 1;
+        for (int r = 0; r < choice.length; r++) {
+            if (extraVisits != 0) {
+                moveVisits.addAndGet(offsets[r] + choice[r], extraVisits);
+            }
+            moveScores.addAndGet(offsets[r] + choice[r], scoreSums[r]);
+        }
+        if (extraVisits != 0) {
+            visits.addAndGet(extraVisits);
+        }
+    }
+}
@@ -0,0 +1,520 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.playout.PlayoutPool;
+import org.ggp.base.util.statemachine.playout.PlayoutResult;
+
+/**
+ * MCTSTree runs Monte Carlo tree search with UCT over {@link MCTSNode}s. An
+ * iteration walks down the tree, with every role choosing its move by UCB,
+ * until it steps off the tree; it then adds the one new node it reached,
+ * plays a random game out from there, and adds the goal values to the counts
+ * of every move on the way down. So each iteration costs one state
+ * transition per level it goes down, and one playout.
+ *
+ * With more than one thread, the search is parallel in one of the ways in
+ * {@link Mode}. Every worker thread has its own {@link StateMachine#fork()}
+ * of the machine. With one thread, or if the machine cannot be forked, the
+ * search runs on the calling thread with the machine itself. Either way the
+ * caller must not use the machine while a search is running.
+ *
+ * The move to play is the one the search chose most often at the root, over
+ * all the roots in root-parallel mode. From one turn to the next the tree
+ * keeps the subtree of the state the game actually reached, so each search
+ * starts from what the last one learned about it. A tree holds on to its
+ * threads until {@link #shutdown()} is called.
+ */
+public final class MCTSTree
+{
+    /** The UCB exploration constant, for goal values scaled to [0, 1]. */
+    public static final double DEFAULT_EXPLORATION = 1.4;
+
+    /** How many moves down from the root {@link #moveRoot} looks for the new root. */
+    public static final int MAX_ROOT_MOVE_DEPTH = 4;
+
+    /**
+     * How the search uses several threads.
+     */
+    public enum Mode
+    {
+        /**
+         * All the threads search one tree, kept apart by virtual losses.
+         * Threads can get in each other's way near the root of games with
+         * few moves.
+         */
+        TREE,
+        /**
+         * Every thread searches a tree of its own, and the counts at the
+         * roots are added up to choose the move.
+         */
+        ROOT,
+        /**
+         * One thread searches the tree, and every new node gets a batch of
+         * playouts, one for each thread, from a {@link PlayoutPool}.
+         */
+        LEAF,
+    }
+
+    private static final AtomicInteger treeCounter = new AtomicInteger();
+
+    private final StateMachine machine;
+    private final List<Role> roles;
+    private final int roleIndex;
+    private final Mode mode;
+    private final Worker[] workers;
+    private final ExecutorService executor;
+    private final PlayoutPool playoutPool;
+    private final Random random = new Random();
+    private volatile double exploration = DEFAULT_EXPLORATION;
+
+    private long lastSearchMillis;
+    private long lastReusedVisits;
+
+    /**
+     * Creates a tree that searches on the calling thread.
+     */
+    public MCTSTree(StateMachine machine, Role role)
+    {
+        this(machine, role, 1);
+    }
+
+    /**
+     * Creates a tree-parallel search on the given number of threads.
+     */
+    public MCTSTree(StateMachine machine, Role role, int numThreads)
+    {
+        this(machine, role, numThreads, Mode.TREE);
+    }
+
+    public MCTSTree(StateMachine machine, Role role, int numThreads, Mode mode)
+    {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("A search needs at least one thread, not " + numThreads);
+        }
+        this.machine = machine;
+        this.roles = machine.getRoles();
+        this.roleIndex = roles.indexOf(role);
+        this.mode = mode;
+
+        if (mode == Mode.LEAF) {
+            playoutPool = new PlayoutPool(machine, numThreads);
+            numThreads = 1;
+        } else {
+            playoutPool = null;
+        }
+
+        StateMachine[] machines = new StateMachine[numThreads];
+        if (numThreads == 1) {
+            machines[0] = machine;
+        } else {
+            try {
+                for (int i = 0; i < numThreads; i++) {
+                    machines[i] = machine.fork();
+                }
+            } catch (UnsupportedOperationException e) {
+                GamerLogger.log("StateMachine", "Cannot fork " + machine.getName() + ", so the search will run on a single thread.");
+                machines = new StateMachine[] { machine };
+            }
+        }
+        workers = new Worker[machines.length];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(machines[i], new Random(random.nextLong()));
+        }
+
+        if (workers.length == 1) {
+            executor = null;
+        } else {
+            final String prefix = "MCTSTree-" + treeCounter.incrementAndGet() + "-";
+            executor = Executors.newFixedThreadPool(workers.length, new ThreadFactory() {
+                private final AtomicInteger threadCounter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, prefix + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public void setExploration(double exploration)
+    {
+        this.exploration = exploration;
+    }
+
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Returns the number of threads the search runs on.
+     */
+    public int getNumThreads()
+    {
+        return (playoutPool != null) ? playoutPool.getNumThreads() : workers.length;
+    }
+
+    /**
+     * Searches from the given state until the deadline, and returns the move
+     * the search likes best for the role.
+     */
+    public Move search(MachineState state, final long deadline) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        moveRoot(state);
+        lastReusedVisits = getRootVisits();
+
+        long startTime = System.currentTimeMillis();
+        if (executor == null) {
+            workers[0].runUntil(deadline);
+        } else {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(workers.length);
+            for (final Worker worker : workers) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        worker.runUntil(deadline);
+                        return null;
+                    }
+                }));
+            }
+            waitFor(futures);
+        }
+        lastSearchMillis = System.currentTimeMillis() - startTime;
+        return getBestMove();
+    }
+
+    /**
+     * Moves the root to the given state. If the search has already been
+     * there, up to {@link #MAX_ROOT_MOVE_DEPTH} moves down from the current
+     * root, that node becomes the root, with everything learned about it so
+     * far; the rest of the old tree is no longer referenced, and is left to
+     * the garbage collector. Otherwise the search starts over from a new root.
+     * Normally the game has moved on by one move since the last search, but
+     * a turn that was not searched, such as one that ran out of time, leaves
+     * the root further behind.
+     */
+    public void moveRoot(MachineState state)
+    {
+        if (mode == Mode.ROOT) {
+            for (Worker worker : workers) {
+                worker.root = promote(worker.root, state);
+            }
+        } else {
+            MCTSNode root = promote(workers[0].root, state);
+            for (Worker worker : workers) {
+                worker.root = root;
+            }
+        }
+    }
+
+    private static MCTSNode promote(MCTSNode root, MachineState state)
+    {
+        if (root != null) {
+            // Breadth first, so the shallowest node for the state wins.
+            List<MCTSNode> level = Collections.singletonList(root);
+            for (int depth = 0; depth <= MAX_ROOT_MOVE_DEPTH && !level.isEmpty(); depth++) {
+                List<MCTSNode> nextLevel = new ArrayList<MCTSNode>();
+                for (MCTSNode node : level) {
+                    if (node.state.equals(state)) {
+                        return node;
+                    }
+                    if (depth < MAX_ROOT_MOVE_DEPTH) {
+                        node.addChildrenTo(nextLevel);
+                    }
+                }
+                level = nextLevel;
+            }
+        }
+        return new MCTSNode(state);
+    }
+
+    private static void waitFor(List<Future<Void>> futures) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof TransitionDefinitionException) {
+                throw (TransitionDefinitionException) cause;
+            } else if (cause instanceof MoveDefinitionException) {
+                throw (MoveDefinitionException) cause;
+            } else if (cause instanceof GoalDefinitionException) {
+                throw (GoalDefinitionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Runs one iteration from the root, on the first worker.
+     */
+    void runIteration() throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        workers[0].runIteration();
+    }
+
+    /**
+     * Returns the role's most visited move at the root, breaking ties by
+     * average score. If the root has not been searched, returns its first
+     * legal move.
+     */
+    public Move getBestMove() throws MoveDefinitionException, GoalDefinitionException
+    {
+        // The visits and scores of each move, over all the distinct roots.
+        Map<Move, long[]> counts = new LinkedHashMap<Move, long[]>();
+        MCTSNode previous = null;
+        for (Worker worker : workers) {
+            MCTSNode root = worker.root;
+            if (root == previous) {
+                continue;
+            }
+            previous = root;
+            root.expand(machine);
+            Move[] moves = root.getLegalMoves(roleIndex);
+            for (int i = 0; i < moves.length; i++) {
+                long[] moveCounts = counts.get(moves[i]);
+                if (moveCounts == null) {
+                    moveCounts = new long[2];
+                    counts.put(moves[i], moveCounts);
+                }
+                moveCounts[0] += root.getMoveVisits(roleIndex, i);
+                moveCounts[1] += root.getMoveScore(roleIndex, i);
+            }
+        }
+
+        Move best = null;
+        long[] bestCounts = null;
+        for (Map.Entry<Move, long[]> entry : counts.entrySet()) {
+            long[] moveCounts = entry.getValue();
+            if (best == null || moveCounts[0] > bestCounts[0] || (moveCounts[0] == bestCounts[0] && moveCounts[0] > 0
+                    && moveCounts[1] > bestCounts[1])) {
+                best = entry.getKey();
+                bestCounts = moveCounts;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the root of the first worker's tree, which all the workers
+     * share unless the search is root-parallel.
+     */
+    MCTSNode getRoot()
+    {
+        return workers[0].root;
+    }
+
+    public MachineState getRootState()
+    {
+        return workers[0].root == null ? null : workers[0].root.state;
+    }
+
+    /**
+     * Returns the number of visits to the root, over all the roots in
+     * root-parallel mode.
+     */
+    public long getRootVisits()
+    {
+        long visits = 0;
+        MCTSNode previous = null;
+        for (Worker worker : workers) {
+            if (worker.root != null && worker.root != previous) {
+                visits += worker.root.getVisits();
+            }
+            previous = worker.root;
+        }
+        return visits;
+    }
+
+    /**
+     * Returns the number of visits to the root that the last search started
+     * with, from the searches of earlier turns.
+     */
+    public long getLastReusedVisits()
+    {
+        return lastReusedVisits;
+    }
+
+    /**
+     * Returns the number of iterations run since the tree was created.
+     */
+    public long getNumIterations()
+    {
+        long numIterations = 0;
+        for (Worker worker : workers) {
+            numIterations += worker.numIterations;
+        }
+        return numIterations;
+    }
+
+    /**
+     * Returns the number of playouts run since the tree was created. This is
+     * the number of iterations, except in leaf-parallel mode.
+     */
+    public long getNumPlayouts()
+    {
+        long numPlayouts = 0;
+        for (Worker worker : workers) {
+            numPlayouts += worker.numPlayouts;
+        }
+        return numPlayouts;
+    }
+
+    /**
+     * Returns how many iterations per second each thread ran during the last
+     * search. In leaf-parallel mode, there is one tree thread.
+     */
+    public double[] getLastIterationsPerSecond()
+    {
+        double[] rates = new double[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            rates[i] = (lastSearchMillis == 0) ? 0 : workers[i].lastIterations * 1000.0 / lastSearchMillis;
+        }
+        return rates;
+    }
+
+    /**
+     * Stops the worker threads. The tree cannot search afterwards.
+     */
+    public void shutdown()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (playoutPool != null) {
+            playoutPool.shutdown();
+        }
+    }
+
+    /**
+     * A thread's state machine, random numbers and scratch space.
+     */
+    private final class Worker
+    {
+        private final StateMachine machine;
+        private final Random random;
+        private final List<MCTSNode> path = new ArrayList<MCTSNode>();
+        private final List<int[]> choices = new ArrayList<int[]>();
+        private final int[] depth = new int[1];
+        private final long[] scoreSums = new long[roles.size()];
+        private MCTSNode root;
+        private volatile long numIterations;
+        private volatile long numPlayouts;
+        private volatile long lastIterations;
+
+        Worker(StateMachine machine, Random random)
+        {
+            this.machine = machine;
+            this.random = random;
+        }
+
+        void runUntil(long deadline) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+        {
+            long iterations = 0;
+            try {
+                while (System.currentTimeMillis() < deadline && !Thread.currentThread().isInterrupted()) {
+                    runIteration();
+                    iterations++;
+                }
+            } finally {
+                lastIterations = iterations;
+            }
+        }
+
+        void runIteration() throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+        {
+            path.clear();
+            MCTSNode node = root;
+            int numPlayouts;
+            while (true) {
+                node.expand(machine);
+                if (node.isTerminal()) {
+                    int[] goals = node.getGoals();
+                    for (int r = 0; r < scoreSums.length; r++) {
+                        scoreSums[r] = goals[r];
+                    }
+                    numPlayouts = 1;
+                    break;
+                }
+                if (choices.size() == path.size()) {
+                    choices.add(new int[roles.size()]);
+                }
+                int[] choice = choices.get(path.size());
+                long jointIndex = node.select(choice, random, exploration);
+                path.add(node);
+
+                MCTSNode child = node.getChild(jointIndex);
+                if (child == null) {
+                    child = node.addChild(jointIndex, choice, machine);
+                    numPlayouts = playout(child.state);
+                    break;
+                }
+                node = child;
+            }
+
+            for (int i = 0; i < path.size(); i++) {
+                path.get(i).update(choices.get(i), scoreSums, numPlayouts);
+            }
+            this.numPlayouts += numPlayouts;
+            numIterations++;
+        }
+
+        /**
+         * Plays out from the given state, or runs a batch of playouts in
+         * leaf-parallel mode, and leaves the sums of the goal values in
+         * scoreSums. Returns the number of playouts.
+         */
+        private int playout(MachineState state) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+        {
+            if (playoutPool != null) {
+                PlayoutResult result = playoutPool.runPlayouts(state, playoutPool.getNumThreads());
+                for (int r = 0; r < scoreSums.length; r++) {
+                    scoreSums[r] = result.getScoreSum(r);
+                }
+                return (int) result.getNumPlayouts();
+            }
+            MachineState terminal = machine.performDepthCharge(state, depth);
+            for (int r = 0; r < scoreSums.length; r++) {
+                scoreSums[r] = machine.getGoal(terminal, roles.get(r));
+            }
+            return 1;
+        }
+    }
+}
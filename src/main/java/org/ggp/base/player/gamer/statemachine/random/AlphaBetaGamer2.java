@@ -7,8 +7,10 @@ import org.ggp.base.apps.player.detail.DetailPanel;
 import org.ggp.base.apps.player.detail.SimpleDetailPanel;
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
 import org.ggp.base.player.gamer.exception.GamePreviewException;
+import org.ggp.base.player.gamer.statemachine.GameProfile;
 import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
 import org.ggp.base.util.game.Game;
+import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.StateMachine;
@@ -26,10 +28,21 @@ public final class AlphaBetaGamer2 extends StateMachineGamer
 {
 	protected static final int timeoutThreshold = 2000;
 
+	// time kept back from each deadline, set during metagaming to also cover
+	// about as long as one playout takes, since a search deep in the game tree
+	// can run over by that much after it last looked at the clock
+	private long searchMargin = timeoutThreshold;
+
+	// Scores from this turn's search, and from the last turn's. A score the
+	// search uses again is moved into this turn's cache, and what is left in
+	// the last turn's is dropped when the next turn starts, so the cache only
+	// keeps states that searches from the real state still reach.
 	private HashMap<MachineState, Integer> scoreCache;
+	private HashMap<MachineState, Integer> previousScoreCache;
 	public AlphaBetaGamer2() {
 		super();
 		scoreCache = new HashMap<MachineState, Integer>();
+		previousScoreCache = new HashMap<MachineState, Integer>();
 	}
 
 	@Override
@@ -42,11 +55,22 @@ public final class AlphaBetaGamer2 extends StateMachineGamer
 	{
 		long start = System.currentTimeMillis();
 
-		long finishBy = timeout - 2000;
+		long finishBy = timeout - searchMargin;
+		previousScoreCache = scoreCache;
+		scoreCache = new HashMap<MachineState, Integer>();
 
-		StateMachine theMachine = getStateMachine();
-		List<Move> myMoves = theMachine.getLegalMoves(getCurrentState(), getRole());
+		List<Move> myMoves = getStateMachine().getLegalMoves(getCurrentState(), getRole());
+		Move bestMove = searchMoves(myMoves, finishBy);
+		System.out.println(SystemCalls.getFreeMemoryRatio());
+
+		long stop = System.currentTimeMillis();
 
+		notifyObservers(new GamerSelectedMoveEvent(myMoves, bestMove, stop - start));
+		return bestMove;
+	}
+
+	private Move searchMoves(List<Move> myMoves, long finishBy) throws TransitionDefinitionException, MoveDefinitionException {
+		StateMachine theMachine = getStateMachine();
 		Move bestMove = myMoves.get(0);
 		List<Move> jointMoves = theMachine.getLegalJointMoves(getCurrentState(), getRole(), bestMove).get(0);
 		int bestMaxValue = getStateValue(theMachine.getNextState(getCurrentState(), jointMoves), finishBy, Integer.MIN_VALUE, Integer.MAX_VALUE);
@@ -60,11 +84,6 @@ public final class AlphaBetaGamer2 extends StateMachineGamer
 			}
 			if (timedOut(finishBy)) return bestMove;
 		}
-		System.out.println(SystemCalls.getFreeMemoryRatio());
-
-		long stop = System.currentTimeMillis();
-
-		notifyObservers(new GamerSelectedMoveEvent(myMoves, bestMove, stop - start));
 		return bestMove;
 	}
 
@@ -80,7 +99,7 @@ public final class AlphaBetaGamer2 extends StateMachineGamer
 
 	public int getStateValue(MachineState state, long finishBy, int alpha, int beta) {
 		if (timedOut(finishBy)) return -1;
-		Integer cachedScore = scoreCache.get(state);
+		Integer cachedScore = getCachedScore(state);
 		if (cachedScore != null)
 			return cachedScore;
 
@@ -138,6 +157,17 @@ public final class AlphaBetaGamer2 extends StateMachineGamer
 			return -1;
 		}
 	}
+	private Integer getCachedScore(MachineState state) {
+		Integer score = scoreCache.get(state);
+		if (score == null) {
+			score = previousScoreCache.remove(state);
+			if (score != null) {
+				scoreCache.put(state, score);
+			}
+		}
+		return score;
+	}
+
 	@Override
 	public StateMachine getInitialStateMachine() {
 		return new CachedStateMachine(new ProverStateMachine());
@@ -151,17 +181,29 @@ public final class AlphaBetaGamer2 extends StateMachineGamer
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
-		// Random gamer does no metagaming at the beginning of the match.
+		clearScoreCache();
+		GameProfile profile = switchToFastestStateMachine(timeout - timeoutThreshold);
+		searchMargin = timeoutThreshold + (long) Math.ceil(profile.getMillisPerPlayout());
+
+		// Spend the rest of the start clock searching from the initial state.
+		// The first turn's search finds the scores in the last turn's cache.
+		searchMoves(getStateMachine().getLegalMoves(getCurrentState(), getRole()), timeout - searchMargin);
+		GamerLogger.log("GamePlayer", "AlphaBetaGamer2 cached " + scoreCache.size() + " scores during metagaming.");
 	}
 
 	@Override
 	public void stateMachineStop() {
-		// Random gamer does no special cleanup when the match ends normally.
+		clearScoreCache();
 	}
 
 	@Override
 	public void stateMachineAbort() {
-		// Random gamer does no special cleanup when the match ends abruptly.
+		clearScoreCache();
+	}
+
+	private void clearScoreCache() {
+		scoreCache.clear();
+		previousScoreCache.clear();
 	}
 
 	@Override
@@ -6,6 +6,7 @@ import org.ggp.base.apps.player.detail.DetailPanel;
 import org.ggp.base.apps.player.detail.SimpleDetailPanel;
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
 import org.ggp.base.player.gamer.exception.GamePreviewException;
+import org.ggp.base.player.gamer.statemachine.GameProfile;
 import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
 import org.ggp.base.util.game.Game;
 import org.ggp.base.util.statemachine.MachineState;
@@ -22,6 +23,14 @@ public final class MCTS2 extends StateMachineGamer
 {
 	protected static final int timeoutThreshold = 2000;
 	int[] howDeep = new int[1];
+	// time kept back from the play clock, set during metagaming to cover the
+	// last depth charge as well
+	private long searchMargin = 500;
+	// the state searched last, and the counts for each of its moves
+	private MachineState searchedState;
+	private int[] branchScore;
+	private int[] branchAttempts;
+	private int simulationCount;
 	@Override
 	public String getName() {
 		return "MCTS2";
@@ -32,7 +41,7 @@ public final class MCTS2 extends StateMachineGamer
 	{
 		long start = System.currentTimeMillis();
 		long stop = System.currentTimeMillis();
-		long allowedSearchTime = timeout - 500;
+		long allowedSearchTime = timeout - searchMargin;
 
 		StateMachine theMachine = getStateMachine();
 		List<Move> moves = theMachine.getLegalMoves(getCurrentState(), getRole());
@@ -40,22 +49,7 @@ public final class MCTS2 extends StateMachineGamer
 		Move selection = moves.get(0);
 
 		if (branchQuantity > 1) {
-			int[] branchScore = new int[branchQuantity];
-			int[] branchAttempts = new int[branchQuantity];
-			int currentBranch = 0;
-			int simulationCount = 0;
-
-			while (true) {
-				if (currentBranch == branchQuantity)
-					currentBranch = 0;
-				int randomExploitResult = getDepthCharge(getCurrentState(), moves.get(currentBranch));
-				branchScore[currentBranch] += randomExploitResult;
-				branchAttempts[currentBranch] += 1;
-				simulationCount += 1;
-				if (System.currentTimeMillis() > allowedSearchTime)
-    		        break;
-				currentBranch += 1;
-			}
+			runDepthCharges(getCurrentState(), moves, allowedSearchTime);
 
 			double moveValue[] = new double[branchQuantity];
 
@@ -71,6 +65,34 @@ public final class MCTS2 extends StateMachineGamer
 		return selection;
 	}
 
+	/**
+	 * Plays depth charges after each of the moves in turn until the deadline.
+	 * The counts carry on from the last call if that was for the same state,
+	 * so a search during metagaming counts towards the first move.
+	 */
+	private void runDepthCharges(MachineState state, List<Move> moves, long deadline) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		if (!state.equals(searchedState)) {
+			searchedState = state;
+			branchScore = new int[moves.size()];
+			branchAttempts = new int[moves.size()];
+			simulationCount = 0;
+		}
+		int currentBranch = simulationCount % moves.size();
+
+		while (true) {
+			if (currentBranch == moves.size())
+				currentBranch = 0;
+			int randomExploitResult = getDepthCharge(state, moves.get(currentBranch));
+			branchScore[currentBranch] += randomExploitResult;
+			branchAttempts[currentBranch] += 1;
+			simulationCount += 1;
+			if (System.currentTimeMillis() > deadline)
+		        break;
+			currentBranch += 1;
+		}
+	}
+
 	public static int findHighestValueMove (double moveValue[], int numberOfBranches)
 	{
 		int choosenMove = 0;
@@ -104,17 +126,26 @@ public final class MCTS2 extends StateMachineGamer
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
-		// Random gamer does no metagaming at the beginning of the match.
+		searchedState = null;
+		GameProfile profile = switchToFastestStateMachine(timeout - 500);
+		searchMargin = 500 + (long) Math.ceil(profile.getMillisPerPlayout());
+
+		// Spend the rest of the start clock on the moves of the initial state,
+		// if there is a choice to be made there.
+		List<Move> moves = getStateMachine().getLegalMoves(getCurrentState(), getRole());
+		if (moves.size() > 1) {
+			runDepthCharges(getCurrentState(), moves, timeout - searchMargin);
+		}
 	}
 
 	@Override
 	public void stateMachineStop() {
-		// Random gamer does no special cleanup when the match ends normally.
+		searchedState = null;
 	}
 
 	@Override
 	public void stateMachineAbort() {
-		// Random gamer does no special cleanup when the match ends abruptly.
+		searchedState = null;
 	}
 
 	@Override
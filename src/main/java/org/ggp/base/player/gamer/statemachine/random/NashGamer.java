@@ -80,7 +80,9 @@ public final class NashGamer extends StateMachineGamer
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
-		// Random gamer does no metagaming at the beginning of the match.
+		// Every turn looks at all the joint moves, so a faster machine is all
+		// that the start clock can buy.
+		switchToFastestStateMachine(timeout - 500);
 	}
 
 	@Override
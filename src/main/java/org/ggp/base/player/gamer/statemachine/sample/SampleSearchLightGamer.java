@@ -44,12 +44,13 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 public final class SampleSearchLightGamer extends StateMachineGamer
 {
 	/**
-	 * Does nothing
+	 * Switches to the fastest state machine it can build in time, since the
+	 * search-light looks at more moves the faster the machine is.
 	 */
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
-		// Do nothing.
+		switchToFastestStateMachine(timeout - 1000);
 	}
 
 	private Random theRandom = new Random();
@@ -67,9 +67,9 @@ public class IIGameServer extends GameServer implements Subject {
                 iimatch.appendState(currentState.getContents());
                 appendErrorsToMatchDescription();
 
+                List<SeesState> seesStates = iistateMachine.getAllSeesStates(currentState);
                 for (int i = 0; i < hosts.size(); i++) {
-                	SeesState seesState = iistateMachine.getSeesState(currentState, stateMachine.getRoles().get(i));
-                	currentSees.set(i, seesState.getSees());
+                	currentSees.set(i, seesStates.get(i).getSees());
                 }
 
                 if (iimatch.isAborted()) {
@@ -84,43 +84,27 @@ public class AssignmentsImpl implements Assignments {
 			GdlRule rule, Map<GdlVariable, Set<GdlConstant>> varDomains,
 			Map<SentenceForm, ? extends FunctionInfo> functionInfoMap,
 			Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues) {
+		this(headAssignment, rule, varDomains, functionInfoMap, completedSentenceFormValues,
+				getBestIterationOrder(headAssignment, rule, varDomains, functionInfoMap, completedSentenceFormValues));
+	}
+
+	/**
+	 * Creates an Assignments object that iterates in the given order, which
+	 * should have been found by {@link #getBestIterationOrder} for the same
+	 * rule and the same set of variables in the head assignment, but possibly
+	 * for other function information and sentences. The assignments are the
+	 * same whichever order is used; only the time it takes to go through them
+	 * may differ. This saves searching for an order each time rules are
+	 * applied to similar sets of sentences.
+	 */
+	public AssignmentsImpl(Map<GdlVariable, GdlConstant> headAssignment,
+			GdlRule rule, Map<GdlVariable, Set<GdlConstant>> varDomains,
+			Map<SentenceForm, ? extends FunctionInfo> functionInfoMap,
+			Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues,
+			IterationOrderCandidate bestOrdering) {
 		empty = false;
 		this.headAssignment = headAssignment;
 
-		//We first have to find the remaining variables in the body
-		varsToAssign = GdlUtils.getVariables(rule);
-		//Remove all the duplicates; we do, however, want to keep the ordering
-		List<GdlVariable> newVarsToAssign = new ArrayList<GdlVariable>();
-		for(GdlVariable v : varsToAssign)
-			if(!newVarsToAssign.contains(v))
-				newVarsToAssign.add(v);
-		varsToAssign = newVarsToAssign;
-		varsToAssign.removeAll(headAssignment.keySet());
-		//varsToAssign is set at this point
-
-		//We see if iterating over entire tuples will give us a
-		//better result, and we look for the best way of doing that.
-
-		//Let's get the domains of the variables
-		//Map<GdlVariable, Set<GdlConstant>> varDomains = model.getVarDomains(rule);
-		//Since we're looking at a particular rule, we can do this one step better
-		//by looking at the domain of the head, which may be more restrictive
-		//and taking the intersections of the two domains where applicable
-		//Map<GdlVariable, Set<GdlConstant>> headVarDomains = model.getVarDomainsInSentence(rule.getHead());
-
-		//We can run the A* search for a good set of source conjuncts
-		//at this point, then use the result to build the rest.
-		Map<SentenceForm, Integer> completedSentenceFormSizes = new HashMap<SentenceForm, Integer>();
-		if(completedSentenceFormValues != null)
-			for(SentenceForm form : completedSentenceFormValues.keySet())
-				completedSentenceFormSizes.put(form, completedSentenceFormValues.get(form).size());
-		Map<GdlVariable, Integer> varDomainSizes = new HashMap<GdlVariable, Integer>();
-		for(GdlVariable var : varDomains.keySet())
-			varDomainSizes.put(var, varDomains.get(var).size());
-
-		IterationOrderCandidate bestOrdering;
-		bestOrdering = getBestIterationOrderCandidate(rule, varDomains,/*model,*/ functionInfoMap, completedSentenceFormSizes, headAssignment, false); //TODO: True here?
-
 		//Want to replace next few things with order
 		//Need a few extra things to handle the use of iteration over existing tuples
 		varsToAssign = bestOrdering.getVariableOrdering();
@@ -192,6 +176,10 @@ public class AssignmentsImpl implements Assignments {
 			//We use constraintSlots and constraintValues to check that the
 			//tuples have compatible values
 			Collection<GdlSentence> sentences = completedSentenceFormValues.get(form);
+			if(sentences == null) {
+				//The ordering was found for other sentences, and none of these are true
+				sentences = Collections.emptySet();
+			}
 			List<ImmutableList<GdlConstant>> tuples = Lists.newArrayList();
 			byTuple: for(GdlSentence sentence : sentences) {
 				//Check that it doesn't conflict with our headAssignment
@@ -307,6 +295,21 @@ public class AssignmentsImpl implements Assignments {
 //		System.out.println("sourceDefiningSlot: " + sourceDefiningSlot);
 	}
 
+	/**
+	 * Finds the iteration order expected to be fastest for the given rule,
+	 * head assignment, function information and sentences.
+	 */
+	public static IterationOrderCandidate getBestIterationOrder(Map<GdlVariable, GdlConstant> headAssignment,
+			GdlRule rule, Map<GdlVariable, Set<GdlConstant>> varDomains,
+			Map<SentenceForm, ? extends FunctionInfo> functionInfoMap,
+			Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues) {
+		Map<SentenceForm, Integer> completedSentenceFormSizes = new HashMap<SentenceForm, Integer>();
+		if(completedSentenceFormValues != null)
+			for(SentenceForm form : completedSentenceFormValues.keySet())
+				completedSentenceFormSizes.put(form, completedSentenceFormValues.get(form).size());
+		return getBestIterationOrderCandidate(rule, varDomains,/*model,*/ functionInfoMap, completedSentenceFormSizes, headAssignment, false); //TODO: True here?
+	}
+
 	private GdlVariable getRightmostVar(Collection<GdlVariable> vars) {
 		GdlVariable rightmostVar = null;
 		for(GdlVariable var : varsToAssign)
@@ -52,6 +52,23 @@ public class MutableFunctionInfo implements AddibleFunctionInfo {
 		return functionInfo;
 	}
 
+	/**
+	 * Returns a copy of the given function info, which can have values added
+	 * to it independently.
+	 */
+	public static MutableFunctionInfo copyOf(MutableFunctionInfo other) {
+		MutableFunctionInfo functionInfo = new MutableFunctionInfo(other.form);
+		for (int i = 0; i < other.dependentSlots.size(); i++) {
+			if (other.dependentSlots.get(i)) {
+				functionInfo.valueMaps.get(i).putAll(other.valueMaps.get(i));
+			} else {
+				functionInfo.dependentSlots.set(i, false);
+				functionInfo.valueMaps.set(i, ImmutableMap.<ImmutableList<GdlConstant>, GdlConstant>of());
+			}
+		}
+		return functionInfo;
+	}
+
 	@Override
 	public SentenceForm getSentenceForm() {
 		return form;
@@ -0,0 +1,625 @@
+package org.ggp.base.util.propnet.analysis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.concurrency.ConcurrencyUtils;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * LatchAnalysis proves facts about how the base propositions of a propnet can
+ * change from one state to the next:
+ *
+ * - A positive latch stays true once it's true, and a negative latch stays
+ *   false once it's false.
+ * - A base that is constant after init has the same value in every state
+ *   after the initial one.
+ * - A base that is a positive latch and true in the initial state is true in
+ *   every state, and one that is a negative latch and false in the initial
+ *   state is false in every state. Those can be replaced by constants.
+ * - A mutex group is a set of bases of which at most one is true in any
+ *   state, like the values of one counter.
+ *
+ * The proofs evaluate the next value of a base with three-valued logic, with
+ * some of the bases and moves set and everything else unknown; a fact is only
+ * reported if it holds whatever the unknown values are. This is sound, but
+ * not complete. In particular, mutex groups are proved by induction over
+ * single steps, with the moves of each role split into cases, and groups
+ * whose exclusivity depends on whose turn it is, as with the cells of most
+ * board games, aren't found.
+ *
+ * The latch proofs for all the bases share the work of evaluating the next
+ * values with every base unknown, and only evaluate again what depends on the
+ * base being tested. They can be given a deadline, after which the remaining
+ * bases aren't tested; the analysis is then incomplete, but still sound.
+ *
+ * Mutex groups are only worked out when first asked for.
+ */
+public final class LatchAnalysis
+{
+	/** Mutex groups needing more cases than this aren't checked. */
+	private static final int MAX_MUTEX_CASES = 4096;
+
+	private final PropNet propNet;
+	private final ImmutableMap<GdlSentence, Boolean> initialValues;
+	private final ImmutableSet<GdlSentence> positiveLatches;
+	private final ImmutableSet<GdlSentence> negativeLatches;
+	private final ImmutableMap<GdlSentence, Boolean> constantsAfterInit;
+	private final boolean complete;
+	private List<Set<GdlSentence>> mutexGroups;
+
+	private LatchAnalysis(PropNet propNet, long deadline) throws InterruptedException
+	{
+		this.propNet = propNet;
+		ImmutableMap.Builder<GdlSentence, Boolean> initialValues = ImmutableMap.builder();
+		ImmutableSet.Builder<GdlSentence> positiveLatches = ImmutableSet.builder();
+		ImmutableSet.Builder<GdlSentence> negativeLatches = ImmutableSet.builder();
+		ImmutableMap.Builder<GdlSentence, Boolean> constantsAfterInit = ImmutableMap.builder();
+
+		Map<Component, Boolean> initial = new HashMap<Component, Boolean>();
+		setInit(initial, true);
+		for (Proposition base : propNet.getBasePropositions().values())
+		{
+			initial.put(base, false);
+		}
+		for (Proposition input : propNet.getInputPropositions().values())
+		{
+			initial.put(input, false);
+		}
+		Evaluation initialEvaluation = new Evaluation(initial, null);
+		Map<Component, Boolean> unknown = new HashMap<Component, Boolean>();
+		setInit(unknown, false);
+		Evaluation unknownEvaluation = new Evaluation(unknown, null);
+
+		for (Proposition base : propNet.getBasePropositions().values())
+		{
+			Component next = getNext(base);
+			GdlSentence name = base.getName();
+			initialValues.put(name, Boolean.TRUE.equals(initialEvaluation.evaluate(next)));
+
+			Boolean constant = unknownEvaluation.evaluate(next);
+			if (constant != null)
+			{
+				constantsAfterInit.put(name, constant);
+			}
+		}
+
+		boolean complete = true;
+		int numTested = 0;
+		for (Proposition base : propNet.getBasePropositions().values())
+		{
+			if (++numTested % 64 == 0)
+			{
+				ConcurrencyUtils.checkForInterruption();
+				if (System.currentTimeMillis() > deadline)
+				{
+					complete = false;
+					break;
+				}
+			}
+			Component next = getNext(base);
+			GdlSentence name = base.getName();
+			Boolean constant = unknownEvaluation.evaluate(next);
+			if (constant != null)
+			{
+				// A base whose next value doesn't depend on anything is a
+				// latch exactly when that value agrees with its own.
+				if (constant)
+				{
+					positiveLatches.add(name);
+				}
+				else
+				{
+					negativeLatches.add(name);
+				}
+				continue;
+			}
+
+			Map<Component, Boolean> fixed = new HashMap<Component, Boolean>();
+			Evaluation assumed = new Evaluation(fixed, unknownEvaluation);
+			fixed.put(base, true);
+			if (Boolean.TRUE.equals(assumed.evaluate(next)))
+			{
+				positiveLatches.add(name);
+			}
+			fixed.put(base, false);
+			assumed.reset();
+			if (Boolean.FALSE.equals(assumed.evaluate(next)))
+			{
+				negativeLatches.add(name);
+			}
+		}
+		this.complete = complete;
+		this.initialValues = initialValues.build();
+		this.positiveLatches = positiveLatches.build();
+		this.negativeLatches = negativeLatches.build();
+		this.constantsAfterInit = constantsAfterInit.build();
+	}
+
+	public static LatchAnalysis analyze(PropNet propNet) throws InterruptedException
+	{
+		return new LatchAnalysis(propNet, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Analyzes the propnet, but stops testing bases for latches once the
+	 * deadline has passed.
+	 */
+	public static LatchAnalysis analyze(PropNet propNet, long deadline) throws InterruptedException
+	{
+		return new LatchAnalysis(propNet, deadline);
+	}
+
+	/**
+	 * Returns false if the deadline passed before every base was tested for
+	 * latches. The latches found are still latches, but there may be more.
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * Returns true if the base is true in the initial state.
+	 */
+	public boolean isInitiallyTrue(GdlSentence base)
+	{
+		return Boolean.TRUE.equals(initialValues.get(base));
+	}
+
+	/**
+	 * Returns the bases that stay true once they're true.
+	 */
+	public ImmutableSet<GdlSentence> getPositiveLatches()
+	{
+		return positiveLatches;
+	}
+
+	/**
+	 * Returns the bases that stay false once they're false.
+	 */
+	public ImmutableSet<GdlSentence> getNegativeLatches()
+	{
+		return negativeLatches;
+	}
+
+	public boolean isLatch(GdlSentence base)
+	{
+		return positiveLatches.contains(base) || negativeLatches.contains(base);
+	}
+
+	/**
+	 * Returns the bases that have the same value in every state after the
+	 * initial one, along with that value.
+	 */
+	public ImmutableMap<GdlSentence, Boolean> getConstantsAfterInit()
+	{
+		return constantsAfterInit;
+	}
+
+	/**
+	 * Returns the bases that are true in every state, including the initial
+	 * one.
+	 */
+	public Set<GdlSentence> getAlwaysTrueBases()
+	{
+		Set<GdlSentence> bases = new HashSet<GdlSentence>();
+		for (GdlSentence base : positiveLatches)
+		{
+			if (isInitiallyTrue(base))
+			{
+				bases.add(base);
+			}
+		}
+		return bases;
+	}
+
+	/**
+	 * Returns the bases that are false in every state, including the initial
+	 * one.
+	 */
+	public Set<GdlSentence> getNeverTrueBases()
+	{
+		Set<GdlSentence> bases = new HashSet<GdlSentence>();
+		for (GdlSentence base : negativeLatches)
+		{
+			if (!isInitiallyTrue(base))
+			{
+				bases.add(base);
+			}
+		}
+		return bases;
+	}
+
+	/**
+	 * Returns the groups of bases of which at most one is true in any state.
+	 * Candidate groups are the bases that only differ in one argument, like
+	 * the values of a counter; a base can be in several groups.
+	 */
+	public synchronized List<Set<GdlSentence>> getMutexGroups()
+	{
+		if (mutexGroups == null)
+		{
+			List<Set<GdlSentence>> groups = new ArrayList<Set<GdlSentence>>();
+			for (List<Proposition> candidate : getCandidateGroups())
+			{
+				if (isMutex(candidate))
+				{
+					Set<GdlSentence> group = new HashSet<GdlSentence>();
+					for (Proposition base : candidate)
+					{
+						group.add(base.getName());
+					}
+					groups.add(Collections.unmodifiableSet(group));
+				}
+			}
+			mutexGroups = Collections.unmodifiableList(groups);
+		}
+		return mutexGroups;
+	}
+
+	/**
+	 * Returns the number of bits a state would take up if each of a set of
+	 * disjoint mutex groups were stored as a number, of log2(k+1) bits for a
+	 * group of k bases, rather than as one bit per base.
+	 */
+	public int getEncodedStateBits()
+	{
+		List<Set<GdlSentence>> groups = new ArrayList<Set<GdlSentence>>(getMutexGroups());
+		Collections.sort(groups, new Comparator<Set<GdlSentence>>() {
+			@Override
+			public int compare(Set<GdlSentence> a, Set<GdlSentence> b)
+			{
+				return b.size() - a.size();
+			}
+		});
+		Set<GdlSentence> covered = new HashSet<GdlSentence>();
+		int bits = 0;
+		for (Set<GdlSentence> group : groups)
+		{
+			if (Collections.disjoint(group, covered))
+			{
+				covered.addAll(group);
+				bits += 32 - Integer.numberOfLeadingZeros(group.size());
+			}
+		}
+		return bits + propNet.getBasePropositions().size() - covered.size();
+	}
+
+	/**
+	 * Groups the bases that only differ in one argument. Only bases of the
+	 * form (true (f ...)) can be grouped.
+	 */
+	private List<List<Proposition>> getCandidateGroups()
+	{
+		Map<List<Object>, List<Proposition>> candidates = new HashMap<List<Object>, List<Proposition>>();
+		for (Proposition base : propNet.getBasePropositions().values())
+		{
+			GdlSentence name = base.getName();
+			if (name.arity() != 1 || !(name.get(0) instanceof GdlFunction))
+			{
+				continue;
+			}
+			GdlFunction function = (GdlFunction) name.get(0);
+			for (int slot = 0; slot < function.arity(); slot++)
+			{
+				List<Object> key = new ArrayList<Object>();
+				key.add(function.getName());
+				key.add(function.arity());
+				key.add(slot);
+				for (int i = 0; i < function.arity(); i++)
+				{
+					GdlTerm term = function.get(i);
+					key.add(i == slot ? null : term);
+				}
+				List<Proposition> group = candidates.get(key);
+				if (group == null)
+				{
+					group = new ArrayList<Proposition>();
+					candidates.put(key, group);
+				}
+				group.add(base);
+			}
+		}
+		List<List<Proposition>> groups = new ArrayList<List<Proposition>>();
+		for (List<Proposition> group : candidates.values())
+		{
+			if (group.size() > 1)
+			{
+				groups.add(group);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Proves by induction that at most one of the bases is true in any state:
+	 * it holds in the initial state, and if at most one is true in some
+	 * state, then whatever moves are made, at most one is true in the next.
+	 * Each role makes exactly one move, so the moves are split into cases by
+	 * role, over the moves the next values depend on.
+	 */
+	private boolean isMutex(List<Proposition> group)
+	{
+		int initiallyTrue = 0;
+		for (Proposition base : group)
+		{
+			if (isInitiallyTrue(base.getName()))
+			{
+				initiallyTrue++;
+			}
+		}
+		if (initiallyTrue > 1)
+		{
+			return false;
+		}
+
+		// The moves the next values depend on, by role
+		Map<GdlTerm, List<Proposition>> movesByRole = new HashMap<GdlTerm, List<Proposition>>();
+		Set<Proposition> inputs = new HashSet<Proposition>(propNet.getInputPropositions().values());
+		for (Proposition input : getInputsInCones(group, inputs))
+		{
+			GdlTerm role = input.getName().get(0);
+			List<Proposition> moves = movesByRole.get(role);
+			if (moves == null)
+			{
+				moves = new ArrayList<Proposition>();
+				movesByRole.put(role, moves);
+			}
+			moves.add(input);
+		}
+		List<List<Proposition>> roleMoves = new ArrayList<List<Proposition>>(movesByRole.values());
+		long numCases = group.size() + 1;
+		for (List<Proposition> moves : roleMoves)
+		{
+			numCases *= moves.size() + 1;
+			if (numCases > MAX_MUTEX_CASES)
+			{
+				return false;
+			}
+		}
+
+		Map<Component, Boolean> fixed = new HashMap<Component, Boolean>();
+		setInit(fixed, false);
+		// Case -1 is the one where none of the group is true
+		for (int trueBase = -1; trueBase < group.size(); trueBase++)
+		{
+			for (int i = 0; i < group.size(); i++)
+			{
+				fixed.put(group.get(i), i == trueBase);
+			}
+			if (!isMutexForAllMoves(group, roleMoves, 0, fixed))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isMutexForAllMoves(List<Proposition> group, List<List<Proposition>> roleMoves, int roleIndex, Map<Component, Boolean> fixed)
+	{
+		if (roleIndex == roleMoves.size())
+		{
+			Evaluation evaluation = new Evaluation(fixed, null);
+			int possiblyTrue = 0;
+			for (Proposition base : group)
+			{
+				if (!Boolean.FALSE.equals(evaluation.evaluate(getNext(base))) && ++possiblyTrue > 1)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		List<Proposition> moves = roleMoves.get(roleIndex);
+		// Case -1 is the one where the role makes some other move
+		for (int chosen = -1; chosen < moves.size(); chosen++)
+		{
+			for (int i = 0; i < moves.size(); i++)
+			{
+				fixed.put(moves.get(i), i == chosen);
+			}
+			if (!isMutexForAllMoves(group, roleMoves, roleIndex + 1, fixed))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Set<Proposition> getInputsInCones(List<Proposition> group, Set<Proposition> inputs)
+	{
+		Set<Proposition> found = new HashSet<Proposition>();
+		Set<Component> visited = new HashSet<Component>();
+		Deque<Component> stack = new ArrayDeque<Component>();
+		for (Proposition base : group)
+		{
+			Component next = getNext(base);
+			if (next != null)
+			{
+				stack.push(next);
+			}
+		}
+		while (!stack.isEmpty())
+		{
+			Component component = stack.pop();
+			if (!visited.add(component))
+			{
+				continue;
+			}
+			if (inputs.contains(component))
+			{
+				found.add((Proposition) component);
+			}
+			else if (!(component.getInputs().size() == 1 && component.getSingleInput() instanceof Transition))
+			{
+				// Bases end the search, since their inputs belong to the previous step
+				stack.addAll(component.getInputs());
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the component whose value the base takes on in the next state,
+	 * or null if it has none.
+	 */
+	private static Component getNext(Proposition base)
+	{
+		if (base.getInputs().size() != 1)
+		{
+			return null;
+		}
+		Component transition = base.getSingleInput();
+		if (transition.getInputs().size() != 1)
+		{
+			return null;
+		}
+		return transition.getSingleInput();
+	}
+
+	private void setInit(Map<Component, Boolean> fixed, boolean value)
+	{
+		if (propNet.getInitProposition() != null)
+		{
+			fixed.put(propNet.getInitProposition(), value);
+		}
+	}
+
+	/**
+	 * Evaluates components in three-valued logic, with null as unknown.
+	 * Components in the fixed map take the value given there, and any other
+	 * base or input is unknown. Values are memoized until the next reset, so
+	 * the fixed map mustn't change in between.
+	 *
+	 * An evaluation can refine a coarser one, which fixes fewer components.
+	 * Fixing more components can only turn unknown values into known ones, so
+	 * whatever the coarser evaluation knows is taken as is, and only what it
+	 * leaves unknown is evaluated again.
+	 */
+	private static final class Evaluation
+	{
+		private final Map<Component, Boolean> fixed;
+		private final Evaluation coarser;
+		private final Map<Component, Boolean> memo = new HashMap<Component, Boolean>();
+
+		public Evaluation(Map<Component, Boolean> fixed, Evaluation coarser)
+		{
+			this.fixed = fixed;
+			this.coarser = coarser;
+		}
+
+		public void reset()
+		{
+			memo.clear();
+		}
+
+		public Boolean evaluate(Component component)
+		{
+			if (component == null)
+			{
+				return false;
+			}
+			if (fixed.containsKey(component))
+			{
+				return fixed.get(component);
+			}
+			if (coarser != null)
+			{
+				Boolean known = coarser.evaluate(component);
+				if (known != null)
+				{
+					return known;
+				}
+			}
+			if (memo.containsKey(component))
+			{
+				return memo.get(component);
+			}
+			Boolean value;
+			if (component instanceof Constant)
+			{
+				value = component.getValue();
+			}
+			else if (component instanceof Not)
+			{
+				Boolean input = evaluate(component.getSingleInput());
+				value = (input == null) ? null : !input;
+			}
+			else if (component instanceof And)
+			{
+				value = true;
+				for (Component input : component.getInputs())
+				{
+					Boolean inputValue = evaluate(input);
+					if (Boolean.FALSE.equals(inputValue))
+					{
+						value = false;
+						break;
+					}
+					if (inputValue == null)
+					{
+						value = null;
+					}
+				}
+			}
+			else if (component instanceof Or)
+			{
+				value = false;
+				for (Component input : component.getInputs())
+				{
+					Boolean inputValue = evaluate(input);
+					if (Boolean.TRUE.equals(inputValue))
+					{
+						value = true;
+						break;
+					}
+					if (inputValue == null)
+					{
+						value = null;
+					}
+				}
+			}
+			else if (component instanceof Proposition && component.getInputs().size() == 1
+					&& !(component.getSingleInput() instanceof Transition))
+			{
+				value = evaluate(component.getSingleInput());
+			}
+			else
+			{
+				// Bases, inputs and anything else with no logic behind it
+				value = null;
+			}
+			memo.put(component, value);
+			return value;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LatchAnalysis(" + positiveLatches.size() + " positive latches, " + negativeLatches.size() + " negative latches, "
+				+ constantsAfterInit.size() + " constant after init)";
+	}
+}
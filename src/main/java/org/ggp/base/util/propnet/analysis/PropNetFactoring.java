@@ -0,0 +1,436 @@
+package org.ggp.base.util.propnet.analysis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * PropNetFactoring splits a propnet into independent factors, along the lines
+ * of "Factoring General Games using Propositional Automata" by Evan Cox et al.
+ *
+ * Two base propositions are in the same factor if the next value of one
+ * depends on the other, and a move is in the same factor as the bases whose
+ * next values depend on it, or that its legality depends on. Many games are
+ * sums of independent boards, and each board then ends up in a factor of its
+ * own, so that the moves on one board can be searched without the moves on
+ * every other board.
+ *
+ * Bases whose next values don't depend on any move, like step counters or
+ * whose turn it is, would tie every factor together, so they're left out of
+ * the factors: they're "moveless", and advance the same way whatever anybody
+ * plays. Moves that don't change any base, like noops, are "free", and are
+ * playable in every factor.
+ *
+ * A factor whose bases affect neither the terminal nor the goal propositions
+ * is irrelevant: what happens in it can't change the outcome, so its moves
+ * only need to be considered when there's nothing else to play. The
+ * {@link Combination} of the terminal proposition says how the factors
+ * together decide when the game ends.
+ */
+public final class PropNetFactoring
+{
+	/**
+	 * How the terminal proposition depends on the factors.
+	 */
+	public enum Combination
+	{
+		/** Depends on at most one factor. */
+		SINGLE,
+		/** The game ends as soon as any one of the factors it depends on does. */
+		DISJUNCTIVE,
+		/** The game ends once all of the factors it depends on do. */
+		CONJUNCTIVE,
+		/** Depends on several factors in some other way. */
+		MIXED
+	}
+
+	/**
+	 * One independent part of the game: a set of base propositions, and the
+	 * moves that change them, as "does" sentences.
+	 */
+	public static final class Factor
+	{
+		private final ImmutableSet<GdlSentence> bases;
+		private final ImmutableSet<GdlSentence> inputs;
+		private final boolean affectsTerminal;
+		private final boolean affectsGoals;
+
+		private Factor(ImmutableSet<GdlSentence> bases, ImmutableSet<GdlSentence> inputs, boolean affectsTerminal, boolean affectsGoals)
+		{
+			this.bases = bases;
+			this.inputs = inputs;
+			this.affectsTerminal = affectsTerminal;
+			this.affectsGoals = affectsGoals;
+		}
+
+		public ImmutableSet<GdlSentence> getBases()
+		{
+			return bases;
+		}
+
+		public ImmutableSet<GdlSentence> getInputs()
+		{
+			return inputs;
+		}
+
+		public boolean affectsTerminal()
+		{
+			return affectsTerminal;
+		}
+
+		public boolean affectsGoals()
+		{
+			return affectsGoals;
+		}
+
+		/**
+		 * Returns true if the factor can change the outcome of the game.
+		 */
+		public boolean isRelevant()
+		{
+			return affectsTerminal || affectsGoals;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Factor(" + bases.size() + " bases, " + inputs.size() + " inputs" + (isRelevant() ? "" : ", irrelevant") + ")";
+		}
+	}
+
+	private final ImmutableList<Factor> factors;
+	private final ImmutableSet<GdlSentence> movelessBases;
+	private final ImmutableSet<GdlSentence> freeInputs;
+	private final ImmutableMap<GdlSentence, Factor> factorsByInput;
+	private final Combination terminalCombination;
+
+	private PropNetFactoring(ImmutableList<Factor> factors, ImmutableSet<GdlSentence> movelessBases, ImmutableSet<GdlSentence> freeInputs, Combination terminalCombination)
+	{
+		this.factors = factors;
+		this.movelessBases = movelessBases;
+		this.freeInputs = freeInputs;
+		this.terminalCombination = terminalCombination;
+		ImmutableMap.Builder<GdlSentence, Factor> factorsByInput = ImmutableMap.builder();
+		for (Factor factor : factors)
+		{
+			for (GdlSentence input : factor.getInputs())
+			{
+				factorsByInput.put(input, factor);
+			}
+		}
+		this.factorsByInput = factorsByInput.build();
+	}
+
+	public static PropNetFactoring factor(PropNet propNet)
+	{
+		Set<Proposition> bases = new HashSet<Proposition>(propNet.getBasePropositions().values());
+		Set<Proposition> inputs = new HashSet<Proposition>(propNet.getInputPropositions().values());
+
+		// The bases and inputs the next value of each base depends on
+		Map<Proposition, Set<Proposition>> dependencies = new HashMap<Proposition, Set<Proposition>>();
+		for (Proposition base : bases)
+		{
+			dependencies.put(base, getLeaves(base, bases, inputs));
+		}
+
+		Set<Proposition> moving = getMovingBases(dependencies, inputs);
+		Map<Proposition, Proposition> parents = new HashMap<Proposition, Proposition>();
+		for (Proposition base : moving)
+		{
+			for (Proposition dependency : dependencies.get(base))
+			{
+				if (inputs.contains(dependency) || moving.contains(dependency))
+				{
+					union(parents, base, dependency);
+				}
+			}
+		}
+		for (Set<Proposition> legals : propNet.getLegalPropositions().values())
+		{
+			for (Proposition legal : legals)
+			{
+				Proposition input = propNet.getLegalInputMap().get(legal);
+				if (input == null || !parents.containsKey(input))
+				{
+					// Moves that don't change anything stay free
+					continue;
+				}
+				for (Proposition dependency : getLeaves(legal, bases, inputs))
+				{
+					if (moving.contains(dependency))
+					{
+						union(parents, input, dependency);
+					}
+				}
+			}
+		}
+
+		Set<Proposition> terminalLeaves = getLeaves(propNet.getTerminalProposition(), bases, inputs);
+		Set<Proposition> goalLeaves = new HashSet<Proposition>();
+		for (Set<Proposition> goals : propNet.getGoalPropositions().values())
+		{
+			for (Proposition goal : goals)
+			{
+				goalLeaves.addAll(getLeaves(goal, bases, inputs));
+			}
+		}
+
+		Map<Proposition, List<Proposition>> classes = new HashMap<Proposition, List<Proposition>>();
+		for (Proposition member : parents.keySet())
+		{
+			Proposition root = find(parents, member);
+			List<Proposition> members = classes.get(root);
+			if (members == null)
+			{
+				members = new ArrayList<Proposition>();
+				classes.put(root, members);
+			}
+			members.add(member);
+		}
+		ImmutableList.Builder<Factor> factors = ImmutableList.builder();
+		Map<Proposition, Factor> factorsByRoot = new HashMap<Proposition, Factor>();
+		for (Map.Entry<Proposition, List<Proposition>> entry : classes.entrySet())
+		{
+			ImmutableSet.Builder<GdlSentence> factorBases = ImmutableSet.builder();
+			ImmutableSet.Builder<GdlSentence> factorInputs = ImmutableSet.builder();
+			boolean affectsTerminal = false;
+			boolean affectsGoals = false;
+			for (Proposition member : entry.getValue())
+			{
+				if (bases.contains(member))
+				{
+					factorBases.add(member.getName());
+					affectsTerminal |= terminalLeaves.contains(member);
+					affectsGoals |= goalLeaves.contains(member);
+				}
+				else
+				{
+					factorInputs.add(member.getName());
+				}
+			}
+			Factor factor = new Factor(factorBases.build(), factorInputs.build(), affectsTerminal, affectsGoals);
+			factors.add(factor);
+			factorsByRoot.put(entry.getKey(), factor);
+		}
+
+		ImmutableSet.Builder<GdlSentence> movelessBases = ImmutableSet.builder();
+		for (Proposition base : bases)
+		{
+			if (!moving.contains(base))
+			{
+				movelessBases.add(base.getName());
+			}
+		}
+		ImmutableSet.Builder<GdlSentence> freeInputs = ImmutableSet.builder();
+		for (Proposition input : inputs)
+		{
+			if (!parents.containsKey(input))
+			{
+				freeInputs.add(input.getName());
+			}
+		}
+
+		Combination terminalCombination = getCombination(propNet.getTerminalProposition(), bases, inputs, parents, factorsByRoot);
+		return new PropNetFactoring(factors.build(), movelessBases.build(), freeInputs.build(), terminalCombination);
+	}
+
+	public ImmutableList<Factor> getFactors()
+	{
+		return factors;
+	}
+
+	/**
+	 * Returns the factors that can change the outcome of the game.
+	 */
+	public List<Factor> getRelevantFactors()
+	{
+		List<Factor> relevant = new ArrayList<Factor>();
+		for (Factor factor : factors)
+		{
+			if (factor.isRelevant())
+			{
+				relevant.add(factor);
+			}
+		}
+		return relevant;
+	}
+
+	/**
+	 * Returns true if the game splits into more than one factor.
+	 */
+	public boolean isFactored()
+	{
+		return factors.size() > 1;
+	}
+
+	public ImmutableSet<GdlSentence> getMovelessBases()
+	{
+		return movelessBases;
+	}
+
+	public ImmutableSet<GdlSentence> getFreeInputs()
+	{
+		return freeInputs;
+	}
+
+	/**
+	 * Returns the factor of the given "does" sentence, or null if the move is
+	 * free.
+	 */
+	public Factor getFactor(GdlSentence input)
+	{
+		return factorsByInput.get(input);
+	}
+
+	public Combination getTerminalCombination()
+	{
+		return terminalCombination;
+	}
+
+	/**
+	 * Returns the base and input propositions that the given component
+	 * depends on, without looking past them.
+	 */
+	private static Set<Proposition> getLeaves(Component root, Set<Proposition> bases, Set<Proposition> inputs)
+	{
+		Set<Proposition> leaves = new HashSet<Proposition>();
+		if (root == null)
+		{
+			return leaves;
+		}
+		Set<Component> visited = new HashSet<Component>();
+		Deque<Component> stack = new ArrayDeque<Component>(root.getInputs());
+		while (!stack.isEmpty())
+		{
+			Component component = stack.pop();
+			if (!visited.add(component))
+			{
+				continue;
+			}
+			if (bases.contains(component) || inputs.contains(component))
+			{
+				leaves.add((Proposition) component);
+				continue;
+			}
+			stack.addAll(component.getInputs());
+		}
+		return leaves;
+	}
+
+	/**
+	 * Returns the bases whose next values depend on some move, directly or
+	 * through other bases.
+	 */
+	private static Set<Proposition> getMovingBases(Map<Proposition, Set<Proposition>> dependencies, Set<Proposition> inputs)
+	{
+		Set<Proposition> moving = new HashSet<Proposition>();
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (Map.Entry<Proposition, Set<Proposition>> entry : dependencies.entrySet())
+			{
+				if (moving.contains(entry.getKey()))
+				{
+					continue;
+				}
+				for (Proposition dependency : entry.getValue())
+				{
+					if (inputs.contains(dependency) || moving.contains(dependency))
+					{
+						moving.add(entry.getKey());
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+		return moving;
+	}
+
+	private static Combination getCombination(Proposition terminal, Set<Proposition> bases, Set<Proposition> inputs,
+			Map<Proposition, Proposition> parents, Map<Proposition, Factor> factorsByRoot)
+	{
+		if (terminal == null || getFactors(getLeaves(terminal, bases, inputs), parents, factorsByRoot).size() <= 1)
+		{
+			return Combination.SINGLE;
+		}
+		Component gate = terminal;
+		while (gate instanceof Proposition && gate.getInputs().size() == 1 && !bases.contains(gate) && !inputs.contains(gate))
+		{
+			gate = gate.getSingleInput();
+		}
+		if (!(gate instanceof Or) && !(gate instanceof And))
+		{
+			return Combination.MIXED;
+		}
+		for (Component input : gate.getInputs())
+		{
+			Set<Proposition> leaves = (input instanceof Proposition && (bases.contains(input) || inputs.contains(input)))
+					? ImmutableSet.of((Proposition) input)
+					: getLeaves(input, bases, inputs);
+			if (getFactors(leaves, parents, factorsByRoot).size() > 1)
+			{
+				return Combination.MIXED;
+			}
+		}
+		return (gate instanceof Or) ? Combination.DISJUNCTIVE : Combination.CONJUNCTIVE;
+	}
+
+	private static Set<Factor> getFactors(Collection<Proposition> members, Map<Proposition, Proposition> parents, Map<Proposition, Factor> factorsByRoot)
+	{
+		Set<Factor> factors = new HashSet<Factor>();
+		for (Proposition member : members)
+		{
+			if (parents.containsKey(member))
+			{
+				factors.add(factorsByRoot.get(find(parents, member)));
+			}
+		}
+		return factors;
+	}
+
+	private static Proposition find(Map<Proposition, Proposition> parents, Proposition member)
+	{
+		Proposition parent = parents.get(member);
+		if (parent == null)
+		{
+			parents.put(member, member);
+			return member;
+		}
+		if (parent == member)
+		{
+			return member;
+		}
+		Proposition root = find(parents, parent);
+		parents.put(member, root);
+		return root;
+	}
+
+	private static void union(Map<Proposition, Proposition> parents, Proposition a, Proposition b)
+	{
+		Proposition rootA = find(parents, a);
+		Proposition rootB = find(parents, b);
+		if (rootA != rootB)
+		{
+			parents.put(rootA, rootB);
+		}
+	}
+}
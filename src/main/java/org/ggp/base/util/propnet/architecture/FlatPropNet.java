@@ -0,0 +1,609 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.BaseIndex;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * The FlatPropNet class is an immutable, int-indexed view of a PropNet that
+ * is designed to be evaluated quickly. Every component is assigned an index
+ * such that the inputs of a component always have smaller indices than the
+ * component itself (with the exception of the edge from a transition into its
+ * base proposition). Evaluating the components in ascending index order thus
+ * evaluates the whole network without any recursion.
+ *
+ * Inputs and outputs are stored in compressed adjacency arrays: the inputs of
+ * component <tt>c</tt> are <tt>inputs[inputOffsets[c]]</tt> through
+ * <tt>inputs[inputOffsets[c+1]-1]</tt>, and likewise for outputs.
+ *
+ * The evaluation order is split in two. The "state order" contains every
+ * component whose value depends only on the base propositions (and INIT); this
+ * includes all the legal, goal and terminal propositions. The "move order"
+ * contains every component that depends on at least one input proposition,
+ * and so only needs to be evaluated when computing a next state.
+ *
+ * The arrays returned by the getters of this class are shared, and must not
+ * be modified by callers.
+ *
+ * Propnets that contain a cycle which does not pass through a transition
+ * cannot be flattened this way; the constructor throws an
+ * IllegalStateException for them.
+ */
+public final class FlatPropNet
+{
+	/** A proposition whose value is set from outside: base, input, INIT, etc. */
+	public static final byte SOURCE = 0;
+	public static final byte CONSTANT_FALSE = 1;
+	public static final byte CONSTANT_TRUE = 2;
+	/** A proposition with a single input, whose value it copies. */
+	public static final byte VIEW = 3;
+	public static final byte AND = 4;
+	public static final byte OR = 5;
+	public static final byte NOT = 6;
+	public static final byte TRANSITION = 7;
+
+	private final PropNet propNet;
+	private final List<Role> roles;
+
+	private final Component[] components;
+	private final Map<Component, Integer> componentIndices;
+	private final byte[] types;
+
+	private final int[] inputOffsets;
+	private final int[] inputs;
+	private final int[] outputOffsets;
+	private final int[] outputs;
+
+	private final int[] stateOrder;
+	private final int[] moveOrder;
+
+	private final GdlSentence[] baseSentences;
+	private final BaseIndex bases;
+	private final int[] baseComponents;
+	private final int[] transitionComponents;
+
+	private final int[][] inputComponents;
+	private final Move[][] inputMoves;
+	private final List<Map<Move, Integer>> inputIndicesByMove;
+
+	private final int[][] legalComponents;
+	private final Move[][] legalMoves;
+
+	private final int[][] goalComponents;
+	private final int[][] goalValues;
+
+	private final int initComponent;
+	private final int terminalComponent;
+
+	/**
+	 * Flattens the given PropNet. The PropNet must not be modified afterwards.
+	 *
+	 * @throws IllegalStateException if the PropNet contains a cycle that does
+	 * not pass through a transition.
+	 */
+	public FlatPropNet(PropNet propNet)
+	{
+		this.propNet = propNet;
+		this.roles = Collections.unmodifiableList(new ArrayList<Role>(propNet.getRoles()));
+
+		this.components = computeTopologicalOrdering(propNet);
+		int n = components.length;
+		this.componentIndices = new HashMap<Component, Integer>(n * 2);
+		for (int i = 0; i < n; i++) {
+			componentIndices.put(components[i], i);
+		}
+
+		this.types = new byte[n];
+		this.inputOffsets = new int[n + 1];
+		this.outputOffsets = new int[n + 1];
+		int numInputs = 0, numOutputs = 0;
+		for (int i = 0; i < n; i++) {
+			types[i] = computeType(components[i]);
+			inputOffsets[i] = numInputs;
+			outputOffsets[i] = numOutputs;
+			if (types[i] != SOURCE) {
+				numInputs += components[i].getInputs().size();
+			}
+			numOutputs += components[i].getOutputs().size();
+		}
+		inputOffsets[n] = numInputs;
+		outputOffsets[n] = numOutputs;
+
+		this.inputs = new int[numInputs];
+		this.outputs = new int[numOutputs];
+		for (int i = 0; i < n; i++) {
+			int j = inputOffsets[i];
+			if (types[i] != SOURCE) {
+				for (Component input : components[i].getInputs()) {
+					inputs[j++] = componentIndices.get(input);
+				}
+			}
+			j = outputOffsets[i];
+			for (Component output : components[i].getOutputs()) {
+				outputs[j++] = componentIndices.get(output);
+			}
+		}
+
+		// Bases are ordered by their sentences, so that a given game always
+		// produces the same layout regardless of hash iteration order.
+		List<GdlSentence> sortedBases = new ArrayList<GdlSentence>(propNet.getBasePropositions().keySet());
+		Collections.sort(sortedBases, SENTENCE_ORDER);
+		int numBases = sortedBases.size();
+		this.baseSentences = sortedBases.toArray(new GdlSentence[numBases]);
+		this.bases = new BaseIndex(baseSentences);
+		this.baseComponents = new int[numBases];
+		this.transitionComponents = new int[numBases];
+		for (int i = 0; i < numBases; i++) {
+			Proposition base = propNet.getBasePropositions().get(baseSentences[i]);
+			baseComponents[i] = componentIndices.get(base);
+			transitionComponents[i] = componentIndices.get(base.getSingleInput());
+		}
+
+		int numRoles = roles.size();
+		this.inputComponents = new int[numRoles][];
+		this.inputMoves = new Move[numRoles][];
+		this.inputIndicesByMove = new ArrayList<Map<Move, Integer>>(numRoles);
+		this.legalComponents = new int[numRoles][];
+		this.legalMoves = new Move[numRoles][];
+		this.goalComponents = new int[numRoles][];
+		this.goalValues = new int[numRoles][];
+		for (int r = 0; r < numRoles; r++) {
+			Role role = roles.get(r);
+
+			List<Proposition> roleInputs = new ArrayList<Proposition>();
+			for (Proposition input : propNet.getInputPropositions().values()) {
+				if (((GdlRelation) input.getName()).get(0).equals(role.getName())) {
+					roleInputs.add(input);
+				}
+			}
+			sortPropositions(roleInputs);
+			inputComponents[r] = new int[roleInputs.size()];
+			inputMoves[r] = new Move[roleInputs.size()];
+			Map<Move, Integer> indicesByMove = new HashMap<Move, Integer>();
+			for (int i = 0; i < roleInputs.size(); i++) {
+				inputComponents[r][i] = componentIndices.get(roleInputs.get(i));
+				inputMoves[r][i] = new Move(roleInputs.get(i).getName().get(1));
+				indicesByMove.put(inputMoves[r][i], inputComponents[r][i]);
+			}
+			inputIndicesByMove.add(indicesByMove);
+
+			List<Proposition> roleLegals = getPropositionsForRole(propNet.getLegalPropositions(), role);
+			legalComponents[r] = new int[roleLegals.size()];
+			legalMoves[r] = new Move[roleLegals.size()];
+			for (int i = 0; i < roleLegals.size(); i++) {
+				legalComponents[r][i] = componentIndices.get(roleLegals.get(i));
+				legalMoves[r][i] = new Move(roleLegals.get(i).getName().get(1));
+			}
+
+			List<Proposition> roleGoals = getPropositionsForRole(propNet.getGoalPropositions(), role);
+			goalComponents[r] = new int[roleGoals.size()];
+			goalValues[r] = new int[roleGoals.size()];
+			for (int i = 0; i < roleGoals.size(); i++) {
+				goalComponents[r][i] = componentIndices.get(roleGoals.get(i));
+				GdlRelation relation = (GdlRelation) roleGoals.get(i).getName();
+				goalValues[r][i] = Integer.parseInt(((GdlConstant) relation.get(1)).getValue());
+			}
+		}
+
+		this.initComponent = indexOf(propNet.getInitProposition());
+		this.terminalComponent = indexOf(propNet.getTerminalProposition());
+
+		// Split the evaluation order into the parts that do and don't depend on the moves.
+		boolean[] moveDependent = new boolean[n];
+		for (int[] roleInputComponents : inputComponents) {
+			for (int c : roleInputComponents) {
+				moveDependent[c] = true;
+			}
+		}
+		int numMoveDependent = 0;
+		for (int i = 0; i < n; i++) {
+			if (types[i] != SOURCE) {
+				for (int j = inputOffsets[i]; j < inputOffsets[i + 1]; j++) {
+					if (moveDependent[inputs[j]]) {
+						moveDependent[i] = true;
+						break;
+					}
+				}
+			}
+			if (moveDependent[i] && types[i] != SOURCE) {
+				numMoveDependent++;
+			}
+		}
+		int numEvaluated = 0;
+		for (int i = 0; i < n; i++) {
+			if (types[i] != SOURCE && types[i] != CONSTANT_TRUE && types[i] != CONSTANT_FALSE) {
+				numEvaluated++;
+			}
+		}
+		this.stateOrder = new int[numEvaluated - numMoveDependent];
+		this.moveOrder = new int[numMoveDependent];
+		int s = 0, m = 0;
+		for (int i = 0; i < n; i++) {
+			if (types[i] == SOURCE || types[i] == CONSTANT_TRUE || types[i] == CONSTANT_FALSE)
+				continue;
+			if (moveDependent[i]) {
+				moveOrder[m++] = i;
+			} else {
+				stateOrder[s++] = i;
+			}
+		}
+	}
+
+	/**
+	 * Orders the components of the propnet so that every component comes after
+	 * all of its inputs, treating base propositions as having no inputs.
+	 */
+	private static Component[] computeTopologicalOrdering(PropNet propNet)
+	{
+		Set<Component> allComponents = propNet.getComponents();
+		Map<Component, Integer> remainingInputs = new HashMap<Component, Integer>(allComponents.size() * 2);
+		Queue<Component> ready = new ArrayDeque<Component>();
+		for (Component c : allComponents) {
+			int numInputs = isSource(c) ? 0 : c.getInputs().size();
+			remainingInputs.put(c, numInputs);
+			if (numInputs == 0) {
+				ready.add(c);
+			}
+		}
+
+		Component[] ordering = new Component[allComponents.size()];
+		int numOrdered = 0;
+		while (!ready.isEmpty()) {
+			Component c = ready.remove();
+			ordering[numOrdered++] = c;
+			for (Component output : c.getOutputs()) {
+				if (isSource(output))
+					continue;
+				int remaining = remainingInputs.get(output) - 1;
+				remainingInputs.put(output, remaining);
+				if (remaining == 0) {
+					ready.add(output);
+				}
+			}
+		}
+
+		if (numOrdered != ordering.length) {
+			throw new IllegalStateException("PropNet contains a cycle that does not pass through a transition; " + (ordering.length - numOrdered) + " components could not be ordered.");
+		}
+		return ordering;
+	}
+
+	/**
+	 * A source is a proposition whose value is not computed from its inputs:
+	 * a base proposition, or a proposition with no inputs at all (inputs and INIT).
+	 */
+	private static boolean isSource(Component c)
+	{
+		if (!(c instanceof Proposition))
+			return false;
+		if (c.getInputs().isEmpty())
+			return true;
+		return c.getInputs().size() == 1 && c.getSingleInput() instanceof Transition;
+	}
+
+	private static byte computeType(Component c)
+	{
+		if (isSource(c)) {
+			return SOURCE;
+		} else if (c instanceof Proposition) {
+			if (c.getInputs().size() != 1) {
+				throw new IllegalStateException("Proposition " + ((Proposition) c).getName() + " has " + c.getInputs().size() + " inputs.");
+			}
+			return VIEW;
+		} else if (c instanceof And) {
+			return AND;
+		} else if (c instanceof Or) {
+			return OR;
+		} else if (c instanceof Not) {
+			return NOT;
+		} else if (c instanceof Transition) {
+			return TRANSITION;
+		} else if (c instanceof Constant) {
+			return c.getValue() ? CONSTANT_TRUE : CONSTANT_FALSE;
+		}
+		throw new IllegalStateException("Unrecognized component type: " + c.getClass());
+	}
+
+	private static final Comparator<GdlSentence> SENTENCE_ORDER = new Comparator<GdlSentence>() {
+		@Override
+		public int compare(GdlSentence a, GdlSentence b) {
+			return a.toString().compareTo(b.toString());
+		}
+	};
+
+	private static void sortPropositions(List<Proposition> propositions)
+	{
+		Collections.sort(propositions, new Comparator<Proposition>() {
+			@Override
+			public int compare(Proposition a, Proposition b) {
+				return SENTENCE_ORDER.compare(a.getName(), b.getName());
+			}
+		});
+	}
+
+	private static List<Proposition> getPropositionsForRole(Map<Role, Set<Proposition>> propositionsByRole, Role role)
+	{
+		Set<Proposition> forRole = propositionsByRole.get(role);
+		if (forRole == null)
+			return new ArrayList<Proposition>();
+		List<Proposition> result = new ArrayList<Proposition>(forRole);
+		sortPropositions(result);
+		return result;
+	}
+
+	private int indexOf(Component c)
+	{
+		if (c == null)
+			return -1;
+		Integer index = componentIndices.get(c);
+		return (index == null) ? -1 : index;
+	}
+
+	/**
+	 * Evaluates the components in the given order, reading and writing their
+	 * values in the given array. The order must be one of the orders returned
+	 * by {@link #getStateOrder()} or {@link #getMoveOrder()}.
+	 */
+	public void evaluate(int[] order, boolean[] values)
+	{
+		for (int c : order) {
+			int start = inputOffsets[c];
+			int end = inputOffsets[c + 1];
+			boolean value;
+			switch (types[c]) {
+			case VIEW:
+			case TRANSITION:
+				value = values[inputs[start]];
+				break;
+			case NOT:
+				value = !values[inputs[start]];
+				break;
+			case AND:
+				value = true;
+				for (int j = start; j < end; j++) {
+					if (!values[inputs[j]]) {
+						value = false;
+						break;
+					}
+				}
+				break;
+			case OR:
+				value = false;
+				for (int j = start; j < end; j++) {
+					if (values[inputs[j]]) {
+						value = true;
+						break;
+					}
+				}
+				break;
+			default:
+				continue;
+			}
+			values[c] = value;
+		}
+	}
+
+	/**
+	 * Creates a value array for this propnet, with the constants already set.
+	 */
+	public boolean[] createValueArray()
+	{
+		boolean[] values = new boolean[components.length];
+		for (int i = 0; i < components.length; i++) {
+			values[i] = (types[i] == CONSTANT_TRUE);
+		}
+		return values;
+	}
+
+	/**
+	 * Getter method.
+	 *
+	 * @return The PropNet that was flattened.
+	 */
+	public PropNet getPropNet()
+	{
+		return propNet;
+	}
+
+	public List<Role> getRoles()
+	{
+		return roles;
+	}
+
+	public int getNumComponents()
+	{
+		return components.length;
+	}
+
+	public Component getComponent(int index)
+	{
+		return components[index];
+	}
+
+	/**
+	 * Returns the index of the given component, or -1 if it is not part of
+	 * this propnet.
+	 */
+	public int getComponentIndex(Component c)
+	{
+		return indexOf(c);
+	}
+
+	public byte getType(int index)
+	{
+		return types[index];
+	}
+
+	public byte[] getTypes()
+	{
+		return types;
+	}
+
+	public int[] getInputOffsets()
+	{
+		return inputOffsets;
+	}
+
+	public int[] getInputs()
+	{
+		return inputs;
+	}
+
+	public int[] getOutputOffsets()
+	{
+		return outputOffsets;
+	}
+
+	public int[] getOutputs()
+	{
+		return outputs;
+	}
+
+	/**
+	 * Returns the components that depend only on the base propositions, in
+	 * evaluation order.
+	 */
+	public int[] getStateOrder()
+	{
+		return stateOrder;
+	}
+
+	/**
+	 * Returns the components that depend on at least one input proposition,
+	 * in evaluation order.
+	 */
+	public int[] getMoveOrder()
+	{
+		return moveOrder;
+	}
+
+	public int getNumBases()
+	{
+		return baseSentences.length;
+	}
+
+	/**
+	 * Returns the sentences of the base propositions, indexed by base index.
+	 */
+	public GdlSentence[] getBaseSentences()
+	{
+		return baseSentences;
+	}
+
+	/**
+	 * Returns the base index of the given sentence, or -1 if it does not
+	 * correspond to a base proposition.
+	 */
+	public int getBaseIndex(GdlSentence sentence)
+	{
+		return bases.getIndex(sentence);
+	}
+
+	/**
+	 * Returns the index of the base propositions, over which this propnet's
+	 * states are represented as {@link org.ggp.base.util.statemachine.BitMachineState}s.
+	 */
+	public BaseIndex getBases()
+	{
+		return bases;
+	}
+
+	/**
+	 * Returns the component index of each base proposition, indexed by base index.
+	 */
+	public int[] getBaseComponents()
+	{
+		return baseComponents;
+	}
+
+	/**
+	 * Returns the component index of the transition feeding each base
+	 * proposition, indexed by base index.
+	 */
+	public int[] getTransitionComponents()
+	{
+		return transitionComponents;
+	}
+
+	public int[] getInputComponents(int roleIndex)
+	{
+		return inputComponents[roleIndex];
+	}
+
+	public Move[] getInputMoves(int roleIndex)
+	{
+		return inputMoves[roleIndex];
+	}
+
+	/**
+	 * Returns the component index of the input proposition for the given role
+	 * making the given move, or -1 if there is no such proposition.
+	 */
+	public int getInputComponent(int roleIndex, Move move)
+	{
+		Integer index = inputIndicesByMove.get(roleIndex).get(move);
+		return (index == null) ? -1 : index;
+	}
+
+	public int[] getLegalComponents(int roleIndex)
+	{
+		return legalComponents[roleIndex];
+	}
+
+	public Move[] getLegalMoves(int roleIndex)
+	{
+		return legalMoves[roleIndex];
+	}
+
+	public int[] getGoalComponents(int roleIndex)
+	{
+		return goalComponents[roleIndex];
+	}
+
+	public int[] getGoalValues(int roleIndex)
+	{
+		return goalValues[roleIndex];
+	}
+
+	/**
+	 * Returns the component index of the INIT proposition, or -1 if there is none.
+	 */
+	public int getInitComponent()
+	{
+		return initComponent;
+	}
+
+	/**
+	 * Returns the component index of the terminal proposition, or -1 if there is none.
+	 */
+	public int getTerminalComponent()
+	{
+		return terminalComponent;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FlatPropNet[" + components.length + " components, " + baseSentences.length + " bases, "
+				+ stateOrder.length + " state-dependent, " + moveOrder.length + " move-dependent]";
+	}
+}
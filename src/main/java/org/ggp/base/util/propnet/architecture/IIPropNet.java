@@ -1,5 +1,6 @@
 package org.ggp.base.util.propnet.architecture;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -11,19 +12,28 @@ import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRelation;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
 import org.ggp.base.util.propnet.architecture.components.Not;
 import org.ggp.base.util.propnet.architecture.components.Or;
 import org.ggp.base.util.propnet.architecture.components.Proposition;
 import org.ggp.base.util.propnet.architecture.components.Transition;
 import org.ggp.base.util.statemachine.Role;
 
+import com.google.common.primitives.Ints;
+
 /**
  * The class IIPropNet is a generalization of the existing PropNet paradigm to
  * GGP with Incomplete Information. Each IIPropNet wraps around an existing
- * propnet and associates a double II-value to each Proposition in the net.
- * A value of 1 represents true, 0 represents false, and all numbers in between
- * represent an unknown truth value. For now, all unknown propositions have ii-value
- * of 0.5.
+ * propnet and associates a three-valued II-value to each Component in the net:
+ * known to be true, known to be false, or unknown.
+ *
+ * The values of propositions can be set directly, and the values of everything
+ * that depends on them then follow by Kleene's three-valued logic: an And is
+ * false as soon as one of its inputs is known to be false, an Or is true as
+ * soon as one of its inputs is known to be true, and so on. Values are kept in
+ * two packed bitplanes, known-true and known-false, over the components in
+ * topological order, and setting a value only re-evaluates the components
+ * whose inputs actually changed.
  *
  * The IIPropNet class also track "sees" propositions much like a traditional
  * propnet does for "legals," "base," etc. IIPropNets also assign each Transition
@@ -39,7 +49,36 @@ public final class IIPropNet {
 
 	private final PropNet propNet;
 
-	private Map<Proposition, Double> iivalues;
+	/*
+	 * The II-values, by component index, with the components in topological
+	 * order so that one pass over the dirty bits brings every value up to
+	 * date. A proposition whose value has been set keeps that value whatever
+	 * its inputs are. All of this is built on first use, since the propnet may
+	 * still be changed by removeComponent until then.
+	 */
+	private static final byte LEAF = 0;
+	private static final byte VIEW = 1;
+	private static final byte AND = 2;
+	private static final byte OR = 3;
+	private static final byte NOT = 4;
+	private static final byte TRANSITION = 5;
+	private static final byte TRUE = 6;
+	private static final byte FALSE = 7;
+
+	private Component[] components;
+	private Map<Component, Integer> indices;
+	private byte[] kinds;
+	private int[][] inputs;
+	/** The outputs that are computed from each component; transitions have none. */
+	private int[][] outputs;
+	private long[] knownTrue;
+	private long[] knownFalse;
+	private long[] setTrue;
+	private long[] setFalse;
+	private long[] dirty;
+	/** The range of words of dirty that may have bits set, so that clean ones aren't scanned. */
+	private int firstDirtyWord = Integer.MAX_VALUE;
+	private int lastDirtyWord = -1;
 
 	/** References to every SeesProposition, indexed by role. */
 	private final Map<Role, Set<Proposition>> seesPropositionsByRole;
@@ -68,12 +107,37 @@ public final class IIPropNet {
 
 		this.seesPropositionsByRole = recordSeesPropositionsByRole();
 		this.seesPropositionsByName = recordSeesPropositionsByName();
-		this.iivalues = createIIValuesMap();
 		transitions = recordTransitions();
 		nonDoesTransitions = recordNonDoesTransitions();
 		doesTransitions = recordDoesTransitions();
 	}
 
+	private IIPropNet(IIPropNet other) {
+		other.ensureIndexed();
+		this.propNet = other.propNet;
+		this.seesPropositionsByRole = other.seesPropositionsByRole;
+		this.seesPropositionsByName = other.seesPropositionsByName;
+		this.transitions = other.transitions;
+		this.nonDoesTransitions = other.nonDoesTransitions;
+		this.doesTransitions = other.doesTransitions;
+		this.indices = other.indices;
+		this.kinds = other.kinds;
+		this.inputs = other.inputs;
+		this.outputs = other.outputs;
+		createValues();
+		this.components = other.components;
+	}
+
+	/**
+	 * Returns a new IIPropNet over the same propnet, which shares everything
+	 * with this one except the II-values, all of which start out unknown. The
+	 * two can then be used from different threads. Neither may be changed
+	 * with removeComponent afterwards.
+	 */
+	public IIPropNet fork() {
+		return new IIPropNet(this);
+	}
+
 	public Map<Role, Set<Proposition>> getSeesPropositionsByRole() {
 		return seesPropositionsByRole;
 	}
@@ -82,10 +146,6 @@ public final class IIPropNet {
 		return seesPropositionsByName;
 	}
 
-	public Map<Proposition, Double> getIIValues() {
-		return iivalues;
-	}
-
 	public Set<Transition> getTransitions() {
 		return transitions;
 	}
@@ -102,25 +162,310 @@ public final class IIPropNet {
 		return propNet.getLegalInputMap();
 	}
 
-	private Map<Proposition, Double> createIIValuesMap() {
-		Map<Proposition, Double> iivalues = new HashMap<Proposition, Double>();
-		for (Proposition prop : getPropositions()) {
-			iivalues.put(prop, 0.5);
+	/**
+	 * Returns the index of the given component, which is what the rest of the
+	 * II-value methods take.
+	 */
+	public int getIndex(Component c) {
+		ensureIndexed();
+		return indices.get(c);
+	}
+
+	public Component getComponent(int index) {
+		ensureIndexed();
+		return components[index];
+	}
+
+	/**
+	 * Returns the indices of the inputs of the component with the given index.
+	 * The array must not be modified.
+	 */
+	public int[] getInputIndices(int index) {
+		ensureIndexed();
+		return inputs[index];
+	}
+
+	/**
+	 * Sets the value of the proposition with the given index, whatever the
+	 * values of its inputs are.
+	 */
+	public void setValue(int index, boolean value) {
+		ensureIndexed();
+		long bit = 1L << index;
+		int w = index >>> 6;
+		long[] on = value ? setTrue : setFalse;
+		long[] off = value ? setFalse : setTrue;
+		if ((on[w] & bit) == 0 || (off[w] & bit) != 0) {
+			on[w] |= bit;
+			off[w] &= ~bit;
+			markDirty(index);
+		}
+	}
+
+	/**
+	 * Undoes {@link #setValue(int, boolean)}, so that the proposition with the
+	 * given index is computed from its inputs again, or unknown if it has none.
+	 */
+	public void clearValue(int index) {
+		ensureIndexed();
+		long bit = 1L << index;
+		int w = index >>> 6;
+		if (((setTrue[w] | setFalse[w]) & bit) != 0) {
+			setTrue[w] &= ~bit;
+			setFalse[w] &= ~bit;
+			markDirty(index);
 		}
-		return iivalues;
 	}
 
+	public boolean isTrue(int index) {
+		ensureUpToDate();
+		return (knownTrue[index >>> 6] & (1L << index)) != 0;
+	}
+
+	public boolean isFalse(int index) {
+		ensureUpToDate();
+		return (knownFalse[index >>> 6] & (1L << index)) != 0;
+	}
+
+	public boolean isKnown(int index) {
+		return isTrue(index) || isFalse(index);
+	}
+
+	/**
+	 * Sets the II-value of the given proposition: 1 for true, 0 for false, and
+	 * anything in between to make it unknown again.
+	 */
 	public void setIIValue(Proposition prop, double value) {
-		iivalues.put(prop, value);
+		int index = getIndex(prop);
 		if (value == 0) {
-			prop.setValue(false);
+			setValue(index, false);
 		} else if (value == 1) {
-			prop.setValue(true);
+			setValue(index, true);
+		} else {
+			clearValue(index);
 		}
 	}
 
+	/**
+	 * Returns the II-value of the given proposition: 1 if it is known to be
+	 * true, 0 if it is known to be false, and 0.5 if it is unknown.
+	 */
 	public double getIIValue(Proposition prop) {
-		return iivalues.get(prop);
+		int index = getIndex(prop);
+		if (isTrue(index)) {
+			return 1;
+		} else if (isFalse(index)) {
+			return 0;
+		}
+		return 0.5;
+	}
+
+	private void markDirty(int index) {
+		int w = index >>> 6;
+		dirty[w] |= 1L << index;
+		firstDirtyWord = Math.min(firstDirtyWord, w);
+		lastDirtyWord = Math.max(lastDirtyWord, w);
+	}
+
+	private void ensureUpToDate() {
+		ensureIndexed();
+		// Outputs always come after their inputs, so one pass is enough.
+		for (int w = firstDirtyWord; w <= lastDirtyWord; w++) {
+			while (dirty[w] != 0) {
+				int index = (w << 6) + Long.numberOfTrailingZeros(dirty[w]);
+				dirty[w] &= dirty[w] - 1;
+				if (update(index)) {
+					for (int output : outputs[index]) {
+						markDirty(output);
+					}
+				}
+			}
+		}
+		firstDirtyWord = Integer.MAX_VALUE;
+		lastDirtyWord = -1;
+	}
+
+	/**
+	 * Recomputes the value of one component from its inputs, and returns
+	 * whether it changed.
+	 */
+	private boolean update(int index) {
+		boolean isTrue;
+		boolean isFalse;
+		int[] in = inputs[index];
+		switch (kinds[index]) {
+		case VIEW:
+			if (get(setTrue, index) || get(setFalse, index)) {
+				isTrue = get(setTrue, index);
+				isFalse = get(setFalse, index);
+			} else {
+				isTrue = get(knownTrue, in[0]);
+				isFalse = get(knownFalse, in[0]);
+			}
+			break;
+		case AND:
+			isTrue = true;
+			isFalse = false;
+			for (int i : in) {
+				if (get(knownFalse, i)) {
+					isTrue = false;
+					isFalse = true;
+					break;
+				}
+				isTrue &= get(knownTrue, i);
+			}
+			break;
+		case OR:
+			isTrue = false;
+			isFalse = true;
+			for (int i : in) {
+				if (get(knownTrue, i)) {
+					isTrue = true;
+					isFalse = false;
+					break;
+				}
+				isFalse &= get(knownFalse, i);
+			}
+			break;
+		case NOT:
+			isTrue = get(knownFalse, in[0]);
+			isFalse = get(knownTrue, in[0]);
+			break;
+		case TRANSITION:
+			isTrue = get(knownTrue, in[0]);
+			isFalse = get(knownFalse, in[0]);
+			break;
+		case TRUE:
+			isTrue = true;
+			isFalse = false;
+			break;
+		case FALSE:
+			isTrue = false;
+			isFalse = true;
+			break;
+		default:
+			isTrue = get(setTrue, index);
+			isFalse = get(setFalse, index);
+			break;
+		}
+		if (isTrue == get(knownTrue, index) && isFalse == get(knownFalse, index)) {
+			return false;
+		}
+		long bit = 1L << index;
+		int w = index >>> 6;
+		knownTrue[w] = isTrue ? knownTrue[w] | bit : knownTrue[w] & ~bit;
+		knownFalse[w] = isFalse ? knownFalse[w] | bit : knownFalse[w] & ~bit;
+		return true;
+	}
+
+	private static boolean get(long[] bits, int index) {
+		return (bits[index >>> 6] & (1L << index)) != 0;
+	}
+
+	private static boolean isView(Component c) {
+		return c instanceof Proposition && c.getInputs().size() == 1 && !(c.getSingleInput() instanceof Transition);
+	}
+
+	/** Returns true if the value of the component is computed from its inputs. */
+	private static boolean isComputed(Component c) {
+		if (c instanceof Proposition) {
+			return isView(c);
+		}
+		return !(c instanceof Constant);
+	}
+
+	private void ensureIndexed() {
+		if (components != null) {
+			return;
+		}
+		// Order the components topologically, leaving out the links into base
+		// propositions, which are the only ones that may form cycles.
+		Set<Component> all = getComponents();
+		List<Component> order = new ArrayList<Component>(all.size());
+		Map<Component, Integer> remainingInputs = new HashMap<Component, Integer>();
+		for (Component c : all) {
+			int n = isComputed(c) ? c.getInputs().size() : 0;
+			remainingInputs.put(c, n);
+			if (n == 0) {
+				order.add(c);
+			}
+		}
+		for (int i = 0; i < order.size(); i++) {
+			for (Component output : order.get(i).getOutputs()) {
+				if (isComputed(output)) {
+					int n = remainingInputs.get(output) - 1;
+					remainingInputs.put(output, n);
+					if (n == 0) {
+						order.add(output);
+					}
+				}
+			}
+		}
+		if (order.size() != all.size()) {
+			throw new IllegalStateException("The propnet has a cycle that doesn't go through a transition");
+		}
+
+		int n = order.size();
+		Map<Component, Integer> indices = new HashMap<Component, Integer>();
+		for (int i = 0; i < n; i++) {
+			indices.put(order.get(i), i);
+		}
+		byte[] kinds = new byte[n];
+		int[][] inputs = new int[n][];
+		int[][] outputs = new int[n][];
+		for (int i = 0; i < n; i++) {
+			Component c = order.get(i);
+			if (c instanceof Proposition) {
+				kinds[i] = isView(c) ? VIEW : LEAF;
+			} else if (c instanceof And) {
+				kinds[i] = AND;
+			} else if (c instanceof Or) {
+				kinds[i] = OR;
+			} else if (c instanceof Not) {
+				kinds[i] = NOT;
+			} else if (c instanceof Transition) {
+				kinds[i] = TRANSITION;
+			} else if (c instanceof Constant) {
+				kinds[i] = c.getValue() ? TRUE : FALSE;
+			} else {
+				throw new IllegalStateException("Unknown kind of component: " + c);
+			}
+			inputs[i] = new int[c.getInputs().size()];
+			int k = 0;
+			for (Component input : c.getInputs()) {
+				inputs[i][k++] = indices.get(input);
+			}
+			List<Integer> computedOutputs = new ArrayList<Integer>();
+			for (Component output : c.getOutputs()) {
+				if (isComputed(output)) {
+					computedOutputs.add(indices.get(output));
+				}
+			}
+			outputs[i] = Ints.toArray(computedOutputs);
+		}
+
+		this.indices = indices;
+		this.kinds = kinds;
+		this.inputs = inputs;
+		this.outputs = outputs;
+		createValues();
+		this.components = order.toArray(new Component[n]);
+	}
+
+	/** Starts every component out unknown, other than the constants. */
+	private void createValues() {
+		int n = kinds.length;
+		int words = (n + 63) >>> 6;
+		this.knownTrue = new long[words];
+		this.knownFalse = new long[words];
+		this.setTrue = new long[words];
+		this.setFalse = new long[words];
+		this.dirty = new long[words];
+		this.firstDirtyWord = Integer.MAX_VALUE;
+		this.lastDirtyWord = -1;
+		for (int i = 0; i < n; i++) {
+			markDirty(i);
+		}
 	}
 
 	/**
@@ -439,6 +784,7 @@ public final class IIPropNet {
 			parent.removeOutput(c);
 		for(Component child : c.getOutputs())
 			child.removeInput(c);
+		components = null;
 		//These are actually unnecessary...
 		//c.removeAllInputs();
 		//c.removeAllOutputs();
@@ -0,0 +1,192 @@
+package org.ggp.base.util.propnet.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import org.ggp.base.util.crypto.BaseHashing;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetBudget;
+import org.ggp.base.util.propnet.factory.PropNetBudgetExceededException;
+
+/**
+ * PropNetCache keeps the propnets built by the {@link OptimizingPropNetFactory}
+ * in a directory on disk, so that a game that has been played before doesn't
+ * need to go through the whole factory again at the start of the next match.
+ *
+ * Each propnet is stored in the {@link PropNetFormat}, in a file named after
+ * the SHA1 hash of the game description. A file that can't be read, or was
+ * written by an older version of the format, is rebuilt and replaced. Files
+ * are written under a temporary name and then moved over any existing file,
+ * so several players sharing the same directory never see a partially
+ * written propnet.
+ *
+ * The default cache lives in the "propnets" directory, next to "logs"; it
+ * can be moved with the ggp.propnet.cache system property.
+ */
+public final class PropNetCache
+{
+	private static final String EXTENSION = ".propnet";
+
+	private static volatile PropNetCache defaultCache = new PropNetCache(new File(System.getProperty("ggp.propnet.cache", "propnets")));
+
+	private final File directory;
+
+	public PropNetCache(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the propnet for the given game description, from the default
+	 * cache if possible. This is a drop-in replacement for
+	 * {@link OptimizingPropNetFactory#create(List)}.
+	 */
+	public static PropNet create(List<Gdl> description) throws InterruptedException
+	{
+		return defaultCache.getPropNet(description);
+	}
+
+	/**
+	 * Returns the propnet for the given game description, from the default
+	 * cache if possible. The budget only applies if the propnet has to be
+	 * built.
+	 */
+	public static PropNet create(List<Gdl> description, PropNetBudget budget) throws InterruptedException, PropNetBudgetExceededException
+	{
+		return defaultCache.getPropNet(description, budget);
+	}
+
+	/**
+	 * Moves the default cache to the given directory, as the system property
+	 * does at startup. Tests use this to keep their propnets out of the
+	 * working tree.
+	 */
+	public static void setDefaultDirectory(File directory)
+	{
+		defaultCache = new PropNetCache(directory);
+	}
+
+	public static File getDefaultDirectory()
+	{
+		return defaultCache.getDirectory();
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Returns the key the propnet of the given description is stored under.
+	 */
+	public static String getKey(List<Gdl> description)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Gdl gdl : description)
+		{
+			sb.append(gdl).append('\n');
+		}
+		return BaseHashing.computeSHA1Hash(sb.toString());
+	}
+
+	public File getFile(List<Gdl> description)
+	{
+		return new File(directory, getKey(description) + EXTENSION);
+	}
+
+	/**
+	 * Returns a newly loaded propnet for the given description if it's in the
+	 * cache, and otherwise builds it and adds it to the cache. Every call
+	 * returns a separate propnet, which the caller is free to modify.
+	 */
+	public PropNet getPropNet(List<Gdl> description) throws InterruptedException
+	{
+		try
+		{
+			return getPropNet(description, PropNetBudget.UNLIMITED);
+		}
+		catch (PropNetBudgetExceededException e)
+		{
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Like {@link #getPropNet(List)}, but builds the propnet within the given
+	 * budget if it isn't in the cache. Loading a cached propnet is fast enough
+	 * that it isn't counted against the budget.
+	 */
+	public PropNet getPropNet(List<Gdl> description, PropNetBudget budget) throws InterruptedException, PropNetBudgetExceededException
+	{
+		File file = getFile(description);
+		if (file.isFile())
+		{
+			try
+			{
+				long startTime = System.currentTimeMillis();
+				PropNet propNet = PropNetFormat.read(file);
+				GamerLogger.log("StateMachine", "Loaded cached propnet " + file.getName() + " in " + (System.currentTimeMillis() - startTime) + " ms");
+				return propNet;
+			}
+			catch (IOException e)
+			{
+				GamerLogger.logError("StateMachine", "Rebuilding unreadable cached propnet " + file + ": " + e);
+			}
+		}
+
+		PropNet propNet = OptimizingPropNetFactory.create(description, budget);
+		if (propNet != null)
+		{
+			store(propNet, file);
+		}
+		return propNet;
+	}
+
+	/**
+	 * Writes the propnet to the cache. Failing to do so isn't fatal, since the
+	 * propnet will simply be rebuilt next time.
+	 */
+	private void store(PropNet propNet, File file)
+	{
+		File temporaryFile = null;
+		try
+		{
+			if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+			{
+				throw new IOException("Could not create propnet cache directory " + directory);
+			}
+			temporaryFile = File.createTempFile(file.getName(), ".tmp", directory);
+			PropNetFormat.write(propNet, temporaryFile);
+			try
+			{
+				Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException e)
+		{
+			GamerLogger.logError("StateMachine", "Could not cache propnet in " + file + ": " + e);
+		}
+		catch (RuntimeException e)
+		{
+			GamerLogger.logStackTrace("StateMachine", e);
+		}
+		finally
+		{
+			if (temporaryFile != null && temporaryFile.exists())
+			{
+				temporaryFile.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package org.ggp.base.util.propnet.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlProposition;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.Role;
+
+import com.google.common.base.Charsets;
+
+/**
+ * PropNetFormat reads and writes propnets in a compact binary format.
+ *
+ * The file starts with a magic number and the format version, followed by a
+ * table of every symbol used in the proposition names and roles. Sentences
+ * and terms then refer to symbols by their index in that table. After the
+ * roles come the components, each as a type tag followed, for propositions,
+ * by the name; and then the edges, as the list of output indices of each
+ * component, in the same order. All numbers are big-endian ints.
+ *
+ * Files are read through a memory-mapped buffer, so loading a propnet is a
+ * single pass over the file without any parsing of GDL text.
+ */
+public final class PropNetFormat
+{
+	private static final int MAGIC = 0x47475050;
+	/**
+	 * Increment this whenever the format, or the propnets built by the
+	 * OptimizingPropNetFactory, change, so that old files are rebuilt.
+	 */
+	public static final int VERSION = 3;
+
+	private static final byte PROPOSITION = 0;
+	private static final byte AND = 1;
+	private static final byte OR = 2;
+	private static final byte NOT = 3;
+	private static final byte TRANSITION = 4;
+	private static final byte TRUE = 5;
+	private static final byte FALSE = 6;
+
+	private static final byte CONSTANT_TERM = 0;
+	private static final byte FUNCTION_TERM = 1;
+
+	/** Marks a sentence that is a proposition rather than a relation. */
+	private static final int PROPOSITION_ARITY = -1;
+
+	private PropNetFormat()
+	{
+	}
+
+	public static void write(PropNet propNet, File file) throws IOException
+	{
+		List<Component> components = new ArrayList<Component>(propNet.getComponents());
+		Map<Component, Integer> indices = new HashMap<Component, Integer>();
+		for (int i = 0; i < components.size(); i++)
+		{
+			indices.put(components.get(i), i);
+		}
+
+		List<GdlConstant> symbols = new ArrayList<GdlConstant>();
+		Map<GdlConstant, Integer> symbolIndices = new HashMap<GdlConstant, Integer>();
+		for (Role role : propNet.getRoles())
+		{
+			addSymbol(role.getName(), symbols, symbolIndices);
+		}
+		for (Proposition proposition : propNet.getPropositions())
+		{
+			addSymbols(proposition.getName(), symbols, symbolIndices);
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(symbols.size());
+			for (GdlConstant symbol : symbols)
+			{
+				byte[] bytes = symbol.getValue().getBytes(Charsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			out.writeInt(propNet.getRoles().size());
+			for (Role role : propNet.getRoles())
+			{
+				out.writeInt(symbolIndices.get(role.getName()));
+			}
+
+			out.writeInt(components.size());
+			for (Component component : components)
+			{
+				out.writeByte(getType(component));
+				if (component instanceof Proposition)
+				{
+					writeSentence(((Proposition) component).getName(), symbolIndices, out);
+				}
+			}
+			for (Component component : components)
+			{
+				out.writeInt(component.getOutputs().size());
+				for (Component output : component.getOutputs())
+				{
+					out.writeInt(indices.get(output));
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a propnet written by {@link #write(PropNet, File)}.
+	 *
+	 * @throws IOException if the file can't be read, or wasn't written with
+	 * the current version of the format.
+	 */
+	public static PropNet read(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		try
+		{
+			if (buffer.getInt() != MAGIC)
+			{
+				throw new IOException("Not a propnet file: " + file);
+			}
+			int version = buffer.getInt();
+			if (version != VERSION)
+			{
+				throw new IOException("Propnet file " + file + " has version " + version + ", expected " + VERSION);
+			}
+
+			GdlConstant[] symbols = new GdlConstant[buffer.getInt()];
+			for (int i = 0; i < symbols.length; i++)
+			{
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				symbols[i] = GdlPool.getConstant(new String(bytes, Charsets.UTF_8));
+			}
+
+			int numRoles = buffer.getInt();
+			List<Role> roles = new ArrayList<Role>(numRoles);
+			for (int i = 0; i < numRoles; i++)
+			{
+				roles.add(new Role(symbols[buffer.getInt()]));
+			}
+
+			Component[] components = new Component[buffer.getInt()];
+			for (int i = 0; i < components.length; i++)
+			{
+				components[i] = readComponent(buffer, symbols);
+			}
+			for (Component component : components)
+			{
+				int numOutputs = buffer.getInt();
+				for (int i = 0; i < numOutputs; i++)
+				{
+					Component output = components[buffer.getInt()];
+					component.addOutput(output);
+					output.addInput(component);
+				}
+			}
+
+			Set<Component> componentSet = new HashSet<Component>(components.length * 2);
+			for (Component component : components)
+			{
+				componentSet.add(component);
+			}
+			return new PropNet(roles, componentSet);
+		}
+		catch (RuntimeException e)
+		{
+			// Truncated files and out-of-range indices end up here.
+			throw new IOException("Malformed propnet file: " + file, e);
+		}
+	}
+
+	private static byte getType(Component component)
+	{
+		if (component instanceof Proposition)
+		{
+			return PROPOSITION;
+		}
+		else if (component instanceof And)
+		{
+			return AND;
+		}
+		else if (component instanceof Or)
+		{
+			return OR;
+		}
+		else if (component instanceof Not)
+		{
+			return NOT;
+		}
+		else if (component instanceof Transition)
+		{
+			return TRANSITION;
+		}
+		else if (component instanceof Constant)
+		{
+			return component.getValue() ? TRUE : FALSE;
+		}
+		throw new IllegalArgumentException("Unknown component type: " + component.getClass());
+	}
+
+	private static Component readComponent(ByteBuffer buffer, GdlConstant[] symbols) throws IOException
+	{
+		byte type = buffer.get();
+		switch (type)
+		{
+		case PROPOSITION:
+			return new Proposition(readSentence(buffer, symbols));
+		case AND:
+			return new And();
+		case OR:
+			return new Or();
+		case NOT:
+			return new Not();
+		case TRANSITION:
+			return new Transition();
+		case TRUE:
+			return new Constant(true);
+		case FALSE:
+			return new Constant(false);
+		default:
+			throw new IOException("Unknown component type " + type);
+		}
+	}
+
+	private static void addSymbol(GdlConstant symbol, List<GdlConstant> symbols, Map<GdlConstant, Integer> symbolIndices)
+	{
+		if (!symbolIndices.containsKey(symbol))
+		{
+			symbolIndices.put(symbol, symbols.size());
+			symbols.add(symbol);
+		}
+	}
+
+	private static void addSymbols(GdlSentence sentence, List<GdlConstant> symbols, Map<GdlConstant, Integer> symbolIndices)
+	{
+		addSymbol(sentence.getName(), symbols, symbolIndices);
+		for (int i = 0; i < sentence.arity(); i++)
+		{
+			addSymbols(sentence.get(i), symbols, symbolIndices);
+		}
+	}
+
+	private static void addSymbols(GdlTerm term, List<GdlConstant> symbols, Map<GdlConstant, Integer> symbolIndices)
+	{
+		if (term instanceof GdlConstant)
+		{
+			addSymbol((GdlConstant) term, symbols, symbolIndices);
+		}
+		else if (term instanceof GdlFunction)
+		{
+			GdlFunction function = (GdlFunction) term;
+			addSymbol(function.getName(), symbols, symbolIndices);
+			for (int i = 0; i < function.arity(); i++)
+			{
+				addSymbols(function.get(i), symbols, symbolIndices);
+			}
+		}
+		else
+		{
+			throw new IllegalArgumentException("Proposition names must be ground, but found " + term);
+		}
+	}
+
+	private static void writeSentence(GdlSentence sentence, Map<GdlConstant, Integer> symbolIndices, DataOutputStream out) throws IOException
+	{
+		out.writeInt(symbolIndices.get(sentence.getName()));
+		if (sentence instanceof GdlProposition)
+		{
+			out.writeInt(PROPOSITION_ARITY);
+			return;
+		}
+		out.writeInt(sentence.arity());
+		for (int i = 0; i < sentence.arity(); i++)
+		{
+			writeTerm(sentence.get(i), symbolIndices, out);
+		}
+	}
+
+	private static void writeTerm(GdlTerm term, Map<GdlConstant, Integer> symbolIndices, DataOutputStream out) throws IOException
+	{
+		if (term instanceof GdlConstant)
+		{
+			out.writeByte(CONSTANT_TERM);
+			out.writeInt(symbolIndices.get(term));
+		}
+		else
+		{
+			GdlFunction function = (GdlFunction) term;
+			out.writeByte(FUNCTION_TERM);
+			out.writeInt(symbolIndices.get(function.getName()));
+			out.writeInt(function.arity());
+			for (int i = 0; i < function.arity(); i++)
+			{
+				writeTerm(function.get(i), symbolIndices, out);
+			}
+		}
+	}
+
+	private static GdlSentence readSentence(ByteBuffer buffer, GdlConstant[] symbols) throws IOException
+	{
+		GdlConstant name = symbols[buffer.getInt()];
+		int arity = buffer.getInt();
+		if (arity == PROPOSITION_ARITY)
+		{
+			return GdlPool.getProposition(name);
+		}
+		return GdlPool.getRelation(name, readTerms(buffer, symbols, arity));
+	}
+
+	private static List<GdlTerm> readTerms(ByteBuffer buffer, GdlConstant[] symbols, int arity) throws IOException
+	{
+		List<GdlTerm> terms = new ArrayList<GdlTerm>(arity);
+		for (int i = 0; i < arity; i++)
+		{
+			byte tag = buffer.get();
+			if (tag == CONSTANT_TERM)
+			{
+				terms.add(symbols[buffer.getInt()]);
+			}
+			else if (tag == FUNCTION_TERM)
+			{
+				GdlConstant name = symbols[buffer.getInt()];
+				int functionArity = buffer.getInt();
+				terms.add(GdlPool.getFunction(name, readTerms(buffer, symbols, functionArity)));
+			}
+			else
+			{
+				throw new IOException("Unknown term type " + tag);
+			}
+		}
+		return terms;
+	}
+}
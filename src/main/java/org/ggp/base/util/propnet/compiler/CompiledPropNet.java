@@ -0,0 +1,233 @@
+package org.ggp.base.util.propnet.compiler;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+
+/**
+ * CompiledPropNet is the superclass of the classes generated by the
+ * {@link PropNetCompiler}. A generated subclass implements the abstract
+ * compute methods as straight-line code, one assignment per component, so
+ * that evaluating the network involves no dispatch on component types and no
+ * indirection through the input arrays of the {@link FlatPropNet}.
+ *
+ * The network is evaluated lazily, one cone at a time: marking a state only
+ * unpacks the base proposition bits, and the components that the terminal,
+ * legal, goal and next propositions depend on are only computed when they are
+ * first asked for in that state.
+ *
+ * Values are indexed by component index in the underlying {@link FlatPropNet}.
+ * Instances are not thread-safe; use {@link #copy()} to get an independent
+ * instance of the same compiled class.
+ */
+public abstract class CompiledPropNet
+{
+	/** The current value of every component, indexed by component index. */
+	protected boolean[] v;
+
+	private FlatPropNet propNet;
+	private int[] inputs;
+	private int[] baseComponents;
+	private int[] transitionComponents;
+
+	private boolean terminalComputed;
+	private boolean legalsComputed;
+	private boolean goalsComputed;
+	private boolean nextComputed;
+
+	final void initialize(FlatPropNet propNet)
+	{
+		this.propNet = propNet;
+		this.inputs = propNet.getInputs();
+		this.baseComponents = propNet.getBaseComponents();
+		this.transitionComponents = propNet.getTransitionComponents();
+		this.v = propNet.createValueArray();
+	}
+
+	/**
+	 * Returns a new instance of the same compiled class, with its own values.
+	 */
+	public CompiledPropNet copy()
+	{
+		try {
+			CompiledPropNet copy = getClass().getDeclaredConstructor().newInstance();
+			copy.initialize(propNet);
+			return copy;
+		} catch (InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public FlatPropNet getPropNet()
+	{
+		return propNet;
+	}
+
+	/**
+	 * Returns the number of longs needed to hold one bit per base proposition.
+	 */
+	public int getStateLength()
+	{
+		return (baseComponents.length + 63) >>> 6;
+	}
+
+	/**
+	 * Sets the base propositions from a bit vector, where bit i is the value
+	 * of the base proposition with base index i. Nothing is evaluated yet.
+	 */
+	public final void setState(long[] bases)
+	{
+		boolean[] v = this.v;
+		int[] baseComponents = this.baseComponents;
+		for (int i = 0; i < baseComponents.length; i++) {
+			v[baseComponents[i]] = (bases[i >>> 6] & (1L << i)) != 0;
+		}
+		invalidate();
+	}
+
+	/**
+	 * Sets the value of an input proposition. Inputs only affect the
+	 * move-dependent part of the transition cone, so the cones computed for the
+	 * current state remain valid.
+	 */
+	public final void setInput(int component, boolean value)
+	{
+		v[component] = value;
+	}
+
+	/**
+	 * Computes the initial state, by evaluating the transitions with the init
+	 * proposition true and every base proposition false, and writes it as a
+	 * bit vector into initial.
+	 */
+	public final void computeInitialState(long[] initial)
+	{
+		int init = propNet.getInitComponent();
+		setState(new long[getStateLength()]);
+		if (init >= 0) {
+			v[init] = true;
+		}
+		computeNextState(initial);
+		if (init >= 0) {
+			v[init] = false;
+		}
+		invalidate();
+	}
+
+	private void invalidate()
+	{
+		terminalComputed = false;
+		legalsComputed = false;
+		goalsComputed = false;
+		nextComputed = false;
+	}
+
+	/**
+	 * Returns the value of the given component. The cone it belongs to must
+	 * have been computed.
+	 */
+	public final boolean getValue(int component)
+	{
+		return v[component];
+	}
+
+	public final void ensureTerminal()
+	{
+		if (!terminalComputed) {
+			computeTerminal();
+			terminalComputed = true;
+		}
+	}
+
+	public final void ensureLegals()
+	{
+		if (!legalsComputed) {
+			computeLegals();
+			legalsComputed = true;
+		}
+	}
+
+	public final void ensureGoals()
+	{
+		if (!goalsComputed) {
+			computeGoals();
+			goalsComputed = true;
+		}
+	}
+
+	/**
+	 * Computes the next state given the current state and input propositions,
+	 * and writes it as a bit vector into next. The part of the transition cone
+	 * that does not depend on the moves is only computed once per state.
+	 */
+	public final void computeNextState(long[] next)
+	{
+		if (!nextComputed) {
+			computeNextFromState();
+			nextComputed = true;
+		}
+		computeNextFromMoves();
+		Arrays.fill(next, 0L);
+		boolean[] v = this.v;
+		int[] transitionComponents = this.transitionComponents;
+		for (int i = 0; i < transitionComponents.length; i++) {
+			if (v[transitionComponents[i]]) {
+				next[i >>> 6] |= 1L << i;
+			}
+		}
+	}
+
+	/** Computes the components the terminal proposition depends on. */
+	protected abstract void computeTerminal();
+
+	/** Computes the components the legal propositions depend on. */
+	protected abstract void computeLegals();
+
+	/** Computes the components the goal propositions depend on. */
+	protected abstract void computeGoals();
+
+	/** Computes the move-independent components the transitions depend on. */
+	protected abstract void computeNextFromState();
+
+	/** Computes the move-dependent components the transitions depend on. */
+	protected abstract void computeNextFromMoves();
+
+	/**
+	 * Conjunction of the inputs in [start, end) of the input array. Used by
+	 * the generated code for gates whose fan-in is too large to inline.
+	 */
+	protected final boolean andOf(int start, int end)
+	{
+		boolean[] v = this.v;
+		int[] inputs = this.inputs;
+		for (int j = start; j < end; j++) {
+			if (!v[inputs[j]]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Disjunction of the inputs in [start, end) of the input array. Used by
+	 * the generated code for gates whose fan-in is too large to inline.
+	 */
+	protected final boolean orOf(int start, int end)
+	{
+		boolean[] v = this.v;
+		int[] inputs = this.inputs;
+		for (int j = start; j < end; j++) {
+			if (v[inputs[j]]) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
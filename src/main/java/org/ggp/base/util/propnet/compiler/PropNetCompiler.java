@@ -0,0 +1,317 @@
+package org.ggp.base.util.propnet.compiler;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+
+/**
+ * PropNetCompiler turns a {@link FlatPropNet} into bytecode. It generates a
+ * subclass of {@link CompiledPropNet} in which every component in the cones of
+ * the terminal, legal, goal and transition propositions is computed by its own
+ * assignment statement, in topological order, for example:
+ *
+ * <pre>
+ *     v[12] = v[3] &amp;&amp; v[7];
+ *     v[13] = !v[12];
+ * </pre>
+ *
+ * HotSpot refuses to JIT methods whose bytecode is larger than 8000 bytes, and
+ * a propnet easily has tens of thousands of components. The straight-line code
+ * is therefore split into chunk methods that each stay well below that limit,
+ * and the compute methods of {@link CompiledPropNet} just call the chunks in
+ * order. This way the generated code gets compiled whether or not the player
+ * runs with -XX:-DontCompileHugeMethods.
+ *
+ * The class is generated with javassist and defined in its own class loader,
+ * so it can be garbage collected along with the propnet once it is no longer
+ * used.
+ */
+public final class PropNetCompiler
+{
+	/** The bytecode budget of a single chunk method, well under HotSpot's 8000. */
+	private static final int MAX_CHUNK_BYTES = 6000;
+	/** Gates with more inputs than this call a loop instead of being inlined. */
+	private static final int MAX_INLINED_INPUTS = 16;
+
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	private final FlatPropNet propNet;
+
+	private PropNetCompiler(FlatPropNet propNet)
+	{
+		this.propNet = propNet;
+	}
+
+	/**
+	 * Compiles the given propnet, and returns a fresh instance of the
+	 * generated class.
+	 */
+	public static CompiledPropNet compile(FlatPropNet propNet)
+	{
+		long startTime = System.currentTimeMillis();
+		CompiledPropNet compiled = new PropNetCompiler(propNet).generate();
+		compiled.initialize(propNet);
+		GamerLogger.log("StateMachine", "Compiled propnet with " + propNet.getNumComponents() +
+				" components in " + (System.currentTimeMillis() - startTime) + " ms.");
+		return compiled;
+	}
+
+	private CompiledPropNet generate()
+	{
+		String className = CompiledPropNet.class.getName() + "$Generated" + classCounter.incrementAndGet();
+		ClassPool pool = new ClassPool(true);
+		pool.insertClassPath(new ClassClassPath(CompiledPropNet.class));
+		CtClass ctClass = pool.makeClass(className);
+		try {
+			ctClass.setModifiers(Modifier.PUBLIC | Modifier.FINAL);
+			ctClass.setSuperclass(pool.get(CompiledPropNet.class.getName()));
+			ctClass.addConstructor(CtNewConstructor.defaultConstructor(ctClass));
+
+			boolean[] moveDependent = new boolean[propNet.getNumComponents()];
+			for (int c : propNet.getMoveOrder()) {
+				moveDependent[c] = true;
+			}
+
+			int terminal = propNet.getTerminalComponent();
+			int numRoles = propNet.getRoles().size();
+			int[][] legals = new int[numRoles][];
+			int[][] goals = new int[numRoles][];
+			for (int r = 0; r < numRoles; r++) {
+				legals[r] = propNet.getLegalComponents(r);
+				goals[r] = propNet.getGoalComponents(r);
+			}
+			addComputeMethod(ctClass, "computeTerminal", cone(terminal >= 0 ? new int[] { terminal } : new int[0]));
+			addComputeMethod(ctClass, "computeLegals", cone(allOf(legals)));
+			addComputeMethod(ctClass, "computeGoals", cone(allOf(goals)));
+
+			int[] nextCone = cone(propNet.getTransitionComponents());
+			addComputeMethod(ctClass, "computeNextFromState", filter(nextCone, moveDependent, false));
+			addComputeMethod(ctClass, "computeNextFromMoves", filter(nextCone, moveDependent, true));
+
+			byte[] bytecode = ctClass.toBytecode();
+			Class<?> generated = new GeneratedClassLoader(CompiledPropNet.class.getClassLoader()).define(className, bytecode);
+			return (CompiledPropNet) generated.getDeclaredConstructor().newInstance();
+		} catch (NotFoundException e) {
+			throw new IllegalStateException("Could not compile propnet", e);
+		} catch (CannotCompileException e) {
+			throw new IllegalStateException("Could not compile propnet", e);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not compile propnet", e);
+		} catch (InstantiationException e) {
+			throw new IllegalStateException("Could not compile propnet", e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Could not compile propnet", e);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("Could not compile propnet", e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException("Could not compile propnet", e);
+		} finally {
+			ctClass.detach();
+		}
+	}
+
+	/**
+	 * Adds the named compute method, which calls one chunk method after another
+	 * to evaluate the given components in order.
+	 */
+	private void addComputeMethod(CtClass ctClass, String name, int[] components) throws CannotCompileException
+	{
+		List<String> chunks = new ArrayList<String>();
+		StringBuilder body = new StringBuilder();
+		int bytes = 0;
+		for (int c : components) {
+			String statement = statementFor(c);
+			if (statement == null) {
+				continue;
+			}
+			int cost = estimateBytes(c);
+			if (bytes > 0 && bytes + cost > MAX_CHUNK_BYTES) {
+				chunks.add(addChunkMethod(ctClass, name, chunks.size(), body));
+				body.setLength(0);
+				bytes = 0;
+			}
+			body.append(statement).append('\n');
+			bytes += cost;
+		}
+		if (bytes > 0) {
+			chunks.add(addChunkMethod(ctClass, name, chunks.size(), body));
+		}
+
+		StringBuilder dispatcher = new StringBuilder("protected void " + name + "() {\n");
+		for (String chunk : chunks) {
+			dispatcher.append(chunk).append("();\n");
+		}
+		dispatcher.append("}");
+		ctClass.addMethod(CtNewMethod.make(dispatcher.toString(), ctClass));
+	}
+
+	private static String addChunkMethod(CtClass ctClass, String name, int index, StringBuilder body) throws CannotCompileException
+	{
+		String chunkName = name + "$" + index;
+		String source = "private void " + chunkName + "() {\nboolean[] v = this.v;\n" + body + "}";
+		ctClass.addMethod(CtNewMethod.make(source, ctClass));
+		return chunkName;
+	}
+
+	/**
+	 * Returns the assignment computing the given component, or null if the
+	 * component is a source or a constant and is never computed.
+	 */
+	private String statementFor(int c)
+	{
+		int[] inputOffsets = propNet.getInputOffsets();
+		int[] inputs = propNet.getInputs();
+		int start = inputOffsets[c];
+		int end = inputOffsets[c + 1];
+		switch (propNet.getType(c)) {
+		case FlatPropNet.VIEW:
+		case FlatPropNet.TRANSITION:
+			return "v[" + c + "] = v[" + inputs[start] + "];";
+		case FlatPropNet.NOT:
+			return "v[" + c + "] = !v[" + inputs[start] + "];";
+		case FlatPropNet.AND:
+			return gate(c, start, end, "&&", "true", "andOf");
+		case FlatPropNet.OR:
+			return gate(c, start, end, "||", "false", "orOf");
+		default:
+			return null;
+		}
+	}
+
+	private String gate(int c, int start, int end, String operator, String empty, String loop)
+	{
+		if (start == end) {
+			return "v[" + c + "] = " + empty + ";";
+		}
+		if (end - start > MAX_INLINED_INPUTS) {
+			return "v[" + c + "] = " + loop + "(" + start + ", " + end + ");";
+		}
+		int[] inputs = propNet.getInputs();
+		StringBuilder statement = new StringBuilder("v[" + c + "] = ");
+		for (int j = start; j < end; j++) {
+			if (j > start) {
+				statement.append(' ').append(operator).append(' ');
+			}
+			statement.append("v[").append(inputs[j]).append(']');
+		}
+		return statement.append(';').toString();
+	}
+
+	/**
+	 * A generous estimate of the bytecode size of the statement computing the
+	 * given component: loading the array and an index takes up to 4 bytes, an
+	 * element load or store 1 more, and a short-circuit branch 3.
+	 */
+	private int estimateBytes(int c)
+	{
+		int[] inputOffsets = propNet.getInputOffsets();
+		int numInputs = inputOffsets[c + 1] - inputOffsets[c];
+		if (numInputs > MAX_INLINED_INPUTS) {
+			return 24;
+		}
+		return 16 + 9 * numInputs;
+	}
+
+	/**
+	 * Returns the components (other than sources and constants) that the
+	 * given targets depend on, including the targets, in topological order.
+	 * Since component indices are a topological order, that's ascending order.
+	 */
+	private int[] cone(int[] targets)
+	{
+		int[] inputOffsets = propNet.getInputOffsets();
+		int[] inputs = propNet.getInputs();
+		boolean[] inCone = new boolean[propNet.getNumComponents()];
+		int[] stack = new int[propNet.getNumComponents()];
+		int size = 0;
+		for (int t : targets) {
+			if (!inCone[t]) {
+				inCone[t] = true;
+				stack[size++] = t;
+			}
+		}
+		while (size > 0) {
+			int c = stack[--size];
+			for (int j = inputOffsets[c]; j < inputOffsets[c + 1]; j++) {
+				if (!inCone[inputs[j]]) {
+					inCone[inputs[j]] = true;
+					stack[size++] = inputs[j];
+				}
+			}
+		}
+		int count = 0;
+		for (boolean b : inCone) {
+			if (b) {
+				count++;
+			}
+		}
+		int[] cone = new int[count];
+		count = 0;
+		for (int c = 0; c < inCone.length; c++) {
+			if (inCone[c]) {
+				cone[count++] = c;
+			}
+		}
+		return cone;
+	}
+
+	private static int[] filter(int[] components, boolean[] flags, boolean keep)
+	{
+		int count = 0;
+		for (int c : components) {
+			if (flags[c] == keep) {
+				count++;
+			}
+		}
+		int[] filtered = new int[count];
+		count = 0;
+		for (int c : components) {
+			if (flags[c] == keep) {
+				filtered[count++] = c;
+			}
+		}
+		return filtered;
+	}
+
+	private static int[] allOf(int[][] arrays)
+	{
+		int count = 0;
+		for (int[] array : arrays) {
+			count += array.length;
+		}
+		int[] all = new int[count];
+		count = 0;
+		for (int[] array : arrays) {
+			System.arraycopy(array, 0, all, count, array.length);
+			count += array.length;
+		}
+		return all;
+	}
+
+	private static final class GeneratedClassLoader extends ClassLoader
+	{
+		GeneratedClassLoader(ClassLoader parent)
+		{
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytecode)
+		{
+			return defineClass(name, bytecode, 0, bytecode.length);
+		}
+	}
+}
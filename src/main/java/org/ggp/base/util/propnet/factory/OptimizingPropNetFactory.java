@@ -12,6 +12,13 @@ import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.ggp.base.util.Pair;
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
@@ -33,6 +40,7 @@ import org.ggp.base.util.gdl.model.SentenceDomainModel;
 import org.ggp.base.util.gdl.model.SentenceDomainModelFactory;
 import org.ggp.base.util.gdl.model.SentenceDomainModelOptimizer;
 import org.ggp.base.util.gdl.model.SentenceForm;
+import org.ggp.base.util.gdl.model.SentenceFormDomain;
 import org.ggp.base.util.gdl.model.SentenceForms;
 import org.ggp.base.util.gdl.model.SentenceModelUtils;
 import org.ggp.base.util.gdl.model.assignments.AssignmentIterator;
@@ -48,6 +56,8 @@ import org.ggp.base.util.gdl.transforms.DeORer;
 import org.ggp.base.util.gdl.transforms.GdlCleaner;
 import org.ggp.base.util.gdl.transforms.Relationizer;
 import org.ggp.base.util.gdl.transforms.VariableConstrainer;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.analysis.LatchAnalysis;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
 import org.ggp.base.util.propnet.architecture.components.And;
@@ -116,10 +126,46 @@ public class OptimizingPropNetFactory {
 	}
 
 	public static PropNet create(List<Gdl> description, boolean verbose) throws InterruptedException {
-		description = sanitizeDistinct(description);
-		//System.out.println("Building propnet...");
+		return create(description, verbose, Runtime.getRuntime().availableProcessors());
+	}
 
+	/**
+	 * Creates a PropNet for the game with the given description, grounding
+	 * the sentence forms on the given number of threads.
+	 *
+	 * Sentence forms are grounded one stratum at a time, where a stratum is a
+	 * set of forms none of which depends on another. The forms of a stratum
+	 * are grounded concurrently: working out which assignments of each rule
+	 * produce a component only reads what earlier strata built, while all
+	 * the changes to the connections between components are made under a
+	 * single lock.
+	 */
+	public static PropNet create(List<Gdl> description, boolean verbose, int numThreads) throws InterruptedException {
+		try {
+			return create(description, verbose, numThreads, PropNetBudget.UNLIMITED);
+		} catch(PropNetBudgetExceededException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Creates a PropNet for the game with the given description, giving up
+	 * as soon as it's clear the build can't be done within the budget.
+	 *
+	 * @throws PropNetBudgetExceededException if the estimated or actual size
+	 * of the propnet is over the budget, or the time limit runs out.
+	 */
+	public static PropNet create(List<Gdl> description, PropNetBudget budget) throws InterruptedException, PropNetBudgetExceededException {
+		return create(description, false, Runtime.getRuntime().availableProcessors(), budget);
+	}
+
+	public static PropNet create(List<Gdl> description, boolean verbose, int numThreads, PropNetBudget budget) throws InterruptedException, PropNetBudgetExceededException {
 		long startTime = System.currentTimeMillis();
+		long deadline = budget.getDeadline(startTime);
+		boolean reportProgress = (budget != PropNetBudget.UNLIMITED);
+
+		description = sanitizeDistinct(description);
+		//System.out.println("Building propnet...");
 
 		description = GdlCleaner.run(description);
 		description = DeORer.run(description);
@@ -141,12 +187,19 @@ public class OptimizingPropNetFactory {
 		//could be useful.
 		model = SentenceDomainModelOptimizer.restrictDomainsToUsefulValues(model);
 
+		long estimatedSize = estimateSize(model);
+		if(reportProgress)
+			GamerLogger.log("StateMachine", "Building propnet with " + budget + "; estimated at most " + estimatedSize + " propositions");
+		if(estimatedSize > budget.getMaxPropositions())
+			throw new PropNetBudgetExceededException("Propnet is estimated at " + estimatedSize + " propositions, over the budget of " + budget.getMaxPropositions());
+
 		if(verbose)
 			System.out.println("Setting constants...");
 
 		ConstantChecker constantChecker = ConstantCheckerFactory.createWithForwardChaining(model);
 		if(verbose)
 			System.out.println("Done setting constants");
+		checkBudget(budget, deadline, 0);
 
 		Set<String> sentenceFormNames = SentenceForms.getNames(model.getSentenceForms());
 		boolean usingBase = sentenceFormNames.contains("base");
@@ -168,57 +221,26 @@ public class OptimizingPropNetFactory {
 			System.out.println("done");
 
 		List<Role> roles = Role.computeRoles(description);
-		Map<GdlSentence, Component> components = new HashMap<GdlSentence, Component>();
-		Map<GdlSentence, Component> negations = new HashMap<GdlSentence, Component>();
+		//The maps are shared by the threads grounding the forms of a stratum.
+		Map<GdlSentence, Component> components = new ConcurrentHashMap<GdlSentence, Component>();
+		Map<GdlSentence, Component> negations = new ConcurrentHashMap<GdlSentence, Component>();
 		Constant trueComponent = new Constant(true);
 		Constant falseComponent = new Constant(false);
-		Map<SentenceForm, FunctionInfo> functionInfoMap = new HashMap<SentenceForm, FunctionInfo>();
-		Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
-		for(SentenceForm form : topologicalOrdering) {
-			ConcurrencyUtils.checkForInterruption();
-
-			if(verbose) {
-				System.out.print("Adding sentence form " + form);
-				System.out.flush();
-			}
-			if(constantChecker.isConstantForm(form)) {
-				if(verbose)
-					System.out.println(" (constant)");
-				//Only add it if it's important
-				if(form.getName().equals(LEGAL)
-						|| form.getName().equals(GOAL)
-						|| form.getName().equals(INIT)) {
-					//Add it
-					for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
-						Proposition trueProp = new Proposition(trueSentence);
-						trueProp.addInput(trueComponent);
-						trueComponent.addOutput(trueProp);
-						components.put(trueSentence, trueComponent);
-					}
-				}
-
-				if(verbose)
-					System.out.println("Checking whether " + form + " is a functional constant...");
-				addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
-				addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
-
-				continue;
+		Map<SentenceForm, FunctionInfo> functionInfoMap = new ConcurrentHashMap<SentenceForm, FunctionInfo>();
+		Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new ConcurrentHashMap<SentenceForm, Collection<GdlSentence>>();
+		List<List<SentenceForm>> strata = getStrata(topologicalOrdering, dependencyGraph, usingBase, usingInput);
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			for(int i = 0; i < strata.size(); i++) {
+				ConcurrencyUtils.checkForInterruption();
+				addStratum(strata.get(i), model, components, negations, trueComponent, falseComponent, usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues, pool, deadline, verbose);
+				checkBudget(budget, deadline, components.size());
+				//Report every tenth of the way through the strata
+				if(reportProgress && (i + 1) * 10 / strata.size() > i * 10 / strata.size())
+					GamerLogger.log("StateMachine", "Grounded " + (i + 1) + " of " + strata.size() + " strata: " + components.size() + " propositions after " + (System.currentTimeMillis() - startTime) + " ms");
 			}
-			if(verbose)
-				System.out.println();
-			//TODO: Adjust "recursive forms" appropriately
-			//Add a temporary sentence form thingy? ...
-			Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
-			Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-			addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues);
-			//TODO: Pass these over groups of multiple sentence forms
-			if(verbose && !temporaryComponents.isEmpty())
-				System.out.println("Processing temporary components...");
-			processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
-			addFormToCompletedValues(form, completedSentenceFormValues, components);
-			//if(verbose)
-				//TODO: Add this, but with the correct total number of components (not just Propositions)
-				//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+		} finally {
+			pool.shutdownNow();
 		}
 		//Connect "next" to "true"
 		if(verbose)
@@ -230,6 +252,9 @@ public class OptimizingPropNetFactory {
 		setUpInit(components, trueComponent, falseComponent);
 		//Now we can safely...
 		removeUselessBasePropositions(components, negations, trueComponent, falseComponent);
+		//The remaining passes don't add propositions, so only the time can run out
+		int numPropositions = components.size();
+		checkBudget(budget, deadline, numPropositions);
 		if(verbose)
 			System.out.println("Creating component set...");
 		Set<Component> componentSet = new HashSet<Component>(components.values());
@@ -238,20 +263,128 @@ public class OptimizingPropNetFactory {
 		negations = null;
 		completeComponentSet(componentSet);
 		ConcurrencyUtils.checkForInterruption();
+		checkBudget(budget, deadline, numPropositions);
 		if(verbose)
 			System.out.println("Initializing propnet object...");
 		//Make it look the same as the PropNetFactory results, until we decide
 		//how we want it to look
 		normalizePropositions(componentSet);
+		checkBudget(budget, deadline, numPropositions);
 		PropNet propnet = new PropNet(roles, componentSet);
+		checkBudget(budget, deadline, numPropositions);
+		if(verbose)
+			System.out.println("Removing latched base propositions...");
+		propnet = removeLatchedBasePropositions(propnet, roles, deadline);
+		checkBudget(budget, deadline, numPropositions);
 		if(verbose) {
 			System.out.println("Done setting up propnet; took " + (System.currentTimeMillis() - startTime) + "ms, has " + componentSet.size() + " components and " + propnet.getNumLinks() + " links");
 			System.out.println("Propnet has " +propnet.getNumAnds()+" ands; "+propnet.getNumOrs()+" ors; "+propnet.getNumNots()+" nots");
 		}
+		if(reportProgress)
+			GamerLogger.log("StateMachine", "Built propnet with " + componentSet.size() + " components in " + (System.currentTimeMillis() - startTime) + " ms");
 		//System.out.println("...done");
 		return propnet;
 	}
 
+	/**
+	 * Replaces the base propositions that have the same value in every state,
+	 * as proved by the {@link LatchAnalysis}, with constants, and optimizes
+	 * away the logic that depends on them. Bases that are never true are
+	 * removed altogether. Bases that are always true stay in the state, so
+	 * that states still match those of other state machines, but nothing
+	 * reads them any more.
+	 *
+	 * The analysis stops testing bases at the deadline, in which case the
+	 * propnet is left as it is, since the caller is about to give up on it.
+	 */
+	private static PropNet removeLatchedBasePropositions(PropNet propnet, List<Role> roles, long deadline) throws InterruptedException {
+		LatchAnalysis latches = LatchAnalysis.analyze(propnet, deadline);
+		if(!latches.isComplete())
+			return propnet;
+		Set<GdlSentence> neverTrue = latches.getNeverTrueBases();
+		Set<GdlSentence> alwaysTrue = latches.getAlwaysTrueBases();
+		if(neverTrue.isEmpty() && alwaysTrue.isEmpty())
+			return propnet;
+
+		Constant trueComponent = new Constant(true);
+		Constant falseComponent = new Constant(false);
+		propnet.addComponent(trueComponent);
+		propnet.addComponent(falseComponent);
+		for(GdlSentence name : neverTrue) {
+			Proposition base = propnet.getBasePropositions().get(name);
+			propnet.removeComponent(base.getSingleInput());
+			base.addInput(falseComponent);
+			falseComponent.addOutput(base);
+		}
+		for(GdlSentence name : alwaysTrue) {
+			Proposition base = propnet.getBasePropositions().get(name);
+			for(Component output : Lists.newArrayList(base.getOutputs())) {
+				output.removeInput(base);
+				base.removeOutput(output);
+				output.addInput(trueComponent);
+				trueComponent.addOutput(output);
+			}
+		}
+		optimizeAwayTrueAndFalse(propnet, trueComponent, falseComponent);
+		removeDeadGates(propnet);
+		//Rebuild the indices, since bases have gone
+		return new PropNet(roles, propnet.getComponents());
+	}
+
+	/**
+	 * Removes the gates whose values aren't used by anything.
+	 */
+	private static void removeDeadGates(PropNet propnet) {
+		boolean changedSomething = true;
+		while(changedSomething) {
+			changedSomething = false;
+			for(Component component : Lists.newArrayList(propnet.getComponents())) {
+				if((component instanceof And || component instanceof Or || component instanceof Not)
+						&& component.getOutputs().isEmpty()) {
+					propnet.removeComponent(component);
+					changedSomething = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Estimates the number of propositions in the propnet of the given model,
+	 * before grounding anything: every sentence of a form can take any
+	 * combination of the values in the domains of its slots. This is an
+	 * upper bound on the number of sentences, rather than on the number of
+	 * components, since the conjunctions grounded for each rule depend on how
+	 * the rule is written.
+	 */
+	public static long estimateSize(SentenceDomainModel model) {
+		long total = 0;
+		for(SentenceForm form : model.getSentenceForms()) {
+			SentenceFormDomain domain = model.getDomain(form);
+			long size = 1;
+			for(int i = 0; i < form.getTupleSize(); i++) {
+				size = saturatedMultiply(size, domain.getDomainForSlot(i).size());
+			}
+			total = (size > Long.MAX_VALUE - total) ? Long.MAX_VALUE : total + size;
+		}
+		return total;
+	}
+
+	private static long saturatedMultiply(long a, long b) {
+		if(b != 0 && a > Long.MAX_VALUE / b) {
+			return Long.MAX_VALUE;
+		}
+		return a * b;
+	}
+
+	private static void checkBudget(PropNetBudget budget, long deadline, int numPropositions) throws PropNetBudgetExceededException {
+		if(numPropositions > budget.getMaxPropositions()) {
+			throw new PropNetBudgetExceededException("Propnet has grown to " + numPropositions + " propositions, over the budget of " + budget.getMaxPropositions());
+		}
+		if(System.currentTimeMillis() > deadline) {
+			throw new PropNetBudgetExceededException("Propnet build ran out of its " + budget.getTimeLimit() + " ms");
+		}
+	}
+
 	/*
 	public static IIPropNet createII(List<Gdl> description, boolean verbose) throws InterruptedException {
 		//System.out.println("Building propnet...");
@@ -393,6 +526,172 @@ public class OptimizingPropNetFactory {
 
 
 
+	/**
+	 * Groups the topologically ordered sentence forms into strata. Every form
+	 * goes into the stratum after the last one containing a form it depends
+	 * on, or has to wait for in the topological ordering.
+	 */
+	private static List<List<SentenceForm>> getStrata(List<SentenceForm> topologicalOrdering,
+			Multimap<SentenceForm, SentenceForm> dependencyGraph, boolean usingBase, boolean usingInput) {
+		Map<SentenceForm, Integer> levels = new HashMap<SentenceForm, Integer>();
+		List<List<SentenceForm>> strata = new ArrayList<List<SentenceForm>>();
+		for(SentenceForm form : topologicalOrdering) {
+			List<SentenceForm> prerequisites = new ArrayList<SentenceForm>(dependencyGraph.get(form));
+			if(usingBase && (form.getName().equals(TRUE) || form.getName().equals(NEXT) || form.getName().equals(INIT))) {
+				prerequisites.add(form.withName(BASE));
+			}
+			if(usingInput && (form.getName().equals(DOES) || form.getName().equals(LEGAL))) {
+				prerequisites.add(form.withName(INPUT));
+			}
+			int level = 0;
+			for(SentenceForm prerequisite : prerequisites) {
+				Integer prerequisiteLevel = levels.get(prerequisite);
+				if(prerequisiteLevel != null && !prerequisite.equals(form)) {
+					level = Math.max(level, prerequisiteLevel + 1);
+				}
+			}
+			levels.put(form, level);
+			while(strata.size() <= level) {
+				strata.add(new ArrayList<SentenceForm>());
+			}
+			strata.get(level).add(form);
+		}
+		return strata;
+	}
+
+	/**
+	 * Adds the components for all the sentence forms in a stratum. The forms
+	 * are grounded concurrently. The temporary components of recursive forms
+	 * are then put back one form at a time, since that reconnects and
+	 * optimizes parts of the whole network.
+	 */
+	private static void addStratum(List<SentenceForm> stratum, final SentenceDomainModel model,
+			final Map<GdlSentence, Component> components,
+			final Map<GdlSentence, Component> negations,
+			final Constant trueComponent, final Constant falseComponent,
+			final boolean usingBase, final boolean usingInput,
+			final Map<SentenceForm, FunctionInfo> functionInfoMap, final ConstantChecker constantChecker,
+			final Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			ForkJoinPool pool, long deadline, final boolean verbose) throws InterruptedException, PropNetBudgetExceededException {
+		final Object lock = new Object();
+		List<Callable<Pair<Map<GdlSentence, Component>, Map<GdlSentence, Component>>>> groundingTasks = Lists.newArrayList();
+		for(final SentenceForm form : stratum) {
+			groundingTasks.add(new Callable<Pair<Map<GdlSentence, Component>, Map<GdlSentence, Component>>>() {
+				@Override
+				public Pair<Map<GdlSentence, Component>, Map<GdlSentence, Component>> call() throws InterruptedException {
+					return groundSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues, lock, verbose);
+				}
+			});
+		}
+		List<Pair<Map<GdlSentence, Component>, Map<GdlSentence, Component>>> temporaries = invokeAll(pool, groundingTasks, deadline);
+
+		List<Callable<Void>> completionTasks = Lists.newArrayList();
+		for(int i = 0; i < stratum.size(); i++) {
+			final SentenceForm form = stratum.get(i);
+			Pair<Map<GdlSentence, Component>, Map<GdlSentence, Component>> temporary = temporaries.get(i);
+			if(temporary == null) {
+				//Constant forms are already complete
+				continue;
+			}
+			if(verbose && !temporary.left.isEmpty())
+				System.out.println("Processing temporary components for " + form + "...");
+			processTemporaryComponents(temporary.left, temporary.right, components, negations, trueComponent, falseComponent);
+			completionTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					addFormToCompletedValues(form, completedSentenceFormValues, components);
+					return null;
+				}
+			});
+		}
+		invokeAll(pool, completionTasks, deadline);
+	}
+
+	/**
+	 * Adds the components for a single sentence form. Returns the temporary
+	 * components and negations set up for its recursive rules, or null if
+	 * the form is constant.
+	 */
+	private static Pair<Map<GdlSentence, Component>, Map<GdlSentence, Component>> groundSentenceForm(SentenceForm form, SentenceDomainModel model,
+			Map<GdlSentence, Component> components,
+			Map<GdlSentence, Component> negations,
+			Constant trueComponent, Constant falseComponent,
+			boolean usingBase, boolean usingInput,
+			Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
+			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			Object lock, boolean verbose) throws InterruptedException {
+		ConcurrencyUtils.checkForInterruption();
+
+		if(verbose)
+			System.out.println("Adding sentence form " + form);
+		if(constantChecker.isConstantForm(form)) {
+			//Only add it if it's important
+			if(form.getName().equals(LEGAL)
+					|| form.getName().equals(GOAL)
+					|| form.getName().equals(INIT)) {
+				//Add it
+				for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
+					Proposition trueProp = new Proposition(trueSentence);
+					trueProp.addInput(trueComponent);
+					synchronized (lock) {
+						trueComponent.addOutput(trueProp);
+					}
+					components.put(trueSentence, trueComponent);
+				}
+			}
+
+			addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
+			addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+			return null;
+		}
+		//TODO: Adjust "recursive forms" appropriately
+		//Add a temporary sentence form thingy? ...
+		Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+		Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+		addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues, lock);
+		return Pair.of(temporaryComponents, temporaryNegations);
+	}
+
+	/**
+	 * Runs the tasks on the pool and returns their results, in order. If the
+	 * calling thread is interrupted, or the deadline passes, the tasks are
+	 * cancelled.
+	 */
+	private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks, long deadline) throws InterruptedException, PropNetBudgetExceededException {
+		List<ForkJoinTask<T>> futures = new ArrayList<ForkJoinTask<T>>(tasks.size());
+		for(Callable<T> task : tasks) {
+			futures.add(pool.submit(task));
+		}
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for(ForkJoinTask<T> future : futures) {
+				if(deadline == Long.MAX_VALUE) {
+					results.add(future.get());
+				} else {
+					long remaining = Math.max(0, deadline - System.currentTimeMillis());
+					results.add(future.get(remaining, TimeUnit.MILLISECONDS));
+				}
+			}
+		} catch(TimeoutException e) {
+			throw new PropNetBudgetExceededException("Propnet build ran out of time while grounding");
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			for(ForkJoinTask<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return results;
+	}
+
 	private static void removeUselessBasePropositions(
 			Map<GdlSentence, Component> components, Map<GdlSentence, Component> negations, Constant trueComponent,
 			Constant falseComponent) throws InterruptedException {
@@ -510,10 +809,9 @@ public class OptimizingPropNetFactory {
 				negations.put(sentence, temporaryNegations.get(sentence));
 				//If this follows true/false, will get resolved by the next set of optimizations
 			}
-
-			optimizeAwayTrueAndFalse(components, negations, trueComponent, falseComponent);
-
 		}
+		//Once is enough, since this optimizes until nothing follows from true/false
+		optimizeAwayTrueAndFalse(components, negations, trueComponent, falseComponent);
 	}
 
 	/**
@@ -979,13 +1277,17 @@ public class OptimizingPropNetFactory {
 			Set<SentenceForm> recursionForms,
 			Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
 			Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
-			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
+			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			Object lock) throws InterruptedException {
 		//This is the meat of it (along with the entire Assignments class).
 		//We need to enumerate the possible propositions in the sentence form...
 		//We also need to hook up the sentence form to the inputs that can make it true.
 		//We also try to optimize as we go, which means possibly removing the
 		//proposition if it isn't actually possible, or replacing it with
 		//true/false if it's a constant.
+		//Other forms may be grounded at the same time, so any change to the
+		//connections of a component that isn't our own is made under the lock.
+		//The only components we read are from earlier strata or our own.
 
 		Set<GdlSentence> alwaysTrueSentences = model.getSentencesListedAsTrue(form);
 		Set<GdlRule> rules = model.getRules(form);
@@ -997,7 +1299,9 @@ public class OptimizingPropNetFactory {
 					|| alwaysTrueSentence.getName().equals(GOAL)) {
 				Proposition prop = new Proposition(alwaysTrueSentence);
 				//Attach to true
-				trueComponent.addOutput(prop);
+				synchronized (lock) {
+					trueComponent.addOutput(prop);
+				}
 				prop.addInput(trueComponent);
 				//Still want the same components;
 				//we just don't want this to be anonymized
@@ -1029,7 +1333,8 @@ public class OptimizingPropNetFactory {
 			return;
 		}
 
-		Map<GdlSentence, Set<Component>> inputsToOr = new HashMap<GdlSentence, Set<Component>>();
+		//The conjuncts found for each sentence; they get hooked up at the end
+		List<Pair<GdlSentence, List<Component>>> conjunctions = new ArrayList<Pair<GdlSentence, List<Component>>>();
 		for(GdlRule rule : rules) {
 			Assignments assignments = AssignmentsFactory.getAssignmentsForRule(rule, model, functionInfoMap, completedSentenceFormValues);
 
@@ -1137,7 +1442,9 @@ public class OptimizingPropNetFactory {
 							Not not = new Not();
 							//Add positive as input
 							not.addInput(positive);
-							positive.addOutput(not);
+							synchronized (lock) {
+								positive.addOutput(not);
+							}
 							temporaryNegations.put(transformed, not);
 							conj = not;
 						}
@@ -1153,20 +1460,22 @@ public class OptimizingPropNetFactory {
 								continue; //to the next conjunct
 							}
 
-							//Check if we're sharing a component with another sentence with a negation
-							//(i.e. look for "nots" in our outputs and use those instead)
-							Not existingNotOutput = getNotOutput(positive);
-							if(existingNotOutput != null) {
-								componentsToConnect.add(existingNotOutput);
-								negations.put(transformed, existingNotOutput);
-								continue; //to the next conjunct
+							synchronized (lock) {
+								//Another form may have added it in the meantime
+								conj = negations.get(transformed);
+								if(conj == null) {
+									//Check if we're sharing a component with another sentence with a negation
+									//(i.e. look for "nots" in our outputs and use those instead)
+									conj = getNotOutput(positive);
+								}
+								if(conj == null) {
+									Not not = new Not();
+									not.addInput(positive);
+									positive.addOutput(not);
+									conj = not;
+								}
+								negations.put(transformed, conj);
 							}
-
-							Not not = new Not();
-							not.addInput(positive);
-							positive.addOutput(not);
-							negations.put(transformed, not);
-							conj = not;
 						}
 						componentsToConnect.add(conj);
 					} else if(literal instanceof GdlDistinct) {
@@ -1176,14 +1485,9 @@ public class OptimizingPropNetFactory {
 					}
 				}
 				if(!componentsToConnect.contains(null)) {
-					//Connect all the components
-					Proposition andComponent = new Proposition(TEMP);
-
-					andify(componentsToConnect, andComponent, trueComponent);
-					if(!isThisConstant(andComponent, falseComponent)) {
-						if(!inputsToOr.containsKey(sentence))
-							inputsToOr.put(sentence, new HashSet<Component>());
-						inputsToOr.get(sentence).add(andComponent);
+					//Connecting them to false would make the conjunction false
+					if(!componentsToConnect.contains(falseComponent)) {
+						conjunctions.add(Pair.of(sentence, componentsToConnect));
 						//We'll want to make sure at least one of the non-constant
 						//components is changing
 						if(preventDuplicatesFromConstants) {
@@ -1194,6 +1498,43 @@ public class OptimizingPropNetFactory {
 			}
 		}
 
+		synchronized (lock) {
+			addConjunctions(conjunctions, components, trueComponent, falseComponent);
+		}
+
+		//True/does sentences will have none of these rules, but
+		//still need to exist/"float"
+		//We'll do this if we haven't used base/input as a basis
+		if(form.getName().equals(TRUE)
+				|| form.getName().equals(DOES)) {
+			for(GdlSentence sentence : model.getDomain(form)) {
+				ConcurrencyUtils.checkForInterruption();
+
+				Proposition prop = new Proposition(sentence);
+				components.put(sentence, prop);
+			}
+		}
+
+	}
+
+	/**
+	 * Connects each sentence to the conjunctions that can make it true.
+	 */
+	private static void addConjunctions(List<Pair<GdlSentence, List<Component>>> conjunctions,
+			Map<GdlSentence, Component> components,
+			Constant trueComponent, Constant falseComponent) throws InterruptedException {
+		Map<GdlSentence, Set<Component>> inputsToOr = new HashMap<GdlSentence, Set<Component>>();
+		for(Pair<GdlSentence, List<Component>> conjunction : conjunctions) {
+			GdlSentence sentence = conjunction.left;
+			//Connect all the components
+			Proposition andComponent = new Proposition(TEMP);
+
+			andify(conjunction.right, andComponent, trueComponent);
+			if(!inputsToOr.containsKey(sentence))
+				inputsToOr.put(sentence, new HashSet<Component>());
+			inputsToOr.get(sentence).add(andComponent);
+		}
+
 		//At the end, we hook up the conjuncts
 		for(Entry<GdlSentence, Set<Component>> entry : inputsToOr.entrySet()) {
 			ConcurrencyUtils.checkForInterruption();
@@ -1215,20 +1556,6 @@ public class OptimizingPropNetFactory {
 			orify(realInputs, prop, falseComponent);
 			components.put(sentence, prop);
 		}
-
-		//True/does sentences will have none of these rules, but
-		//still need to exist/"float"
-		//We'll do this if we haven't used base/input as a basis
-		if(form.getName().equals(TRUE)
-				|| form.getName().equals(DOES)) {
-			for(GdlSentence sentence : model.getDomain(form)) {
-				ConcurrencyUtils.checkForInterruption();
-
-				Proposition prop = new Proposition(sentence);
-				components.put(sentence, prop);
-			}
-		}
-
 	}
 
 
@@ -0,0 +1,58 @@
+package org.ggp.base.util.propnet.factory;
+
+/**
+ * A PropNetBudget limits how much the {@link OptimizingPropNetFactory} may
+ * spend on building a propnet: a time limit, counted from the start of the
+ * build, and a limit on the number of propositions, which is what the size
+ * of a propnet in memory is dominated by.
+ *
+ * Before grounding anything, the factory estimates the number of
+ * propositions from the domains of the sentence forms, and gives up right
+ * away if the estimate is over the limit. The limits are checked again as
+ * each stratum of sentence forms is grounded, and after each of the passes
+ * that tidy up the grounded propnet, so a build that turns out to be too slow
+ * or too big stops at the next check instead of running into the start clock
+ * or the heap. The latch analysis also stops testing bases at the deadline.
+ */
+public final class PropNetBudget {
+	public static final PropNetBudget UNLIMITED = new PropNetBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+
+	private final long timeLimit;
+	private final long maxPropositions;
+
+	/**
+	 * @param timeLimit the time the build may take, in milliseconds.
+	 * @param maxPropositions the number of propositions the propnet may have.
+	 */
+	public PropNetBudget(long timeLimit, long maxPropositions) {
+		if(timeLimit <= 0 || maxPropositions <= 0) {
+			throw new IllegalArgumentException("Budgets must be positive, but got " + timeLimit + " ms and " + maxPropositions + " propositions");
+		}
+		this.timeLimit = timeLimit;
+		this.maxPropositions = maxPropositions;
+	}
+
+	public long getTimeLimit() {
+		return timeLimit;
+	}
+
+	public long getMaxPropositions() {
+		return maxPropositions;
+	}
+
+	/**
+	 * Returns the time by which a build started at the given time has to be
+	 * done.
+	 */
+	long getDeadline(long startTime) {
+		if(timeLimit > Long.MAX_VALUE - startTime) {
+			return Long.MAX_VALUE;
+		}
+		return startTime + timeLimit;
+	}
+
+	@Override
+	public String toString() {
+		return "PropNetBudget(" + timeLimit + " ms, " + maxPropositions + " propositions)";
+	}
+}
@@ -0,0 +1,12 @@
+package org.ggp.base.util.propnet.factory;
+
+/**
+ * Thrown by the {@link OptimizingPropNetFactory} when building a propnet
+ * would go over its {@link PropNetBudget}. Nothing built so far is kept.
+ */
+@SuppressWarnings("serial")
+public final class PropNetBudgetExceededException extends Exception {
+	public PropNetBudgetExceededException(String message) {
+		super(message);
+	}
+}
@@ -40,20 +40,103 @@ public final class AimaProver implements Prover
 
 	private final ProverCache fixedAnswerCache = ProverCache.createMultiThreadedCache();
 
+	/** The names of the relations whose truth may depend on the "does" facts. */
+	private final Set<GdlConstant> moveDependentNames;
+
 	public AimaProver(List<Gdl> description)
 	{
 		description = DistinctAndNotMover.run(description);
 		knowledgeBase = new KnowledgeBase(Sets.newHashSet(description));
+		moveDependentNames = findMoveDependentNames(description);
+	}
+
+	/**
+	 * Returns the names of "does" and of every relation that has a rule whose
+	 * body refers, directly or not, to "does".
+	 */
+	private static Set<GdlConstant> findMoveDependentNames(List<Gdl> description)
+	{
+		Multimap<GdlConstant, GdlConstant> dependents = HashMultimap.create();
+		for (Gdl gdl : description)
+		{
+			if (gdl instanceof GdlRule)
+			{
+				GdlRule rule = (GdlRule) gdl;
+				for (GdlLiteral literal : rule.getBody())
+				{
+					for (GdlConstant name : getSentenceNames(literal))
+					{
+						dependents.put(name, rule.getHead().getName());
+					}
+				}
+			}
+		}
+
+		Set<GdlConstant> moveDependent = new HashSet<GdlConstant>();
+		LinkedList<GdlConstant> toVisit = new LinkedList<GdlConstant>();
+		toVisit.add(GdlPool.DOES);
+		while (!toVisit.isEmpty())
+		{
+			GdlConstant name = toVisit.removeFirst();
+			if (moveDependent.add(name))
+			{
+				toVisit.addAll(dependents.get(name));
+			}
+		}
+		return moveDependent;
+	}
+
+	private static List<GdlConstant> getSentenceNames(GdlLiteral literal)
+	{
+		List<GdlConstant> names = new ArrayList<GdlConstant>();
+		if (literal instanceof GdlSentence)
+		{
+			names.add(((GdlSentence) literal).getName());
+		}
+		else if (literal instanceof GdlNot)
+		{
+			names.addAll(getSentenceNames(((GdlNot) literal).getBody()));
+		}
+		else if (literal instanceof GdlOr)
+		{
+			GdlOr or = (GdlOr) literal;
+			for (int i = 0; i < or.arity(); i++)
+			{
+				names.addAll(getSentenceNames(or.get(i)));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Creates a session for answering several queries against the same
+	 * context, which indexes the context only once and caches the answers
+	 * that depend on it across those queries.
+	 */
+	public ProverSession createSession(Set<GdlSentence> context)
+	{
+		return new ProverSession(this, context);
 	}
 
 	private Set<GdlSentence> ask(GdlSentence query, Set<GdlSentence> context, boolean askOne)
+	{
+		ProverCache cache = ProverCache.createSingleThreadedCache();
+		return ask(query, new KnowledgeBase(context), cache, cache, askOne);
+	}
+
+	/**
+	 * Answers the query in the given context. Answers that depend on the
+	 * context go into the state cache if they can't depend on any "does"
+	 * facts in the context, and into the other cache otherwise; the two may
+	 * be the same.
+	 */
+	Set<GdlSentence> ask(GdlSentence query, KnowledgeBase context, ProverCache cache, ProverCache stateCache, boolean askOne)
 	{
 		LinkedList<GdlLiteral> goals = new LinkedList<GdlLiteral>();
 		goals.add(query);
 
 		Set<Substitution> answers = new HashSet<Substitution>();
-		ask(goals, new KnowledgeBase(context), new Substitution(), ProverCache.createSingleThreadedCache(),
-				new VariableRenamer(), askOne, answers, new RecursionHandler(), new IsConstant());
+		ask(goals, context, new Substitution(), cache, stateCache, new VariableRenamer(), askOne, answers, new RecursionHandler(), new IsConstant());
 
 		Set<GdlSentence> results = new HashSet<GdlSentence>();
 		for (Substitution theta : answers)
@@ -64,7 +147,7 @@ public final class AimaProver implements Prover
 		return results;
 	}
 
-	private void ask(LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstant)
+	private void ask(LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, ProverCache stateCache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstant)
 	{
 		if (goals.size() == 0)
 		{
@@ -80,22 +163,22 @@ public final class AimaProver implements Prover
 			if (qPrime instanceof GdlDistinct)
 			{
 				GdlDistinct distinct = (GdlDistinct) qPrime;
-				askDistinct(distinct, goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+				askDistinct(distinct, goals, context, theta, cache, stateCache, renamer, askOne, results, recursionHandler, isConstant);
 			}
 			else if (qPrime instanceof GdlNot)
 			{
 				GdlNot not = (GdlNot) qPrime;
-				askNot(not, goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+				askNot(not, goals, context, theta, cache, stateCache, renamer, askOne, results, recursionHandler, isConstant);
 			}
 			else if (qPrime instanceof GdlOr)
 			{
 				GdlOr or = (GdlOr) qPrime;
-				askOr(or, goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+				askOr(or, goals, context, theta, cache, stateCache, renamer, askOne, results, recursionHandler, isConstant);
 			}
 			else
 			{
 				GdlSentence sentence = (GdlSentence) qPrime;
-				askSentence(sentence, goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+				askSentence(sentence, goals, context, theta, cache, stateCache, renamer, askOne, results, recursionHandler, isConstant);
 			}
 
 			goals.addFirst(literal);
@@ -108,29 +191,29 @@ public final class AimaProver implements Prover
 		return ask(query, context, false);
 	}
 
-	private void askDistinct(GdlDistinct distinct, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstant)
+	private void askDistinct(GdlDistinct distinct, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, ProverCache stateCache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstant)
 	{
 		if (!distinct.getArg1().equals(distinct.getArg2()))
 		{
-			ask(goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+			ask(goals, context, theta, cache, stateCache, renamer, askOne, results, recursionHandler, isConstant);
 		} else {
 			isConstant.value = true;
 		}
 	}
 
-	private void askNot(GdlNot not, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstantRet)
+	private void askNot(GdlNot not, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, ProverCache stateCache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstantRet)
 	{
 		LinkedList<GdlLiteral> notGoals = new LinkedList<GdlLiteral>();
 		notGoals.add(not.getBody());
 
 		Set<Substitution> notResults = new HashSet<Substitution>();
 		boolean isConstant = true;
-		ask(notGoals, context, theta, cache, renamer, true, notResults, recursionHandler, isConstantRet);
+		ask(notGoals, context, theta, cache, stateCache, renamer, true, notResults, recursionHandler, isConstantRet);
 		isConstant &= isConstantRet.value;
 
 		if (notResults.size() == 0)
 		{
-			ask(goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstantRet);
+			ask(goals, context, theta, cache, stateCache, renamer, askOne, results, recursionHandler, isConstantRet);
 			isConstant &= isConstantRet.value;
 		}
 		isConstantRet.value = isConstant;
@@ -143,13 +226,13 @@ public final class AimaProver implements Prover
 		return (results.size() > 0) ? results.iterator().next() : null;
 	}
 
-	private void askOr(GdlOr or, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstantRet)
+	private void askOr(GdlOr or, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, ProverCache stateCache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstantRet)
 	{
 		boolean isConstant = true;
 		for (int i = 0; i < or.arity(); i++)
 		{
 			goals.addFirst(or.get(i));
-			ask(goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstantRet);
+			ask(goals, context, theta, cache, stateCache, renamer, askOne, results, recursionHandler, isConstantRet);
 			isConstant &= isConstantRet.value;
 			goals.removeFirst();
 
@@ -161,15 +244,15 @@ public final class AimaProver implements Prover
 		isConstantRet.value = isConstant;
 	}
 
-	private void askSentence(GdlSentence sentence, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler,
+	private void askSentence(GdlSentence sentence, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, ProverCache stateCache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler,
 			IsConstant isConstantRet) {
 		Collection<Substitution> sentenceResults = findSentenceResults(sentence,
-				context, theta, cache, renamer, recursionHandler, isConstantRet);
+				context, theta, cache, stateCache, renamer, recursionHandler, isConstantRet);
 
 		boolean isConstant = isConstantRet.value;
 		for (Substitution thetaPrime : sentenceResults)
 		{
-			ask(goals, context, theta.compose(thetaPrime), cache, renamer, askOne, results, recursionHandler, isConstantRet);
+			ask(goals, context, theta.compose(thetaPrime), cache, stateCache, renamer, askOne, results, recursionHandler, isConstantRet);
 			isConstant &= isConstantRet.value;
 			if (askOne && (results.size() > 0))
 			{
@@ -181,10 +264,10 @@ public final class AimaProver implements Prover
 
 	private Collection<Substitution> findSentenceResults(GdlSentence sentence,
 			KnowledgeBase context, Substitution theta,
-			ProverCache cache, VariableRenamer renamer, RecursionHandler recursionHandler,
+			ProverCache cache, ProverCache stateCache, VariableRenamer renamer, RecursionHandler recursionHandler,
 			IsConstant isConstantRet) {
 		GdlSentence varRenamedSentence = new VariableRenamer().rename(sentence);
-		if (!fixedAnswerCache.contains(varRenamedSentence) && !cache.contains(varRenamedSentence))
+		if (!fixedAnswerCache.contains(varRenamedSentence) && !stateCache.contains(varRenamedSentence) && !cache.contains(varRenamedSentence))
 		{
 			if (recursionHandler.alreadyAsking.contains(varRenamedSentence)) {
 				//Mark that we're in recursive mode and shouldn't cache results
@@ -199,8 +282,8 @@ public final class AimaProver implements Prover
 			}
 			recursionHandler.alreadyAsking.add(varRenamedSentence);
 			List<GdlRule> candidates = new ArrayList<GdlRule>();
-			candidates.addAll(knowledgeBase.fetch(sentence));
-			candidates.addAll(context.fetch(sentence));
+			knowledgeBase.addCandidates(sentence, candidates);
+			context.addCandidates(sentence, candidates);
 			boolean isConstant = !isTrueOrDoesSentence(sentence);
 
 			Set<Substitution> sentenceResults = new HashSet<Substitution>();
@@ -217,7 +300,7 @@ public final class AimaProver implements Prover
 						sentenceGoals.add(r.get(i));
 					}
 
-					ask(sentenceGoals, context, theta.compose(thetaPrime), cache, renamer, false, sentenceResults, recursionHandler, isConstantRet);
+					ask(sentenceGoals, context, theta.compose(thetaPrime), cache, stateCache, renamer, false, sentenceResults, recursionHandler, isConstantRet);
 					isConstant &= isConstantRet.value;
 				}
 			}
@@ -242,7 +325,7 @@ public final class AimaProver implements Prover
 								sentenceGoals.add(r.get(i));
 							}
 
-							ask(sentenceGoals, context, theta.compose(thetaPrime), cache, renamer, false, sentenceResults, recursionHandler, isConstantRet);
+							ask(sentenceGoals, context, theta.compose(thetaPrime), cache, stateCache, renamer, false, sentenceResults, recursionHandler, isConstantRet);
 							isConstant &= isConstantRet.value;
 						}
 					}
@@ -257,6 +340,8 @@ public final class AimaProver implements Prover
 			if (recursionHandler.calledRecursively.isEmpty()) {
 				if (isConstant) {
 					fixedAnswerCache.put(sentence, varRenamedSentence, sentenceResults);
+				} else if (!moveDependentNames.contains(sentence.getName())) {
+					stateCache.put(sentence, varRenamedSentence, sentenceResults);
 				} else {
 					cache.put(sentence, varRenamedSentence, sentenceResults);
 				}
@@ -272,6 +357,9 @@ public final class AimaProver implements Prover
 
 		List<Substitution> cachedResults = fixedAnswerCache.get(sentence, varRenamedSentence);
 		isConstantRet.value = (cachedResults != null);
+		if (cachedResults == null) {
+			cachedResults = stateCache.get(sentence, varRenamedSentence);
+		}
 		if (cachedResults == null) {
 			cachedResults = cache.get(sentence, varRenamedSentence);
 		}
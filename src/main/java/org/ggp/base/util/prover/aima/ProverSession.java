@@ -0,0 +1,85 @@
+package org.ggp.base.util.prover.aima;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.prover.aima.cache.ProverCache;
+import org.ggp.base.util.prover.aima.knowledge.KnowledgeBase;
+
+/**
+ * A ProverSession answers any number of queries against one fixed context,
+ * such as the contents of a single machine state. The context is indexed
+ * once, when the session is created, and answers that depend on the context
+ * are cached for the lifetime of the session, so that asking for the legal
+ * moves of every role, whether the state is terminal and what the goals are
+ * only derives each fact once. Answers that don't depend on the context are
+ * still shared by every query through the prover's own cache.
+ *
+ * Queries can also be asked with some additional facts, such as the moves
+ * made in the state. Those facts only last for the one query, but whatever
+ * it derives that can't depend on "does" facts is kept for the session.
+ *
+ * A session holds on to everything it derived, so it should be dropped once
+ * the caller moves on from its context. Sessions can be queried from several
+ * threads at once.
+ */
+public final class ProverSession
+{
+	private final AimaProver prover;
+	private final Set<GdlSentence> contents;
+	private final KnowledgeBase context;
+	private final ProverCache cache;
+
+	ProverSession(AimaProver prover, Set<GdlSentence> contents)
+	{
+		this.prover = prover;
+		this.contents = contents;
+		this.context = new KnowledgeBase(contents);
+		this.cache = ProverCache.createMultiThreadedCache();
+	}
+
+	/**
+	 * Returns the context this session answers queries against.
+	 */
+	public Set<GdlSentence> getContext()
+	{
+		return contents;
+	}
+
+	public Set<GdlSentence> askAll(GdlSentence query)
+	{
+		return ask(query, context, false);
+	}
+
+	/**
+	 * Answers the query in the session's context extended with the given
+	 * facts, which should only be "does" facts.
+	 */
+	public Set<GdlSentence> askAll(GdlSentence query, Set<GdlSentence> additionalFacts)
+	{
+		Set<GdlSentence> extended = new HashSet<GdlSentence>(contents);
+		extended.addAll(additionalFacts);
+		return ask(query, new KnowledgeBase(extended), false);
+	}
+
+	public GdlSentence askOne(GdlSentence query)
+	{
+		Set<GdlSentence> results = ask(query, context, true);
+		return (results.size() > 0) ? results.iterator().next() : null;
+	}
+
+	public boolean prove(GdlSentence query)
+	{
+		return askOne(query) != null;
+	}
+
+	/**
+	 * Answers that may depend on "does" facts are only kept for the one
+	 * query, since they'd be wrong for a query with other facts, or none.
+	 */
+	private Set<GdlSentence> ask(GdlSentence query, KnowledgeBase queryContext, boolean askOne)
+	{
+		return prover.ask(query, queryContext, ProverCache.createSingleThreadedCache(), cache, askOne);
+	}
+}
@@ -8,42 +8,250 @@ import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
 
-
+/**
+ * An immutable, indexed set of rules and facts.
+ *
+ * Rules are grouped by the name of their head, and within each group they are
+ * indexed by the symbol at each position of the head. The positions are those
+ * of the head's terms flattened in prefix order, so (cell 1 ?y b) occupies
+ * the positions [cell, 1, ?y, b]. A head that has a variable at some position
+ * can match anything at that position and every one after it, so it is filed
+ * under every symbol there. Fetching the candidates for a query then picks the
+ * position, among the concrete ones at the start of the query, with the
+ * fewest candidates.
+ *
+ * Ground facts are also kept in a hash map, so that a ground query is checked
+ * against them in constant time rather than by unifying it with each of them.
+ *
+ * Nothing is modified after construction, so a knowledge base can be read
+ * from several threads at once without locking.
+ */
 public final class KnowledgeBase
 {
-	private final Map<GdlConstant, List<GdlRule>> contents;
+	private final Map<GdlConstant, Index> rules;
+	private final Map<GdlConstant, Index> facts;
+	private final Map<GdlSentence, GdlRule> groundFacts;
+
+	/**
+	 * The candidates for the heads with a given name, indexed by position.
+	 */
+	private static final class Index
+	{
+		private final List<GdlRule> all;
+		private final List<Map<GdlConstant, List<GdlRule>>> bySymbol;
+		private final List<List<GdlRule>> wildcards;
+
+		Index(List<GdlRule> rules, List<List<GdlConstant>> symbols, List<Boolean> endsInWildcard)
+		{
+			int numPositions = 0;
+			for (List<GdlConstant> ruleSymbols : symbols) {
+				numPositions = Math.max(numPositions, ruleSymbols.size());
+			}
+			all = rules;
+			bySymbol = new ArrayList<Map<GdlConstant, List<GdlRule>>>(numPositions);
+			wildcards = new ArrayList<List<GdlRule>>(numPositions);
+			for (int i = 0; i < numPositions; i++) {
+				bySymbol.add(new HashMap<GdlConstant, List<GdlRule>>());
+				wildcards.add(new ArrayList<GdlRule>());
+			}
+
+			for (int r = 0; r < rules.size(); r++) {
+				GdlRule rule = rules.get(r);
+				List<GdlConstant> ruleSymbols = symbols.get(r);
+				for (int i = 0; i < ruleSymbols.size(); i++) {
+					Map<GdlConstant, List<GdlRule>> map = bySymbol.get(i);
+					List<GdlRule> list = map.get(ruleSymbols.get(i));
+					if (list == null) {
+						// Rules with a wildcard here, seen earlier, match this symbol too.
+						list = new ArrayList<GdlRule>(wildcards.get(i));
+						map.put(ruleSymbols.get(i), list);
+					}
+					list.add(rule);
+				}
+				// A fully concrete head can't match a query that's any longer, but
+				// a head that stopped at a variable can match anything after it.
+				if (endsInWildcard.get(r)) {
+					for (int i = ruleSymbols.size(); i < numPositions; i++) {
+						wildcards.get(i).add(rule);
+						for (List<GdlRule> list : bySymbol.get(i).values()) {
+							list.add(rule);
+						}
+					}
+				}
+			}
+		}
+
+		List<GdlRule> fetch(List<GdlConstant> querySymbols)
+		{
+			List<GdlRule> best = all;
+			int numPositions = Math.min(querySymbols.size(), bySymbol.size());
+			for (int i = 0; i < numPositions; i++) {
+				List<GdlRule> candidates = bySymbol.get(i).get(querySymbols.get(i));
+				if (candidates == null) {
+					candidates = wildcards.get(i);
+				}
+				if (candidates.size() < best.size()) {
+					best = candidates;
+				}
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * The rules with a given name, with their symbols, while the knowledge
+	 * base is being built.
+	 */
+	private static final class IndexBuilder
+	{
+		final List<GdlRule> rules = new ArrayList<GdlRule>();
+		final List<List<GdlConstant>> symbols = new ArrayList<List<GdlConstant>>();
+		final List<Boolean> endsInWildcard = new ArrayList<Boolean>();
+
+		Index build()
+		{
+			return new Index(rules, symbols, endsInWildcard);
+		}
+	}
 
 	public KnowledgeBase(Set<? extends Gdl> description)
 	{
-		contents = new HashMap<GdlConstant, List<GdlRule>>();
+		groundFacts = new HashMap<GdlSentence, GdlRule>();
+		Map<GdlConstant, IndexBuilder> ruleBuilders = new HashMap<GdlConstant, IndexBuilder>();
+		Map<GdlConstant, IndexBuilder> factBuilders = new HashMap<GdlConstant, IndexBuilder>();
 		for (Gdl gdl : description)
 		{
 			GdlRule rule = (gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl);
-			GdlConstant key = rule.getHead().getName();
+			GdlSentence head = rule.getHead();
+			boolean isGroundFact = (rule.arity() == 0) && head.isGround();
+			if (isGroundFact)
+			{
+				groundFacts.put(head, rule);
+			}
+
+			Map<GdlConstant, IndexBuilder> builders = isGroundFact ? factBuilders : ruleBuilders;
+			IndexBuilder builder = builders.get(head.getName());
+			if (builder == null)
+			{
+				builder = new IndexBuilder();
+				builders.put(head.getName(), builder);
+			}
+			List<GdlConstant> symbols = new ArrayList<GdlConstant>();
+			boolean endsInWildcard = !flatten(head, symbols);
+			builder.rules.add(rule);
+			builder.symbols.add(symbols);
+			builder.endsInWildcard.add(endsInWildcard);
+		}
+
+		rules = new HashMap<GdlConstant, Index>();
+		for (Map.Entry<GdlConstant, IndexBuilder> entry : ruleBuilders.entrySet())
+		{
+			rules.put(entry.getKey(), entry.getValue().build());
+		}
+		facts = new HashMap<GdlConstant, Index>();
+		for (Map.Entry<GdlConstant, IndexBuilder> entry : factBuilders.entrySet())
+		{
+			facts.put(entry.getKey(), entry.getValue().build());
+		}
+	}
+
+	/**
+	 * Appends the symbols of the sentence's terms, in prefix order, up to the
+	 * first variable. Returns false if it stopped at a variable.
+	 */
+	private static boolean flatten(GdlSentence sentence, List<GdlConstant> symbols)
+	{
+		for (int i = 0; i < sentence.arity(); i++)
+		{
+			if (!flatten(sentence.get(i), symbols))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
 
-			if (!contents.containsKey(key))
+	private static boolean flatten(GdlTerm term, List<GdlConstant> symbols)
+	{
+		if (term instanceof GdlConstant)
+		{
+			symbols.add((GdlConstant) term);
+			return true;
+		}
+		else if (term instanceof GdlFunction)
+		{
+			GdlFunction function = (GdlFunction) term;
+			symbols.add(function.getName());
+			for (int i = 0; i < function.arity(); i++)
 			{
-				contents.put(key, new ArrayList<GdlRule>());
+				if (!flatten(function.get(i), symbols))
+				{
+					return false;
+				}
 			}
-			contents.get(key).add(rule);
+			return true;
 		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the given ground sentence is one of the facts.
+	 */
+	public boolean containsFact(GdlSentence sentence)
+	{
+		return groundFacts.containsKey(sentence);
+	}
+
+	/**
+	 * Returns the rules and facts whose heads may unify with the given
+	 * sentence. The result always includes every one that does, and
+	 * usually not many that don't.
+	 */
+	public List<GdlRule> fetch(GdlSentence sentence)
+	{
+		List<GdlRule> candidates = new ArrayList<GdlRule>();
+		addCandidates(sentence, candidates);
+		return candidates;
 	}
 
-	public synchronized List<GdlRule> fetch(GdlSentence sentence)
+	/**
+	 * Adds the rules and facts whose heads may unify with the given sentence
+	 * to the candidates. Ground sentences are looked up directly among the
+	 * facts.
+	 */
+	public void addCandidates(GdlSentence sentence, List<GdlRule> candidates)
 	{
 		GdlConstant key = sentence.getName();
+		Index ruleIndex = rules.get(key);
+		Index factIndex = facts.get(key);
+		if (ruleIndex == null && factIndex == null)
+		{
+			return;
+		}
 
-		if (contents.containsKey(key))
+		List<GdlConstant> querySymbols = new ArrayList<GdlConstant>();
+		boolean isGround = flatten(sentence, querySymbols);
+		if (ruleIndex != null)
 		{
-			return contents.get(key);
+			candidates.addAll(ruleIndex.fetch(querySymbols));
+		}
+		if (isGround)
+		{
+			GdlRule fact = groundFacts.get(sentence);
+			if (fact != null)
+			{
+				candidates.add(fact);
+			}
 		}
-		else
+		else if (factIndex != null)
 		{
-			return new ArrayList<GdlRule>();
+			candidates.addAll(factIndex.fetch(querySymbols));
 		}
 	}
-}
\ No newline at end of file
+}
@@ -1,12 +1,18 @@
 package org.ggp.base.util.reasoner.gdl;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
 import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlDistinct;
 import org.ggp.base.util.gdl.grammar.GdlLiteral;
@@ -14,6 +20,7 @@ import org.ggp.base.util.gdl.grammar.GdlNot;
 import org.ggp.base.util.gdl.grammar.GdlOr;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.gdl.grammar.GdlVariable;
 import org.ggp.base.util.gdl.model.SentenceDomainModel;
 import org.ggp.base.util.gdl.model.SentenceDomainModels;
@@ -25,11 +32,13 @@ import org.ggp.base.util.gdl.model.assignments.AssignmentIterator;
 import org.ggp.base.util.gdl.model.assignments.Assignments;
 import org.ggp.base.util.gdl.model.assignments.AssignmentsImpl;
 import org.ggp.base.util.gdl.model.assignments.FunctionInfo;
+import org.ggp.base.util.gdl.model.assignments.IterationOrderCandidate;
 import org.ggp.base.util.gdl.transforms.CommonTransforms;
 import org.ggp.base.util.reasoner.DifferentialForwardChainingReasoner;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
-import com.google.common.collect.SetMultimap;
 
 /**
  * An implementation of a ForwardChainingReasoner that uses Gdl objects
@@ -39,10 +48,35 @@ public class GdlChainingReasoner implements
 		DifferentialForwardChainingReasoner<GdlRule, GdlSentenceSet> {
 	private final SentenceFormModel model;
 	private final ImmutableMultimap<SentenceForm, GdlSentence> constants;
+	/** The model's own instance of each of its sentence forms. */
+	private final ImmutableMap<SentenceForm, SentenceForm> canonicalForms;
+
+	/*
+	 * The rules are applied over and over by state machines, so what mostly
+	 * depends on the rules is worked out once: the sentence forms of their
+	 * literals (creating a sentence form and hashing it is expensive), their
+	 * variables' domains in the domain model they were first used with, and
+	 * the order in which to iterate over their assignments. The tuples of
+	 * the literals are kept too, so that checking whether a literal holds
+	 * under an assignment doesn't create the ground sentence in the GdlPool,
+	 * which is the bulk of the work otherwise. The order is
+	 * found for the sentences known the first time a rule is applied; it
+	 * may be slower for other sentences, but it's never wrong.
+	 */
+	private final ConcurrentMap<GdlSentence, SentenceForm> literalForms = new ConcurrentHashMap<GdlSentence, SentenceForm>();
+	private final ConcurrentMap<GdlSentence, List<GdlTerm>> literalTuples = new ConcurrentHashMap<GdlSentence, List<GdlTerm>>();
+	private final ConcurrentMap<GdlRule, Map<GdlVariable, Set<GdlConstant>>> varDomains = new ConcurrentHashMap<GdlRule, Map<GdlVariable, Set<GdlConstant>>>();
+	private final ConcurrentMap<List<Gdl>, IterationOrderCandidate> iterationOrders = new ConcurrentHashMap<List<Gdl>, IterationOrderCandidate>();
+	private volatile SentenceDomainModel varDomainsModel;
 
 	private GdlChainingReasoner(SentenceFormModel model, ImmutableMultimap<SentenceForm, GdlSentence> constants) {
 		this.model = model;
 		this.constants = constants;
+		ImmutableMap.Builder<SentenceForm, SentenceForm> canonicalForms = ImmutableMap.builder();
+		for (SentenceForm form : model.getSentenceForms()) {
+			canonicalForms.put(form, form);
+		}
+		this.canonicalForms = canonicalForms.build();
 	}
 
 	public static GdlChainingReasoner create(SentenceFormModel model) {
@@ -63,12 +97,14 @@ public class GdlChainingReasoner implements
 			SentenceDomainModel domainModel,
 			GdlSentenceSet sentencesSoFar) throws InterruptedException {
 		ConcurrencyUtils.checkForInterruption();
-		SentenceForm headForm = model.getSentenceForm(rule.getHead());
-		Map<GdlVariable, Set<GdlConstant>> varDomains = SentenceDomainModels.getVarDomains(rule, domainModel, VarDomainOpts.INCLUDE_HEAD);
+		SentenceForm headForm = getLiteralForm(rule.getHead());
+		Map<GdlVariable, Set<GdlConstant>> varDomains = getVarDomains(rule, domainModel);
 		Map<SentenceForm, ? extends FunctionInfo> functionInfoMap = sentencesSoFar.getFunctionInfo();
-		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = sentencesSoFar.getSentences().asMap();
+		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = sentencesSoFar.getSentencesByForm();
 
-		AssignmentsImpl assignments = new AssignmentsImpl(rule, varDomains, functionInfoMap, completedSentenceFormValues);
+		Map<GdlVariable, GdlConstant> noAssignment = Collections.emptyMap();
+		IterationOrderCandidate order = getIterationOrder(ImmutableList.<Gdl>of(rule), noAssignment, rule, varDomains, functionInfoMap, completedSentenceFormValues);
+		AssignmentsImpl assignments = new AssignmentsImpl(noAssignment, rule, varDomains, functionInfoMap, completedSentenceFormValues, order);
 		AssignmentIterator asnItr = assignments.getIterator();
 		GdlSentenceSet sentencesToAdd = GdlSentenceSet.create();
 		while (asnItr.hasNext()) {
@@ -76,7 +112,7 @@ public class GdlChainingReasoner implements
 			boolean allSatisfied = true;
 			for (GdlLiteral literal : rule.getBody()) {
 				ConcurrencyUtils.checkForInterruption();
-				if (!satisfies(assignment, literal, sentencesSoFar.getSentences())) {
+				if (!satisfies(assignment, literal, sentencesSoFar)) {
 					asnItr.changeOneInNext(GdlUtils.getVariables(literal), assignment);
 					allSatisfied = false;
 					break;
@@ -91,8 +127,75 @@ public class GdlChainingReasoner implements
 		return sentencesToAdd;
 	}
 
+	/**
+	 * Returns the sentence form of a sentence in a rule. Replacing the
+	 * sentence's variables doesn't change its form.
+	 */
+	private SentenceForm getLiteralForm(GdlSentence sentence) {
+		SentenceForm form = literalForms.get(sentence);
+		if (form == null) {
+			form = getCanonicalForm(model.getSentenceForm(sentence));
+			literalForms.put(sentence, form);
+		}
+		return form;
+	}
+
+	/**
+	 * Returns the model's own instance of the given sentence form, if it has
+	 * one. Sentence forms are compared structurally, which is slow enough to
+	 * matter when they're used as keys over and over, unless they're the
+	 * same instance.
+	 */
+	public SentenceForm getCanonicalForm(SentenceForm form) {
+		SentenceForm canonicalForm = canonicalForms.get(form);
+		return (canonicalForm != null) ? canonicalForm : form;
+	}
+
+	private List<GdlTerm> getLiteralTuple(GdlSentence sentence) {
+		List<GdlTerm> tuple = literalTuples.get(sentence);
+		if (tuple == null) {
+			tuple = ImmutableList.copyOf(GdlUtils.getTupleFromSentence(sentence));
+			literalTuples.put(sentence, tuple);
+		}
+		return tuple;
+	}
+
+	private Map<GdlVariable, Set<GdlConstant>> getVarDomains(GdlRule rule, SentenceDomainModel domainModel) {
+		if (varDomainsModel != domainModel) {
+			synchronized (varDomains) {
+				if (varDomainsModel != domainModel) {
+					varDomains.clear();
+					iterationOrders.clear();
+					varDomainsModel = domainModel;
+				}
+			}
+		}
+		Map<GdlVariable, Set<GdlConstant>> domains = varDomains.get(rule);
+		if (domains == null) {
+			domains = SentenceDomainModels.getVarDomains(rule, domainModel, VarDomainOpts.INCLUDE_HEAD);
+			varDomains.put(rule, domains);
+		}
+		return domains;
+	}
+
+	/**
+	 * Returns the iteration order for a rule, given the variables assigned
+	 * in advance, which are the same for every use of the given key.
+	 */
+	private IterationOrderCandidate getIterationOrder(List<Gdl> key, Map<GdlVariable, GdlConstant> preassignment,
+			GdlRule rule, Map<GdlVariable, Set<GdlConstant>> varDomains,
+			Map<SentenceForm, ? extends FunctionInfo> functionInfoMap,
+			Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues) {
+		IterationOrderCandidate order = iterationOrders.get(key);
+		if (order == null) {
+			order = AssignmentsImpl.getBestIterationOrder(preassignment, rule, varDomains, functionInfoMap, completedSentenceFormValues);
+			iterationOrders.put(key, order);
+		}
+		return order;
+	}
+
 	private boolean satisfies(Map<GdlVariable, GdlConstant> assignment,
-			GdlLiteral literal, SetMultimap<SentenceForm, GdlSentence> sentencesSoFar) {
+			GdlLiteral literal, GdlSentenceSet sentencesSoFar) {
 		if (literal instanceof GdlSentence) {
 			return satisfiesSentence(assignment, (GdlSentence) literal, sentencesSoFar);
 		} else if (literal instanceof GdlNot) {
@@ -119,10 +222,18 @@ public class GdlChainingReasoner implements
 
 	private boolean satisfiesSentence(Map<GdlVariable, GdlConstant> assignment,
 			GdlSentence sentence,
-			SetMultimap<SentenceForm, GdlSentence> sentencesSoFar) {
-		sentence = CommonTransforms.replaceVariables(sentence, assignment);
-		SentenceForm form = model.getSentenceForm(sentence);
-		return sentencesSoFar.get(form).contains(sentence);
+			GdlSentenceSet sentencesSoFar) {
+		SentenceForm form = getLiteralForm(sentence);
+		List<GdlTerm> tuple = getLiteralTuple(sentence);
+		List<GdlConstant> groundTuple = new ArrayList<GdlConstant>(tuple.size());
+		for (GdlTerm term : tuple) {
+			if (term instanceof GdlVariable) {
+				groundTuple.add(assignment.get(term));
+			} else {
+				groundTuple.add((GdlConstant) term);
+			}
+		}
+		return sentencesSoFar.containsTuple(form, groundTuple);
 	}
 
 	private boolean satisfiesDistinct(Map<GdlVariable, GdlConstant> assignment,
@@ -135,7 +246,7 @@ public class GdlChainingReasoner implements
 	public GdlSentenceSet getUnion(
 			GdlSentenceSet oldSentences,
 			GdlSentenceSet newSentences) {
-		oldSentences.putAll(newSentences.getSentences());
+		oldSentences.putAll(newSentences);
 		return oldSentences;
 	}
 
@@ -143,9 +254,11 @@ public class GdlChainingReasoner implements
 	public boolean isSubsetOf(
 			GdlSentenceSet oldSentences,
 			GdlSentenceSet newSentences) {
-		for (Entry<SentenceForm, GdlSentence> entry : newSentences.getSentences().entries()) {
-			if (!oldSentences.containsSentence(entry.getKey(), entry.getValue())) {
-				return false;
+		for (Entry<SentenceForm, Set<GdlSentence>> entry : newSentences.getSentencesByForm().entrySet()) {
+			for (GdlSentence sentence : entry.getValue()) {
+				if (!oldSentences.containsSentence(entry.getKey(), sentence)) {
+					return false;
+				}
 			}
 		}
 		return true;
@@ -160,11 +273,11 @@ public class GdlChainingReasoner implements
 		for (GdlLiteral literal : rule.getBody()) {
 			ConcurrencyUtils.checkForInterruption();
 			if (literal instanceof GdlSentence) {
-				SentenceForm literalForm = domainModel.getSentenceForm((GdlSentence) literal);
+				SentenceForm literalForm = getLiteralForm((GdlSentence) literal);
 				addRuleResultsForChosenLiteral(
 						rule,
 						(GdlSentence) literal,
-						newSentences.getSentences().get(literalForm),
+						newSentences.getSentences(literalForm),
 						domainModel,
 						allSentences,
 						results);
@@ -180,15 +293,16 @@ public class GdlChainingReasoner implements
 			SentenceDomainModel domainModel,
 			GdlSentenceSet allSentences,
 			GdlSentenceSet sentencesToAdd) {
-		SentenceForm headForm = model.getSentenceForm(rule.getHead());
-		Map<GdlVariable, Set<GdlConstant>> varDomains = SentenceDomainModels.getVarDomains(rule, domainModel, VarDomainOpts.INCLUDE_HEAD);
+		SentenceForm headForm = getLiteralForm(rule.getHead());
+		Map<GdlVariable, Set<GdlConstant>> varDomains = getVarDomains(rule, domainModel);
 		Map<SentenceForm, AddibleFunctionInfo> functionInfoMap = allSentences.getFunctionInfo();
-		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = allSentences.getSentences().asMap();
+		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = allSentences.getSentencesByForm();
 
 		for (GdlSentence chosenNewSentence : chosenNewSentences) {
 			Map<GdlVariable, GdlConstant> preassignments = GdlUtils.getAssignmentMakingLeftIntoRight(chosenLiteral, chosenNewSentence);
 			if (preassignments != null) {
-				Assignments assignments = new AssignmentsImpl(preassignments, rule, varDomains, functionInfoMap, completedSentenceFormValues);
+				IterationOrderCandidate order = getIterationOrder(ImmutableList.<Gdl>of(rule, chosenLiteral), preassignments, rule, varDomains, functionInfoMap, completedSentenceFormValues);
+				Assignments assignments = new AssignmentsImpl(preassignments, rule, varDomains, functionInfoMap, completedSentenceFormValues, order);
 				AssignmentIterator asnItr = assignments.getIterator();
 				while (asnItr.hasNext()) {
 					Map<GdlVariable, GdlConstant> assignment = asnItr.next();
@@ -199,7 +313,7 @@ public class GdlChainingReasoner implements
 							//Already satisfied
 							continue;
 						}
-						if (!satisfies(assignment, literal, allSentences.getSentences())) {
+						if (!satisfies(assignment, literal, allSentences)) {
 							asnItr.changeOneInNext(GdlUtils.getVariables(literal), assignment);
 							allSatisfied = false;
 							break;
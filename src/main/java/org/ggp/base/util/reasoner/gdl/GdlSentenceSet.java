@@ -1,35 +1,69 @@
 package org.ggp.base.util.reasoner.gdl;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.model.SentenceForm;
 import org.ggp.base.util.gdl.model.assignments.AddibleFunctionInfo;
 import org.ggp.base.util.gdl.model.assignments.MutableFunctionInfo;
 
-import com.google.common.collect.HashMultimap;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 
 /**
  * Contains a set of GdlSentences arranged by SentenceForm and the
  * associated FunctionInfo for each SentenceForm. The FunctionInfos
  * are continually and automatically maintained as sentences are
- * added to the set.
+ * added to the set. So are the tuples of the sentences, which can be
+ * looked up without creating the sentences in the GdlPool.
  *
- * Note that this class is not thread-safe.
+ * Copies share the sentences and FunctionInfo of each form with the set
+ * they were copied from, until a sentence of that form is added to one of
+ * them. Copying a set is then cheap when most of its forms never change
+ * afterwards, like the constants under a state's model.
+ *
+ * Note that this class is not thread-safe, except that several threads
+ * may copy a set at once if all of its forms are shared already, as they
+ * are in any set that has been copied and not added to since.
  */
 public class GdlSentenceSet {
-	private final SetMultimap<SentenceForm, GdlSentence> sentences;
-	private final Map<SentenceForm, AddibleFunctionInfo> functionInfoMap;
+	private static final Function<Set<GdlSentence>, Set<GdlSentence>> UNMODIFIABLE = new Function<Set<GdlSentence>, Set<GdlSentence>>() {
+		@Override
+		public Set<GdlSentence> apply(Set<GdlSentence> sentences) {
+			return Collections.unmodifiableSet(sentences);
+		}
+	};
+
+	private final Map<SentenceForm, Set<GdlSentence>> sentences;
+	private final Map<SentenceForm, Set<List<GdlConstant>>> tuples;
+	private final Map<SentenceForm, MutableFunctionInfo> functionInfoMap;
+	/** The forms whose sentences, tuples and FunctionInfo another set may also be using. */
+	private final Set<SentenceForm> sharedForms;
 
 	private GdlSentenceSet() {
-		this.sentences = HashMultimap.create();
+		this.sentences = Maps.newHashMap();
+		this.tuples = Maps.newHashMap();
 		this.functionInfoMap = Maps.newHashMap();
+		this.sharedForms = Sets.newHashSet();
+	}
+
+	private GdlSentenceSet(GdlSentenceSet other) {
+		this.sentences = Maps.newHashMap(other.sentences);
+		this.tuples = Maps.newHashMap(other.tuples);
+		this.functionInfoMap = Maps.newHashMap(other.functionInfoMap);
+		this.sharedForms = Sets.newHashSet(other.sentences.keySet());
+		if (other.sharedForms.size() != other.sentences.size()) {
+			other.sharedForms.addAll(other.sentences.keySet());
+		}
 	}
 
 	public static GdlSentenceSet create() {
@@ -43,19 +77,65 @@ public class GdlSentenceSet {
 	}
 
 	/**
-	 * Returns an unmodifiable view of the sentences in this set.
-	 * Note that this view may change if the collection is concurrently
-	 * modified.
+	 * Returns a copy of this set, which can have sentences added to it
+	 * independently. This is faster than creating a set from this set's
+	 * sentences, as nothing is copied until a form is first added to.
+	 */
+	public GdlSentenceSet copy() {
+		return new GdlSentenceSet(this);
+	}
+
+	/**
+	 * Returns an unmodifiable snapshot of the sentences in this set.
+	 */
+	public ImmutableSetMultimap<SentenceForm, GdlSentence> getSentences() {
+		ImmutableSetMultimap.Builder<SentenceForm, GdlSentence> builder = ImmutableSetMultimap.builder();
+		for (Entry<SentenceForm, Set<GdlSentence>> entry : sentences.entrySet()) {
+			builder.putAll(entry.getKey(), entry.getValue());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns an unmodifiable view of the sentences in this set, by form.
+	 * Forms with no sentences may be missing. Note that this view may change
+	 * if the collection is concurrently modified.
 	 */
-	public SetMultimap<SentenceForm, GdlSentence> getSentences() {
-		return Multimaps.unmodifiableSetMultimap(sentences);
+	public Map<SentenceForm, Set<GdlSentence>> getSentencesByForm() {
+		return Maps.transformValues(Collections.unmodifiableMap(sentences), UNMODIFIABLE);
+	}
+
+	/**
+	 * Returns an unmodifiable view of the sentences of the given form.
+	 */
+	public Set<GdlSentence> getSentences(SentenceForm form) {
+		Set<GdlSentence> formSentences = sentences.get(form);
+		if (formSentences == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(formSentences);
+	}
+
+	public boolean isEmpty() {
+		return sentences.isEmpty();
 	}
 
 	/**
 	 * Returns true iff the given sentence is in this set of sentences.
 	 */
 	public boolean containsSentence(SentenceForm form, GdlSentence sentence) {
-		return sentences.containsEntry(form, sentence);
+		Set<GdlSentence> formSentences = sentences.get(form);
+		return formSentences != null && formSentences.contains(sentence);
+	}
+
+	/**
+	 * Returns true iff the sentence of the given form with the given tuple,
+	 * as returned by {@link GdlUtils#getTupleFromGroundSentence(GdlSentence)},
+	 * is in this set of sentences.
+	 */
+	public boolean containsTuple(SentenceForm form, List<GdlConstant> tuple) {
+		Set<List<GdlConstant>> formTuples = tuples.get(form);
+		return formTuples != null && formTuples.contains(tuple);
 	}
 
 	public void putAll(Multimap<SentenceForm, GdlSentence> newSentences) {
@@ -64,20 +144,44 @@ public class GdlSentenceSet {
 		}
 	}
 
-	public void put(SentenceForm form, GdlSentence sentence) {
-		if (!containsSentence(form, sentence)) {
-			sentences.put(form, sentence);
-			if (!functionInfoMap.containsKey(form)) {
-				functionInfoMap.put(form, MutableFunctionInfo.create(form));
+	public void putAll(GdlSentenceSet newSentences) {
+		for (Entry<SentenceForm, Set<GdlSentence>> entry : newSentences.sentences.entrySet()) {
+			for (GdlSentence sentence : entry.getValue()) {
+				put(entry.getKey(), sentence);
 			}
-			functionInfoMap.get(form).addSentence(sentence);
 		}
 	}
 
+	public void put(SentenceForm form, GdlSentence sentence) {
+		Set<GdlSentence> formSentences = sentences.get(form);
+		Set<List<GdlConstant>> formTuples;
+		if (formSentences == null) {
+			formSentences = Sets.newHashSet();
+			formTuples = Sets.newHashSet();
+			sentences.put(form, formSentences);
+			tuples.put(form, formTuples);
+			functionInfoMap.put(form, MutableFunctionInfo.create(form));
+		} else if (formSentences.contains(sentence)) {
+			return;
+		} else if (sharedForms.remove(form)) {
+			formSentences = Sets.newHashSet(formSentences);
+			formTuples = Sets.newHashSet(tuples.get(form));
+			sentences.put(form, formSentences);
+			tuples.put(form, formTuples);
+			functionInfoMap.put(form, MutableFunctionInfo.copyOf(functionInfoMap.get(form)));
+		} else {
+			formTuples = tuples.get(form);
+		}
+		List<GdlConstant> tuple = GdlUtils.getTupleFromGroundSentence(sentence);
+		formSentences.add(sentence);
+		formTuples.add(tuple);
+		functionInfoMap.get(form).addTuple(tuple);
+	}
+
 	/**
 	 * Returns an unmodifiable view of the function information
 	 */
 	public Map<SentenceForm, AddibleFunctionInfo> getFunctionInfo() {
-		return Collections.unmodifiableMap(functionInfoMap);
+		return Collections.<SentenceForm, AddibleFunctionInfo>unmodifiableMap(functionInfoMap);
 	}
 }
@@ -0,0 +1,109 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * BaseIndex numbers the base propositions of a game, so that a state can be
+ * stored as a bit vector with one bit per base proposition. It is the shared,
+ * immutable part of every {@link BitMachineState} for that game.
+ *
+ * Every base proposition also has a hash key, and the hash of a state is the
+ * sum of the keys of its true base propositions, in the manner of Zobrist
+ * hashing. The keys are the hash codes of the sentences themselves, so the
+ * hash of a {@link BitMachineState} is exactly the hash of its contents, and
+ * bit states stay interchangeable with plain {@link MachineState}s.
+ */
+public final class BaseIndex
+{
+    private final GdlSentence[] sentences;
+    private final Map<GdlSentence, Integer> indices;
+    private final int[] keys;
+
+    public BaseIndex(GdlSentence[] sentences)
+    {
+        this.sentences = sentences.clone();
+        this.indices = new HashMap<GdlSentence, Integer>();
+        this.keys = new int[sentences.length];
+        for (int i = 0; i < sentences.length; i++) {
+            indices.put(sentences[i], i);
+            keys[i] = sentences[i].hashCode();
+        }
+    }
+
+    public int getNumBases()
+    {
+        return sentences.length;
+    }
+
+    /**
+     * Returns the number of longs needed to hold one bit per base proposition.
+     */
+    public int getNumWords()
+    {
+        return (sentences.length + 63) >>> 6;
+    }
+
+    public GdlSentence getSentence(int index)
+    {
+        return sentences[index];
+    }
+
+    /**
+     * Returns the index of the given base sentence, or -1 if it is not a base
+     * proposition of this game.
+     */
+    public int getIndex(GdlSentence sentence)
+    {
+        Integer index = indices.get(sentence);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * Returns the hash of the state with the given bits, which is equal to
+     * the hash of the set of its sentences.
+     */
+    public int hash(long[] bits)
+    {
+        int hash = 0;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                hash += keys[(w << 6) + Long.numberOfTrailingZeros(word)];
+                word &= word - 1;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Creates a bit state from a set of sentences. Sentences that are not base
+     * propositions of this game are dropped.
+     */
+    public BitMachineState createState(Set<GdlSentence> contents)
+    {
+        long[] bits = new long[getNumWords()];
+        for (GdlSentence sentence : contents) {
+            int index = getIndex(sentence);
+            if (index >= 0) {
+                bits[index >>> 6] |= 1L << index;
+            }
+        }
+        return new BitMachineState(this, bits);
+    }
+
+    /**
+     * Returns the given state as a bit state over this index, converting it
+     * only if it isn't one already.
+     */
+    public BitMachineState toBitState(MachineState state)
+    {
+        if (state instanceof BitMachineState && ((BitMachineState) state).getIndex() == this) {
+            return (BitMachineState) state;
+        }
+        return createState(state.getContents());
+    }
+}
@@ -0,0 +1,98 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * BitMachineState is a MachineState stored as a bit vector over the base
+ * propositions of a {@link BaseIndex}. The hash is computed once, when the
+ * state is created, and two states over the same index are compared by their
+ * bits. The GDL contents are only built if something asks for them.
+ *
+ * Bit states are immutable: the bits must not be modified after the state is
+ * created, and {@link #getContents()} returns an unmodifiable set.
+ */
+public final class BitMachineState extends MachineState
+{
+    private final BaseIndex index;
+    private final long[] bits;
+    private final int hash;
+    private volatile Set<GdlSentence> contents;
+
+    public BitMachineState(BaseIndex index, long[] bits)
+    {
+        this.index = index;
+        this.bits = bits;
+        this.hash = index.hash(bits);
+    }
+
+    public BaseIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Returns the bits of this state. The array is shared and must not be
+     * modified.
+     */
+    public long[] getBits()
+    {
+        return bits;
+    }
+
+    public boolean isTrue(int base)
+    {
+        return (bits[base >>> 6] & (1L << base)) != 0;
+    }
+
+    @Override
+    public Set<GdlSentence> getContents()
+    {
+        Set<GdlSentence> contents = this.contents;
+        if (contents == null) {
+            Set<GdlSentence> sentences = new HashSet<GdlSentence>();
+            for (int w = 0; w < bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    sentences.add(index.getSentence((w << 6) + Long.numberOfTrailingZeros(word)));
+                    word &= word - 1;
+                }
+            }
+            contents = Collections.unmodifiableSet(sentences);
+            this.contents = contents;
+        }
+        return contents;
+    }
+
+    @Override
+    public MachineState clone()
+    {
+        // Bit states are immutable, so there's nothing to copy.
+        return this;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof BitMachineState) {
+            BitMachineState state = (BitMachineState) o;
+            if (state.index == index) {
+                return state.hash == hash && Arrays.equals(state.bits, bits);
+            }
+        }
+        return super.equals(o);
+    }
+}
@@ -21,15 +21,52 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
  * clear that this is helpful, but it's an additional layer of bullet-proofing
  * in case anything goes wrong.
  *
+ * The initial machine can also be built in the background, for machines like
+ * the propnet ones that can take longer to set up than the start clock allows.
+ * In that case the FailsafeStateMachine answers from a prover right away, and
+ * swaps the initial machine in at the next call after it's ready. States and
+ * moves from the prover are interchangeable with those of the initial machine,
+ * so callers don't notice the swap, except by things getting faster. Forks
+ * made before the swap get a fork of the initial machine as well.
+ *
  * @author Sam Schreiber
  */
 public class FailsafeStateMachine extends StateMachine
 {
-    private StateMachine theBackingMachine = null;
+    private volatile StateMachine theBackingMachine = null;
     private List<Gdl> gameDescription;
 
+    private final StateMachine theInitialMachine;
+    private final boolean buildInBackground;
+    /**
+     * The background build, shared with forks, until its machine is swapped in.
+     * It's only cleared while holding the lock, since {@link #stopBuilding()}
+     * can be called from another thread than the one making the calls.
+     */
+    private volatile BackgroundBuild theBuild = null;
+    /** The last root passed to {@link #updateRoot(MachineState)}, for the built machine. */
+    private volatile MachineState theRoot = null;
+
     public FailsafeStateMachine (StateMachine theInitialMachine) {
+        this(theInitialMachine, false);
+    }
+
+    /**
+     * @param buildInBackground whether to initialize the initial machine on a
+     * background thread, using a prover until it's ready.
+     */
+    public FailsafeStateMachine (StateMachine theInitialMachine, boolean buildInBackground) {
         theBackingMachine = theInitialMachine;
+        this.theInitialMachine = theInitialMachine;
+        this.buildInBackground = buildInBackground;
+    }
+
+    private FailsafeStateMachine (StateMachine theForkedMachine, List<Gdl> gameDescription, BackgroundBuild theBuild) {
+        theBackingMachine = theForkedMachine;
+        this.gameDescription = gameDescription;
+        this.theInitialMachine = theForkedMachine;
+        this.buildInBackground = false;
+        this.theBuild = theBuild;
     }
 
     @Override
@@ -43,6 +80,19 @@ public class FailsafeStateMachine extends StateMachine
     @Override
     public synchronized void initialize(List<Gdl> description) {
         this.gameDescription = description;
+        stopBuilding();
+        theBackingMachine = theInitialMachine;
+        theRoot = null;
+
+        if(buildInBackground) {
+            if(attemptLoadingProverMachine()) {
+                theBuild = new BackgroundBuild(theInitialMachine, description);
+                theBuild.start();
+                return;
+            }
+            GamerLogger.logError("StateMachine", "Failsafe Machine: failed to load a prover to use while building the initial state machine.");
+            theBackingMachine = theInitialMachine;
+        }
 
         if(attemptLoadingInitialMachine())
             return;
@@ -71,6 +121,104 @@ public class FailsafeStateMachine extends StateMachine
         GamerLogger.logError("StateMachine", "Failsafe Machine: online failure for regular prover. Cannot recover.");
     }
 
+    /**
+     * Initializes a state machine on its own thread, and keeps it once that
+     * succeeds. If it fails, including by running out of memory, the
+     * FailsafeStateMachine just carries on with the prover.
+     */
+    private static final class BackgroundBuild extends Thread {
+        private final StateMachine theMachine;
+        private final List<Gdl> description;
+        private volatile StateMachine theBuiltMachine = null;
+
+        public BackgroundBuild(StateMachine theMachine, List<Gdl> description) {
+            super("FailsafeStateMachine build of " + theMachine.getName());
+            this.theMachine = theMachine;
+            this.description = description;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.currentTimeMillis();
+            try {
+                theMachine.initialize(description);
+                theBuiltMachine = theMachine;
+                GamerLogger.log("StateMachine", "Failsafe Machine: built " + theMachine.getName() + " in the background in " + (System.currentTimeMillis() - startTime) + " ms.");
+            } catch(Exception e) {
+                GamerLogger.logError("StateMachine", "Failsafe Machine: failed to build " + theMachine.getName() + " in the background, staying with the prover: " + e);
+            } catch(ThreadDeath d) {
+                throw d;
+            } catch(Error e) {
+                // Whatever the build allocated is unreachable again by now.
+                GamerLogger.logError("StateMachine", "Failsafe Machine: failed to build " + theMachine.getName() + " in the background, staying with the prover: " + e);
+            }
+        }
+
+        public StateMachine getBuiltMachine() {
+            return theBuiltMachine;
+        }
+    }
+
+    /**
+     * Swaps in the machine built in the background, if it's ready. Every
+     * FailsafeStateMachine sharing the build gets its own fork of it.
+     */
+    private void swapInBuiltMachine() {
+        // This runs at the start of every call, so only take the lock once
+        // there's something to swap in or clear.
+        BackgroundBuild build = theBuild;
+        if(build == null || (build.getBuiltMachine() == null && build.isAlive()))
+            return;
+
+        synchronized(this) {
+            if(theBuild != build)
+                return;
+
+            theBuild = null;
+            StateMachine theBuiltMachine = build.getBuiltMachine();
+            if(theBuiltMachine == null)
+                return;
+            try {
+                StateMachine theSwappedMachine = theBuiltMachine.fork();
+                MachineState root = theRoot;
+                if(root != null)
+                    theSwappedMachine.updateRoot(root);
+                theBackingMachine = theSwappedMachine;
+                GamerLogger.log("StateMachine", "Failsafe Machine: swapped in " + theSwappedMachine.getName() + ".");
+            } catch(Exception e) {
+                GamerLogger.logStackTrace("StateMachine", e);
+            }
+        }
+    }
+
+    /**
+     * Returns true while the initial machine is still being built in the
+     * background.
+     */
+    public boolean isBuilding() {
+        BackgroundBuild build = theBuild;
+        return build != null && build.isAlive();
+    }
+
+    /**
+     * Stops building the initial machine in the background, if it's still
+     * being built, and keeps using the prover.
+     */
+    public synchronized void stopBuilding() {
+        BackgroundBuild build = theBuild;
+        if(build == null)
+            return;
+
+        theBuild = null;
+        build.interrupt();
+        try {
+            build.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private boolean attemptLoadingInitialMachine() {
         try {
             theBackingMachine.initialize(gameDescription);
@@ -103,6 +251,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public int getGoal(MachineState state, Role role) throws GoalDefinitionException {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return 0;
 
@@ -125,6 +274,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public MachineState getInitialState() {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -145,6 +295,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public List<Move> findActions(Role role) throws MoveDefinitionException {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -167,6 +318,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -189,6 +341,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public Move getRandomMove(MachineState state, Role role) throws MoveDefinitionException {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -211,6 +364,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -231,6 +385,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public Move getMoveFromTerm(GdlTerm term) {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -251,6 +406,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -273,6 +429,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public MachineState getNextStateDestructively(MachineState state, List<Move> moves) throws TransitionDefinitionException {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -295,6 +452,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public Role getRoleFromConstant(GdlConstant constant) {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -315,6 +473,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public List<Role> getRoles() {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -335,6 +494,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public boolean isTerminal(MachineState state) {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return false;
 
@@ -355,6 +515,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return null;
 
@@ -379,6 +540,7 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(MachineState state, double[] avgScores, double[] avgDepth, double discountFactor, int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return;
 
@@ -406,9 +568,11 @@ public class FailsafeStateMachine extends StateMachine
 
     @Override
     public void updateRoot(MachineState theState) {
+        swapInBuiltMachine();
         if(theBackingMachine == null)
             return;
 
+        theRoot = theState;
         try {
             theBackingMachine.updateRoot(theState);
             return;
@@ -425,6 +589,22 @@ public class FailsafeStateMachine extends StateMachine
         updateRoot(theState);
     }
 
+    /**
+     * Forks the current backing machine. The fork keeps the game description,
+     * so that it can fall back to a prover on its own if its backing machine
+     * fails later on. A fork made while the initial machine is still being
+     * built swaps it in too, once it's ready.
+     */
+    @Override
+    public StateMachine fork() {
+        swapInBuiltMachine();
+        BackgroundBuild build = theBuild;
+        if(theBackingMachine == null)
+            throw new UnsupportedOperationException("Failsafe Machine: no backing machine to fork.");
+
+        return new FailsafeStateMachine(theBackingMachine.fork(), gameDescription, build);
+    }
+
     public StateMachine getBackingMachine() {
         return theBackingMachine;
     }
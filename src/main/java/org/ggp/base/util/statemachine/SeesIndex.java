@@ -0,0 +1,62 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * SeesIndex numbers the sees propositions of one role, so that a
+ * {@link SeesState} can be stored as a bit vector with one bit per sees
+ * proposition. It is the shared, immutable part of every such SeesState for
+ * that role, in the same way as a {@link BaseIndex} is for machine states.
+ */
+public final class SeesIndex
+{
+    private final Role role;
+    private final GdlSentence[] sentences;
+    private final Map<GdlSentence, Integer> indices;
+
+    public SeesIndex(Role role, GdlSentence[] sentences)
+    {
+        this.role = role;
+        this.sentences = sentences.clone();
+        this.indices = new HashMap<GdlSentence, Integer>();
+        for (int i = 0; i < sentences.length; i++) {
+            indices.put(sentences[i], i);
+        }
+    }
+
+    public Role getRole()
+    {
+        return role;
+    }
+
+    public int getNumSees()
+    {
+        return sentences.length;
+    }
+
+    /**
+     * Returns the number of longs needed to hold one bit per sees proposition.
+     */
+    public int getNumWords()
+    {
+        return (sentences.length + 63) >>> 6;
+    }
+
+    public GdlSentence getSentence(int index)
+    {
+        return sentences[index];
+    }
+
+    /**
+     * Returns the index of the given sees sentence, or -1 if it is not a sees
+     * proposition of this role.
+     */
+    public int getIndex(GdlSentence sentence)
+    {
+        Integer index = indices.get(sentence);
+        return (index == null) ? -1 : index;
+    }
+}
@@ -1,17 +1,46 @@
 package org.ggp.base.util.statemachine;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 
+import com.google.common.base.Objects;
+
+/**
+ * A SeesState holds what one role sees in a state. It is either made from a
+ * set of sees, such as the ones a player gets from the server, or by a state
+ * machine as a bit vector over a {@link SeesIndex}. Either way
+ * {@link #containsSee(GdlSentence)} takes constant time, and the set of sees
+ * of a bit-backed state is only built if something asks for it. Building it
+ * is safe from several threads at once.
+ */
 public class SeesState {
 
 	private Role role;
-	private Set<See> sees;
+	private volatile Set<See> sees;
+
+	private final SeesIndex index;
+	private final long[] bits;
+	private volatile Set<GdlSentence> sentences;
 
 	public SeesState(Role role, Set<See> sees) {
 		this.role = role;
 		this.sees = sees;
+		this.index = null;
+		this.bits = null;
+	}
+
+	/**
+	 * Creates a SeesState in which the role of the index sees the sees
+	 * propositions whose bits are set. The bits must not be modified after.
+	 */
+	public SeesState(SeesIndex index, long[] bits) {
+		this.role = index.getRole();
+		this.index = index;
+		this.bits = bits;
 	}
 
 	public Role getRole() {
@@ -23,15 +52,102 @@ public class SeesState {
 	}
 
 	public Set<See> getSees() {
+		Set<See> sees = this.sees;
+		if (sees == null && index != null) {
+			sees = new HashSet<See>();
+			for (int w = 0; w < bits.length; w++) {
+				long word = bits[w];
+				while (word != 0) {
+					sees.add(new See(role, index.getSentence((w << 6) + Long.numberOfTrailingZeros(word)).toTerm()));
+					word &= word - 1;
+				}
+			}
+			this.sees = sees;
+		}
 		return sees;
 	}
 
+	/**
+	 * Returns the index this state's bits are over, or null if it was made
+	 * from a set of sees.
+	 */
+	public SeesIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns true if the sees proposition with the given index is seen. Only
+	 * valid for states that have an index.
+	 */
+	public boolean isSeen(int i) {
+		return (bits[i >>> 6] & (1L << i)) != 0;
+	}
+
 	public boolean containsSee(GdlSentence sent) {
-		for (See see : sees) {
-			if (see.getContents().toSentence().equals(sent)) {
-				return true;
+		if (index != null) {
+			int i = index.getIndex(sent);
+			return i >= 0 && isSeen(i);
+		}
+		return getSeenSentences().contains(sent);
+	}
+
+	/**
+	 * Returns true if this state and the given one see exactly the same
+	 * things. A state that sees nothing is the same as a null one.
+	 */
+	public boolean sameSeesAs(SeesState other) {
+		if (other != null && index != null && other.index == index) {
+			return Arrays.equals(bits, other.bits);
+		}
+		Set<GdlSentence> otherSentences = (other == null) ? Collections.<GdlSentence>emptySet() : other.getSeenSentences();
+		return getSeenSentences().equals(otherSentences);
+	}
+
+	/**
+	 * Two SeesStates are equal if they are for the same role and see the
+	 * same things, as in {@link #sameSeesAs(SeesState)}, so that histories
+	 * of sees can be used as keys.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof SeesState)) {
+			return false;
+		}
+		SeesState other = (SeesState) o;
+		return Objects.equal(role, other.role) && sameSeesAs(other);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 0;
+		if (index != null) {
+			for (int w = 0; w < bits.length; w++) {
+				long word = bits[w];
+				while (word != 0) {
+					hash += index.getSentence((w << 6) + Long.numberOfTrailingZeros(word)).hashCode();
+					word &= word - 1;
+				}
+			}
+		} else {
+			hash = getSeenSentences().hashCode();
+		}
+		return 31 * Objects.hashCode(role) + hash;
+	}
+
+	private Set<GdlSentence> getSeenSentences() {
+		Set<GdlSentence> sentences = this.sentences;
+		if (sentences == null) {
+			sentences = new HashSet<GdlSentence>();
+			if (getSees() != null) {
+				for (See see : getSees()) {
+					sentences.add(see.getContents().toSentence());
+				}
 			}
+			this.sentences = sentences;
 		}
-		return false;
+		return sentences;
 	}
 }
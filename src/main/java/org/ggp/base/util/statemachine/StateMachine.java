@@ -5,8 +5,8 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
@@ -220,6 +220,21 @@ public abstract class StateMachine
         ;
     }
 
+    /** Override this to let clients run this state machine on several threads at once.
+     * <p>
+     * Returns a new instance of this state machine, already initialized for the same game,
+     * that shares whatever read-only structure it can with this one (compiled rules, propnets)
+     * but owns all of its mutable evaluation state. A fork can be used from one thread while
+     * this machine, or any other fork of it, is used from another, without any locking.
+     * States produced by one fork can be passed to any other.
+     * <p>
+     * CONTRACT: May only be called after {@link #initialize(List)}. Machines that cannot be
+     *           forked throw an {@link UnsupportedOperationException}.
+     */
+    public StateMachine fork() {
+        throw new UnsupportedOperationException(getName() + " does not support forking.");
+    }
+
     // ============================================
     //   Implementations of convenience methods
     // ============================================
@@ -407,7 +422,7 @@ public abstract class StateMachine
     public Move getRandomMove(MachineState state, Role role) throws MoveDefinitionException
     {
         List<Move> legals = getLegalMoves(state, role);
-        return legals.get(new Random().nextInt(legals.size()));
+        return legals.get(ThreadLocalRandom.current().nextInt(legals.size()));
     }
 
     /**
@@ -443,13 +458,22 @@ public abstract class StateMachine
 
     /**
      * Returns a terminal state derived from repeatedly making random joint moves
-     * until reaching the end of the game.
+     * until reaching the end of the game. The given state is left intact.
+     * <p>
+     * To run many depth charges on several threads at once, see
+     * {@link org.ggp.base.util.statemachine.playout.PlayoutPool}.
      *
      * @param theDepth an integer array, the 0th element of which will be set to
      * the number of state changes that were made to reach a terminal state.
      */
     public MachineState performDepthCharge(MachineState state, final int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
         int nDepth = 0;
+        // The first step must leave the given state intact, since it belongs
+        // to the caller; every state after that is ours to destroy.
+        if(!isTerminal(state)) {
+            nDepth++;
+            state = getNextState(state, getRandomJointMove(state));
+        }
         while(!isTerminal(state)) {
             nDepth++;
             state = getNextStateDestructively(state, getRandomJointMove(state));
@@ -465,13 +489,13 @@ public abstract class StateMachine
             avgScores[j] = 0;
         }
         final int[] depth = new int[1];
+        final List<Role> roles = getRoles();
         for (int i = 0; i < repetitions; i++) {
-            MachineState stateForCharge = state.clone();
-            stateForCharge = performDepthCharge(stateForCharge, depth);
+            MachineState stateForCharge = performDepthCharge(state, depth);
             avgDepth[0] += depth[0];
             final double accumulatedDiscountFactor = Math.pow(discountFactor, depth[0]);
             for (int j = 0; j < avgScores.length; j++) {
-                avgScores[j] += getGoal(stateForCharge, getRoles().get(j)) * accumulatedDiscountFactor;
+                avgScores[j] += getGoal(stateForCharge, roles.get(j)) * accumulatedDiscountFactor;
             }
         }
         avgDepth[0] /= repetitions;
@@ -1,10 +1,13 @@
 package org.ggp.base.util.statemachine.cache;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.BitMachineState;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -13,121 +16,220 @@ import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ImmutableList;
 
+/**
+ * CachedStateMachine memoizes the results of a backing state machine, per
+ * state. The cache is bounded, either by a number of states or by an estimate
+ * of the memory the cached states take up, and evicts the least recently used
+ * states once it's full. Lookups go through a lock-striped cache, and the
+ * results cached for a state are published without locking, so several
+ * threads can share one cache: the forks of a CachedStateMachine all share
+ * the cache of the machine they were forked from.
+ *
+ * Hit, miss and eviction counts are available from {@link #getStats()}, and
+ * are logged once per move.
+ */
 public final class CachedStateMachine extends StateMachine
 {
+    /**
+     * A rough estimate of the memory taken up by a cache entry, besides the
+     * state itself: the entry and its arrays, the cache's own bookkeeping, and
+     * a few cached move lists and next states.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 512;
+
     private final StateMachine backingStateMachine;
-    private final TtlCache<MachineState, Entry> ttlCache;
+    private final LoadingCache<MachineState, Entry> cache;
+    private final ConcurrentMap<Role, List<Move>> actions;
 
-    private final class Entry
+    /**
+     * The results cached for one state. Every field is filled in at most once
+     * per thread that races for it, and the backing machine is deterministic,
+     * so racing threads just store the same result.
+     */
+    private static final class Entry
     {
-        public Map<Role, Integer> goals;
-        public Map<Role, List<Move>> actions;
-        public Map<Role, List<Move>> moves;
-        public Map<List<Move>, MachineState> nexts;
-        public Boolean terminal;
+        public final AtomicReferenceArray<Integer> goals;
+        public final AtomicReferenceArray<List<Move>> moves;
+        public final ConcurrentMap<List<Move>, MachineState> nexts;
+        public volatile Boolean terminal;
 
-        public Entry()
+        public Entry(int numRoles)
         {
-            goals = new HashMap<Role, Integer>();
-            actions = new HashMap<Role, List<Move>>();
-            moves = new HashMap<Role, List<Move>>();
-            nexts = new HashMap<List<Move>, MachineState>();
+            goals = new AtomicReferenceArray<Integer>(numRoles);
+            moves = new AtomicReferenceArray<List<Move>>(numRoles);
+            nexts = new ConcurrentHashMap<List<Move>, MachineState>(4, 0.75f, 1);
             terminal = null;
         }
     }
 
+    /**
+     * Creates a cached state machine whose cache may use up to a quarter of
+     * the maximum heap size.
+     */
     public CachedStateMachine(StateMachine backingStateMachine)
+    {
+        this(backingStateMachine, createByteBoundedCache(backingStateMachine, Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    /**
+     * Creates a cached state machine that holds the results for at most the
+     * given number of states.
+     */
+    public CachedStateMachine(StateMachine backingStateMachine, long maxStates)
+    {
+        this(backingStateMachine, newCacheBuilder().maximumSize(maxStates).build(createLoader(backingStateMachine)));
+    }
+
+    /**
+     * Creates a cached state machine whose cached states take up at most about
+     * the given number of bytes.
+     */
+    public static CachedStateMachine withMemoryBudget(StateMachine backingStateMachine, long maxBytes)
+    {
+        return new CachedStateMachine(backingStateMachine, createByteBoundedCache(backingStateMachine, maxBytes));
+    }
+
+    private CachedStateMachine(StateMachine backingStateMachine, LoadingCache<MachineState, Entry> cache)
     {
         this.backingStateMachine = backingStateMachine;
-        ttlCache = new TtlCache<MachineState, Entry>(1);
+        this.cache = cache;
+        this.actions = new ConcurrentHashMap<Role, List<Move>>();
     }
 
-    private Entry getEntry(MachineState state)
+    private static CacheBuilder<Object, Object> newCacheBuilder()
     {
-        if (!ttlCache.containsKey(state))
-        {
-            ttlCache.put(state, new Entry());
+        return CacheBuilder.newBuilder()
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .recordStats();
+    }
+
+    private static LoadingCache<MachineState, Entry> createByteBoundedCache(StateMachine backingStateMachine, long maxBytes)
+    {
+        return newCacheBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<MachineState, Entry>() {
+                    @Override
+                    public int weigh(MachineState state, Entry entry) {
+                        return estimateBytes(state);
+                    }
+                })
+                .build(createLoader(backingStateMachine));
+    }
+
+    /**
+     * The entries are created lazily, and the roles are only known once the
+     * backing machine is initialized, so the loader looks them up each time.
+     */
+    private static CacheLoader<MachineState, Entry> createLoader(final StateMachine backingStateMachine)
+    {
+        return new CacheLoader<MachineState, Entry>() {
+            @Override
+            public Entry load(MachineState state) {
+                return new Entry(backingStateMachine.getRoles().size());
+            }
+        };
+    }
+
+    private static int estimateBytes(MachineState state)
+    {
+        if (state instanceof BitMachineState) {
+            return ENTRY_OVERHEAD_BYTES + 64 + 8 * ((BitMachineState) state).getBits().length;
         }
+        // A plain state is a HashSet of shared, interned sentences.
+        return ENTRY_OVERHEAD_BYTES + 64 + 48 * state.getContents().size();
+    }
+
+    /**
+     * Returns a cached machine over a fork of the backing machine, which
+     * shares this machine's cache.
+     */
+    @Override
+    public StateMachine fork()
+    {
+        return new CachedStateMachine(backingStateMachine.fork(), cache);
+    }
 
-        return ttlCache.get(state);
+    private Entry getEntry(MachineState state)
+    {
+        return cache.getUnchecked(state);
     }
 
     @Override
     public int getGoal(MachineState state, Role role) throws GoalDefinitionException
     {
         Entry entry = getEntry(state);
-        synchronized (entry)
+        int roleIndex = getRoleIndices().get(role);
+        Integer goal = entry.goals.get(roleIndex);
+        if (goal == null)
         {
-            if (!entry.goals.containsKey(role))
-            {
-                entry.goals.put(role, backingStateMachine.getGoal(state, role));
-            }
-
-            return entry.goals.get(role);
+            goal = backingStateMachine.getGoal(state, role);
+            entry.goals.set(roleIndex, goal);
         }
+
+        return goal;
     }
 
     @Override
     public List<Move> findActions(Role role) throws MoveDefinitionException
     {
-    	MachineState initialState = backingStateMachine.getInitialState();
-        Entry entry = getEntry(initialState);
-        synchronized (entry)
+        List<Move> roleActions = actions.get(role);
+        if (roleActions == null)
         {
-            if (!entry.actions.containsKey(role))
-            {
-                entry.actions.put(role, ImmutableList.copyOf(backingStateMachine.findActions(role)));
-            }
-
-            return entry.actions.get(role);
+            roleActions = ImmutableList.copyOf(backingStateMachine.findActions(role));
+            actions.put(role, roleActions);
         }
+
+        return roleActions;
     }
 
     @Override
     public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
     {
         Entry entry = getEntry(state);
-        synchronized (entry)
+        int roleIndex = getRoleIndices().get(role);
+        List<Move> moves = entry.moves.get(roleIndex);
+        if (moves == null)
         {
-            if (!entry.moves.containsKey(role))
-            {
-                entry.moves.put(role, ImmutableList.copyOf(backingStateMachine.getLegalMoves(state, role)));
-            }
-
-            return entry.moves.get(role);
+            moves = ImmutableList.copyOf(backingStateMachine.getLegalMoves(state, role));
+            entry.moves.set(roleIndex, moves);
         }
+
+        return moves;
     }
 
     @Override
     public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
     {
         Entry entry = getEntry(state);
-        synchronized (entry)
+        MachineState next = entry.nexts.get(moves);
+        if (next == null)
         {
-            if (!entry.nexts.containsKey(moves))
-            {
-                entry.nexts.put(moves, backingStateMachine.getNextState(state, moves));
-            }
-
-            return entry.nexts.get(moves);
+            next = backingStateMachine.getNextState(state, moves);
+            entry.nexts.put(ImmutableList.copyOf(moves), next);
         }
+
+        return next;
     }
 
     @Override
     public boolean isTerminal(MachineState state)
     {
         Entry entry = getEntry(state);
-        synchronized (entry)
+        Boolean terminal = entry.terminal;
+        if (terminal == null)
         {
-            if (entry.terminal == null)
-            {
-                entry.terminal = backingStateMachine.isTerminal(state);
-            }
-
-            return entry.terminal;
+            terminal = backingStateMachine.isTerminal(state);
+            entry.terminal = terminal;
         }
+
+        return terminal;
     }
 
     @Override
@@ -136,9 +238,31 @@ public final class CachedStateMachine extends StateMachine
         prune();
     }
 
+    /**
+     * Performs any pending cache maintenance, and logs the cache statistics.
+     * Eviction happens as entries are added, so there's no need to call this
+     * to keep the cache bounded.
+     */
     public void prune()
     {
-        ttlCache.prune();
+        cache.cleanUp();
+        CacheStats stats = cache.stats();
+        GamerLogger.log("StateMachine", "Cache holds " + cache.size() + " states; " + stats.hitCount() + " hits, "
+                + stats.missCount() + " misses, " + stats.evictionCount() + " evictions.");
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts of the cache, which is shared
+     * with the forks of this machine.
+     */
+    public CacheStats getStats()
+    {
+        return cache.stats();
+    }
+
+    public long getCacheSize()
+    {
+        return cache.size();
     }
 
     @Override
@@ -157,4 +281,4 @@ public final class CachedStateMachine extends StateMachine
         // TODO(schreib): Should this be cached as well?
         return backingStateMachine.getInitialState();
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,7 @@
 package org.ggp.base.util.statemachine.iistatemachine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -13,16 +14,15 @@ import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.IIPropNet;
 import org.ggp.base.util.propnet.architecture.PropNet;
 import org.ggp.base.util.propnet.architecture.components.And;
-import org.ggp.base.util.propnet.architecture.components.Constant;
 import org.ggp.base.util.propnet.architecture.components.Not;
 import org.ggp.base.util.propnet.architecture.components.Or;
 import org.ggp.base.util.propnet.architecture.components.Proposition;
 import org.ggp.base.util.propnet.architecture.components.Transition;
-import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.cache.PropNetCache;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
-import org.ggp.base.util.statemachine.See;
+import org.ggp.base.util.statemachine.SeesIndex;
 import org.ggp.base.util.statemachine.SeesState;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
@@ -44,19 +44,173 @@ public class IISamplePropNetStateMachine extends IIStateMachine {
 
 	private IIPropNet iipropNet;
 	private List<Role> roles;
-	private List<Proposition> ordering;
 	private StateMachine normalStateMachine;
-	private List<Proposition> seesPropagationProps;
-	private Map<Proposition, Double> knownProps;
-	private Set<Proposition> trueProps;
+
+	/*
+	 * Indices into the IIPropNet of everything the queries below need, so that
+	 * they don't have to look propositions up, or box their values.
+	 */
+	private int initProposition;
+	private GdlSentence[] baseSentences;
+	private int[] basePropositions;
+	private long[] inputPropositions;
+	private Map<Role, Move[]> legalMoves;
+	private Map<Role, int[]> legalPropositions;
+	private Map<Role, int[]> legalInputs;
+	private Map<Role, SeesIndex> seesIndices;
+	private Map<Role, int[]> seesPropositions;
+	private Map<Role, int[]> goalValues;
+	private Map<Role, int[]> goalPropositions;
+	/** The transitions whose values a role can work out, and the bases they feed. */
+	private Map<Role, int[]> knowableTransitions;
+	private Map<Role, int[]> knowableBases;
+
+	/*
+	 * The propositions whose values this machine has set, so that clearing
+	 * them costs no more than setting them did: a stack of their indices, and
+	 * a bitset that keeps it free of duplicates.
+	 */
+	private int[] touchedProps;
+	private int numTouchedProps;
+	private long[] isTouchedProp;
+	/*
+	 * Sees propagation visits each component at most once per value. Visits
+	 * are stamped with the epoch of the propagation, so that nothing has to be
+	 * cleared between propagations.
+	 */
+	private int propagationEpoch;
+	private int[] visitedTrue;
+	private int[] visitedFalse;
+	/** Which of the knowable bases were known, and known to be true, at the last reset. */
+	private Role knownRole;
+	private long[] knownBases;
+	private long[] trueBases;
 
 	@Override
 	public void initialize(StateMachine stateMachine, List<Gdl> description) throws InterruptedException {
 		normalStateMachine = stateMachine;
-		PropNet originalPropNet = OptimizingPropNetFactory.create(description);
+		PropNet originalPropNet = PropNetCache.create(description);
 		iipropNet = new IIPropNet(originalPropNet);
 		roles = iipropNet.getRoles();
-		seesPropagationProps = new ArrayList<Proposition>();
+
+		initProposition = iipropNet.getIndex(iipropNet.getInitProposition());
+		baseSentences = new GdlSentence[iipropNet.getBasePropositions().size()];
+		basePropositions = new int[baseSentences.length];
+		int i = 0;
+		for (Map.Entry<GdlSentence, Proposition> entry : iipropNet.getBasePropositions().entrySet()) {
+			baseSentences[i] = entry.getKey();
+			basePropositions[i] = iipropNet.getIndex(entry.getValue());
+			i++;
+		}
+		int words = (iipropNet.getSize() + 63) >>> 6;
+		inputPropositions = new long[words];
+		for (Proposition prop : iipropNet.getInputPropositions().values()) {
+			int index = iipropNet.getIndex(prop);
+			inputPropositions[index >>> 6] |= 1L << index;
+		}
+
+		legalMoves = new HashMap<Role, Move[]>();
+		legalPropositions = new HashMap<Role, int[]>();
+		legalInputs = new HashMap<Role, int[]>();
+		seesIndices = new HashMap<Role, SeesIndex>();
+		seesPropositions = new HashMap<Role, int[]>();
+		goalValues = new HashMap<Role, int[]>();
+		goalPropositions = new HashMap<Role, int[]>();
+		knowableTransitions = new HashMap<Role, int[]>();
+		knowableBases = new HashMap<Role, int[]>();
+		for (Role role : roles) {
+			List<Proposition> legals = new ArrayList<Proposition>(iipropNet.getLegalPropositions().get(role));
+			Move[] moves = new Move[legals.size()];
+			int[] legalProps = new int[legals.size()];
+			int[] inputProps = new int[legals.size()];
+			for (int j = 0; j < legals.size(); j++) {
+				moves[j] = getMoveFromProposition(legals.get(j));
+				legalProps[j] = iipropNet.getIndex(legals.get(j));
+				Proposition input = iipropNet.getLegalInputMap().get(legals.get(j));
+				inputProps[j] = input == null ? -1 : iipropNet.getIndex(input);
+			}
+			legalMoves.put(role, moves);
+			legalPropositions.put(role, legalProps);
+			legalInputs.put(role, inputProps);
+
+			Set<Proposition> sees = iipropNet.getSeesPropositionsByRole().get(role);
+			if (sees != null) {
+				List<Proposition> seesList = new ArrayList<Proposition>(sees);
+				GdlSentence[] sentences = new GdlSentence[seesList.size()];
+				int[] seesProps = new int[seesList.size()];
+				for (int j = 0; j < seesList.size(); j++) {
+					sentences[j] = seesList.get(j).getName();
+					seesProps[j] = iipropNet.getIndex(seesList.get(j));
+				}
+				seesIndices.put(role, new SeesIndex(role, sentences));
+				seesPropositions.put(role, seesProps);
+			}
+
+			List<Proposition> goals = new ArrayList<Proposition>(iipropNet.getGoalPropositions().get(role));
+			int[] values = new int[goals.size()];
+			int[] goalProps = new int[goals.size()];
+			for (int j = 0; j < goals.size(); j++) {
+				values[j] = Integer.parseInt(goals.get(j).getName().getBody().get(1).toString());
+				goalProps[j] = iipropNet.getIndex(goals.get(j));
+			}
+			goalValues.put(role, values);
+			goalPropositions.put(role, goalProps);
+
+			List<Transition> transitions = new ArrayList<Transition>(iipropNet.getNonDoesTransitions());
+			transitions.addAll(iipropNet.getDoesTransitions().get(role));
+			int[] transitionProps = new int[transitions.size()];
+			int[] bases = new int[transitions.size()];
+			for (int j = 0; j < transitions.size(); j++) {
+				Transition t = transitions.get(j);
+				if (t.getOutputs().size() > 1) System.out.println("NABIIPNSM: Transition found with more than one base proposition.");
+				transitionProps[j] = iipropNet.getIndex(t);
+				bases[j] = iipropNet.getIndex(t.getSingleOutput());
+			}
+			knowableTransitions.put(role, transitionProps);
+			knowableBases.put(role, bases);
+		}
+		createScratch();
+	}
+
+	private void createScratch() {
+		int size = iipropNet.getSize();
+		touchedProps = new int[size];
+		numTouchedProps = 0;
+		isTouchedProp = new long[(size + 63) >>> 6];
+		propagationEpoch = 0;
+		visitedTrue = new int[size];
+		visitedFalse = new int[size];
+		knownRole = null;
+		knownBases = null;
+		trueBases = null;
+	}
+
+	/**
+	 * Returns a copy of this machine that shares the propnet and the indices
+	 * into it, and has its own II-values and a fork of the normal state
+	 * machine, so that the two can be used from different threads.
+	 */
+	@Override
+	public IISamplePropNetStateMachine fork() {
+		IISamplePropNetStateMachine fork = new IISamplePropNetStateMachine();
+		fork.normalStateMachine = normalStateMachine.fork();
+		fork.iipropNet = iipropNet.fork();
+		fork.roles = roles;
+		fork.initProposition = initProposition;
+		fork.baseSentences = baseSentences;
+		fork.basePropositions = basePropositions;
+		fork.inputPropositions = inputPropositions;
+		fork.legalMoves = legalMoves;
+		fork.legalPropositions = legalPropositions;
+		fork.legalInputs = legalInputs;
+		fork.seesIndices = seesIndices;
+		fork.seesPropositions = seesPropositions;
+		fork.goalValues = goalValues;
+		fork.goalPropositions = goalPropositions;
+		fork.knowableTransitions = knowableTransitions;
+		fork.knowableBases = knowableBases;
+		fork.createScratch();
+		return fork;
 	}
 
 	@Override
@@ -74,11 +228,12 @@ public class IISamplePropNetStateMachine extends IIStateMachine {
 		List<Integer> goals = new ArrayList<Integer>();
 		for (int i = 0; i < roles.size(); i++) {
 			Role role = roles.get(i);
-			Set<Proposition> goalProps = iipropNet.getGoalPropositions().get(role);
+			int[] values = goalValues.get(role);
+			int[] goalProps = goalPropositions.get(role);
 			boolean goalFound = false;
-			for (Proposition prop : goalProps) {
-				if ((propMark(prop) == 1) && !goalFound) {
-					goals.add(new Integer(Integer.parseInt(prop.getName().getBody().get(1).toString()))); // could be issue with index of 2
+			for (int j = 0; j < goalProps.length; j++) {
+				if (iipropNet.isTrue(goalProps[j]) && !goalFound) {
+					goals.add(values[j]);
 					goalFound = true;
 				} else if (goalFound) {
 					goals.add(-1);
@@ -90,11 +245,6 @@ public class IISamplePropNetStateMachine extends IIStateMachine {
 		return goals;
 	}
 
-	// presupposes prop is a sees proposition
-	private See getSeeFromProp(Proposition prop, Role role) {
-		return new See(role, prop.getName().getBody().get(1));
-	}
-
 	@Override
 	public boolean isTerminal(MachineState state) {
 		return normalStateMachine.isTerminal(state);
@@ -116,31 +266,26 @@ public class IISamplePropNetStateMachine extends IIStateMachine {
 	// could be adjusted to return moves which have unknown II value, but strictly speaking this should
 	// not be necessary
 	public List<Move> getLegalMoves(SeesState seesState, Move move) throws MoveDefinitionException {
-
 		setPropNetState(seesState, move);
-		List<Move> moves = new ArrayList<Move>();
-
-		for (Proposition prop : iipropNet.getLegalPropositions().get(seesState.getRole())) {
-			if (propMark(prop) == 1) {
-				Move m = new Move(prop.getName().getBody().get(1));
-				moves.add(m);
-			}
-		}
-		return moves;
+		return getKnownLegalMoves(seesState.getRole());
 	}
 
 	@Override
 	public List<Move> getLegalMoves(SeesState seesState) throws MoveDefinitionException {
-
 		setPropNetState(seesState);
-		List<Move> moves = new ArrayList<Move>();
-		for (Proposition prop : iipropNet.getLegalPropositions().get(seesState.getRole())) {
-			if (propMark(prop) == 1) {
-				Move m = new Move(prop.getName().getBody().get(1));
-				moves.add(m);
+		return getKnownLegalMoves(seesState.getRole());
+	}
+
+	private List<Move> getKnownLegalMoves(Role role) {
+		Move[] moves = legalMoves.get(role);
+		int[] legalProps = legalPropositions.get(role);
+		List<Move> known = new ArrayList<Move>();
+		for (int i = 0; i < legalProps.length; i++) {
+			if (iipropNet.isTrue(legalProps[i])) {
+				known.add(moves[i]);
 			}
 		}
-		return moves;
+		return known;
 	}
 
 	// could be done more efficiently by specifying whether the propnet needs to be reset.
@@ -148,25 +293,25 @@ public class IISamplePropNetStateMachine extends IIStateMachine {
 	@Override
 	public List<Move> refineLegalMoves(SeesState seesState, Move move, Role role) {
 		setPropNetState(seesState, move);
-		List<Move> moves = new ArrayList<Move>();
-		for (Proposition prop : iipropNet.getLegalPropositions().get(role)) {
-			if (!(propMark(prop) == 0)) {
-				moves.add(getMoveFromProposition(prop));
-			}
-		}
-		return moves;
+		return getPossibleLegalMoves(role);
 	}
 
 	@Override
 	public List<Move> refineLegalMoves(SeesState seesState, Role role) {
 		setPropNetState(seesState);
-		List<Move> moves = new ArrayList<Move>();
-		for (Proposition prop : iipropNet.getLegalPropositions().get(role)) {
-			if (!(propMark(prop) == 0)) {
-				moves.add(getMoveFromProposition(prop));
+		return getPossibleLegalMoves(role);
+	}
+
+	private List<Move> getPossibleLegalMoves(Role role) {
+		Move[] moves = legalMoves.get(role);
+		int[] legalProps = legalPropositions.get(role);
+		List<Move> possible = new ArrayList<Move>();
+		for (int i = 0; i < legalProps.length; i++) {
+			if (!iipropNet.isFalse(legalProps[i])) {
+				possible.add(moves[i]);
 			}
 		}
-		return moves;
+		return possible;
 	}
 
 	@Override
@@ -193,32 +338,50 @@ public class IISamplePropNetStateMachine extends IIStateMachine {
 
 	@Override
 	public SeesState getSeesState(MachineState state, Role role) {
+		setPropNetState(state);
+		return readSeesState(role);
+	}
 
+	/**
+	 * Sets the propnet to the given state once, and reads the sees of every
+	 * role off it.
+	 */
+	@Override
+	public List<SeesState> getAllSeesStates(MachineState state) {
 		setPropNetState(state);
-		Set<See> sees = new HashSet<See>();
-		if (iipropNet.getSeesPropositionsByRole().get(role) == null) {
+		List<SeesState> seesStates = new ArrayList<SeesState>(roles.size());
+		for (Role role : roles) {
+			seesStates.add(readSeesState(role));
+		}
+		return seesStates;
+	}
+
+	private SeesState readSeesState(Role role) {
+		int[] seesProps = seesPropositions.get(role);
+		if (seesProps == null) {
 			return new SeesState(role, null);
 		}
-		for (Proposition prop : iipropNet.getSeesPropositionsByRole().get(role)) {
-			if (normalStatePropMark(prop)) {
-				See see = new See(role, prop.getName().toTerm());
-				sees.add(see);
+		SeesIndex index = seesIndices.get(role);
+		long[] bits = new long[index.getNumWords()];
+		for (int i = 0; i < seesProps.length; i++) {
+			if (iipropNet.isTrue(seesProps[i])) {
+				bits[i >>> 6] |= 1L << i;
 			}
 		}
-		return new SeesState(role, sees);
+		return new SeesState(index, bits);
 	}
 
 	private void setPropNetState(SeesState seesState) {
 		resetPropNet(seesState.getRole());
 		markSees(seesState);
-		propagateSees();
+		propagateSees(seesState.getRole());
 	}
 
 	private void setPropNetState(SeesState seesState, Move move) {
 		markAction(move, seesState.getRole());
 		resetPropNet(seesState.getRole());
 		markSees(seesState);
-		propagateSees();
+		propagateSees(seesState.getRole());
 	}
 
 	private void setPropNetState(MachineState state) {
@@ -226,227 +389,199 @@ public class IISamplePropNetStateMachine extends IIStateMachine {
 		markBases(state.getContents());
 	}
 
+	/**
+	 * Moves the propnet on to the next state, keeping only the bases whose
+	 * values follow from what was known of the last one, and the role's own
+	 * move.
+	 */
 	private void resetPropNet(Role role) {
-
-		iipropNet.setIIValue(iipropNet.getInitProposition(), 0);
-		knownProps = new HashMap<Proposition, Double>();
-		trueProps = new HashSet<Proposition>();
-		for (Transition t : iipropNet.getNonDoesTransitions()) { // get iivalues of base propositions connected to transition
-			double iivalue = propMark(t.getSingleInput());
-			if (t.getOutputs().size() > 1) System.out.println("NABIIPNSM: Transition found with more than one base proposition.");
-			knownProps.put((Proposition)t.getSingleOutput(), iivalue);
-		}
-		for (Transition t : iipropNet.getDoesTransitions().get(role)) {
-			double iivalue = propMark(t.getSingleInput());
-			knownProps.put((Proposition)t.getSingleOutput(), iivalue);
+		int[] transitions = knowableTransitions.get(role);
+		int[] bases = knowableBases.get(role);
+		int words = (transitions.length + 63) >>> 6;
+		if (knownBases == null || knownBases.length < words) {
+			knownBases = new long[words];
+			trueBases = new long[words];
 		}
-		for (Proposition p : knownProps.keySet()) { // set iivalues of these base props
-			iipropNet.setIIValue(p, knownProps.get(p));
-			if (knownProps.get(p) == 1) {
-				trueProps.add(p);
+		Arrays.fill(knownBases, 0);
+		Arrays.fill(trueBases, 0);
+		knownRole = role;
+		// Work out the next values of the bases before clearing the current ones
+		for (int i = 0; i < transitions.length; i++) {
+			if (iipropNet.isKnown(transitions[i])) {
+				knownBases[i >>> 6] |= 1L << i;
+				if (iipropNet.isTrue(transitions[i])) {
+					trueBases[i >>> 6] |= 1L << i;
+				}
 			}
 		}
 
-		for (Proposition p : iipropNet.getPropositions()) { // set all other propositions to unknown
-			if (!knownProps.containsKey(p) && !iipropNet.getInputPropositions().values().contains(p)) {
-				iipropNet.setIIValue(p, 0.5);
+		clearTouchedProps(true); // set all other propositions to unknown
+		setValue(initProposition, false);
+		for (int i = 0; i < transitions.length; i++) { // set iivalues of the known base props
+			if ((knownBases[i >>> 6] & (1L << i)) != 0) {
+				setValue(bases[i], (trueBases[i >>> 6] & (1L << i)) != 0);
 			}
 		}
-
 	}
 
+	/**
+	 * Returns the bases whose values were known at the start of the last
+	 * query on a SeesState, before any sees were taken into account.
+	 */
 	public Map<Proposition, Double> getKnownProps() {
+		Map<Proposition, Double> knownProps = new HashMap<Proposition, Double>();
+		if (knownRole != null) {
+			int[] bases = knowableBases.get(knownRole);
+			for (int i = 0; i < bases.length; i++) {
+				if ((knownBases[i >>> 6] & (1L << i)) != 0) {
+					knownProps.put((Proposition) iipropNet.getComponent(bases[i]), (trueBases[i >>> 6] & (1L << i)) != 0 ? 1.0 : 0.0);
+				}
+			}
+		}
 		return knownProps;
 	}
 
+	/**
+	 * Returns the bases that were known to be true at the start of the last
+	 * query on a SeesState.
+	 */
 	public Set<Proposition> getTrueProps() {
+		Set<Proposition> trueProps = new HashSet<Proposition>();
+		if (knownRole != null) {
+			int[] bases = knowableBases.get(knownRole);
+			for (int i = 0; i < bases.length; i++) {
+				if ((trueBases[i >>> 6] & (1L << i)) != 0) {
+					trueProps.add((Proposition) iipropNet.getComponent(bases[i]));
+				}
+			}
+		}
 		return trueProps;
 	}
 
+	/**
+	 * Sets the role's inputs to the given move. These are set directly rather
+	 * than through {@link #setValue(int, boolean)}, so that they are not among
+	 * the touched propositions: that is how the move survives
+	 * {@link #clearPropNet()}, until the next call here replaces it.
+	 */
 	private void markAction(Move move, Role role) {
 		if (move != null){
-			for (Proposition legal : iipropNet.getLegalPropositions().get(role)) {
-				if (legal.getName().get(1).equals(move.getContents())) {
-					iipropNet.setIIValue(iipropNet.getLegalInputMap().get(legal), 1);
-				} else {
-					iipropNet.setIIValue(iipropNet.getLegalInputMap().get(legal), 0);
+			Move[] moves = legalMoves.get(role);
+			int[] inputs = legalInputs.get(role);
+			for (int i = 0; i < moves.length; i++) {
+				if (inputs[i] >= 0) {
+					iipropNet.setValue(inputs[i], moves[i].equals(move));
 				}
 			}
 		}
 	}
 
 	private void markSees(SeesState seesState) {
-		Role role = seesState.getRole();
-		if (iipropNet.getSeesPropositionsByRole().get(role) != null) {
-			for (Proposition prop : iipropNet.getSeesPropositionsByRole().get(seesState.getRole())) {
-				if (seesState.containsSee(prop.getName())) {
-					iipropNet.setIIValue(prop, 1);
-				} else {
-					iipropNet.setIIValue(prop, 0);
-				}
+		int[] seesProps = seesPropositions.get(seesState.getRole());
+		if (seesProps != null) {
+			SeesIndex index = seesIndices.get(seesState.getRole());
+			boolean sameIndex = seesState.getIndex() == index;
+			for (int i = 0; i < seesProps.length; i++) {
+				setValue(seesProps[i], sameIndex ? seesState.isSeen(i) : seesState.containsSee(index.getSentence(i)));
 			}
 		}
 	}
 
-	private void propagateSees() {
-		List<Proposition> trueSees = new ArrayList<Proposition>();
-		List<Proposition> falseSees = new ArrayList<Proposition>();
-		for (Proposition prop : iipropNet.getSeesPropositionsByName().values()) {
-			seesPropagationProps.add(prop);
-			if (prop.getValue()) trueSees.add(prop);
-			else falseSees.add(prop);
+	/**
+	 * Works back from the role's sees to what they imply about the rest of
+	 * the propnet. Only the role's own sees are known, so the sees of other
+	 * roles are left alone.
+	 */
+	private void propagateSees(Role role) {
+		int[] seesProps = seesPropositions.get(role);
+		if (seesProps == null) {
+			return;
 		}
-		// propagate true values
-		for (Proposition prop : trueSees) {
-			for (Component c : prop.getInputs()) {
-				propagateSeesHelper(c, true);
-			}
+		if (++propagationEpoch == 0) {
+			Arrays.fill(visitedTrue, 0);
+			Arrays.fill(visitedFalse, 0);
+			propagationEpoch = 1;
 		}
-		// propagate false values
-		for (Proposition prop : falseSees) {
-			for (Component c : prop.getInputs()) {
-				propagateSeesHelper(c, false);
+		// propagate true values, then false ones
+		for (boolean value : new boolean[] { true, false }) {
+			for (int prop : seesProps) {
+				if (iipropNet.isTrue(prop) == value) {
+					for (int input : iipropNet.getInputIndices(prop)) {
+						propagateSeesHelper(input, value);
+					}
+				}
 			}
 		}
 	}
 
-	private void propagateSeesHelper(Component c, boolean value) {
+	private void propagateSeesHelper(int index, boolean value) {
+		int[] visited = value ? visitedTrue : visitedFalse;
+		if (visited[index] == propagationEpoch) {
+			return;
+		}
+		visited[index] = propagationEpoch;
 
-		double iivalue;
-		if (value) iivalue = 1;
-		else iivalue = 0;
+		Component c = iipropNet.getComponent(index);
+		int[] inputs = iipropNet.getInputIndices(index);
 		if (c instanceof Proposition) {
-			Proposition prop = (Proposition) c;
-			iipropNet.setIIValue(prop, iivalue);
-
-			if (!seesPropagationProps.contains(prop)) seesPropagationProps.add(prop);
+			setValue(index, value);
 
-			if (prop.getInputs().size() > 1 || ((prop.getInputs().size() == 1) && !(prop.getSingleInput() instanceof Transition))) {
-				for (Component comp : prop.getInputs()) propagateSeesHelper(comp, value);
+			if (inputs.length > 1 || ((inputs.length == 1) && !(c.getSingleInput() instanceof Transition))) {
+				for (int input : inputs) propagateSeesHelper(input, value);
 			}
 
 		} else if ((c instanceof And) && value) {
-			for (Component comp : c.getInputs()) propagateSeesHelper(comp, value);
+			for (int input : inputs) propagateSeesHelper(input, value);
 
 		} else if ((c instanceof Or) && !value) {
-			for (Component comp : c.getInputs()) propagateSeesHelper(comp, value);
+			for (int input : inputs) propagateSeesHelper(input, value);
 
 		} else if (c instanceof Not) {
-			propagateSeesHelper(c.getSingleInput(), !value);
+			propagateSeesHelper(inputs[0], !value);
 		}
 
 	}
 
-	// Clears propnet by setting the II value of every single component to unknown. In theory we only need to clear
-	// the values from propositions that were affected by the downward sees propagation, so this could potentially
-	// be done more efficiently by keeping track of these propositions during propagation.
-	private void clearPropNet() {
-		if (seesPropagationProps == null) {
-			for(Proposition prop : iipropNet.getPropositions()) {
-				iipropNet.setIIValue(prop, 0.5);
-			}
-		} else {
-			for (Proposition prop : seesPropagationProps) {
-				iipropNet.setIIValue(prop, 0.5);
-			}
+	private void setValue(int index, boolean value) {
+		iipropNet.setValue(index, value);
+		if ((isTouchedProp[index >>> 6] & (1L << index)) == 0) {
+			isTouchedProp[index >>> 6] |= 1L << index;
+			touchedProps[numTouchedProps++] = index;
 		}
-		iipropNet.setIIValue(iipropNet.getInitProposition(), 0);
 	}
 
-	private void markBases(Set<GdlSentence> sentences){
-		for (GdlSentence sent: iipropNet.getBasePropositions().keySet()){
-			if (sentences.contains(sent)) {
-				iipropNet.setIIValue(iipropNet.getBasePropositions().get(sent),1);
+	/**
+	 * Makes every proposition this machine has set unknown again, other than
+	 * the inputs if they are to be kept.
+	 */
+	private void clearTouchedProps(boolean keepInputs) {
+		int kept = 0;
+		for (int i = 0; i < numTouchedProps; i++) {
+			int index = touchedProps[i];
+			if (keepInputs && (inputPropositions[index >>> 6] & (1L << index)) != 0) {
+				touchedProps[kept++] = index;
 			} else {
-				iipropNet.setIIValue(iipropNet.getBasePropositions().get(sent), 0);
+				iipropNet.clearValue(index);
+				isTouchedProp[index >>> 6] &= ~(1L << index);
 			}
 		}
+		numTouchedProps = kept;
 	}
 
-	private double propMark(Component c){
-		if (c instanceof Proposition){
-
-			Proposition iiprop = (Proposition) c;
-			double iivalue = iipropNet.getIIValue(iiprop);
-			if ((iivalue == 0) || (iivalue == 1)) {
-				return iivalue;
-			}
-			// view proposition
-			if (iiprop.getInputs().size() == 1 && !(iiprop.getSingleInput() instanceof Transition)){
-				return propMark(iiprop.getSingleInput());
-			}
-			// base or input proposition
-			else{
-				return iivalue;
-			}
-		}
-		else if (c instanceof And){
-			double propValue = 1;
-			for (Component c2 : c.getInputs()){
-				if (propMark(c2) == 0) return 0;
-				if (propMark(c2) == 0.5) propValue = 0.5;
-			}
-			return propValue;
-		}
-		else if (c instanceof Or){
-			double propValue = 0;
-			for (Component c2 : c.getInputs()){
-				if (propMark(c2) == 1) return 1;
-				if (propMark(c2) == 0.5) propValue = 0.5;
-			}
-			return propValue;
-		}
-		else if (c instanceof Constant){
-			if(c.getValue()) return 1;
-			else return 0;
-		}
-		else if (c instanceof Not){
-			if (propMark(c.getSingleInput()) == 0) return 1;
-			else if (propMark(c.getSingleInput()) == 1) return 0;
-			else return propMark(c.getSingleInput());
-		}
-		else if (c instanceof Transition){
-			return propMark(c.getSingleInput());
-		}
-
-		return 0;
+	/**
+	 * Clears everything set since the last state, so that only the bases need
+	 * to be set again. The moves are left alone only because
+	 * {@link #markAction(Move, Role)} doesn't record them as touched; an input
+	 * set by sees propagation is cleared.
+	 */
+	private void clearPropNet() {
+		clearTouchedProps(false);
+		setValue(initProposition, false);
 	}
 
-	private boolean normalStatePropMark(Component c){
-		if (c instanceof Proposition){
-
-			// view proposition
-			if (!(c.getSingleInput() instanceof Transition)){
-				return normalStatePropMark(c.getSingleInput());
-			}
-			// base or input proposition
-			else{
-				return c.getValue();
-			}
-		}
-		else if (c instanceof And){
-			for (Component c2:c.getInputs()){
-				if (!normalStatePropMark(c2)) return false;
-			}
-			return true;
-		}
-		else if (c instanceof Or){
-			for (Component c2:c.getInputs()){
-				if (normalStatePropMark(c2)) return true;
-			}
-			return false;
-		}
-		else if (c instanceof Constant){
-			return c.getValue();
-		}
-		else if (c instanceof Not){
-			return !normalStatePropMark(c.getSingleInput());
-		}
-		else if (c instanceof Transition){
-			return normalStatePropMark(c.getSingleInput());
+	private void markBases(Set<GdlSentence> sentences){
+		for (int i = 0; i < baseSentences.length; i++) {
+			setValue(basePropositions[i], sentences.contains(baseSentences[i]));
 		}
-
-		System.out.println("NotABotIIPropNetStateMachine found unknown Component during normalStatePropMark");
-		return false;
 	}
 }
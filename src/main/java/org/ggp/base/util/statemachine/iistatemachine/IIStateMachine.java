@@ -1,5 +1,6 @@
 package org.ggp.base.util.statemachine.iistatemachine;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -113,6 +114,30 @@ public abstract class IIStateMachine {
 
 	public abstract SeesState getSeesState(MachineState state, Role role);
 
+	/**
+	 * Returns what every role sees in the given state, in the same order as
+	 * {@link #getRoles()}. Implementations that can work out the sees of all
+	 * roles at once should override this.
+	 */
+	public List<SeesState> getAllSeesStates(MachineState state) {
+		List<SeesState> seesStates = new ArrayList<SeesState>();
+		for (Role role : getRoles()) {
+			seesStates.add(getSeesState(state, role));
+		}
+		return seesStates;
+	}
+
+	/**
+	 * Returns a new instance of this state machine, already initialized for
+	 * the same game, that can be used from another thread at the same time as
+	 * this one, in the manner of {@link StateMachine#fork()}.
+	 * <p>
+	 * Machines that cannot be forked throw an {@link UnsupportedOperationException}.
+	 */
+	public IIStateMachine fork() {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support forking.");
+	}
+
 	// This really shouldn't need to be done in IIStateMachine since it technically doesn't need to be done with a propnet
 	public abstract IIPropNet getIIPropNet();
 
@@ -0,0 +1,272 @@
+package org.ggp.base.util.statemachine.iistatemachine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.See;
+import org.ggp.base.util.statemachine.SeesState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * ParticleFilter keeps track of what one role believes the state of a game
+ * with incomplete information to be, as a bounded population of concrete
+ * states (particles) that are consistent with everything the role has done
+ * and seen so far. Searches can then run on real states, rather than on the
+ * over-approximation of the three-valued propnet.
+ *
+ * Each turn, every new particle is made by picking a random particle, playing
+ * the role's own move there along with random legal moves for everyone else,
+ * and keeping the result only if the role would have seen in it exactly what
+ * it did see. The sees come from {@link IIStateMachine#getSeesState}, which
+ * is the observation model. If no particle survives, which happens when the
+ * population has lost the true state, the filter samples again from the
+ * initial state along the whole history.
+ *
+ * The filtering runs on several threads, each with forks of both state
+ * machines, in the same way as a {@link org.ggp.base.util.statemachine.playout.PlayoutPool}.
+ * If either machine cannot be forked, it runs on a single thread on the
+ * machines themselves, and the caller must not use them during an update.
+ *
+ * A filter holds on to its threads until {@link #shutdown()} is called.
+ */
+public final class ParticleFilter {
+
+	/** How many tries each new particle gets, on average, before the filter gives up on it. */
+	private static final int ATTEMPTS_PER_PARTICLE = 20;
+
+	private static final AtomicInteger filterCounter = new AtomicInteger();
+
+	private final Role role;
+	private final int numParticles;
+	private final StateMachine[] machines;
+	private final IIStateMachine[] iiMachines;
+	private final ExecutorService executor;
+	private final Random random = new Random();
+
+	private final List<Move> ownMoves = new ArrayList<Move>();
+	private final List<SeesState> observations = new ArrayList<SeesState>();
+	private List<MachineState> particles;
+
+	/**
+	 * Creates a filter with one worker per available processor.
+	 */
+	public ParticleFilter(StateMachine stateMachine, IIStateMachine iiStateMachine, Role role, int numParticles) {
+		this(stateMachine, iiStateMachine, role, numParticles, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParticleFilter(StateMachine stateMachine, IIStateMachine iiStateMachine, Role role, int numParticles, int numThreads) {
+		if (numParticles < 1 || numThreads < 1) {
+			throw new IllegalArgumentException("A particle filter needs at least one particle and one thread, not " + numParticles + " and " + numThreads);
+		}
+		this.role = role;
+		this.numParticles = numParticles;
+
+		StateMachine[] machines = new StateMachine[numThreads];
+		IIStateMachine[] iiMachines = new IIStateMachine[numThreads];
+		try {
+			for (int i = 0; i < numThreads; i++) {
+				machines[i] = stateMachine.fork();
+				iiMachines[i] = iiStateMachine.fork();
+			}
+		} catch (UnsupportedOperationException e) {
+			GamerLogger.log("StateMachine", "Cannot fork the state machines, so the particle filter will run on a single thread.");
+			machines = new StateMachine[] { stateMachine };
+			iiMachines = new IIStateMachine[] { iiStateMachine };
+		}
+		this.machines = machines;
+		this.iiMachines = iiMachines;
+
+		final String prefix = "ParticleFilter-" + filterCounter.incrementAndGet() + "-";
+		this.executor = Executors.newFixedThreadPool(machines.length, new ThreadFactory() {
+			private final AtomicInteger threadCounter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.particles = Collections.singletonList(stateMachine.getInitialState());
+	}
+
+	public Role getRole() {
+		return role;
+	}
+
+	public int getNumThreads() {
+		return machines.length;
+	}
+
+	/**
+	 * Returns the current particles. There are at most as many as the filter
+	 * was created with, and the same state may appear more than once, in
+	 * proportion to how likely it is. The list is empty if no state could be
+	 * found that is consistent with the history.
+	 */
+	public List<MachineState> getParticles() {
+		return particles;
+	}
+
+	/**
+	 * Returns one of the current particles at random, or null if there are
+	 * none.
+	 */
+	public MachineState sample(Random random) {
+		List<MachineState> particles = this.particles;
+		if (particles.isEmpty()) {
+			return null;
+		}
+		return particles.get(random.nextInt(particles.size()));
+	}
+
+	/**
+	 * Returns the number of turns the filter has been updated with.
+	 */
+	public int getNumTurns() {
+		return ownMoves.size();
+	}
+
+	/**
+	 * Moves the particles on by one turn, in which the role played the given
+	 * move and then saw the given sees, as the player gets them from the
+	 * server. Returns false if no particle is consistent with the history.
+	 */
+	public boolean update(Move ownMove, Set<GdlTerm> sees) throws TransitionDefinitionException, MoveDefinitionException {
+		Set<See> seesSet = new HashSet<See>();
+		if (sees != null) {
+			for (GdlTerm term : sees) {
+				seesSet.add(new See(role, term));
+			}
+		}
+		return update(ownMove, new SeesState(role, seesSet));
+	}
+
+	/**
+	 * Moves the particles on by one turn, in which the role played the given
+	 * move and then saw what is in the given SeesState. Returns false if no
+	 * particle is consistent with the history.
+	 */
+	public boolean update(Move ownMove, SeesState observed) throws TransitionDefinitionException, MoveDefinitionException {
+		ownMoves.add(ownMove);
+		observations.add(observed);
+		List<MachineState> next = particles.isEmpty() ? particles : advance(particles, ownMove, observed);
+		if (next.isEmpty()) {
+			GamerLogger.log("StateMachine", "No particle is consistent with turn " + ownMoves.size() + ", so sampling again from the start.");
+			next = resample();
+		}
+		particles = next;
+		return !particles.isEmpty();
+	}
+
+	/**
+	 * Samples new particles along the whole history, starting from the
+	 * initial state.
+	 */
+	private List<MachineState> resample() throws TransitionDefinitionException, MoveDefinitionException {
+		List<MachineState> states = Collections.singletonList(machines[0].getInitialState());
+		for (int t = 0; t < ownMoves.size() && !states.isEmpty(); t++) {
+			states = advance(states, ownMoves.get(t), observations.get(t));
+		}
+		return states;
+	}
+
+	private List<MachineState> advance(final List<MachineState> parents, final Move ownMove, final SeesState observed) throws TransitionDefinitionException, MoveDefinitionException {
+		List<Future<List<MachineState>>> futures = new ArrayList<Future<List<MachineState>>>(machines.length);
+		for (int w = 0; w < machines.length; w++) {
+			final StateMachine machine = machines[w];
+			final IIStateMachine iiMachine = iiMachines[w];
+			final int quota = numParticles / machines.length + (w < numParticles % machines.length ? 1 : 0);
+			final Random workerRandom = new Random(random.nextLong());
+			futures.add(executor.submit(new Callable<List<MachineState>>() {
+				@Override
+				public List<MachineState> call() throws Exception {
+					return advanceWorker(machine, iiMachine, workerRandom, parents, ownMove, observed, quota);
+				}
+			}));
+		}
+
+		List<MachineState> children = new ArrayList<MachineState>(numParticles);
+		try {
+			for (Future<List<MachineState>> future : futures) {
+				children.addAll(future.get());
+			}
+		} catch (InterruptedException e) {
+			for (Future<List<MachineState>> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TransitionDefinitionException) {
+				throw (TransitionDefinitionException) cause;
+			} else if (cause instanceof MoveDefinitionException) {
+				throw (MoveDefinitionException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		return Collections.unmodifiableList(children);
+	}
+
+	private List<MachineState> advanceWorker(StateMachine machine, IIStateMachine iiMachine, Random random, List<MachineState> parents, Move ownMove, SeesState observed, int quota) throws TransitionDefinitionException, MoveDefinitionException {
+		List<Role> roles = machine.getRoles();
+		List<MachineState> children = new ArrayList<MachineState>(quota);
+		for (int attempts = quota * ATTEMPTS_PER_PARTICLE; children.size() < quota && attempts > 0; attempts--) {
+			if (Thread.currentThread().isInterrupted()) {
+				break;
+			}
+			MachineState parent = parents.get(random.nextInt(parents.size()));
+			if (machine.isTerminal(parent)) {
+				continue;
+			}
+			List<Move> jointMove = new ArrayList<Move>(roles.size());
+			for (Role r : roles) {
+				List<Move> legalMoves = machine.getLegalMoves(parent, r);
+				if (r.equals(role)) {
+					jointMove.add(legalMoves.contains(ownMove) ? ownMove : null);
+				} else {
+					jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+				}
+			}
+			if (jointMove.contains(null)) {
+				// The role couldn't have played its move here.
+				continue;
+			}
+			MachineState child = machine.getNextState(parent, jointMove);
+			if (iiMachine.getSeesState(child, role).sameSeesAs(observed)) {
+				children.add(child);
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Stops the worker threads. The filter cannot be updated afterwards.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
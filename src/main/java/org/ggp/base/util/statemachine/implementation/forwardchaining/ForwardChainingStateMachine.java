@@ -0,0 +1,380 @@
+package org.ggp.base.util.statemachine.implementation.forwardchaining;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.model.DependencyGraphs;
+import org.ggp.base.util.gdl.model.SentenceDomainModel;
+import org.ggp.base.util.gdl.model.SentenceDomainModelFactory;
+import org.ggp.base.util.gdl.model.SentenceDomainModelOptimizer;
+import org.ggp.base.util.gdl.model.SentenceForm;
+import org.ggp.base.util.gdl.model.SentenceForms;
+import org.ggp.base.util.gdl.transforms.DeORer;
+import org.ggp.base.util.gdl.transforms.GdlCleaner;
+import org.ggp.base.util.gdl.transforms.VariableConstrainer;
+import org.ggp.base.util.reasoner.gdl.GdlChainingReasoner;
+import org.ggp.base.util.reasoner.gdl.GdlSentenceSet;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Sets;
+
+/**
+ * ForwardChainingStateMachine is a state machine that computes the full model
+ * of each state bottom-up, using a {@link GdlChainingReasoner}, instead of
+ * proving each query top-down like the {@link
+ * org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine}.
+ * It needs no grounding of the rules, so it also works on games too large to
+ * turn into a propnet. It does rely on the same sentence model as the propnet
+ * factory, though, so like propnets it can't handle games whose sentences
+ * nest functions without bound.
+ *
+ * The sentence forms of the game are split into three groups, each evaluated
+ * along its own stratification of the dependency graph:
+ *
+ *   - The constant forms, whose sentences are derived once, when the machine
+ *     is initialized.
+ *   - The forms that depend on "true" but not on "does", such as legal, goal
+ *     and terminal, which are derived once for each state asked about.
+ *   - The forms that depend on "does", such as next, which are derived for
+ *     each joint move.
+ *
+ * Within a stratum, the rules are applied once to everything known so far,
+ * and after that only to the sentences that the previous pass added, so that
+ * recursive rules don't re-derive everything on each pass.
+ *
+ * The model of the state most recently asked about is kept, so asking for the
+ * legal moves of every role, whether it's terminal, the goals and the next
+ * states only derives it once. This state machine is not thread-safe; use
+ * {@link #fork()} to get an instance for each thread.
+ */
+public class ForwardChainingStateMachine extends StateMachine
+{
+    private static final GdlSentence TERMINAL = GdlPool.getProposition(GdlPool.TERMINAL);
+
+    private SentenceDomainModel model;
+    private GdlChainingReasoner reasoner;
+    private GdlSentenceSet constants;
+    private List<Set<SentenceForm>> stateStrata;
+    private List<Set<SentenceForm>> moveStrata;
+    /** The strata with a rule that depends on a form of the same stratum. */
+    private Set<Set<SentenceForm>> recursiveStrata;
+    private ImmutableList<Role> roles;
+    private MachineState initialState;
+    /** The forms of the true and does sentences seen so far, shared with forks. */
+    private ConcurrentMap<GdlSentence, SentenceForm> sentenceForms;
+
+    /** The state whose model was derived last, and that model. */
+    private MachineState modelledState;
+    private GdlSentenceSet stateModel;
+
+    /**
+     * Initialize must be called before using the StateMachine
+     */
+    public ForwardChainingStateMachine()
+    {
+
+    }
+
+    /**
+     * Creates a fork of the given machine, which shares its rules and
+     * constants, but derives the models of states on its own.
+     */
+    private ForwardChainingStateMachine(ForwardChainingStateMachine original)
+    {
+        this.model = original.model;
+        this.reasoner = original.reasoner;
+        this.constants = original.constants;
+        this.stateStrata = original.stateStrata;
+        this.moveStrata = original.moveStrata;
+        this.recursiveStrata = original.recursiveStrata;
+        this.roles = original.roles;
+        this.initialState = original.initialState;
+        this.sentenceForms = original.sentenceForms;
+    }
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        try {
+            roles = ImmutableList.copyOf(Role.computeRoles(description));
+            description = GdlCleaner.run(description);
+            description = DeORer.run(description);
+            description = VariableConstrainer.replaceFunctionValuedVariables(description);
+            model = SentenceDomainModelFactory.createWithCartesianDomains(description);
+            model = SentenceDomainModelOptimizer.restrictDomainsToUsefulValues(model);
+            reasoner = GdlChainingReasoner.create(model);
+            sentenceForms = new ConcurrentHashMap<GdlSentence, SentenceForm>();
+
+            Set<SentenceForm> allForms = model.getSentenceForms();
+            Set<SentenceForm> constantForms = model.getConstantSentenceForms();
+            Set<SentenceForm> moveForms = DependencyGraphs.getMatchingAndDownstream(allForms,
+                    ImmutableSetMultimap.copyOf(model.getDependencyGraph()), SentenceForms.DOES_PRED);
+            Set<SentenceForm> stateForms = Sets.newHashSet(Sets.difference(allForms, Sets.union(constantForms, moveForms)));
+            stateForms.removeAll(Sets.filter(allForms, SentenceForms.TRUE_PRED));
+            Set<SentenceForm> moveRuleForms = Sets.newHashSet(Sets.filter(moveForms, Predicates.not(SentenceForms.DOES_PRED)));
+
+            recursiveStrata = Collections.newSetFromMap(new IdentityHashMap<Set<SentenceForm>, Boolean>());
+            constants = reasoner.getConstantSentences();
+            deriveStrata(constants, getStrata(constantForms));
+            // A copy has every form shared, so the forks can all copy it at
+            // once without writing to it.
+            constants = constants.copy();
+            stateStrata = getStrata(stateForms);
+            moveStrata = getStrata(moveRuleForms);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        modelledState = null;
+        stateModel = null;
+        initialState = toState(getSentences(constants, GdlPool.INIT));
+    }
+
+    @Override
+    public StateMachine fork()
+    {
+        return new ForwardChainingStateMachine(this);
+    }
+
+    /**
+     * Returns the given forms in a stratified topological order, considering
+     * only the dependencies among those forms.
+     */
+    private List<Set<SentenceForm>> getStrata(Set<SentenceForm> forms)
+    {
+        Multimap<SentenceForm, SentenceForm> dependencies = model.getDependencyGraph();
+        dependencies = Multimaps.filterKeys(dependencies, Predicates.in(forms));
+        dependencies = Multimaps.filterValues(dependencies, Predicates.in(forms));
+        List<Set<SentenceForm>> strata = DependencyGraphs.toposortSafe(forms, ImmutableMultimap.copyOf(dependencies));
+        for (Set<SentenceForm> stratum : strata) {
+            for (SentenceForm form : stratum) {
+                if (!Collections.disjoint(dependencies.get(form), stratum)) {
+                    recursiveStrata.add(stratum);
+                    break;
+                }
+            }
+        }
+        return strata;
+    }
+
+    /**
+     * Adds everything the rules for the given strata derive to the sentences,
+     * one stratum after another.
+     */
+    private void deriveStrata(GdlSentenceSet sentences, List<Set<SentenceForm>> strata) throws InterruptedException
+    {
+        for (Set<SentenceForm> stratum : strata) {
+            // One full pass, collecting what's new if the rules can use it.
+            boolean recursive = recursiveStrata.contains(stratum);
+            GdlSentenceSet newSentences = GdlSentenceSet.create();
+            for (SentenceForm form : stratum) {
+                for (GdlRule rule : model.getRules(form)) {
+                    GdlSentenceSet ruleResults = reasoner.getRuleResults(rule, model, sentences);
+                    if (!reasoner.isSubsetOf(sentences, ruleResults)) {
+                        sentences = reasoner.getUnion(sentences, ruleResults);
+                        if (recursive) {
+                            newSentences = reasoner.getUnion(newSentences, ruleResults);
+                        }
+                    }
+                }
+            }
+
+            // Then differential passes, until recursive rules stop adding anything.
+            while (!newSentences.isEmpty()) {
+                GdlSentenceSet addedInPass = GdlSentenceSet.create();
+                for (SentenceForm form : stratum) {
+                    for (GdlRule rule : model.getRules(form)) {
+                        GdlSentenceSet ruleResults = reasoner.getRuleResultsForNewSentences(rule, model, sentences, newSentences);
+                        addedInPass = reasoner.getUnion(addedInPass, ruleResults);
+                    }
+                }
+                sentences = reasoner.getUnion(sentences, addedInPass);
+                newSentences = addedInPass;
+            }
+        }
+    }
+
+    /**
+     * Returns the model of the given state: the constants, the state's own
+     * sentences and everything they imply, except for what depends on moves.
+     */
+    private GdlSentenceSet getStateModel(MachineState state)
+    {
+        if (state != modelledState && !state.equals(modelledState)) {
+            GdlSentenceSet sentences = constants.copy();
+            addAll(sentences, state.getContents());
+            try {
+                deriveStrata(sentences, stateStrata);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            modelledState = state;
+            stateModel = sentences;
+        }
+        return stateModel;
+    }
+
+    /**
+     * Returns the model's instance of the sentence's form, which is much
+     * faster to look up than an equal form from elsewhere.
+     */
+    private SentenceForm getSentenceForm(GdlSentence sentence)
+    {
+        SentenceForm form = sentenceForms.get(sentence);
+        if (form == null) {
+            form = reasoner.getCanonicalForm(model.getSentenceForm(sentence));
+            sentenceForms.put(sentence, form);
+        }
+        return form;
+    }
+
+    private void addAll(GdlSentenceSet sentences, Set<GdlSentence> toAdd)
+    {
+        for (GdlSentence sentence : toAdd) {
+            sentences.put(getSentenceForm(sentence), sentence);
+        }
+    }
+
+    /**
+     * Returns the sentences with the given name in the given model.
+     */
+    private static Set<GdlSentence> getSentences(GdlSentenceSet sentences, GdlConstant name)
+    {
+        Set<GdlSentence> results = new HashSet<GdlSentence>();
+        for (Map.Entry<SentenceForm, Set<GdlSentence>> entry : sentences.getSentencesByForm().entrySet()) {
+            if (entry.getKey().getName() == name) {
+                results.addAll(entry.getValue());
+            }
+        }
+        return results;
+    }
+
+    private static MachineState toState(Set<GdlSentence> sentences)
+    {
+        Set<GdlSentence> contents = new HashSet<GdlSentence>();
+        for (GdlSentence sentence : sentences) {
+            contents.add(GdlPool.getRelation(GdlPool.TRUE, ImmutableList.<GdlTerm>of(sentence.get(0))));
+        }
+        return new MachineState(contents);
+    }
+
+    private static List<Move> toMoves(Set<GdlSentence> sentences, Role role)
+    {
+        List<Move> moves = new ArrayList<Move>();
+        for (GdlSentence sentence : sentences) {
+            if (sentence.get(0).equals(role.getName())) {
+                moves.add(new Move(sentence.get(1)));
+            }
+        }
+        return moves;
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        Integer goal = null;
+        for (GdlSentence sentence : getSentences(getStateModel(state), GdlPool.GOAL)) {
+            if (sentence.get(0).equals(role.getName())) {
+                if (goal != null) {
+                    throw new GoalDefinitionException(state, role);
+                }
+                try {
+                    goal = Integer.parseInt(sentence.get(1).toString());
+                } catch (NumberFormatException e) {
+                    throw new GoalDefinitionException(state, role);
+                }
+            }
+        }
+        if (goal == null) {
+            throw new GoalDefinitionException(state, role);
+        }
+        return goal;
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        return getStateModel(state).containsSentence(getSentenceForm(TERMINAL), TERMINAL);
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return roles;
+    }
+
+    @Override
+    public MachineState getInitialState()
+    {
+        return initialState;
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        List<Move> moves = toMoves(getSentences(constants, GdlPool.INPUT), role);
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(initialState, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        List<Move> moves = toMoves(getSentences(getStateModel(state), GdlPool.LEGAL), role);
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(state, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        if (moves.size() != roles.size()) {
+            throw new TransitionDefinitionException(state, moves);
+        }
+        GdlSentenceSet sentences = getStateModel(state).copy();
+        for (int i = 0; i < roles.size(); i++) {
+            GdlSentence does = GdlPool.getRelation(GdlPool.DOES, ImmutableList.<GdlTerm>of(roles.get(i).getName(), moves.get(i).getContents()));
+            sentences.put(getSentenceForm(does), does);
+        }
+        try {
+            deriveStrata(sentences, moveStrata);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        Set<GdlSentence> nexts = getSentences(sentences, GdlPool.NEXT);
+        for (GdlSentence next : nexts) {
+            if (!next.isGround()) {
+                throw new TransitionDefinitionException(state, moves);
+            }
+        }
+        return toState(nexts);
+    }
+}
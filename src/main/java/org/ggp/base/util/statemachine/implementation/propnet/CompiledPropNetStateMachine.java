@@ -0,0 +1,230 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+import org.ggp.base.util.propnet.compiler.CompiledPropNet;
+import org.ggp.base.util.propnet.compiler.PropNetCompiler;
+import org.ggp.base.util.propnet.cache.PropNetCache;
+import org.ggp.base.util.propnet.factory.PropNetBudget;
+import org.ggp.base.util.propnet.factory.PropNetBudgetExceededException;
+import org.ggp.base.util.statemachine.BitMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * CompiledPropNetStateMachine is a propnet state machine whose network is
+ * compiled to bytecode by the {@link PropNetCompiler}. Each query only
+ * evaluates the cone of the propositions it reads, in straight-line generated
+ * code, and the cones are evaluated at most once per distinct state. States
+ * are {@link BitMachineState}s, whose bits are handed to the compiled code
+ * as they are.
+ *
+ * The propnet can be built within a {@link PropNetBudget}, as for the
+ * {@link FlatPropNetStateMachine}.
+ *
+ * This state machine is not thread-safe; use {@link #fork()} to get an
+ * instance for each thread.
+ */
+public class CompiledPropNetStateMachine extends StateMachine
+{
+    private final PropNetBudget budget;
+    private FlatPropNet propNet;
+    private CompiledPropNet compiled;
+    private ImmutableList<Role> roles;
+    private MachineState initialState;
+
+    /** The state the base propositions are currently set to, if any. */
+    private BitMachineState markedState;
+
+    /**
+     * Initialize must be called before using the StateMachine
+     */
+    public CompiledPropNetStateMachine()
+    {
+        this(PropNetBudget.UNLIMITED);
+    }
+
+    public CompiledPropNetStateMachine(PropNetBudget budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * Creates a fork of the given machine, which shares its propnet and
+     * compiled class but has its own instance of the latter.
+     */
+    private CompiledPropNetStateMachine(CompiledPropNetStateMachine original)
+    {
+        this.budget = original.budget;
+        this.propNet = original.propNet;
+        this.compiled = original.compiled.copy();
+        this.roles = original.roles;
+        this.initialState = original.initialState;
+        this.markedState = null;
+    }
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        try {
+            propNet = new FlatPropNet(PropNetCache.create(description, budget));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (PropNetBudgetExceededException e) {
+            throw new RuntimeException(e);
+        }
+        compiled = PropNetCompiler.compile(propNet);
+        roles = ImmutableList.copyOf(propNet.getRoles());
+        long[] bits = new long[compiled.getStateLength()];
+        compiled.computeInitialState(bits);
+        initialState = new BitMachineState(propNet.getBases(), bits);
+        markedState = null;
+    }
+
+    @Override
+    public StateMachine fork()
+    {
+        return new CompiledPropNetStateMachine(this);
+    }
+
+    public FlatPropNet getPropNet()
+    {
+        return propNet;
+    }
+
+    /**
+     * Sets the base propositions to the given state. Nothing is evaluated
+     * until a query asks for it.
+     */
+    private void markState(MachineState state)
+    {
+        if (state == markedState) {
+            return;
+        }
+        BitMachineState bitState = propNet.getBases().toBitState(state);
+        if (bitState.equals(markedState)) {
+            return;
+        }
+        compiled.setState(bitState.getBits());
+        markedState = bitState;
+    }
+
+    @Override
+    public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+    {
+        return propNet.getBases().createState(sentenceList);
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        markState(state);
+        compiled.ensureGoals();
+        int roleIndex = getRoleIndices().get(role);
+        int[] goalComponents = propNet.getGoalComponents(roleIndex);
+        int[] goalValues = propNet.getGoalValues(roleIndex);
+        int goal = -1;
+        for (int i = 0; i < goalComponents.length; i++) {
+            if (compiled.getValue(goalComponents[i])) {
+                if (goal != -1) {
+                    throw new GoalDefinitionException(state, role);
+                }
+                goal = goalValues[i];
+            }
+        }
+        if (goal == -1) {
+            throw new GoalDefinitionException(state, role);
+        }
+        return goal;
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        int terminal = propNet.getTerminalComponent();
+        if (terminal < 0) {
+            return false;
+        }
+        markState(state);
+        compiled.ensureTerminal();
+        return compiled.getValue(terminal);
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return roles;
+    }
+
+    @Override
+    public MachineState getInitialState()
+    {
+        return initialState;
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        Move[] moves = propNet.getLegalMoves(getRoleIndices().get(role));
+        if (moves.length == 0) {
+            throw new MoveDefinitionException(initialState, role);
+        }
+        return ImmutableList.copyOf(moves);
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        markState(state);
+        compiled.ensureLegals();
+        int roleIndex = getRoleIndices().get(role);
+        int[] legalComponents = propNet.getLegalComponents(roleIndex);
+        Move[] legalMoves = propNet.getLegalMoves(roleIndex);
+        List<Move> moves = new ArrayList<Move>();
+        for (int i = 0; i < legalComponents.length; i++) {
+            if (compiled.getValue(legalComponents[i])) {
+                moves.add(legalMoves[i]);
+            }
+        }
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(state, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        if (moves.size() != roles.size()) {
+            throw new TransitionDefinitionException(state, moves);
+        }
+        markState(state);
+        int[] inputComponents = new int[moves.size()];
+        for (int r = 0; r < moves.size(); r++) {
+            inputComponents[r] = propNet.getInputComponent(r, moves.get(r));
+            if (inputComponents[r] >= 0) {
+                compiled.setInput(inputComponents[r], true);
+            }
+        }
+        long[] next = new long[compiled.getStateLength()];
+        compiled.computeNextState(next);
+        for (int c : inputComponents) {
+            if (c >= 0) {
+                compiled.setInput(c, false);
+            }
+        }
+        return new BitMachineState(propNet.getBases(), next);
+    }
+}
@@ -0,0 +1,364 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+import org.ggp.base.util.propnet.cache.PropNetCache;
+import org.ggp.base.util.propnet.factory.PropNetBudget;
+import org.ggp.base.util.propnet.factory.PropNetBudgetExceededException;
+import org.ggp.base.util.statemachine.BitMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * DifferentialPropNetStateMachine is a propnet state machine that evaluates the
+ * network by forward propagation of changes, rather than by re-evaluating it.
+ *
+ * Every AND and OR gate keeps a count of how many of its inputs are true. When
+ * a base or input proposition changes value, the change is pushed forward
+ * through the outputs of the {@link FlatPropNet}: each gate adjusts its count,
+ * and only if its own value flips does the change continue on to its outputs.
+ * Propositions that keep their value are never touched. The cost of moving the
+ * propnet from one state to the next is therefore proportional to how much of
+ * the network actually changes, not to the size of the network, which makes
+ * this machine well suited to depth charges, where consecutive states differ
+ * by only a few base propositions.
+ *
+ * The propnet can be built within a {@link PropNetBudget}, as for the
+ * {@link FlatPropNetStateMachine}.
+ *
+ * This state machine is not thread-safe; use {@link #fork()} to get an
+ * instance for each thread.
+ */
+public class DifferentialPropNetStateMachine extends StateMachine
+{
+    private final PropNetBudget budget;
+    private FlatPropNet propNet;
+    private ImmutableList<Role> roles;
+    private MachineState initialState;
+
+    /** The current value of every component, indexed by component index. */
+    private boolean[] values;
+    /** The number of true inputs of every component, indexed by component index. */
+    private int[] trueInputCounts;
+    /** The number of inputs of every component, indexed by component index. */
+    private int[] inputCounts;
+    /** The input propositions currently set to true, one per role (or -1). */
+    private int[] markedInputs;
+    /** The state the base propositions are currently set to, if any. */
+    private BitMachineState markedState;
+
+    /** Work list of components whose change has yet to be propagated. */
+    private int[] pending;
+
+    /**
+     * Initialize must be called before using the StateMachine
+     */
+    public DifferentialPropNetStateMachine()
+    {
+        this(PropNetBudget.UNLIMITED);
+    }
+
+    public DifferentialPropNetStateMachine(PropNetBudget budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * Creates a fork of the given machine, which shares its propnet but has
+     * its own values and counts.
+     */
+    private DifferentialPropNetStateMachine(DifferentialPropNetStateMachine original)
+    {
+        this.budget = original.budget;
+        this.propNet = original.propNet;
+        this.roles = original.roles;
+        this.initialState = original.initialState;
+        initializeValues();
+    }
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        try {
+            propNet = new FlatPropNet(PropNetCache.create(description, budget));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (PropNetBudgetExceededException e) {
+            throw new RuntimeException(e);
+        }
+        roles = ImmutableList.copyOf(propNet.getRoles());
+        initializeValues();
+        initialState = computeInitialState();
+    }
+
+    @Override
+    public StateMachine fork()
+    {
+        return new DifferentialPropNetStateMachine(this);
+    }
+
+    public FlatPropNet getPropNet()
+    {
+        return propNet;
+    }
+
+    /**
+     * Evaluates the whole network once, with every source proposition false,
+     * and records the resulting true-input counts. From then on, the values
+     * are only ever updated by propagating changes.
+     */
+    private void initializeValues()
+    {
+        int n = propNet.getNumComponents();
+        int[] inputOffsets = propNet.getInputOffsets();
+        int[] inputs = propNet.getInputs();
+
+        values = propNet.createValueArray();
+        propNet.evaluate(propNet.getStateOrder(), values);
+        propNet.evaluate(propNet.getMoveOrder(), values);
+
+        trueInputCounts = new int[n];
+        inputCounts = new int[n];
+        for (int c = 0; c < n; c++) {
+            inputCounts[c] = inputOffsets[c + 1] - inputOffsets[c];
+            for (int j = inputOffsets[c]; j < inputOffsets[c + 1]; j++) {
+                if (values[inputs[j]]) {
+                    trueInputCounts[c]++;
+                }
+            }
+        }
+
+        markedInputs = new int[roles.size()];
+        Arrays.fill(markedInputs, -1);
+        pending = new int[64];
+        markedState = null;
+    }
+
+    private MachineState computeInitialState()
+    {
+        int init = propNet.getInitComponent();
+        if (init >= 0) {
+            setSource(init, true);
+        }
+        MachineState state = readNextState();
+        if (init >= 0) {
+            setSource(init, false);
+        }
+        return state;
+    }
+
+    /**
+     * Sets the value of a source proposition, and propagates the consequences
+     * of the change (if any) forward through the network.
+     */
+    private void setSource(int source, boolean value)
+    {
+        if (values[source] == value) {
+            return;
+        }
+        values[source] = value;
+
+        byte[] types = propNet.getTypes();
+        int[] inputOffsets = propNet.getInputOffsets();
+        int[] inputs = propNet.getInputs();
+        int[] outputOffsets = propNet.getOutputOffsets();
+        int[] outputs = propNet.getOutputs();
+
+        // Each pending entry records a component together with the value it
+        // changed to, so that gates see every change exactly once even if a
+        // component flips more than once before its entry is processed.
+        int size = 0;
+        pending[size++] = (source << 1) | (value ? 1 : 0);
+        while (size > 0) {
+            int entry = pending[--size];
+            int c = entry >>> 1;
+            boolean changedTo = (entry & 1) != 0;
+            for (int j = outputOffsets[c]; j < outputOffsets[c + 1]; j++) {
+                int output = outputs[j];
+                boolean newValue;
+                switch (types[output]) {
+                case FlatPropNet.VIEW:
+                case FlatPropNet.TRANSITION:
+                    newValue = values[inputs[inputOffsets[output]]];
+                    break;
+                case FlatPropNet.NOT:
+                    newValue = !values[inputs[inputOffsets[output]]];
+                    break;
+                case FlatPropNet.AND:
+                    trueInputCounts[output] += changedTo ? 1 : -1;
+                    newValue = (trueInputCounts[output] == inputCounts[output]);
+                    break;
+                case FlatPropNet.OR:
+                    trueInputCounts[output] += changedTo ? 1 : -1;
+                    newValue = (trueInputCounts[output] > 0);
+                    break;
+                default:
+                    // Base propositions only change when a state is marked.
+                    continue;
+                }
+                if (newValue != values[output]) {
+                    values[output] = newValue;
+                    if (types[output] != FlatPropNet.TRANSITION) {
+                        if (size == pending.length) {
+                            pending = Arrays.copyOf(pending, size * 2);
+                        }
+                        pending[size++] = (output << 1) | (newValue ? 1 : 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the base propositions to the given state, propagating only the
+     * base propositions whose value differs from the previously marked state.
+     */
+    private void markState(MachineState state)
+    {
+        if (state == markedState) {
+            return;
+        }
+        BitMachineState bitState = propNet.getBases().toBitState(state);
+        if (bitState.equals(markedState)) {
+            return;
+        }
+        long[] bits = bitState.getBits();
+        int[] baseComponents = propNet.getBaseComponents();
+        for (int i = 0; i < baseComponents.length; i++) {
+            setSource(baseComponents[i], (bits[i >>> 6] & (1L << i)) != 0);
+        }
+        markedState = bitState;
+    }
+
+    private void markMoves(List<Move> moves)
+    {
+        for (int r = 0; r < markedInputs.length; r++) {
+            int input = propNet.getInputComponent(r, moves.get(r));
+            if (input != markedInputs[r]) {
+                if (markedInputs[r] >= 0) {
+                    setSource(markedInputs[r], false);
+                }
+                if (input >= 0) {
+                    setSource(input, true);
+                }
+                markedInputs[r] = input;
+            }
+        }
+    }
+
+    private MachineState readNextState()
+    {
+        int[] transitionComponents = propNet.getTransitionComponents();
+        long[] bits = new long[propNet.getBases().getNumWords()];
+        for (int i = 0; i < transitionComponents.length; i++) {
+            if (values[transitionComponents[i]]) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        return new BitMachineState(propNet.getBases(), bits);
+    }
+
+    @Override
+    public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+    {
+        return propNet.getBases().createState(sentenceList);
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        markState(state);
+        int roleIndex = getRoleIndices().get(role);
+        int[] goalComponents = propNet.getGoalComponents(roleIndex);
+        int[] goalValues = propNet.getGoalValues(roleIndex);
+        int goal = -1;
+        for (int i = 0; i < goalComponents.length; i++) {
+            if (values[goalComponents[i]]) {
+                if (goal != -1) {
+                    throw new GoalDefinitionException(state, role);
+                }
+                goal = goalValues[i];
+            }
+        }
+        if (goal == -1) {
+            throw new GoalDefinitionException(state, role);
+        }
+        return goal;
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        int terminal = propNet.getTerminalComponent();
+        if (terminal < 0) {
+            return false;
+        }
+        markState(state);
+        return values[terminal];
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return roles;
+    }
+
+    @Override
+    public MachineState getInitialState()
+    {
+        return initialState;
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        Move[] moves = propNet.getLegalMoves(getRoleIndices().get(role));
+        if (moves.length == 0) {
+            throw new MoveDefinitionException(initialState, role);
+        }
+        return ImmutableList.copyOf(moves);
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        markState(state);
+        int roleIndex = getRoleIndices().get(role);
+        int[] legalComponents = propNet.getLegalComponents(roleIndex);
+        Move[] legalMoves = propNet.getLegalMoves(roleIndex);
+        List<Move> moves = new ArrayList<Move>();
+        for (int i = 0; i < legalComponents.length; i++) {
+            if (values[legalComponents[i]]) {
+                moves.add(legalMoves[i]);
+            }
+        }
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(state, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        if (moves.size() != roles.size()) {
+            throw new TransitionDefinitionException(state, moves);
+        }
+        markState(state);
+        markMoves(moves);
+        return readNextState();
+    }
+}
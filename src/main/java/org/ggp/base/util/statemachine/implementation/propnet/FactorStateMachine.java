@@ -0,0 +1,196 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.analysis.PropNetFactoring;
+import org.ggp.base.util.propnet.analysis.PropNetFactoring.Factor;
+import org.ggp.base.util.statemachine.BaseIndex;
+import org.ggp.base.util.statemachine.BitMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * FactorStateMachine plays a single factor of a game, as found by
+ * {@link PropNetFactoring}, on top of a state machine for the whole game.
+ *
+ * Only the moves of the factor, and the free moves, are legal; a role that
+ * has none of those gets all its usual moves, which then act as passes. A
+ * move only changes the bases of the factor and the moveless bases, and the
+ * bases of every other factor keep their values. States, goals and
+ * terminality are those of the whole game, so a search over a factor can be
+ * started from, and compared with, the real state of the match, while only
+ * branching over the moves of that one factor.
+ *
+ * Combining the factors is up to the caller: every move of a factor is a
+ * real move of the game, so a gamer can search each relevant factor on its
+ * own and play the best move it finds in any of them.
+ */
+public final class FactorStateMachine extends StateMachine
+{
+    private final StateMachine backingStateMachine;
+    private final PropNetFactoring factoring;
+    private final Factor factor;
+
+    /** The bits of the bases this factor changes, for the index they were made for. */
+    private BaseIndex maskIndex;
+    private long[] mask;
+
+    public FactorStateMachine(StateMachine backingStateMachine, PropNetFactoring factoring, Factor factor)
+    {
+        this.backingStateMachine = backingStateMachine;
+        this.factoring = factoring;
+        this.factor = factor;
+    }
+
+    /**
+     * Returns a machine for each of the factors that can change the outcome
+     * of the game, all backed by forks of the given machine.
+     */
+    public static List<FactorStateMachine> createRelevant(StateMachine backingStateMachine, PropNetFactoring factoring)
+    {
+        List<FactorStateMachine> machines = new ArrayList<FactorStateMachine>();
+        for (Factor factor : factoring.getRelevantFactors()) {
+            machines.add(new FactorStateMachine(backingStateMachine.fork(), factoring, factor));
+        }
+        return machines;
+    }
+
+    public Factor getFactor()
+    {
+        return factor;
+    }
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        backingStateMachine.initialize(description);
+    }
+
+    @Override
+    public StateMachine fork()
+    {
+        return new FactorStateMachine(backingStateMachine.fork(), factoring, factor);
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        return backingStateMachine.getGoal(state, role);
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        return backingStateMachine.isTerminal(state);
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return backingStateMachine.getRoles();
+    }
+
+    @Override
+    public MachineState getInitialState()
+    {
+        return backingStateMachine.getInitialState();
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        return filter(backingStateMachine.findActions(role), role);
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        return filter(backingStateMachine.getLegalMoves(state, role), role);
+    }
+
+    /**
+     * Returns true if the given move of the given role belongs to this factor,
+     * or is free.
+     */
+    public boolean isInFactor(Role role, Move move)
+    {
+        GdlSentence does = GdlPool.getRelation(GdlPool.DOES, new GdlTerm[] { role.getName(), move.getContents() });
+        return factor.getInputs().contains(does) || factoring.getFreeInputs().contains(does);
+    }
+
+    private List<Move> filter(List<Move> moves, Role role)
+    {
+        List<Move> filtered = new ArrayList<Move>(moves.size());
+        for (Move move : moves) {
+            if (isInFactor(role, move)) {
+                filtered.add(move);
+            }
+        }
+        return filtered.isEmpty() ? moves : ImmutableList.copyOf(filtered);
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        MachineState next = backingStateMachine.getNextState(state, moves);
+        if (state instanceof BitMachineState && next instanceof BitMachineState
+                && ((BitMachineState) state).getIndex() == ((BitMachineState) next).getIndex()) {
+            BaseIndex index = ((BitMachineState) next).getIndex();
+            long[] mask = getMask(index);
+            long[] stateBits = ((BitMachineState) state).getBits();
+            long[] nextBits = ((BitMachineState) next).getBits();
+            long[] bits = new long[mask.length];
+            for (int w = 0; w < bits.length; w++) {
+                bits[w] = (stateBits[w] & ~mask[w]) | (nextBits[w] & mask[w]);
+            }
+            return new BitMachineState(index, bits);
+        }
+
+        Set<GdlSentence> contents = new HashSet<GdlSentence>();
+        for (GdlSentence sentence : state.getContents()) {
+            if (!isChangedByFactor(sentence)) {
+                contents.add(sentence);
+            }
+        }
+        for (GdlSentence sentence : next.getContents()) {
+            if (isChangedByFactor(sentence)) {
+                contents.add(sentence);
+            }
+        }
+        return backingStateMachine.getMachineStateFromSentenceList(contents);
+    }
+
+    private boolean isChangedByFactor(GdlSentence base)
+    {
+        return factor.getBases().contains(base) || factoring.getMovelessBases().contains(base);
+    }
+
+    private long[] getMask(BaseIndex index)
+    {
+        if (maskIndex != index) {
+            long[] mask = new long[index.getNumWords()];
+            for (int i = 0; i < index.getNumBases(); i++) {
+                if (isChangedByFactor(index.getSentence(i))) {
+                    mask[i >>> 6] |= 1L << i;
+                }
+            }
+            this.mask = mask;
+            this.maskIndex = index;
+        }
+        return mask;
+    }
+}
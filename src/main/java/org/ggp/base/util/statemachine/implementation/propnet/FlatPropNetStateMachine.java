@@ -0,0 +1,271 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+import org.ggp.base.util.propnet.cache.PropNetCache;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetBudget;
+import org.ggp.base.util.propnet.factory.PropNetBudgetExceededException;
+import org.ggp.base.util.statemachine.BitMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * FlatPropNetStateMachine is a state machine backed by a {@link FlatPropNet}.
+ * The propnet built by the {@link OptimizingPropNetFactory}, or loaded from the
+ * {@link PropNetCache} if the game has been seen before, is flattened into
+ * int-indexed arrays with a precomputed topological order, and the values of
+ * all the components are kept in a single boolean array. Evaluating the network
+ * is a single pass over that array; there is no recursion through
+ * {@link org.ggp.base.util.propnet.architecture.Component#getValue()}.
+ *
+ * States are {@link BitMachineState}s over the base propositions of the
+ * propnet, so they hash and compare without going through GDL.
+ *
+ * The components that only depend on the state are evaluated once per distinct
+ * state, so asking for the legal moves, goals and terminality of the same state
+ * in a row only marks the propnet once. Computing a next state only evaluates
+ * the components that depend on the moves.
+ *
+ * The propnet can be built within a {@link PropNetBudget}, in which case
+ * {@link #initialize(List)} fails with a RuntimeException instead of running
+ * past the time limit or out of memory.
+ *
+ * This state machine is not thread-safe; use {@link #fork()} to get an
+ * instance for each thread.
+ */
+public class FlatPropNetStateMachine extends StateMachine
+{
+    private final PropNetBudget budget;
+    private FlatPropNet propNet;
+    private ImmutableList<Role> roles;
+    private MachineState initialState;
+
+    /** The current value of every component, indexed by component index. */
+    private boolean[] values;
+    /** The state the base propositions are currently set to, if any. */
+    private BitMachineState markedState;
+
+    /**
+     * Initialize must be called before using the StateMachine
+     */
+    public FlatPropNetStateMachine()
+    {
+        this(PropNetBudget.UNLIMITED);
+    }
+
+    public FlatPropNetStateMachine(PropNetBudget budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * Creates a fork of the given machine, which shares its propnet but has
+     * its own component values.
+     */
+    private FlatPropNetStateMachine(FlatPropNetStateMachine original)
+    {
+        this.budget = original.budget;
+        this.propNet = original.propNet;
+        this.roles = original.roles;
+        this.initialState = original.initialState;
+        this.values = propNet.createValueArray();
+        this.markedState = null;
+    }
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        try {
+            propNet = new FlatPropNet(PropNetCache.create(description, budget));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (PropNetBudgetExceededException e) {
+            throw new RuntimeException(e);
+        }
+        roles = ImmutableList.copyOf(propNet.getRoles());
+        values = propNet.createValueArray();
+        initialState = computeInitialState();
+    }
+
+    @Override
+    public StateMachine fork()
+    {
+        return new FlatPropNetStateMachine(this);
+    }
+
+    public FlatPropNet getPropNet()
+    {
+        return propNet;
+    }
+
+    private MachineState computeInitialState()
+    {
+        int[] baseComponents = propNet.getBaseComponents();
+        for (int c : baseComponents) {
+            values[c] = false;
+        }
+        int init = propNet.getInitComponent();
+        if (init >= 0) {
+            values[init] = true;
+        }
+        propNet.evaluate(propNet.getStateOrder(), values);
+        propNet.evaluate(propNet.getMoveOrder(), values);
+        MachineState state = readNextState();
+        if (init >= 0) {
+            values[init] = false;
+        }
+        markedState = null;
+        return state;
+    }
+
+    /**
+     * Sets the base propositions to the given state, and evaluates all of the
+     * components that depend only on the state.
+     */
+    private void markState(MachineState state)
+    {
+        if (state == markedState) {
+            return;
+        }
+        BitMachineState bitState = propNet.getBases().toBitState(state);
+        if (bitState.equals(markedState)) {
+            return;
+        }
+        long[] bits = bitState.getBits();
+        int[] baseComponents = propNet.getBaseComponents();
+        for (int i = 0; i < baseComponents.length; i++) {
+            values[baseComponents[i]] = (bits[i >>> 6] & (1L << i)) != 0;
+        }
+        propNet.evaluate(propNet.getStateOrder(), values);
+        markedState = bitState;
+    }
+
+    private MachineState readNextState()
+    {
+        int[] transitionComponents = propNet.getTransitionComponents();
+        long[] bits = new long[propNet.getBases().getNumWords()];
+        for (int i = 0; i < transitionComponents.length; i++) {
+            if (values[transitionComponents[i]]) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        return new BitMachineState(propNet.getBases(), bits);
+    }
+
+    @Override
+    public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+    {
+        return propNet.getBases().createState(sentenceList);
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        markState(state);
+        int roleIndex = getRoleIndices().get(role);
+        int[] goalComponents = propNet.getGoalComponents(roleIndex);
+        int[] goalValues = propNet.getGoalValues(roleIndex);
+        int goal = -1;
+        for (int i = 0; i < goalComponents.length; i++) {
+            if (values[goalComponents[i]]) {
+                if (goal != -1) {
+                    throw new GoalDefinitionException(state, role);
+                }
+                goal = goalValues[i];
+            }
+        }
+        if (goal == -1) {
+            throw new GoalDefinitionException(state, role);
+        }
+        return goal;
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        int terminal = propNet.getTerminalComponent();
+        if (terminal < 0) {
+            return false;
+        }
+        markState(state);
+        return values[terminal];
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return roles;
+    }
+
+    @Override
+    public MachineState getInitialState()
+    {
+        return initialState;
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        Move[] moves = propNet.getLegalMoves(getRoleIndices().get(role));
+        if (moves.length == 0) {
+            throw new MoveDefinitionException(initialState, role);
+        }
+        return ImmutableList.copyOf(moves);
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        markState(state);
+        int roleIndex = getRoleIndices().get(role);
+        int[] legalComponents = propNet.getLegalComponents(roleIndex);
+        Move[] legalMoves = propNet.getLegalMoves(roleIndex);
+        List<Move> moves = new ArrayList<Move>();
+        for (int i = 0; i < legalComponents.length; i++) {
+            if (values[legalComponents[i]]) {
+                moves.add(legalMoves[i]);
+            }
+        }
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(state, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        if (moves.size() != roles.size()) {
+            throw new TransitionDefinitionException(state, moves);
+        }
+        markState(state);
+        int[] inputComponents = new int[moves.size()];
+        for (int r = 0; r < moves.size(); r++) {
+            inputComponents[r] = propNet.getInputComponent(r, moves.get(r));
+            if (inputComponents[r] >= 0) {
+                values[inputComponents[r]] = true;
+            }
+        }
+        propNet.evaluate(propNet.getMoveOrder(), values);
+        MachineState nextState = readNextState();
+        for (int c : inputComponents) {
+            if (c >= 0) {
+                values[c] = false;
+            }
+        }
+        return nextState;
+    }
+}
@@ -9,8 +9,8 @@ import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlRelation;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.logging.GamerLogger;
-import org.ggp.base.util.prover.Prover;
 import org.ggp.base.util.prover.aima.AimaProver;
+import org.ggp.base.util.prover.aima.ProverSession;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -27,9 +27,29 @@ import com.google.common.collect.ImmutableList;
 public class ProverStateMachine extends StateMachine
 {
     private MachineState initialState;
-    private Prover prover;
+    private AimaProver prover;
     private ImmutableList<Role> roles;
 
+    /**
+     * The session for the state most recently asked about. Consecutive
+     * queries on the same state, such as the legal moves of each role, share
+     * its index of the state and the facts it derived; it's replaced as soon
+     * as a query comes in for a different state.
+     */
+    private volatile StateSession session;
+
+    private static final class StateSession
+    {
+        public final MachineState state;
+        public final ProverSession prover;
+
+        public StateSession(MachineState state, ProverSession prover)
+        {
+            this.state = state;
+            this.prover = prover;
+        }
+    }
+
     /**
      * Initialize must be called before using the StateMachine
      */
@@ -38,6 +58,18 @@ public class ProverStateMachine extends StateMachine
 
     }
 
+    /**
+     * Creates a fork of the given machine. The AimaProver keeps all of its
+     * per-query state local to the query, so it can be shared as is; the fork
+     * keeps its own session.
+     */
+    private ProverStateMachine(ProverStateMachine original)
+    {
+        this.prover = original.prover;
+        this.roles = original.roles;
+        this.initialState = original.initialState;
+    }
+
     @Override
     public void initialize(List<Gdl> description)
     {
@@ -46,6 +78,32 @@ public class ProverStateMachine extends StateMachine
         initialState = computeInitialState();
     }
 
+    @Override
+    public StateMachine fork()
+    {
+        return new ProverStateMachine(this);
+    }
+
+    private ProverSession getSession(MachineState state)
+    {
+        StateSession current = session;
+        if (current == null || (current.state != state && !current.state.equals(state)))
+        {
+            current = new StateSession(state, prover.createSession(ProverQueryBuilder.getContext(state)));
+            session = current;
+        }
+        return current.prover;
+    }
+
+    /**
+     * Releases the session for the last state asked about.
+     */
+    @Override
+    public void doPerMoveWork()
+    {
+        session = null;
+    }
+
     private MachineState computeInitialState()
     {
         Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getInitQuery(), new HashSet<GdlSentence>());
@@ -55,7 +113,7 @@ public class ProverStateMachine extends StateMachine
     @Override
     public int getGoal(MachineState state, Role role) throws GoalDefinitionException
     {
-        Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getGoalQuery(role), ProverQueryBuilder.getContext(state));
+        Set<GdlSentence> results = getSession(state).askAll(ProverQueryBuilder.getGoalQuery(role));
 
         if (results.size() != 1)
         {
@@ -85,7 +143,7 @@ public class ProverStateMachine extends StateMachine
     @Override
     public List<Move> findActions(Role role) throws MoveDefinitionException
     {
-    	Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getInputQuery(role), ProverQueryBuilder.getContext(initialState));
+    	Set<GdlSentence> results = getSession(initialState).askAll(ProverQueryBuilder.getInputQuery(role));
 
         if (results.size() == 0)
         {
@@ -98,7 +156,7 @@ public class ProverStateMachine extends StateMachine
     @Override
     public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
     {
-        Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getLegalQuery(role), ProverQueryBuilder.getContext(state));
+        Set<GdlSentence> results = getSession(state).askAll(ProverQueryBuilder.getLegalQuery(role));
 
         if (results.size() == 0)
         {
@@ -111,7 +169,9 @@ public class ProverStateMachine extends StateMachine
     @Override
     public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
     {
-        Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getNextQuery(), ProverQueryBuilder.getContext(state, getRoles(), moves));
+        // The moves only last for this query, but everything derived from the
+        // state alone is kept in the state's session.
+        Set<GdlSentence> results = getSession(state).askAll(ProverQueryBuilder.getNextQuery(), ProverQueryBuilder.getMoveContext(getRoles(), moves));
 
         for (GdlSentence sentence : results)
         {
@@ -133,6 +193,6 @@ public class ProverStateMachine extends StateMachine
     @Override
     public boolean isTerminal(MachineState state)
     {
-        return prover.prove(ProverQueryBuilder.getTerminalQuery(), ProverQueryBuilder.getContext(state));
+        return getSession(state).prove(ProverQueryBuilder.getTerminalQuery());
     }
 }
\ No newline at end of file
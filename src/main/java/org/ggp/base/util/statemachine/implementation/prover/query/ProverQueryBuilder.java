@@ -44,6 +44,16 @@ public final class ProverQueryBuilder
         return context;
     }
 
+    public static Set<GdlSentence> getMoveContext(List<Role> roles, List<Move> moves)
+    {
+        Set<GdlSentence> context = new HashSet<GdlSentence>();
+        for (int i = 0; i < roles.size(); i++)
+        {
+            context.add(toDoes(roles.get(i), moves.get(i)));
+        }
+        return context;
+    }
+
     public static GdlRelation getGoalQuery(Role role)
     {
         return GdlPool.getRelation(GOAL, new GdlTerm[] { role.getName(), VARIABLE });
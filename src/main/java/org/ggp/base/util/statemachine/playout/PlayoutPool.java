@@ -0,0 +1,181 @@
+package org.ggp.base.util.statemachine.playout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * PlayoutPool runs batches of random playouts (depth charges) on several
+ * threads at once. Each worker thread owns a {@link StateMachine#fork()} of
+ * the machine the pool was created with, so the workers never share mutable
+ * evaluation state and need no locking. The workers pull playouts from a
+ * shared counter, so a batch stays balanced even when playouts vary wildly in
+ * length.
+ *
+ * The machine the pool was created with is never used by the workers, so the
+ * caller can keep using it while a batch runs on another thread. If the
+ * machine cannot be forked, the pool falls back to a single worker that uses
+ * the machine itself; in that case the caller must not touch the machine
+ * while a batch is running.
+ *
+ * A pool holds on to its threads until {@link #shutdown()} is called.
+ */
+public final class PlayoutPool
+{
+    private static final AtomicInteger poolCounter = new AtomicInteger();
+
+    private final StateMachine[] machines;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a pool with one worker per available processor.
+     */
+    public PlayoutPool(StateMachine machine)
+    {
+        this(machine, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PlayoutPool(StateMachine machine, int numThreads)
+    {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("A playout pool needs at least one thread, not " + numThreads);
+        }
+        StateMachine[] forks;
+        try {
+            forks = new StateMachine[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                forks[i] = machine.fork();
+            }
+        } catch (UnsupportedOperationException e) {
+            GamerLogger.log("StateMachine", "Cannot fork " + machine.getName() + ", so playouts will run on a single thread.");
+            forks = new StateMachine[] { machine };
+        }
+        this.machines = forks;
+
+        final String prefix = "PlayoutPool-" + poolCounter.incrementAndGet() + "-";
+        this.executor = Executors.newFixedThreadPool(machines.length, new ThreadFactory() {
+            private final AtomicInteger threadCounter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getNumThreads()
+    {
+        return machines.length;
+    }
+
+    /**
+     * Runs the given number of playouts from the given state.
+     */
+    public PlayoutResult runPlayouts(MachineState state, int numPlayouts) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return run(state, numPlayouts, Long.MAX_VALUE, 1.0);
+    }
+
+    /**
+     * Runs the given number of playouts from the given state, also recording
+     * the scores discounted by the discount factor raised to the playout depth.
+     */
+    public PlayoutResult runPlayouts(MachineState state, int numPlayouts, double discountFactor) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return run(state, numPlayouts, Long.MAX_VALUE, discountFactor);
+    }
+
+    /**
+     * Runs as many playouts from the given state as fit in the given time.
+     * Playouts that are under way when the time is up are finished, so the
+     * call may run over by the length of one playout.
+     */
+    public PlayoutResult runPlayoutsFor(MachineState state, long timeLimitMillis) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return run(state, Long.MAX_VALUE, System.nanoTime() + timeLimitMillis * 1000000L, 1.0);
+    }
+
+    private PlayoutResult run(final MachineState state, long numPlayouts, final long deadlineNanos, final double discountFactor) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        long startTime = System.nanoTime();
+        final AtomicLong remaining = new AtomicLong(numPlayouts);
+        List<Future<PlayoutResult>> futures = new ArrayList<Future<PlayoutResult>>(machines.length);
+        for (final StateMachine machine : machines) {
+            futures.add(executor.submit(new Callable<PlayoutResult>() {
+                @Override
+                public PlayoutResult call() throws Exception {
+                    return runWorker(machine, state, remaining, deadlineNanos, discountFactor);
+                }
+            }));
+        }
+
+        PlayoutResult result = new PlayoutResult(machines[0].getRoles().size());
+        try {
+            for (Future<PlayoutResult> future : futures) {
+                result.merge(future.get());
+            }
+        } catch (InterruptedException e) {
+            // Stop handing out playouts, and report what finished so far.
+            remaining.set(0);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            remaining.set(0);
+            Throwable cause = e.getCause();
+            if (cause instanceof TransitionDefinitionException) {
+                throw (TransitionDefinitionException) cause;
+            } else if (cause instanceof MoveDefinitionException) {
+                throw (MoveDefinitionException) cause;
+            } else if (cause instanceof GoalDefinitionException) {
+                throw (GoalDefinitionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        result.setElapsedNanos(System.nanoTime() - startTime);
+        return result;
+    }
+
+    private static PlayoutResult runWorker(StateMachine machine, MachineState state, AtomicLong remaining, long deadlineNanos, double discountFactor) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        List<Role> roles = machine.getRoles();
+        int[] goals = new int[roles.size()];
+        int[] depth = new int[1];
+        PlayoutResult result = new PlayoutResult(roles.size());
+        while (remaining.getAndDecrement() > 0 && System.nanoTime() < deadlineNanos) {
+            MachineState terminal = machine.performDepthCharge(state, depth);
+            for (int r = 0; r < goals.length; r++) {
+                goals[r] = machine.getGoal(terminal, roles.get(r));
+            }
+            result.addPlayout(goals, depth[0], (discountFactor == 1.0) ? 1.0 : Math.pow(discountFactor, depth[0]));
+        }
+        return result;
+    }
+
+    /**
+     * Stops the worker threads. The pool cannot be used afterwards.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,135 @@
+package org.ggp.base.util.statemachine.playout;
+
+import java.util.Arrays;
+
+/**
+ * PlayoutResult accumulates the outcome of a batch of playouts: the sum of
+ * the goal values reached by each role, the same sums discounted by depth, a
+ * histogram of playout depths, and how long the batch took. Everything is
+ * kept in primitive arrays so that recording a playout allocates nothing.
+ *
+ * Scores are indexed by role index, as in {@link org.ggp.base.util.statemachine.StateMachine#getRoles()}.
+ */
+public final class PlayoutResult
+{
+    private final long[] scoreSums;
+    private final double[] discountedScoreSums;
+    private long[] depthHistogram;
+    private long numPlayouts;
+    private long depthSum;
+    private long elapsedNanos;
+
+    public PlayoutResult(int numRoles)
+    {
+        scoreSums = new long[numRoles];
+        discountedScoreSums = new double[numRoles];
+        depthHistogram = new long[64];
+    }
+
+    void addPlayout(int[] goals, int depth, double discount)
+    {
+        for (int r = 0; r < goals.length; r++) {
+            scoreSums[r] += goals[r];
+            discountedScoreSums[r] += goals[r] * discount;
+        }
+        if (depth >= depthHistogram.length) {
+            depthHistogram = Arrays.copyOf(depthHistogram, Math.max(depth + 1, depthHistogram.length * 2));
+        }
+        depthHistogram[depth]++;
+        depthSum += depth;
+        numPlayouts++;
+    }
+
+    void merge(PlayoutResult other)
+    {
+        for (int r = 0; r < scoreSums.length; r++) {
+            scoreSums[r] += other.scoreSums[r];
+            discountedScoreSums[r] += other.discountedScoreSums[r];
+        }
+        if (other.depthHistogram.length > depthHistogram.length) {
+            depthHistogram = Arrays.copyOf(depthHistogram, other.depthHistogram.length);
+        }
+        for (int d = 0; d < other.depthHistogram.length; d++) {
+            depthHistogram[d] += other.depthHistogram[d];
+        }
+        depthSum += other.depthSum;
+        numPlayouts += other.numPlayouts;
+    }
+
+    void setElapsedNanos(long elapsedNanos)
+    {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getNumRoles()
+    {
+        return scoreSums.length;
+    }
+
+    public long getNumPlayouts()
+    {
+        return numPlayouts;
+    }
+
+    /**
+     * Returns the sum of the goal values reached by the given role.
+     */
+    public long getScoreSum(int roleIndex)
+    {
+        return scoreSums[roleIndex];
+    }
+
+    /**
+     * Returns the sum of the goal values reached by the given role, each
+     * multiplied by the discount factor raised to the depth of its playout.
+     */
+    public double getDiscountedScoreSum(int roleIndex)
+    {
+        return discountedScoreSums[roleIndex];
+    }
+
+    public double getAverageScore(int roleIndex)
+    {
+        return (numPlayouts == 0) ? 0 : (double) scoreSums[roleIndex] / numPlayouts;
+    }
+
+    public double getAverageDiscountedScore(int roleIndex)
+    {
+        return (numPlayouts == 0) ? 0 : discountedScoreSums[roleIndex] / numPlayouts;
+    }
+
+    public double getAverageDepth()
+    {
+        return (numPlayouts == 0) ? 0 : (double) depthSum / numPlayouts;
+    }
+
+    /**
+     * Returns the number of playouts that ended at each depth, indexed by
+     * depth. The array may be longer than the deepest playout.
+     */
+    public long[] getDepthHistogram()
+    {
+        return depthHistogram.clone();
+    }
+
+    public long getElapsedNanos()
+    {
+        return elapsedNanos;
+    }
+
+    public double getPlayoutsPerSecond()
+    {
+        return (elapsedNanos == 0) ? 0 : numPlayouts * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder averages = new StringBuilder();
+        for (int r = 0; r < scoreSums.length; r++) {
+            averages.append(r == 0 ? "" : ", ").append(String.format("%.2f", getAverageScore(r)));
+        }
+        return "PlayoutResult[" + numPlayouts + " playouts, average scores [" + averages + "], average depth "
+                + String.format("%.2f", getAverageDepth()) + ", " + String.format("%.1f", getPlayoutsPerSecond()) + " playouts/s]";
+    }
+}
@@ -1,6 +1,7 @@
 package org.ggp.base.util.statemachine.verifier;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import org.ggp.base.util.logging.GamerLogger;
@@ -8,6 +9,7 @@ import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 
 
 public class StateMachineVerifier {
@@ -105,4 +107,120 @@ public class StateMachineVerifier {
         GamerLogger.log("StateMachine", "Completed automatic consistency testing on " + theSubject.getClass().getName() + ", w/ " + nRound + " rounds: all tests pass!");
         return true;
     }
+
+    /**
+     * Checks that the subject state machine is equivalent to the reference
+     * state machine by playing random matches through both of them and, in
+     * every state visited, comparing the terminal-ness, the full sets of legal
+     * moves for each role, the goal values (where the reference defines them)
+     * and the contents of the next state.
+     *
+     * This is stricter than {@link #checkMachineConsistency(StateMachine, StateMachine, long)},
+     * which only compares the number of legal moves, and is meant for checking
+     * alternative implementations of the same rules (such as propnet machines)
+     * against the prover.
+     */
+    public static boolean checkMachineEquivalence(StateMachine theReference, StateMachine theSubject, long timeToSpend) {
+        long startTime = System.currentTimeMillis();
+
+        GamerLogger.log("StateMachine", "Performing automatic equivalence testing on " + theSubject.getClass().getName() + " using " + theReference.getClass().getName() + " as a reference.");
+
+        int nRound = 0;
+        int nStates = 0;
+        try {
+            while(System.currentTimeMillis() < startTime + timeToSpend) {
+                nRound++;
+                MachineState theReferenceState = theReference.getInitialState();
+                MachineState theSubjectState = theSubject.getInitialState();
+
+                while(true) {
+                    nStates++;
+                    if(!theReferenceState.getContents().equals(theSubjectState.getContents())) {
+                        GamerLogger.log("StateMachine", "Inconsistency between " + theSubject.getName() + " and " + theReference.getName() + " over contents of state " + theReferenceState + " vs " + theSubjectState);
+                        return false;
+                    }
+
+                    boolean isTerminal = theReference.isTerminal(theReferenceState);
+                    if(isTerminal != theSubject.isTerminal(theSubjectState)) {
+                        GamerLogger.log("StateMachine", "Inconsistency between " + theSubject.getName() + " and " + theReference.getName() + " over terminal-ness of state " + theReferenceState);
+                        return false;
+                    }
+
+                    for(Role theRole : theReference.getRoles()) {
+                        int theReferenceGoal;
+                        try {
+                            theReferenceGoal = theReference.getGoal(theReferenceState, theRole);
+                        } catch(GoalDefinitionException e) {
+                            continue;
+                        }
+                        int theSubjectGoal;
+                        try {
+                            theSubjectGoal = theSubject.getGoal(theSubjectState, theRole);
+                        } catch(GoalDefinitionException e) {
+                            GamerLogger.log("StateMachine", "Inconsistency between " + theSubject.getName() + " and " + theReference.getName() + " over goal-ness for " + theRole + " of state " + theReferenceState);
+                            return false;
+                        }
+                        if(theReferenceGoal != theSubjectGoal) {
+                            GamerLogger.log("StateMachine", "Inconsistency between " + theSubject.getName() + " and " + theReference.getName() + " over goal value for " + theRole + " of state " + theReferenceState + ": " + theSubjectGoal + " vs " + theReferenceGoal);
+                            return false;
+                        }
+                    }
+
+                    if(isTerminal || System.currentTimeMillis() > startTime + timeToSpend)
+                        break;
+
+                    for(Role theRole : theReference.getRoles()) {
+                        if(!new HashSet<Move>(theReference.getLegalMoves(theReferenceState, theRole)).equals(new HashSet<Move>(theSubject.getLegalMoves(theSubjectState, theRole)))) {
+                            GamerLogger.log("StateMachine", "Inconsistency between " + theSubject.getName() + " and " + theReference.getName() + " over legal moves for " + theRole + " in state " + theReferenceState + ": " + theSubject.getLegalMoves(theSubjectState, theRole) + " vs " + theReference.getLegalMoves(theReferenceState, theRole));
+                            return false;
+                        }
+                    }
+
+                    List<Move> theJointMove = theReference.getRandomJointMove(theReferenceState);
+                    theReferenceState = theReference.getNextState(theReferenceState, theJointMove);
+                    theSubjectState = theSubject.getNextState(theSubjectState, theJointMove);
+                }
+            }
+        } catch(Exception e) {
+            GamerLogger.logStackTrace("StateMachine", e);
+            return false;
+        }
+
+        GamerLogger.log("StateMachine", "Completed automatic equivalence testing on " + theSubject.getClass().getName() + ", w/ " + nRound + " rounds and " + nStates + " states: all tests pass!");
+        return true;
+    }
+
+    /**
+     * Runs {@link #checkMachineEquivalence} on several threads at once, each
+     * one with its own forks of the reference and subject machines, to check
+     * that the forks can be used concurrently.
+     */
+    public static boolean checkForkEquivalence(StateMachine theReference, StateMachine theSubject, int nThreads, final long timeToSpend) {
+        final boolean[] theResults = new boolean[nThreads];
+        Thread[] theThreads = new Thread[nThreads];
+        for(int i = 0; i < nThreads; i++) {
+            final int nThread = i;
+            final StateMachine theReferenceFork = theReference.fork();
+            final StateMachine theSubjectFork = theSubject.fork();
+            theThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    theResults[nThread] = checkMachineEquivalence(theReferenceFork, theSubjectFork, timeToSpend);
+                }
+            });
+            theThreads[i].start();
+        }
+
+        boolean allPass = true;
+        for(int i = 0; i < nThreads; i++) {
+            try {
+                theThreads[i].join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            allPass &= theResults[i];
+        }
+        return allPass;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package org.ggp.base.player.gamer;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.match.Match;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.See;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.iistatemachine.IISamplePropNetStateMachine;
+import org.ggp.base.util.statemachine.iistatemachine.IIStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Plays the guesser of the hidden number game with the ISMCTS gamer, with the
+ * test acting as the server, to check that it only ever guesses numbers that
+ * what it has seen still allows.
+ */
+public class IISampleISMCTSGamerTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    // The secret is 4, so every guess but the last one sees low.
+    @Test
+    public void testGuessesFollowSees() throws Exception {
+        Game game = new TestGameRepository().getGame("test_hidden_number");
+        StateMachine stateMachine = new ProverStateMachine();
+        stateMachine.initialize(game.getRules());
+        IIStateMachine server = new IISamplePropNetStateMachine();
+        server.initialize(stateMachine, game.getRules());
+
+        IISampleISMCTSGamer gamer = new IISampleISMCTSGamer();
+        assertEquals("IISampleISMCTSGamer", gamer.getName());
+        gamer.setMatch(new Match("", -1, 2, 2, game, ""));
+        gamer.setRoleName(GdlPool.getConstant("guesser"));
+        gamer.metaGame(System.currentTimeMillis() + 2000);
+
+        MachineState state = stateMachine.getInitialState();
+        Set<GdlTerm> sees = new HashSet<GdlTerm>();
+        int low = 0;
+        while (!stateMachine.isTerminal(state)) {
+            gamer.getIIMatch().appendSees(sees);
+            Move move = new Move(gamer.selectMove(System.currentTimeMillis() + 1500));
+            assertTrue(stateMachine.getLegalMoves(state, gamer.getRole()).contains(move));
+            if (!move.equals(Move.create("noop"))) {
+                assertTrue(guessOf(move) > low);
+            }
+
+            List<Move> jointMove = Arrays.asList(state.equals(stateMachine.getInitialState()) ? Move.create("( choose 4 )") : Move.create("noop"), move);
+            state = stateMachine.getNextState(state, jointMove);
+            sees = new HashSet<GdlTerm>();
+            for (See see : server.getSeesState(state, gamer.getRole()).getSees()) {
+                sees.add(see.getContents());
+                if (see.getContents().toString().equals("low")) {
+                    low = guessOf(move);
+                }
+            }
+        }
+        gamer.stop();
+    }
+
+    private static int guessOf(Move move) {
+        return Integer.parseInt(move.getContents().toSentence().getBody().get(0).toString());
+    }
+}
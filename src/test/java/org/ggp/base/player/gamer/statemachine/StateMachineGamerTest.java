@@ -0,0 +1,56 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import org.ggp.base.player.gamer.statemachine.random.MCTS;
+import org.ggp.base.player.gamer.statemachine.sample.SampleSearchLightGamer;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.match.Match;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.DifferentialPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FlatPropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class StateMachineGamerTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    private final Game ticTacToe = new TestGameRepository().getGame("ticTacToe");
+
+    @Test
+    public void testMetaGameSwitchesToThePropNet() throws Exception {
+        MCTS gamer = new MCTS();
+        gamer.setMatch(new Match("", -1, 3, 2, ticTacToe, ""));
+        gamer.setRoleName(GdlPool.getConstant("xplayer"));
+        gamer.metaGame(System.currentTimeMillis() + 3000);
+
+        // Whichever propnet machine played fastest.
+        StateMachine machine = gamer.getStateMachine();
+        assertTrue(machine instanceof FlatPropNetStateMachine
+                || machine instanceof DifferentialPropNetStateMachine
+                || machine instanceof CompiledPropNetStateMachine);
+        assertEquals(gamer.getStateMachine().getInitialState(), gamer.getCurrentState());
+        Move move = new Move(gamer.selectMove(System.currentTimeMillis() + 1000));
+        assertTrue(gamer.getStateMachine().getLegalMoves(gamer.getCurrentState(), gamer.getRole()).contains(move));
+        gamer.stop();
+    }
+
+    // Without the time to build a propnet, the gamer keeps its own machine.
+    @Test
+    public void testMetaGameKeepsTheMachineWhenShortOfTime() throws Exception {
+        SampleSearchLightGamer gamer = new SampleSearchLightGamer();
+        gamer.setMatch(new Match("", -1, 1, 2, ticTacToe, ""));
+        gamer.setRoleName(GdlPool.getConstant("oplayer"));
+        gamer.metaGame(System.currentTimeMillis() + 1000);
+
+        assertTrue(gamer.getStateMachine() instanceof CachedStateMachine);
+        assertEquals(gamer.getStateMachine().getInitialState(), gamer.getCurrentState());
+    }
+}
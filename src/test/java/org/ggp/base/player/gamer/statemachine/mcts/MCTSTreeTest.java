@@ -0,0 +1,135 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.Arrays;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MCTSTreeTest extends Assert {
+
+    private StateMachine stateMachine;
+    private Role xplayer;
+
+    @Before
+    public void setUp() throws Exception {
+        stateMachine = new ProverStateMachine();
+        stateMachine.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        xplayer = stateMachine.getRoles().get(0);
+    }
+
+    @Test
+    public void testEveryIterationIsCountedAtTheRoot() throws Exception {
+        MCTSTree tree = new MCTSTree(stateMachine, xplayer);
+        tree.search(stateMachine.getInitialState(), 0);
+        for (int i = 0; i < 200; i++) {
+            tree.runIteration();
+        }
+        assertEquals(200, tree.getNumIterations());
+        assertEquals(200, tree.getRootVisits());
+
+        // Every iteration goes through exactly one move of each role.
+        MCTSNode root = tree.getRoot();
+        for (int r = 0; r < 2; r++) {
+            int moveVisits = 0;
+            for (int i = 0; i < root.getLegalMoves(r).length; i++) {
+                moveVisits += root.getMoveVisits(r, i);
+            }
+            assertEquals(200, moveVisits);
+        }
+    }
+
+    @Test
+    public void testFindsWinningMove() throws Exception {
+        MachineState state = winningPosition();
+        MCTSTree tree = new MCTSTree(stateMachine, xplayer);
+        assertEquals(Move.create("( mark 1 3 )"), tree.search(state, System.currentTimeMillis() + 1000));
+        assertEquals(state, tree.getRootState());
+        assertTrue(tree.getNumIterations() > 0);
+    }
+
+    @Test
+    public void testParallelSearch() throws Exception {
+        MachineState state = winningPosition();
+        for (MCTSTree.Mode mode : MCTSTree.Mode.values()) {
+            MCTSTree tree = new MCTSTree(stateMachine, xplayer, 4, mode);
+            try {
+                assertEquals(4, tree.getNumThreads());
+                assertEquals(Move.create("( mark 1 3 )"), tree.search(state, System.currentTimeMillis() + 500));
+                assertEquals(mode == MCTSTree.Mode.LEAF ? 1 : 4, tree.getLastIterationsPerSecond().length);
+
+                // Once the workers are done, no virtual loss is left over,
+                // and every playout was counted at a root.
+                assertEquals(tree.getNumPlayouts(), tree.getRootVisits());
+                MCTSNode root = tree.getRoot();
+                int moveVisits = 0;
+                for (int i = 0; i < root.getLegalMoves(0).length; i++) {
+                    moveVisits += root.getMoveVisits(0, i);
+                }
+                assertEquals(root.getVisits(), moveVisits);
+            } finally {
+                tree.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testRootMovesToTheStateReached() throws Exception {
+        MachineState state = stateMachine.getInitialState();
+        MCTSTree tree = new MCTSTree(stateMachine, xplayer);
+        tree.search(state, 0);
+        for (int i = 0; i < 500; i++) {
+            tree.runIteration();
+        }
+
+        // Every first move has been tried, so the tree knows the next state.
+        MachineState next = play(state, "( mark 2 2 )", "noop");
+        MCTSNode child = tree.getRoot().findChild(next);
+        assertNotNull(child);
+        int childVisits = child.getVisits();
+        assertTrue(childVisits > 0);
+        tree.moveRoot(next);
+        assertSame(child, tree.getRoot());
+        assertEquals(childVisits, tree.getRootVisits());
+
+        // A state the search never reached starts a new tree.
+        tree.moveRoot(winningPosition());
+        assertEquals(0, tree.getRootVisits());
+    }
+
+    @Test
+    public void testRootMovesSeveralMovesDown() throws Exception {
+        MachineState state = stateMachine.getInitialState();
+        MCTSTree tree = new MCTSTree(stateMachine, xplayer);
+        tree.search(state, 0);
+        for (int i = 0; i < 500; i++) {
+            tree.runIteration();
+        }
+
+        // A turn went by without a search, so the root is two moves behind.
+        MachineState next = play(state, "( mark 2 2 )", "noop");
+        MachineState nextButOne = play(next, "noop", "( mark 1 1 )");
+        MCTSNode grandchild = tree.getRoot().findChild(next).findChild(nextButOne);
+        assertNotNull(grandchild);
+        tree.moveRoot(nextButOne);
+        assertSame(grandchild, tree.getRoot());
+    }
+
+    private MachineState winningPosition() throws Exception {
+        MachineState state = stateMachine.getInitialState();
+        state = play(state, "( mark 1 1 )", "noop");
+        state = play(state, "noop", "( mark 2 1 )");
+        state = play(state, "( mark 1 2 )", "noop");
+        return play(state, "noop", "( mark 2 2 )");
+    }
+
+    private MachineState play(MachineState state, String xMove, String oMove) throws Exception {
+        return stateMachine.getNextState(state, Arrays.asList(Move.create(xMove), Move.create(oMove)));
+    }
+}
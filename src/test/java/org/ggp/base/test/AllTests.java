@@ -1,7 +1,10 @@
 package org.ggp.base.test;
 
 import org.ggp.base.apps.tiltyard.TiltyardRequestFarmTest;
+import org.ggp.base.player.gamer.IISampleISMCTSGamerTest;
 import org.ggp.base.player.gamer.clojure.ClojureGamerTest;
+import org.ggp.base.player.gamer.statemachine.StateMachineGamerTest;
+import org.ggp.base.player.gamer.statemachine.mcts.MCTSTreeTest;
 import org.ggp.base.player.gamer.python.PythonGamerTest;
 import org.ggp.base.util.crypto.BaseCryptographyTest;
 import org.ggp.base.util.crypto.CanonicalJSONTest;
@@ -14,7 +17,21 @@ import org.ggp.base.util.gdl.scrambler.GdlScramblerTest;
 import org.ggp.base.util.gdl.transforms.GdlCleanerTest;
 import org.ggp.base.util.http.HttpTest;
 import org.ggp.base.util.presence.InfoResponseTest;
+import org.ggp.base.util.propnet.analysis.LatchAnalysisTest;
+import org.ggp.base.util.propnet.analysis.PropNetFactoringTest;
+import org.ggp.base.util.propnet.cache.PropNetCacheTest;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactoryTest;
+import org.ggp.base.util.prover.aima.knowledge.KnowledgeBaseTest;
+import org.ggp.base.util.statemachine.BitMachineStateTest;
+import org.ggp.base.util.statemachine.cache.CachedStateMachineTest;
+import org.ggp.base.util.statemachine.iistatemachine.IISamplePropNetStateMachineTest;
+import org.ggp.base.util.statemachine.iistatemachine.ParticleFilterTest;
+import org.ggp.base.util.statemachine.implementation.forwardchaining.ForwardChainingStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.propnet.DifferentialPropNetStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.propnet.FlatPropNetStateMachineTest;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachineTest;
+import org.ggp.base.util.statemachine.playout.PlayoutPoolTest;
 import org.ggp.base.validator.StaticValidationTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -22,20 +39,37 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	BaseCryptographyTest.class,
+	BitMachineStateTest.class,
+	CachedStateMachineTest.class,
 	CanonicalJSONTest.class,
 	ClojureGamerTest.class,
+	CompiledPropNetStateMachineTest.class,
 	DependencyGraphsTest.class,
+	DifferentialPropNetStateMachineTest.class,
+	FlatPropNetStateMachineTest.class,
+	ForwardChainingStateMachineTest.class,
 	GameParsingTest.class,
 	GdlCleanerTest.class,
 	GdlRendererTest.class,
 	GdlScramblerTest.class,
 	HttpTest.class,
+	IISampleISMCTSGamerTest.class,
+	IISamplePropNetStateMachineTest.class,
 	InfoResponseTest.class,
+	KnowledgeBaseTest.class,
+	LatchAnalysisTest.class,
+	MCTSTreeTest.class,
 	NoTabsInRulesheetsTest.class,
+	OptimizingPropNetFactoryTest.class,
+	ParticleFilterTest.class,
+	PlayoutPoolTest.class,
+	PropNetCacheTest.class,
+	PropNetFactoringTest.class,
 	ProverStateMachineTest.class,
 	PythonGamerTest.class,
 	SignableJSONTest.class,
 	SimpleSentenceFormTest.class,
+	StateMachineGamerTest.class,
 	StaticValidationTest.class,
 	TiltyardRequestFarmTest.class,
                      })
@@ -0,0 +1,28 @@
+package org.ggp.base.util.gdl;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * Shorthand for writing GDL sentences in tests.
+ */
+public final class GdlTestUtils {
+
+    private GdlTestUtils() {
+    }
+
+    public static GdlSentence sentence(String text) throws Exception {
+        return (GdlSentence) GdlFactory.create(text);
+    }
+
+    public static Set<GdlSentence> sentences(String... texts) throws Exception {
+        Set<GdlSentence> sentences = new HashSet<GdlSentence>();
+        for (String text : texts) {
+            sentences.add(sentence(text));
+        }
+        return sentences;
+    }
+}
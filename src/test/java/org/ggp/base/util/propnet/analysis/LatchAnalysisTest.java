@@ -0,0 +1,71 @@
+package org.ggp.base.util.propnet.analysis;
+
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.GdlTestUtils;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FlatPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class LatchAnalysisTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        LatchAnalysis analysis = LatchAnalysis.analyze(OptimizingPropNetFactory.create(description));
+        // A mark stays on the board, and a blank cell stays taken once marked.
+        assertTrue(analysis.getPositiveLatches().contains(GdlTestUtils.sentence("( true ( cell 1 1 x ) )")));
+        assertTrue(analysis.getNegativeLatches().contains(GdlTestUtils.sentence("( true ( cell 1 1 b ) )")));
+        assertFalse(analysis.isLatch(GdlTestUtils.sentence("( true ( control xplayer ) )")));
+        assertTrue(analysis.isInitiallyTrue(GdlTestUtils.sentence("( true ( control xplayer ) )")));
+        assertTrue(analysis.getMutexGroups().contains(GdlTestUtils.sentences("( true ( control xplayer ) )", "( true ( control oplayer ) )")));
+        assertTrue(analysis.getAlwaysTrueBases().isEmpty());
+        assertTrue(analysis.getNeverTrueBases().isEmpty());
+    }
+
+    @Test
+    public void testCountersAreMutex() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("test_disjunctive_sum").getRules();
+        PropNet propNet = OptimizingPropNetFactory.create(description);
+        LatchAnalysis analysis = LatchAnalysis.analyze(propNet);
+        List<Set<GdlSentence>> groups = analysis.getMutexGroups();
+        assertTrue(groups.contains(GdlTestUtils.sentences("( true ( step 0 ) )", "( true ( step 1 ) )", "( true ( step 2 ) )", "( true ( step 3 ) )")));
+        assertTrue(groups.contains(GdlTestUtils.sentences("( true ( a 0 ) )", "( true ( a 1 ) )", "( true ( a 2 ) )", "( true ( a 3 ) )")));
+        assertTrue(analysis.getEncodedStateBits() < propNet.getBasePropositions().size());
+        // Nothing leads back to the first step once the game has started.
+        assertEquals(Boolean.FALSE, analysis.getConstantsAfterInit().get(GdlTestUtils.sentence("( true ( step 0 ) )")));
+    }
+
+    @Test
+    public void testLatchedBasesAreFolded() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("test_latched_bases").getRules();
+        PropNet propNet = OptimizingPropNetFactory.create(description);
+        assertFalse(propNet.getBasePropositions().containsKey(GdlTestUtils.sentence("( true broken )")));
+        assertTrue(propNet.getBasePropositions().containsKey(GdlTestUtils.sentence("( true wall )")));
+        assertTrue(propNet.getBasePropositions().get(GdlTestUtils.sentence("( true wall )")).getOutputs().isEmpty());
+
+        LatchAnalysis analysis = LatchAnalysis.analyze(propNet);
+        assertEquals(GdlTestUtils.sentences("( true wall )"), analysis.getAlwaysTrueBases());
+        assertTrue(analysis.getMutexGroups().contains(GdlTestUtils.sentences("( true ( pos 1 ) )", "( true ( pos 2 ) )", "( true ( pos 3 ) )")));
+
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        StateMachine subject = new FlatPropNetStateMachine();
+        subject.initialize(description);
+        assertTrue(StateMachineVerifier.checkMachineEquivalence(reference, subject, 300));
+    }
+}
@@ -0,0 +1,93 @@
+package org.ggp.base.util.propnet.analysis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.GdlTestUtils;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.propnet.analysis.PropNetFactoring.Combination;
+import org.ggp.base.util.propnet.analysis.PropNetFactoring.Factor;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FactorStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FlatPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PropNetFactoringTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    @Test
+    public void testDisjunctiveSum() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("test_disjunctive_sum").getRules();
+        PropNetFactoring factoring = PropNetFactoring.factor(OptimizingPropNetFactory.create(description));
+        assertTrue(factoring.isFactored());
+        assertEquals(3, factoring.getFactors().size());
+        assertEquals(2, factoring.getRelevantFactors().size());
+        assertEquals(Combination.DISJUNCTIVE, factoring.getTerminalCombination());
+        assertEquals(Collections.singleton(GdlTestUtils.sentence("( does you wait )")), factoring.getFreeInputs());
+        assertTrue(factoring.getMovelessBases().containsAll(GdlTestUtils.sentences("( true ( step 1 ) )", "( true ( step 2 ) )", "( true ( step 3 ) )")));
+
+        Factor a = factoring.getFactor(GdlTestUtils.sentence("( does you inca )"));
+        assertEquals(Collections.singleton(GdlTestUtils.sentence("( does you inca )")), a.getInputs());
+        assertTrue(a.getBases().contains(GdlTestUtils.sentence("( true ( a 1 ) )")));
+        assertFalse(a.getBases().contains(GdlTestUtils.sentence("( true ( b 1 ) )")));
+        assertTrue(a.affectsTerminal());
+        assertTrue(a.affectsGoals());
+
+        Factor b = factoring.getFactor(GdlTestUtils.sentence("( does you incb )"));
+        assertTrue(b.affectsTerminal());
+        assertFalse(b.affectsGoals());
+
+        Factor light = factoring.getFactor(GdlTestUtils.sentence("( does you toggle )"));
+        assertEquals(Collections.singleton(GdlTestUtils.sentence("( true lit )")), light.getBases());
+        assertFalse(light.isRelevant());
+    }
+
+    @Test
+    public void testTicTacToeIsNotFactored() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        PropNetFactoring factoring = PropNetFactoring.factor(OptimizingPropNetFactory.create(description));
+        assertFalse(factoring.isFactored());
+        assertTrue(factoring.getMovelessBases().contains(GdlTestUtils.sentence("( true ( control xplayer ) )")));
+    }
+
+    @Test
+    public void testFactorStateMachine() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("test_disjunctive_sum").getRules();
+        PropNetFactoring factoring = PropNetFactoring.factor(OptimizingPropNetFactory.create(description));
+        Factor a = factoring.getFactor(GdlTestUtils.sentence("( does you inca )"));
+        Role you = new Role(GdlPool.getConstant("you"));
+
+        StateMachine flat = new FlatPropNetStateMachine();
+        flat.initialize(description);
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(description);
+        for (StateMachine backing : Arrays.asList(flat, prover)) {
+            FactorStateMachine machine = new FactorStateMachine(backing, factoring, a);
+            MachineState state = machine.getInitialState();
+            assertEquals(new HashSet<Move>(Arrays.asList(Move.create("inca"), Move.create("wait"))), new HashSet<Move>(machine.getLegalMoves(state, you)));
+
+            state = machine.getNextState(state, Collections.singletonList(Move.create("inca")));
+            assertEquals(GdlTestUtils.sentences("( true ( a 1 ) )", "( true ( b 0 ) )", "( true ( step 1 ) )"), state.getContents());
+            // Moves outside the factor don't change anything outside of it.
+            MachineState next = machine.getNextState(state, Collections.singletonList(Move.create("incb")));
+            assertEquals(GdlTestUtils.sentences("( true ( a 1 ) )", "( true ( b 0 ) )", "( true ( step 2 ) )"), next.getContents());
+            state = machine.getNextState(next, Collections.singletonList(Move.create("inca")));
+            assertTrue(machine.isTerminal(state));
+            assertEquals(100, machine.getGoal(state, you));
+        }
+    }
+}
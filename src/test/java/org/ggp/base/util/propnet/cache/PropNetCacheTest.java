@@ -0,0 +1,152 @@
+package org.ggp.base.util.propnet.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.Role;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PropNetCacheTest extends Assert {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private PropNetCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.getRoot();
+        cache = new PropNetCache(directory);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (String game : new String[] {"ticTacToe", "connectFour", "test_case_3c", "test_case_5c"}) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            PropNet original = OptimizingPropNetFactory.create(description);
+            File file = new File(directory, game);
+            PropNetFormat.write(original, file);
+            assertSameStructure(original, PropNetFormat.read(file));
+        }
+    }
+
+    @Test
+    public void testCachedPropNetIsReused() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        File file = cache.getFile(description);
+        assertFalse(file.exists());
+        PropNet built = cache.getPropNet(description);
+        assertTrue(file.isFile());
+        long lastModified = file.lastModified();
+
+        PropNet loaded = cache.getPropNet(description);
+        assertNotSame(built, loaded);
+        assertSameStructure(built, loaded);
+        assertEquals(lastModified, file.lastModified());
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void testMalformedFileIsRebuilt() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        File file = cache.getFile(description);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {0x47, 0x47, 0x50, 0x50, 0, 0, 0});
+        out.close();
+
+        PropNet propNet = cache.getPropNet(description);
+        assertSameStructure(OptimizingPropNetFactory.create(description), propNet);
+        assertSameStructure(propNet, PropNetFormat.read(file));
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void testKeyDependsOnDescription() throws Exception {
+        List<Gdl> ticTacToe = new TestGameRepository().getGame("ticTacToe").getRules();
+        List<Gdl> connectFour = new TestGameRepository().getGame("connectFour").getRules();
+        assertEquals(PropNetCache.getKey(ticTacToe), PropNetCache.getKey(new TestGameRepository().getGame("ticTacToe").getRules()));
+        assertFalse(PropNetCache.getKey(ticTacToe).equals(PropNetCache.getKey(connectFour)));
+    }
+
+    private static void assertSameStructure(PropNet expected, PropNet actual) {
+        assertEquals(expected.getRoles(), actual.getRoles());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getNumAnds(), actual.getNumAnds());
+        assertEquals(expected.getNumOrs(), actual.getNumOrs());
+        assertEquals(expected.getNumNots(), actual.getNumNots());
+        assertEquals(expected.getNumLinks(), actual.getNumLinks());
+        assertEquals(expected.getBasePropositions().keySet(), actual.getBasePropositions().keySet());
+        assertEquals(expected.getInputPropositions().keySet(), actual.getInputPropositions().keySet());
+        assertEquals(expected.getLegalInputMap().size(), actual.getLegalInputMap().size());
+        assertEquals(getNames(expected.getInitProposition()), getNames(actual.getInitProposition()));
+        assertEquals(getNames(expected.getTerminalProposition()), getNames(actual.getTerminalProposition()));
+        for (Role role : expected.getRoles()) {
+            assertEquals(getNames(expected.getLegalPropositions().get(role)), getNames(actual.getLegalPropositions().get(role)));
+            assertEquals(getNames(expected.getGoalPropositions().get(role)), getNames(actual.getGoalPropositions().get(role)));
+        }
+
+        // Uniquely named propositions must be wired to the same kinds of
+        // components. Anonymous propositions share their names.
+        Map<GdlSentence, Proposition> actualPropositions = getUniquelyNamed(actual);
+        for (Proposition proposition : getUniquelyNamed(expected).values()) {
+            Proposition match = actualPropositions.get(proposition.getName());
+            assertNotNull(match);
+            assertEquals(getTypes(proposition.getInputs()), getTypes(match.getInputs()));
+            assertEquals(getTypes(proposition.getOutputs()), getTypes(match.getOutputs()));
+        }
+    }
+
+    private static Map<GdlSentence, Proposition> getUniquelyNamed(PropNet propNet) {
+        Map<GdlSentence, Proposition> propositions = new HashMap<GdlSentence, Proposition>();
+        Set<GdlSentence> duplicates = new HashSet<GdlSentence>();
+        for (Proposition proposition : propNet.getPropositions()) {
+            if (propositions.put(proposition.getName(), proposition) != null) {
+                duplicates.add(proposition.getName());
+            }
+        }
+        propositions.keySet().removeAll(duplicates);
+        return propositions;
+    }
+
+    private static Set<GdlSentence> getNames(Proposition proposition) {
+        Set<GdlSentence> names = new HashSet<GdlSentence>();
+        if (proposition != null) {
+            names.add(proposition.getName());
+        }
+        return names;
+    }
+
+    private static Set<GdlSentence> getNames(Set<Proposition> propositions) {
+        Set<GdlSentence> names = new HashSet<GdlSentence>();
+        for (Proposition proposition : propositions) {
+            names.add(proposition.getName());
+        }
+        return names;
+    }
+
+    private static Map<String, Integer> getTypes(Set<Component> components) {
+        Map<String, Integer> types = new HashMap<String, Integer>();
+        for (Component component : components) {
+            String type = component.getClass().getSimpleName();
+            types.put(type, types.containsKey(type) ? types.get(type) + 1 : 1);
+        }
+        return types;
+    }
+}
@@ -0,0 +1,28 @@
+package org.ggp.base.util.propnet.cache;
+
+import java.io.File;
+
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A temporary folder that stands in for the default {@link PropNetCache}
+ * while a test runs, so that tests neither write propnets into the working
+ * tree nor start from the ones earlier runs left there.
+ */
+public class TemporaryPropNetCache extends TemporaryFolder {
+
+    private File previousDirectory;
+
+    @Override
+    protected void before() throws Throwable {
+        super.before();
+        previousDirectory = PropNetCache.getDefaultDirectory();
+        PropNetCache.setDefaultDirectory(getRoot());
+    }
+
+    @Override
+    protected void after() {
+        PropNetCache.setDefaultDirectory(previousDirectory);
+        super.after();
+    }
+}
@@ -0,0 +1,80 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.model.SentenceDomainModelFactory;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.statemachine.Role;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OptimizingPropNetFactoryTest extends Assert {
+
+    @Test
+    public void testThreadCountDoesNotChangePropNet() throws Exception {
+        for (String game : new String[] {"ticTacToe", "connectFour", "test_case_2a", "test_case_3c", "test_case_4a", "test_case_5c", "test_distinct_beginning_rule"}) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            PropNet sequential = OptimizingPropNetFactory.create(description, false, 1);
+            for (int numThreads : new int[] {2, 4}) {
+                PropNet parallel = OptimizingPropNetFactory.create(description, false, numThreads);
+                assertEquals(game, sequential.getSize(), parallel.getSize());
+                assertEquals(game, sequential.getNumLinks(), parallel.getNumLinks());
+                assertEquals(game, sequential.getNumAnds(), parallel.getNumAnds());
+                assertEquals(game, sequential.getNumOrs(), parallel.getNumOrs());
+                assertEquals(game, sequential.getNumNots(), parallel.getNumNots());
+                assertEquals(game, sequential.getBasePropositions().keySet(), parallel.getBasePropositions().keySet());
+                assertEquals(game, sequential.getInputPropositions().keySet(), parallel.getInputPropositions().keySet());
+                for (Role role : sequential.getRoles()) {
+                    assertEquals(game, getNames(sequential.getLegalPropositions().get(role)), getNames(parallel.getLegalPropositions().get(role)));
+                    assertEquals(game, getNames(sequential.getGoalPropositions().get(role)), getNames(parallel.getGoalPropositions().get(role)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBudgetIsEnforced() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        PropNet unlimited = OptimizingPropNetFactory.create(description);
+        PropNet budgeted = OptimizingPropNetFactory.create(description, new PropNetBudget(60000, 100000));
+        assertEquals(unlimited.getSize(), budgeted.getSize());
+        assertEquals(unlimited.getNumLinks(), budgeted.getNumLinks());
+
+        try {
+            OptimizingPropNetFactory.create(description, new PropNetBudget(60000, 10));
+            fail("Built a propnet over the proposition budget");
+        } catch (PropNetBudgetExceededException e) {
+        }
+        try {
+            OptimizingPropNetFactory.create(description, new PropNetBudget(1, 100000));
+            fail("Built a propnet over the time limit");
+        } catch (PropNetBudgetExceededException e) {
+        }
+    }
+
+    @Test
+    public void testEstimateBoundsPropositions() throws Exception {
+        for (String game : new String[] {"ticTacToe", "connectFour", "test_case_3c", "test_case_5c"}) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            PropNet propNet = OptimizingPropNetFactory.create(description);
+            long estimate = OptimizingPropNetFactory.estimateSize(SentenceDomainModelFactory.createWithCartesianDomains(description));
+            assertTrue(game + ": " + estimate, estimate >= propNet.getPropositions().size());
+        }
+    }
+
+    private static Set<GdlSentence> getNames(Set<Proposition> propositions) {
+        Set<GdlSentence> names = new HashSet<GdlSentence>();
+        if (propositions != null) {
+            for (Proposition proposition : propositions) {
+                names.add(proposition.getName());
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,72 @@
+package org.ggp.base.util.prover.aima.knowledge;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+public class KnowledgeBaseTest extends Assert {
+
+    private static KnowledgeBase createKnowledgeBase(String... rules) throws Exception {
+        Set<Gdl> description = new HashSet<Gdl>();
+        for (String rule : rules) {
+            description.add(GdlFactory.create(rule));
+        }
+        return new KnowledgeBase(description);
+    }
+
+    private static Set<String> fetch(KnowledgeBase kb, String query) throws Exception {
+        Set<String> heads = new HashSet<String>();
+        List<GdlRule> candidates = kb.fetch((GdlSentence) GdlFactory.create(query));
+        for (GdlRule rule : candidates) {
+            heads.add(rule.getHead().toString());
+        }
+        assertEquals(candidates.size(), heads.size());
+        return heads;
+    }
+
+    @Test
+    public void testFactsAreIndexedByEveryPosition() throws Exception {
+        KnowledgeBase kb = createKnowledgeBase("( succ 1 2 )", "( succ 2 3 )", "( succ 3 4 )", "( succ 4 5 )");
+        assertEquals(1, fetch(kb, "( succ 2 ?x )").size());
+        assertEquals(4, fetch(kb, "( succ ?x 3 )").size());
+        assertTrue(fetch(kb, "( succ 9 ?x )").isEmpty());
+        assertEquals(4, fetch(kb, "( succ ?x ?y )").size());
+        assertTrue(fetch(kb, "( other ?x ?y )").isEmpty());
+    }
+
+    @Test
+    public void testGroundQueriesLookUpFacts() throws Exception {
+        KnowledgeBase kb = createKnowledgeBase("( succ 1 2 )", "( succ 2 3 )");
+        assertTrue(kb.containsFact((GdlSentence) GdlFactory.create("( succ 1 2 )")));
+        assertFalse(kb.containsFact((GdlSentence) GdlFactory.create("( succ 1 3 )")));
+        assertEquals(1, fetch(kb, "( succ 1 2 )").size());
+        assertTrue(fetch(kb, "( succ 1 3 )").isEmpty());
+    }
+
+    @Test
+    public void testRulesWithVariablesMatchEverythingAfterThem() throws Exception {
+        KnowledgeBase kb = createKnowledgeBase(
+                "( true ( cell 1 1 b ) )",
+                "( true ( cell 1 2 x ) )",
+                "( true ( cell 2 1 o ) )",
+                "( <= ( true ( cell 1 ?y ?z ) ) ( foo ?y ?z ) )",
+                "( <= ( true ?anything ) ( bar ?anything ) )");
+        assertEquals(ImmutableSet.of(
+                "( true ( cell 1 1 b ) )",
+                "( true ( cell 1 2 x ) )",
+                "( true ( cell 1 ?y ?z ) )",
+                "( true ?anything )"), fetch(kb, "( true ( cell 1 ?a ?b ) )"));
+        assertEquals(3, fetch(kb, "( true ( cell 1 2 x ) )").size());
+        assertEquals(ImmutableSet.of("( true ?anything )"), fetch(kb, "( true ( cell 2 1 b ) )"));
+        assertEquals(1, fetch(kb, "( true ( control white ) )").size());
+    }
+}
@@ -0,0 +1,71 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.GdlTestUtils;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BitMachineStateTest extends Assert {
+
+    private static BaseIndex createIndex(int numBases) throws Exception {
+        GdlSentence[] bases = new GdlSentence[numBases];
+        for (int i = 0; i < numBases; i++) {
+            bases[i] = GdlTestUtils.sentence("( true ( cell " + i + " ) )");
+        }
+        return new BaseIndex(bases);
+    }
+
+    @Test
+    public void testEqualsAndHashMatchPlainStates() throws Exception {
+        BaseIndex index = createIndex(100);
+        Set<GdlSentence> contents = new HashSet<GdlSentence>();
+        contents.add(index.getSentence(3));
+        contents.add(index.getSentence(64));
+        contents.add(index.getSentence(99));
+
+        BitMachineState bitState = index.createState(contents);
+        MachineState plainState = new MachineState(contents);
+        assertEquals(contents, bitState.getContents());
+        assertEquals(plainState.hashCode(), bitState.hashCode());
+        assertEquals(plainState, bitState);
+        assertEquals(bitState, plainState);
+        assertTrue(bitState.isTrue(64));
+        assertFalse(bitState.isTrue(63));
+
+        Map<MachineState, String> map = new HashMap<MachineState, String>();
+        map.put(plainState, "plain");
+        assertEquals("plain", map.get(bitState));
+    }
+
+    @Test
+    public void testStatesOverTheSameIndex() throws Exception {
+        BaseIndex index = createIndex(70);
+        long[] a = new long[index.getNumWords()];
+        long[] b = new long[index.getNumWords()];
+        a[1] = b[1] = 1L << 5;
+        BitMachineState first = new BitMachineState(index, a);
+        BitMachineState second = new BitMachineState(index, b);
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertSame(first, index.toBitState(first));
+        assertEquals(first, index.toBitState(new MachineState(first.getContents())));
+
+        long[] c = new long[index.getNumWords()];
+        c[0] = 1L;
+        assertFalse(first.equals(new BitMachineState(index, c)));
+    }
+
+    @Test
+    public void testNonBaseSentencesAreDropped() throws Exception {
+        BaseIndex index = createIndex(4);
+        Set<GdlSentence> contents = new HashSet<GdlSentence>();
+        contents.add(index.getSentence(1));
+        contents.add(GdlTestUtils.sentence("( true ( somethingElse ) )"));
+        assertEquals(1, index.createState(contents).getContents().size());
+    }
+}
@@ -0,0 +1,83 @@
+package org.ggp.base.util.statemachine.cache;
+
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FlatPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CachedStateMachineTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    private final List<Gdl> connectFourDesc = new TestGameRepository().getGame("connectFour").getRules();
+
+    @Test
+    public void testCacheIsBoundedByNumberOfStates() throws Exception {
+        CachedStateMachine sm = new CachedStateMachine(new FlatPropNetStateMachine(), 10);
+        sm.initialize(connectFourDesc);
+        for (int i = 0; i < 20; i++) {
+            sm.performDepthCharge(sm.getInitialState(), null);
+        }
+        assertTrue(sm.getCacheSize() <= 10);
+        assertTrue(sm.getStats().evictionCount() > 0);
+    }
+
+    @Test
+    public void testCacheIsBoundedByMemory() throws Exception {
+        CachedStateMachine sm = CachedStateMachine.withMemoryBudget(new FlatPropNetStateMachine(), 20 * 1024);
+        sm.initialize(connectFourDesc);
+        for (int i = 0; i < 20; i++) {
+            sm.performDepthCharge(sm.getInitialState(), null);
+        }
+        assertTrue(sm.getCacheSize() > 0);
+        assertTrue(sm.getCacheSize() < 40);
+        assertTrue(sm.getStats().evictionCount() > 0);
+    }
+
+    @Test
+    public void testRepeatedQueriesHitTheCache() throws Exception {
+        CachedStateMachine sm = new CachedStateMachine(new FlatPropNetStateMachine());
+        sm.initialize(connectFourDesc);
+        MachineState initial = sm.getInitialState();
+        List<Move> jointMove = sm.getLegalJointMoves(initial).get(0);
+        MachineState next = sm.getNextState(initial, jointMove);
+        long hits = sm.getStats().hitCount();
+        assertSame(next, sm.getNextState(initial, jointMove));
+        sm.isTerminal(initial);
+        sm.getLegalMoves(initial, sm.getRoles().get(0));
+        assertTrue(sm.getStats().hitCount() > hits);
+    }
+
+    @Test
+    public void testForksShareTheCache() throws Exception {
+        CachedStateMachine sm = new CachedStateMachine(new FlatPropNetStateMachine());
+        sm.initialize(connectFourDesc);
+        CachedStateMachine fork = (CachedStateMachine) sm.fork();
+        MachineState state = fork.getRandomNextState(fork.getInitialState());
+        fork.isTerminal(state);
+        long misses = sm.getStats().missCount();
+        sm.isTerminal(state);
+        assertEquals(misses, sm.getStats().missCount());
+    }
+
+    @Test
+    public void testEquivalenceWithProver() throws Exception {
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(connectFourDesc);
+        StateMachine subject = new CachedStateMachine(new FlatPropNetStateMachine(), 100);
+        subject.initialize(connectFourDesc);
+        assertTrue(StateMachineVerifier.checkMachineEquivalence(reference, subject, 300));
+        assertTrue(StateMachineVerifier.checkForkEquivalence(reference, subject, 4, 300));
+    }
+}
@@ -0,0 +1,130 @@
+package org.ggp.base.util.statemachine.iistatemachine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.GdlTestUtils;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.IIPropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.SeesState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class IISamplePropNetStateMachineTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    private StateMachine stateMachine;
+    private IIStateMachine server;
+    private IIStateMachine guesserMachine;
+    private Role random;
+    private Role guesser;
+
+    @Before
+    public void setUp() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("test_hidden_number").getRules();
+        stateMachine = new ProverStateMachine();
+        stateMachine.initialize(description);
+        server = new IISamplePropNetStateMachine();
+        server.initialize(stateMachine, description);
+        guesserMachine = new IISamplePropNetStateMachine();
+        guesserMachine.initialize(stateMachine, description);
+        random = stateMachine.getRoles().get(0);
+        guesser = stateMachine.getRoles().get(1);
+    }
+
+    @Test
+    public void testLegalMovesFollowSees() throws Exception {
+        MachineState state = stateMachine.getInitialState();
+        assertEquals(Collections.singletonList(Move.create("noop")), guesserMachine.getLegalMoves(state, guesser));
+
+        state = stateMachine.getNextState(state, Arrays.asList(Move.create("( choose 3 )"), Move.create("noop")));
+        SeesState sees = server.getSeesState(state, guesser);
+        assertTrue(sees.getSees().isEmpty());
+        assertEquals(moves("( guess 1 )", "( guess 2 )", "( guess 3 )", "( guess 4 )"), new HashSet<Move>(guesserMachine.getLegalMoves(sees, Move.create("noop"))));
+        // The guesser can't see the secret, but knows that choosing it is over.
+        assertEquals(Collections.singletonList(Move.create("noop")), guesserMachine.refineLegalMoves(sees, Move.create("noop"), random));
+
+        state = stateMachine.getNextState(state, Arrays.asList(Move.create("noop"), Move.create("( guess 1 )")));
+        sees = server.getSeesState(state, guesser);
+        assertEquals(1, sees.getSees().size());
+        assertTrue(sees.containsSee(GdlTestUtils.sentence("( sees guesser low )")));
+        assertEquals(moves("( guess 2 )", "( guess 3 )", "( guess 4 )"), new HashSet<Move>(guesserMachine.getLegalMoves(sees, Move.create("( guess 1 )"))));
+    }
+
+    @Test
+    public void testAllSeesStates() throws Exception {
+        MachineState start = stateMachine.getInitialState();
+        MachineState chosen = stateMachine.getNextState(start, Arrays.asList(Move.create("( choose 2 )"), Move.create("noop")));
+        MachineState guessed = stateMachine.getNextState(chosen, Arrays.asList(Move.create("noop"), Move.create("( guess 4 )")));
+
+        List<SeesState> all = server.getAllSeesStates(guessed);
+        assertEquals(2, all.size());
+        assertNull(all.get(0).getSees());
+        SeesState sees = all.get(1);
+        assertEquals(guesser, sees.getRole());
+        assertEquals(server.getSeesState(guessed, guesser).getSees(), sees.getSees());
+        assertTrue(sees.containsSee(GdlTestUtils.sentence("( sees guesser high )")));
+        assertFalse(sees.containsSee(GdlTestUtils.sentence("( sees guesser low )")));
+        assertFalse(sees.containsSee(GdlTestUtils.sentence("( sees random high )")));
+
+        // Sees sent over the wire come back as a plain set, and work the same.
+        SeesState received = new SeesState(guesser, sees.getSees());
+        assertNull(received.getIndex());
+        assertTrue(received.containsSee(GdlTestUtils.sentence("( sees guesser high )")));
+        assertFalse(received.containsSee(GdlTestUtils.sentence("( sees guesser low )")));
+        assertEquals(sees, received);
+        assertEquals(sees.hashCode(), received.hashCode());
+        assertFalse(sees.equals(server.getSeesState(chosen, guesser)));
+
+        guesserMachine.getLegalMoves(start, guesser);
+        guesserMachine.getLegalMoves(server.getSeesState(chosen, guesser), Move.create("noop"));
+        assertEquals(moves("( guess 1 )", "( guess 2 )", "( guess 3 )"), new HashSet<Move>(guesserMachine.getLegalMoves(received, Move.create("( guess 4 )"))));
+    }
+
+    @Test
+    public void testThreeValuedEvaluation() throws Exception {
+        IIPropNet propNet = guesserMachine.getIIPropNet();
+        Proposition win = null;
+        for (Proposition goal : propNet.getGoalPropositions().get(guesser)) {
+            if (goal.getName().equals(GdlTestUtils.sentence("( goal guesser 100 )"))) {
+                win = goal;
+            }
+        }
+        assertEquals(0.5, propNet.getIIValue(win), 0);
+
+        propNet.setIIValue(propNet.getBasePropositions().get(GdlTestUtils.sentence("( true ( secret 2 ) )")), 1);
+        propNet.setIIValue(propNet.getBasePropositions().get(GdlTestUtils.sentence("( true ( last 2 ) )")), 1);
+        assertEquals(1, propNet.getIIValue(win), 0);
+
+        propNet.setIIValue(propNet.getBasePropositions().get(GdlTestUtils.sentence("( true ( last 2 ) )")), 0.5);
+        assertEquals(0.5, propNet.getIIValue(win), 0);
+
+        for (int n = 1; n <= 4; n++) {
+            propNet.setIIValue(propNet.getBasePropositions().get(GdlTestUtils.sentence("( true ( last " + n + " ) )")), 0);
+        }
+        assertEquals(0, propNet.getIIValue(win), 0);
+    }
+
+    private static Set<Move> moves(String... texts) {
+        Set<Move> moves = new HashSet<Move>();
+        for (String text : texts) {
+            moves.add(Move.create(text));
+        }
+        return moves;
+    }
+}
@@ -0,0 +1,109 @@
+package org.ggp.base.util.statemachine.iistatemachine;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.GdlTestUtils;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ParticleFilterTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    private StateMachine stateMachine;
+    private IIStateMachine iiStateMachine;
+    private Role guesser;
+    private ParticleFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("test_hidden_number").getRules();
+        stateMachine = new ProverStateMachine();
+        stateMachine.initialize(description);
+        iiStateMachine = new IISamplePropNetStateMachine();
+        iiStateMachine.initialize(stateMachine, description);
+        guesser = stateMachine.getRoles().get(1);
+        filter = new ParticleFilter(stateMachine, iiStateMachine, guesser, 100, 2);
+    }
+
+    @After
+    public void tearDown() {
+        filter.shutdown();
+    }
+
+    @Test
+    public void testParticlesFollowSees() throws Exception {
+        assertEquals(2, filter.getNumThreads());
+        assertEquals(Collections.singletonList(stateMachine.getInitialState()), filter.getParticles());
+
+        // The random player's choice is hidden, so every number is possible.
+        assertTrue(filter.update(Move.create("noop"), Collections.<GdlTerm>emptySet()));
+        assertEquals(100, filter.getParticles().size());
+        assertEquals(secrets(1, 2, 3, 4), getSecrets(filter.getParticles()));
+
+        assertTrue(filter.update(Move.create("( guess 1 )"), seen("( sees guesser low )")));
+        assertEquals(secrets(2, 3, 4), getSecrets(filter.getParticles()));
+
+        assertTrue(filter.update(Move.create("( guess 4 )"), seen("( sees guesser high )")));
+        assertEquals(secrets(2, 3), getSecrets(filter.getParticles()));
+        for (MachineState particle : filter.getParticles()) {
+            assertTrue(particle.getContents().contains(GdlTestUtils.sentence("( true ( tried 1 ) )")));
+            assertTrue(particle.getContents().contains(GdlTestUtils.sentence("( true ( tried 4 ) )")));
+        }
+        assertEquals(3, filter.getNumTurns());
+    }
+
+    @Test
+    public void testImpossibleSeesLeaveNoParticles() throws Exception {
+        assertTrue(filter.update(Move.create("noop"), Collections.<GdlTerm>emptySet()));
+        assertFalse(filter.update(Move.create("( guess 2 )"), seen("( sees guesser low )", "( sees guesser high )")));
+        assertTrue(filter.getParticles().isEmpty());
+        assertNull(filter.sample(new Random()));
+    }
+
+    private static Set<GdlSentence> secrets(int... numbers) throws Exception {
+        Set<GdlSentence> secrets = new HashSet<GdlSentence>();
+        for (int number : numbers) {
+            secrets.add(GdlTestUtils.sentence("( true ( secret " + number + " ) )"));
+        }
+        return secrets;
+    }
+
+    private static Set<GdlSentence> getSecrets(List<MachineState> states) {
+        Set<GdlSentence> secrets = new HashSet<GdlSentence>();
+        for (MachineState state : states) {
+            for (GdlSentence sentence : state.getContents()) {
+                if (sentence.get(0).toString().startsWith("( secret")) {
+                    secrets.add(sentence);
+                }
+            }
+        }
+        return secrets;
+    }
+
+    private static Set<GdlTerm> seen(String... texts) throws Exception {
+        Set<GdlTerm> seen = new HashSet<GdlTerm>();
+        for (String text : texts) {
+            seen.add(GdlTestUtils.sentence(text).toTerm());
+        }
+        return seen;
+    }
+}
@@ -0,0 +1,134 @@
+package org.ggp.base.util.statemachine.implementation.forwardchaining;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ForwardChainingStateMachineTest extends Assert {
+
+    protected final ForwardChainingStateMachine sm = new ForwardChainingStateMachine();
+
+    @Test
+    public void testForwardChainingOnTicTacToe() throws Exception {
+        List<Gdl> ticTacToeDesc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(ticTacToeDesc);
+        MachineState state = sm.getInitialState();
+        assertFalse(sm.isTerminal(state));
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        assertEquals(Arrays.asList(xRole, oRole), sm.getRoles());
+
+        assertEquals(9, sm.getLegalJointMoves(state).size());
+        assertEquals(9, sm.getLegalMoves(state, xRole).size());
+        assertEquals(1, sm.getLegalMoves(state, oRole).size());
+        Move noop = Move.create("noop");
+        assertEquals(noop, sm.getLegalMoves(state, oRole).get(0));
+
+        state = sm.getNextState(state, Arrays.asList(Move.create("(mark 1 1)"), noop));
+        assertFalse(sm.isTerminal(state));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("(mark 1 3)")));
+        assertFalse(sm.isTerminal(state));
+        state = sm.getNextState(state, Arrays.asList(Move.create("(mark 3 1)"), noop));
+        assertFalse(sm.isTerminal(state));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("(mark 2 2)")));
+        assertFalse(sm.isTerminal(state));
+        state = sm.getNextState(state, Arrays.asList(Move.create("(mark 2 1)"), noop));
+        assertTrue(sm.isTerminal(state));
+        assertEquals(100, sm.getGoal(state, xRole));
+        assertEquals(0, sm.getGoal(state, oRole));
+        assertEquals(Arrays.asList(new Integer[] {100, 0}), sm.getGoals(state));
+    }
+
+    @Test
+    public void testCase1A() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("test_case_1a").getRules();
+        sm.initialize(desc);
+        MachineState state = sm.getInitialState();
+        Role you = new Role(GdlPool.getConstant("you"));
+        assertFalse(sm.isTerminal(state));
+        assertEquals(100, sm.getGoal(state, you));
+        state = sm.getNextState(state, Collections.singletonList(Move.create("proceed")));
+        assertTrue(sm.isTerminal(state));
+        assertEquals(Collections.singletonList(100), sm.getGoals(state));
+    }
+
+    @Test
+    public void testConsistencyWithProver() throws Exception {
+        for (String game : Arrays.asList("ticTacToe", "connectFour", "test_case_2a", "test_case_3c", "test_case_4a",
+                "test_case_5c", "test_distinct_beginning_rule")) {
+            List<Gdl> desc = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(desc);
+            StateMachine subject = new ForwardChainingStateMachine();
+            subject.initialize(desc);
+            assertTrue(game, StateMachineVerifier.checkMachineConsistency(reference, subject, 300));
+        }
+    }
+
+    @Test
+    public void testForksRunConcurrently() throws Exception {
+        for (String game : Arrays.asList("ticTacToe", "connectFour")) {
+            List<Gdl> desc = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(desc);
+            StateMachine subject = new ForwardChainingStateMachine();
+            subject.initialize(desc);
+            assertTrue(game, StateMachineVerifier.checkForkEquivalence(reference, subject, 4, 300));
+        }
+    }
+
+    // The forks share the constants, so their first states are all modelled
+    // from the same set at once.
+    @Test
+    public void testForksModelTheirFirstStatesConcurrently() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+        Set<List<Move>> expected = new HashSet<List<Move>>(reference.getLegalJointMoves(reference.getInitialState()));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int attempt = 0; attempt < 20; attempt++) {
+                ForwardChainingStateMachine subject = new ForwardChainingStateMachine();
+                subject.initialize(desc);
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<List<List<Move>>>> futures = new ArrayList<Future<List<List<Move>>>>();
+                for (int i = 0; i < 4; i++) {
+                    final StateMachine fork = subject.fork();
+                    futures.add(executor.submit(new Callable<List<List<Move>>>() {
+                        @Override
+                        public List<List<Move>> call() throws Exception {
+                            start.await();
+                            return fork.getLegalJointMoves(fork.getInitialState());
+                        }
+                    }));
+                }
+                start.countDown();
+                for (Future<List<List<Move>>> future : futures) {
+                    assertEquals(expected, new HashSet<List<Move>>(future.get()));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.propnet.compiler.CompiledPropNet;
+import org.ggp.base.util.propnet.compiler.PropNetCompiler;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CompiledPropNetStateMachineTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    protected final CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        List<Gdl> ticTacToeDesc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(ticTacToeDesc);
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        Move noop = Move.create("noop");
+
+        MachineState initial = sm.getInitialState();
+        assertEquals(9, sm.getLegalMoves(initial, xRole).size());
+        assertEquals(1, sm.getLegalMoves(initial, oRole).size());
+        assertFalse(sm.isTerminal(initial));
+
+        MachineState afterX = sm.getNextState(initial, Arrays.asList(Move.create("(mark 2 2)"), noop));
+        assertEquals(8, sm.getLegalMoves(afterX, oRole).size());
+        assertEquals(afterX, sm.getNextState(initial, Arrays.asList(Move.create("(mark 2 2)"), noop)));
+        assertFalse(afterX.equals(sm.getNextState(initial, Arrays.asList(Move.create("(mark 1 1)"), noop))));
+    }
+
+    @Test
+    public void testLargeConesAreSplitIntoChunks() throws Exception {
+        List<Gdl> connectFourDesc = new TestGameRepository().getGame("connectFour").getRules();
+        sm.initialize(connectFourDesc);
+        CompiledPropNet compiled = PropNetCompiler.compile(sm.getPropNet());
+        int chunks = 0;
+        for (Method method : compiled.getClass().getDeclaredMethods()) {
+            if (method.getName().startsWith("computeNextFromState$")) {
+                chunks++;
+            }
+        }
+        assertTrue(chunks > 1);
+    }
+
+    @Test
+    public void testEquivalenceWithProver() throws Exception {
+        for (String game : Arrays.asList("ticTacToe", "connectFour", "test_case_2a", "test_case_3c", "test_case_4a")) {
+            List<Gdl> desc = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(desc);
+            StateMachine subject = new CompiledPropNetStateMachine();
+            subject.initialize(desc);
+            assertTrue(game, StateMachineVerifier.checkMachineEquivalence(reference, subject, 300));
+        }
+    }
+
+    @Test
+    public void testForksRunConcurrently() throws Exception {
+        for (String game : Arrays.asList("ticTacToe", "connectFour")) {
+            List<Gdl> desc = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(desc);
+            StateMachine subject = new CompiledPropNetStateMachine();
+            subject.initialize(desc);
+            assertTrue(game, StateMachineVerifier.checkForkEquivalence(reference, subject, 4, 300));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class FlatPropNetStateMachineTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    protected final FlatPropNetStateMachine sm = new FlatPropNetStateMachine();
+
+    @Test
+    public void testPropNetOnTicTacToe() throws Exception {
+        List<Gdl> ticTacToeDesc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(ticTacToeDesc);
+        MachineState state = sm.getInitialState();
+        assertFalse(sm.isTerminal(state));
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        assertEquals(Arrays.asList(xRole, oRole), sm.getRoles());
+
+        assertEquals(9, sm.getLegalJointMoves(state).size());
+        assertEquals(9, sm.getLegalMoves(state, xRole).size());
+        assertEquals(1, sm.getLegalMoves(state, oRole).size());
+        Move noop = Move.create("noop");
+        assertEquals(noop, sm.getLegalMoves(state, oRole).get(0));
+
+        state = sm.getNextState(state, Arrays.asList(Move.create("(mark 1 1)"), noop));
+        assertFalse(sm.isTerminal(state));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("(mark 1 3)")));
+        assertFalse(sm.isTerminal(state));
+        state = sm.getNextState(state, Arrays.asList(Move.create("(mark 3 1)"), noop));
+        assertFalse(sm.isTerminal(state));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("(mark 2 2)")));
+        assertFalse(sm.isTerminal(state));
+        state = sm.getNextState(state, Arrays.asList(Move.create("(mark 2 1)"), noop));
+        assertTrue(sm.isTerminal(state));
+        assertEquals(100, sm.getGoal(state, xRole));
+        assertEquals(0, sm.getGoal(state, oRole));
+        assertEquals(Arrays.asList(new Integer[] {100, 0}), sm.getGoals(state));
+    }
+
+    @Test
+    public void testCase1A() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("test_case_1a").getRules();
+        sm.initialize(desc);
+        MachineState state = sm.getInitialState();
+        Role you = new Role(GdlPool.getConstant("you"));
+        assertFalse(sm.isTerminal(state));
+        assertEquals(100, sm.getGoal(state, you));
+        state = sm.getNextState(state, Collections.singletonList(Move.create("proceed")));
+        assertTrue(sm.isTerminal(state));
+        assertEquals(Collections.singletonList(100), sm.getGoals(state));
+    }
+
+    @Test
+    public void testConsistencyWithProver() throws Exception {
+        for (String game : Arrays.asList("ticTacToe", "connectFour", "test_case_2a", "test_case_3c", "test_case_4a")) {
+            List<Gdl> desc = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(desc);
+            StateMachine subject = new FlatPropNetStateMachine();
+            subject.initialize(desc);
+            assertTrue(game, StateMachineVerifier.checkMachineConsistency(reference, subject, 300));
+        }
+    }
+
+    @Test
+    public void testForksRunConcurrently() throws Exception {
+        for (String game : Arrays.asList("ticTacToe", "connectFour")) {
+            List<Gdl> desc = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(desc);
+            StateMachine subject = new FlatPropNetStateMachine();
+            subject.initialize(desc);
+            assertTrue(game, StateMachineVerifier.checkForkEquivalence(reference, subject, 4, 300));
+        }
+    }
+
+    @Test
+    public void testBackgroundBuildIsSwappedIn() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+        FailsafeStateMachine failsafe = new FailsafeStateMachine(new FlatPropNetStateMachine(), true);
+        failsafe.initialize(desc);
+        StateMachine fork = failsafe.fork();
+        MachineState state = failsafe.getInitialState();
+        while (failsafe.isBuilding()) {
+            Thread.sleep(10);
+        }
+
+        // States from before the swap keep working after it.
+        Role role = failsafe.getRoles().get(0);
+        assertEquals(new HashSet<Move>(reference.getLegalMoves(state, role)), new HashSet<Move>(failsafe.getLegalMoves(state, role)));
+        assertTrue(failsafe.getBackingMachine() instanceof FlatPropNetStateMachine);
+        assertEquals(new HashSet<Move>(reference.getLegalMoves(state, role)), new HashSet<Move>(fork.getLegalMoves(state, role)));
+        assertTrue(((FailsafeStateMachine) fork).getBackingMachine() instanceof FlatPropNetStateMachine);
+        assertTrue(StateMachineVerifier.checkMachineConsistency(reference, failsafe, 300));
+    }
+}
@@ -10,9 +10,13 @@ import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -184,6 +188,37 @@ public class ProverStateMachineTest extends Assert {
         assertEquals(Collections.singletonList(100), sm.getGoals(state));
     }
 
+    @Test
+    public void testQueriesAlternatingBetweenStates() throws Exception {
+        List<Gdl> ticTacToeDesc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(ticTacToeDesc);
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        Move noop = new Move(GdlPool.getConstant("noop"));
+        MachineState first = sm.getInitialState();
+        MachineState second = sm.getNextState(first, Arrays.asList(move("mark 1 1"), noop));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(9, sm.getLegalMoves(first, xRole).size());
+            assertEquals(1, sm.getLegalMoves(second, xRole).size());
+            assertEquals(8, sm.getLegalMoves(second, oRole).size());
+            assertEquals(1, sm.getLegalMoves(first, oRole).size());
+            // An equal but distinct state gets the same answers.
+            assertEquals(8, sm.getLegalMoves(second.clone(), oRole).size());
+            assertFalse(sm.isTerminal(second));
+            sm.doPerMoveWork();
+        }
+    }
+
+    @Test
+    public void testForksRunConcurrently() throws Exception {
+        List<Gdl> ticTacToeDesc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(ticTacToeDesc);
+        StateMachine wrapped = new FailsafeStateMachine(new CachedStateMachine(new ProverStateMachine()));
+        wrapped.initialize(ticTacToeDesc);
+        assertTrue(StateMachineVerifier.checkForkEquivalence(sm, wrapped, 4, 300));
+    }
+
     protected Move move(String description) {
         String[] parts = description.split(" ");
         GdlConstant head = GdlPool.getConstant(parts[0]);
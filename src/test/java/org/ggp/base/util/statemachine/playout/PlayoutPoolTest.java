@@ -0,0 +1,75 @@
+package org.ggp.base.util.statemachine.playout;
+
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.cache.TemporaryPropNetCache;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FlatPropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PlayoutPoolTest extends Assert {
+
+    @Rule
+    public final TemporaryPropNetCache propNetCache = new TemporaryPropNetCache();
+
+    private static StateMachine createTicTacToeMachine() {
+        List<Gdl> ticTacToeDesc = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine sm = new FlatPropNetStateMachine();
+        sm.initialize(ticTacToeDesc);
+        return sm;
+    }
+
+    @Test
+    public void testBatchOfPlayouts() throws Exception {
+        StateMachine sm = createTicTacToeMachine();
+        PlayoutPool pool = new PlayoutPool(sm, 4);
+        try {
+            assertEquals(4, pool.getNumThreads());
+            MachineState initial = sm.getInitialState();
+            PlayoutResult result = pool.runPlayouts(initial, 500, 0.9);
+            assertEquals(500, result.getNumPlayouts());
+
+            // Tic-tac-toe is constant-sum: every playout hands out 100 points.
+            assertEquals(500 * 100, result.getScoreSum(0) + result.getScoreSum(1));
+            assertTrue(result.getDiscountedScoreSum(0) < result.getScoreSum(0));
+
+            // Games last between five and nine moves.
+            long[] histogram = result.getDepthHistogram();
+            long total = 0;
+            for (int depth = 0; depth < histogram.length; depth++) {
+                if (depth < 5 || depth > 9) {
+                    assertEquals(0, histogram[depth]);
+                }
+                total += histogram[depth];
+            }
+            assertEquals(500, total);
+            assertTrue(result.getAverageDepth() >= 5 && result.getAverageDepth() <= 9);
+            assertTrue(result.getPlayoutsPerSecond() > 0);
+
+            // The machine itself is left alone, and the pool can be reused.
+            assertEquals(initial, sm.getInitialState());
+            assertEquals(100, pool.runPlayouts(initial, 100).getNumPlayouts());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimedPlayouts() throws Exception {
+        StateMachine sm = createTicTacToeMachine();
+        PlayoutPool pool = new PlayoutPool(sm, 2);
+        try {
+            long startTime = System.currentTimeMillis();
+            PlayoutResult result = pool.runPlayoutsFor(sm.getInitialState(), 200);
+            assertTrue(System.currentTimeMillis() - startTime < 2000);
+            assertTrue(result.getNumPlayouts() > 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}